@@ -0,0 +1,72 @@
+package picoded.dstack.module.lock;
+
+import org.openjdk.jmh.annotations.*;
+import org.apache.commons.lang3.RandomStringUtils;
+
+import picoded.core.struct.*;
+import picoded.dstack.*;
+import picoded.dstack.jsql.*;
+import picoded.dstack.struct.simple.*;
+
+/**
+ * # LockBenchmarkState
+ * 
+ * Shared JMH benchmark state, with the stack to benchmark against.
+ * This mirrors the StructSimple and SQLite stacks used by the test suite, with "striped"
+ * benchmarking the modules against StripedKeyLongMap instead (on a StructSimple stack).
+ **/
+@State(Scope.Benchmark)
+public class LockBenchmarkState {
+	
+	/**
+	 * Stack implementation to benchmark, overwrite using `-p stackType=simple`
+	 */
+	@Param({ "simple", "striped", "sqlite" })
+	public String stackType;
+	
+	// Stack, and the modules being benchmarked
+	public CommonStack stack = null;
+	public LockTokenManager lockManager = null;
+	public SimpleConcurrencyManager concurrencyManager = null;
+	
+	/**
+	 * @return Stack implementation to benchmark
+	 */
+	public CommonStack stackImplementation() {
+		if (stackType.equals("sqlite")) {
+			return new JSqlStack(JSqlTestConnection.sqlite(), new GenericConvertHashMap<>());
+		}
+		return new StructSimpleStack(new GenericConvertHashMap<String, Object>());
+	}
+	
+	/**
+	 * Setup the stack, and its modules
+	 */
+	@Setup(Level.Trial)
+	public void systemSetup() {
+		stack = stackImplementation();
+		String name = "B" + RandomStringUtils.randomAlphanumeric(7).toUpperCase();
+		
+		// Modules are setup with the StripedKeyLongMap directly, via their KeyLongMap constructors
+		if (stackType.equals("striped")) {
+			lockManager = new LockTokenManager(new StripedKeyLongMap());
+			concurrencyManager = new SimpleConcurrencyManager(new StripedKeyLongMap(),
+				new StripedKeyLongMap());
+		} else {
+			lockManager = new LockTokenManager(stack, name + "_LOCK");
+			concurrencyManager = new SimpleConcurrencyManager(stack, name + "_CONC");
+		}
+		lockManager.systemSetup();
+		concurrencyManager.systemSetup();
+	}
+	
+	/**
+	 * Destroy the stack, and its modules
+	 */
+	@TearDown(Level.Trial)
+	public void systemDestroy() {
+		lockManager.systemDestroy();
+		concurrencyManager.systemDestroy();
+		stack.systemDestroy();
+	}
+}
@@ -0,0 +1,120 @@
+package picoded.dstack.module.lock;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * # LockTokenManager_perf
+ * 
+ * JMH benchmarks for LockTokenManager, run using `gradle jmh`
+ **/
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LockTokenManager_perf {
+	
+	// Lock timeout used for issued locks
+	static final long LOCK_TIMEOUT = 10000;
+	
+	// Unique thread counter, used for the thread lockID
+	static final AtomicInteger threadCounter = new AtomicInteger();
+	
+	/**
+	 * Per thread state, with its own uncontended lockID, and a held lock (for renewals)
+	 */
+	@State(Scope.Thread)
+	public static class ThreadState {
+		String freeLockID = null;
+		String heldLockID = null;
+		long heldToken = -1;
+		
+		@Setup(Level.Trial)
+		public void setup(LockBenchmarkState state) {
+			int id = threadCounter.incrementAndGet();
+			freeLockID = "free-" + id;
+			heldLockID = "held-" + id;
+			heldToken = state.lockManager.issueLockToken(heldLockID, LOCK_TIMEOUT);
+		}
+		
+		@TearDown(Level.Trial)
+		public void teardown(LockBenchmarkState state) {
+			state.lockManager.returnLockToken(heldLockID, heldToken);
+		}
+	}
+	
+	//----------------------------------------------------------------
+	//
+	//  Uncontended issue / return
+	//
+	//----------------------------------------------------------------
+	
+	@Benchmark
+	@Threads(1)
+	public boolean uncontendedIssueReturn(LockBenchmarkState state, ThreadState thread) {
+		long token = state.lockManager.issueLockToken(thread.freeLockID, LOCK_TIMEOUT);
+		return state.lockManager.returnLockToken(thread.freeLockID, token);
+	}
+	
+	//----------------------------------------------------------------
+	//
+	//  Contended issue, on a single lockID
+	//
+	//----------------------------------------------------------------
+	
+	/**
+	 * Attempt to issue the shared "hot" lock, returning it if succesful
+	 */
+	protected long contendedIssue(LockBenchmarkState state) {
+		long token = state.lockManager.issueLockToken("hot", LOCK_TIMEOUT);
+		if (token > 0) {
+			state.lockManager.returnLockToken("hot", token);
+		}
+		return token;
+	}
+	
+	@Benchmark
+	@Threads(1)
+	public long contendedIssue_01(LockBenchmarkState state) {
+		return contendedIssue(state);
+	}
+	
+	@Benchmark
+	@Threads(4)
+	public long contendedIssue_04(LockBenchmarkState state) {
+		return contendedIssue(state);
+	}
+	
+	@Benchmark
+	@Threads(16)
+	public long contendedIssue_16(LockBenchmarkState state) {
+		return contendedIssue(state);
+	}
+	
+	@Benchmark
+	@Threads(64)
+	public long contendedIssue_64(LockBenchmarkState state) {
+		return contendedIssue(state);
+	}
+	
+	//----------------------------------------------------------------
+	//
+	//  Renew throughput
+	//
+	//----------------------------------------------------------------
+	
+	@Benchmark
+	@Threads(1)
+	public long renew(LockBenchmarkState state, ThreadState thread) {
+		return state.lockManager.renewLockToken(thread.heldLockID, thread.heldToken, LOCK_TIMEOUT);
+	}
+	
+	@Benchmark
+	@Threads(16)
+	public long renew_16(LockBenchmarkState state, ThreadState thread) {
+		return state.lockManager.renewLockToken(thread.heldLockID, thread.heldToken, LOCK_TIMEOUT);
+	}
+}
@@ -0,0 +1,81 @@
+package picoded.dstack.module.lock;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * # SimpleConcurrencyManager_perf
+ * 
+ * JMH benchmarks for the soft and hard limit `leaseConcurrency` paths, run using `gradle jmh`
+ **/
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SimpleConcurrencyManager_perf {
+	
+	// Limit used, which is never reached
+	static final long LIMIT = 1000000000l;
+	
+	/**
+	 * Limit configuration, the "soft" concurrencyID always use the soft limit path,
+	 * while the "hard" concurrencyID always use the hard limit path.
+	 */
+	@State(Scope.Benchmark)
+	public static class LimitState {
+		@Setup(Level.Trial)
+		public void setup(LockBenchmarkState state) {
+			state.concurrencyManager.setLimits("soft", LIMIT, LIMIT, -1);
+			state.concurrencyManager.setLimits("hard", 0, LIMIT, -1);
+		}
+	}
+	
+	/**
+	 * Lease and release a concurrency
+	 */
+	protected boolean leaseAndRelease(LockBenchmarkState state, String concurrencyID) {
+		boolean res = state.concurrencyManager.leaseConcurrency(concurrencyID);
+		if (res) {
+			state.concurrencyManager.releaseConcurrency(concurrencyID);
+		}
+		return res;
+	}
+	
+	//----------------------------------------------------------------
+	//
+	//  Soft limit path
+	//
+	//----------------------------------------------------------------
+	
+	@Benchmark
+	@Threads(1)
+	public boolean softLease(LockBenchmarkState state, LimitState limits) {
+		return leaseAndRelease(state, "soft");
+	}
+	
+	@Benchmark
+	@Threads(16)
+	public boolean softLease_16(LockBenchmarkState state, LimitState limits) {
+		return leaseAndRelease(state, "soft");
+	}
+	
+	//----------------------------------------------------------------
+	//
+	//  Hard limit path
+	//
+	//----------------------------------------------------------------
+	
+	@Benchmark
+	@Threads(1)
+	public boolean hardLease(LockBenchmarkState state, LimitState limits) {
+		return leaseAndRelease(state, "hard");
+	}
+	
+	@Benchmark
+	@Threads(16)
+	public boolean hardLease_16(LockBenchmarkState state, LimitState limits) {
+		return leaseAndRelease(state, "hard");
+	}
+}
@@ -0,0 +1,475 @@
+package picoded.dstack.module.lock;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * # CoalescingLockStore
+ * 
+ * In-JVM contention coalescing layer, which wraps around another LockStore.
+ * 
+ * When multiple threads on the same node race for the same `lockID`, only a single
+ * thread talks to the backend at any point in time. The other local threads wait for,
+ * and are handed, its result. Once a lock is known to be held by this node, other local
+ * acquisition attempts fail immediately without any backend call.
+ * 
+ * Optionally (see `handoffWaitTime`), local threads can wait for a locally held lock to
+ * be released, in which the lock is handed off directly to the waiting thread. This is done
+ * with a single backend call (from the old token, to the new token), without releasing it to
+ * other nodes in between.
+ * 
+ * Note that the backend remains the source of truth - local state is only used to skip calls
+ * which are known to fail, and is bounded by the lock lifespan.
+ **/
+public class CoalescingLockStore implements LockStore {
+	
+	//----------------------------------------------------------------
+	//
+	//  Constructor
+	//
+	//----------------------------------------------------------------
+	
+	/**
+	 * Setup the coalescing layer, around the given LockStore
+	 * 
+	 * @param  inLockStore backend LockStore to use
+	 **/
+	public CoalescingLockStore(LockStore inLockStore) {
+		if (inLockStore == null) {
+			throw new IllegalArgumentException("Missing required LockStore");
+		}
+		lockStore = inLockStore;
+	}
+	
+	/**
+	 * Backend lock store
+	 */
+	protected LockStore lockStore = null;
+	
+	//----------------------------------------------------------------
+	//
+	//  Handoff wait controls
+	//
+	//----------------------------------------------------------------
+	
+	// Maximum wait time for a local handoff in ms (default is 0, no waiting)
+	protected volatile long handoffWait = 0;
+	
+	/**
+	 * @return maximum time a local thread waits for a locally held lock to be handed off
+	 */
+	public long handoffWaitTime() {
+		return handoffWait;
+	}
+	
+	/**
+	 * Configure the maximum time a local thread waits for a locally held lock to be handed off.
+	 * 
+	 * Note that this makes `LockTokenManager.issueLockToken` block, when the lock is held locally.
+	 * 
+	 * @param wait in ms, 0 disables waiting (fail immediately)
+	 * @return the configured wait
+	 */
+	public long handoffWaitTime(long wait) {
+		return handoffWait = Math.max(0l, wait);
+	}
+	
+	//----------------------------------------------------------------
+	//
+	//  Local lock state
+	//
+	//----------------------------------------------------------------
+	
+	/**
+	 * Pending handoff request, by a local waiting thread
+	 */
+	protected static class HandoffRequest {
+		final long token;
+		final long lifespan;
+		boolean done = false;
+		boolean granted = false;
+		
+		HandoffRequest(long inToken, long inLifespan) {
+			token = inToken;
+			lifespan = inLifespan;
+		}
+	}
+	
+	/**
+	 * Local state of a lockID, all access is to be synchronized on the object itself
+	 */
+	protected static class LocalLockState {
+		// Token held by this node, and its (local) expiry timestamp
+		long heldToken = 0l;
+		long heldExpiry = 0l;
+		
+		// Backend acquisition in flight, its generation count, and last result
+		boolean inflight = false;
+		long flightCount = 0l;
+		boolean flightResult = false;
+		
+		// Threads waiting for a local handoff
+		ArrayDeque<HandoffRequest> waiters = new ArrayDeque<>();
+		
+		// Set when removed from the state map, threads should refetch the state
+		boolean removed = false;
+		
+		/**
+		 * @return true, if the lock is held locally, and has not expired
+		 */
+		boolean isHeld(long now) {
+			return heldToken != 0l && heldExpiry > now;
+		}
+		
+		/**
+		 * Clear the locally held token
+		 */
+		void clearHeld() {
+			heldToken = 0l;
+			heldExpiry = 0l;
+		}
+		
+		/**
+		 * @return true, if there is nothing to track
+		 */
+		boolean isIdle(long now) {
+			return !isHeld(now) && !inflight && waiters.isEmpty();
+		}
+	}
+	
+	/**
+	 * Local lockID to state map
+	 */
+	protected ConcurrentHashMap<String, LocalLockState> stateMap = new ConcurrentHashMap<>();
+	
+	/**
+	 * Get the local state for the lockID, creating it if needed.
+	 * The returned state is locked (synchronized) by the caller, and must be checked for `removed`
+	 */
+	protected LocalLockState getState(String lockID) {
+		return stateMap.computeIfAbsent(lockID, (key) -> new LocalLockState());
+	}
+	
+	/**
+	 * Remove the state from the state map, if it is idle.
+	 * Must be called while synchronized on the state.
+	 */
+	protected void cleanupState(String lockID, LocalLockState state) {
+		if (state.isIdle(System.currentTimeMillis())) {
+			state.removed = true;
+			stateMap.remove(lockID, state);
+		}
+	}
+	
+	//----------------------------------------------------------------
+	//
+	//  LockStore implementation
+	//
+	//----------------------------------------------------------------
+	
+	/**
+	 * Compare-and-set with lifespan, see LockStore.compareAndSetWithLifespan
+	 * 
+	 * Lock acquisition (expect == 0l) is coalesced with other local threads,
+	 * while renewal and releases are passed to the backend (and tracked locally)
+	 * 
+	 * @param lockID    to update
+	 * @param expect    expected current value, 0l if lock is not expected to exist
+	 * @param update    value to update to
+	 * @param lifespan  lifespan to apply in ms
+	 * 
+	 * @return true if the value was updated
+	 */
+	public boolean compareAndSetWithLifespan(String lockID, long expect, long update,
+		long lifespan) {
+		if (expect == 0l && update != 0l) {
+			return acquire(lockID, update, lifespan);
+		}
+		if (update == 0l) {
+			return release(lockID, expect, lifespan);
+		}
+		return renew(lockID, expect, update, lifespan);
+	}
+	
+	/**
+	 * Lock acquisition, coalesced across local threads
+	 */
+	protected boolean acquire(String lockID, long token, long lifespan) {
+		while (true) {
+			LocalLockState state = getState(lockID);
+			synchronized (state) {
+				// State was removed, refetch it
+				if (state.removed) {
+					continue;
+				}
+				
+				// Wait for any inflight acquisition by another local thread,
+				// and use its result if it failed
+				if (state.inflight) {
+					long flightCount = state.flightCount;
+					while (state.inflight && state.flightCount == flightCount) {
+						if (!waitOnState(state, 0)) {
+							return false;
+						}
+					}
+					if (state.flightResult == false) {
+						return false;
+					}
+					if (state.removed) {
+						continue;
+					}
+				}
+				
+				// Lock is held locally, fail or wait for its handoff
+				long now = System.currentTimeMillis();
+				if (state.isHeld(now)) {
+					Boolean handoff = waitForHandoff(lockID, state, token, lifespan);
+					if (handoff != null) {
+						return handoff.booleanValue();
+					}
+					// Lock is no longer held locally, try again
+					continue;
+				}
+				
+				// Lets be the thread which talks to the backend
+				state.inflight = true;
+			}
+			
+			// Does the actual backend call (outside of the local lock)
+			long startTime = System.currentTimeMillis();
+			boolean res = false;
+			try {
+				res = lockStore.compareAndSetWithLifespan(lockID, 0l, token, lifespan);
+			} finally {
+				synchronized (state) {
+					state.inflight = false;
+					state.flightCount++;
+					state.flightResult = res;
+					if (res) {
+						state.heldToken = token;
+						state.heldExpiry = startTime + lifespan;
+					}
+					state.notifyAll();
+					cleanupState(lockID, state);
+				}
+			}
+			return res;
+		}
+	}
+	
+	/**
+	 * Wait for a locally held lock to be handed off, within the handoff wait time.
+	 * Must be called while synchronized on the state.
+	 * 
+	 * @return handoff result, or null if the lock is no longer held locally (and should be retried)
+	 */
+	protected Boolean waitForHandoff(String lockID, LocalLockState state, long token,
+		long lifespan) {
+		// Fail immediately, if waiting is disabled
+		long wait = handoffWait;
+		if (wait <= 0l) {
+			return Boolean.FALSE;
+		}
+		
+		// Register the handoff request, and wait for it
+		HandoffRequest req = new HandoffRequest(token, lifespan);
+		state.waiters.add(req);
+		long deadline = System.currentTimeMillis() + wait;
+		boolean timeout = false;
+		while (!req.done) {
+			long now = System.currentTimeMillis();
+			// Lock was released, or has expired
+			if (!state.isHeld(now)) {
+				break;
+			}
+			// Wait timed out (or interrupted)
+			if (now >= deadline
+				|| !waitOnState(state, Math.min(deadline, state.heldExpiry) - now)) {
+				timeout = true;
+				break;
+			}
+		}
+		
+		// Handoff request was processed
+		if (req.done) {
+			return req.granted;
+		}
+		
+		// Withdraw the request, and return the failure / retry
+		state.waiters.remove(req);
+		return timeout ? Boolean.FALSE : null;
+	}
+	
+	/**
+	 * Lock release, which handoff the lock to a waiting local thread if possible
+	 */
+	protected boolean release(String lockID, long token, long lifespan) {
+		LocalLockState state = stateMap.get(lockID);
+		if (state != null) {
+			synchronized (state) {
+				// Handoff to a waiting local thread, with a single backend call
+				HandoffRequest req = null;
+				if (!state.removed && state.heldToken == token) {
+					req = state.waiters.poll();
+				}
+				if (req != null) {
+					boolean res = false;
+					try {
+						res = lockStore.compareAndSetWithLifespan(lockID, token, req.token,
+							req.lifespan);
+					} finally {
+						req.done = true;
+						req.granted = res;
+						if (res) {
+							state.heldToken = req.token;
+							state.heldExpiry = System.currentTimeMillis() + req.lifespan;
+						} else {
+							state.clearHeld();
+						}
+						state.notifyAll();
+						cleanupState(lockID, state);
+					}
+					return res;
+				}
+			}
+		}
+		
+		// Normal release
+		boolean res = lockStore.compareAndSetWithLifespan(lockID, token, 0l, lifespan);
+		clearHeld(lockID, token);
+		return res;
+	}
+	
+	/**
+	 * Lock renewal, tracking the local expiry
+	 */
+	protected boolean renew(String lockID, long expect, long update, long lifespan) {
+		long startTime = System.currentTimeMillis();
+		boolean res = lockStore.compareAndSetWithLifespan(lockID, expect, update, lifespan);
+		
+		// Update the local state
+		LocalLockState state = stateMap.get(lockID);
+		if (state != null) {
+			synchronized (state) {
+				if (!state.removed && state.heldToken == expect) {
+					if (res) {
+						state.heldToken = update;
+						state.heldExpiry = startTime + lifespan;
+					} else {
+						state.clearHeld();
+						state.notifyAll();
+						cleanupState(lockID, state);
+					}
+				} else if (!state.removed && res && state.heldToken != 0l) {
+					// The backend value was changed by another node, so the locally
+					// held token is stale (as the update was made from another value)
+					state.clearHeld();
+					state.notifyAll();
+					cleanupState(lockID, state);
+				}
+			}
+		}
+		return res;
+	}
+	
+	/**
+	 * Clear the locally held token (if it matches), waking up any waiting threads
+	 */
+	protected void clearHeld(String lockID, long token) {
+		LocalLockState state = stateMap.get(lockID);
+		if (state != null) {
+			synchronized (state) {
+				if (!state.removed && state.heldToken == token) {
+					state.clearHeld();
+					state.notifyAll();
+					cleanupState(lockID, state);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Object.wait on the state, preserving the interrupt flag on interruption.
+	 * Must be called while synchronized on the state.
+	 * 
+	 * @param state    to wait on
+	 * @param timeout  in ms, 0 waits till notified
+	 * 
+	 * @return false, if the thread was interrupted
+	 */
+	protected boolean waitOnState(LocalLockState state, long timeout) {
+		try {
+			state.wait(Math.max(0l, timeout));
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+	
+	/**
+	 * @return number of backend round trips, of the backend LockStore
+	 */
+	public int roundTripsPerUpdate() {
+		return lockStore.roundTripsPerUpdate();
+	}
+	
+	/**
+	 * @return number of entries removed, by the backend LockStore sweep
+	 */
+	public int sweepReleased(int batchSize) {
+		return lockStore.sweepReleased(batchSize);
+	}
+	
+	/**
+	 * Get the current lock value
+	 * 
+	 * @param lockID    to lookup
+	 * 
+	 * @return current lock value, 0l if it does not exist
+	 */
+	public long getValue(String lockID) {
+		return lockStore.getValue(lockID);
+	}
+	
+	/**
+	 * Get the current lock values, for multiple lockID
+	 * 
+	 * @param lockIDs   to lookup
+	 * 
+	 * @return current lock value for each lockID, 0l if it does not exist
+	 */
+	public long[] getValues(List<String> lockIDs) {
+		return lockStore.getValues(lockIDs);
+	}
+	
+	/**
+	 * Get the current lock values, and remaining lifespan, for multiple lockID
+	 * 
+	 * @param lockIDs   to lookup
+	 * 
+	 * @return `{ value, lifespan }` for each lockID, as per getValue and getLifespan
+	 */
+	public long[][] getValuesWithLifespan(List<String> lockIDs) {
+		return lockStore.getValuesWithLifespan(lockIDs);
+	}
+	
+	/**
+	 * @return sorted list of lockIDs, from the backend LockStore
+	 */
+	public List<String> listLockIDs(String prefix, String afterLockID, int limit) {
+		return lockStore.listLockIDs(prefix, afterLockID, limit);
+	}
+	
+	/**
+	 * Get the current lock remaining lifespan
+	 * 
+	 * @param lockID    to lookup
+	 * 
+	 * @return -1 if lock does not exist, 0 if no lifespan is configured, >0 is lifespan left
+	 */
+	public long getLifespan(String lockID) {
+		return lockStore.getLifespan(lockID);
+	}
+	
+}
@@ -0,0 +1,51 @@
+package picoded.dstack.module.lock;
+
+import java.util.*;
+
+/**
+ * # CompositeLockToken
+ * 
+ * Lock token handle, representing multiple lockID which is locked together
+ * with a single shared token. Issued by `LockTokenManager.issueLockTokens`
+ * 
+ * lockIDs are stored in its canonical (sorted) order, which is the order
+ * the locks were acquired in.
+ **/
+public class CompositeLockToken {
+	
+	/**
+	 * lockIDs held, in canonical order
+	 */
+	protected final List<String> lockIDs;
+	
+	/**
+	 * Token shared across all the lockIDs
+	 */
+	protected final long token;
+	
+	/**
+	 * Setup the composite token, with its lockIDs (in canonical order), and token
+	 * 
+	 * @param inLockIDs  locked in canonical order
+	 * @param inToken    shared lock token
+	 */
+	protected CompositeLockToken(List<String> inLockIDs, long inToken) {
+		lockIDs = Collections.unmodifiableList(new ArrayList<String>(inLockIDs));
+		token = inToken;
+	}
+	
+	/**
+	 * @return the lockIDs held, in canonical order
+	 */
+	public List<String> getLockIDs() {
+		return lockIDs;
+	}
+	
+	/**
+	 * @return the token shared across all the lockIDs
+	 */
+	public long getToken() {
+		return token;
+	}
+	
+}
@@ -0,0 +1,97 @@
+package picoded.dstack.module.lock;
+
+import java.util.*;
+
+import picoded.dstack.*;
+
+/**
+ * # DistributedBarrier
+ * 
+ * CyclicBarrier equivalent shared across nodes, where a fixed number of parties wait for
+ * each other to arrive, before proceeding to the next phase. Multiple barriers are supported,
+ * by their barrierID.
+ * 
+ * Each barrier is a single counter of the total arrivals across all phases, where the Nth
+ * arrival belongs to phase `(N - 1) / parties`. A phase completes once the arrivals reach
+ * `(phase + 1) * parties`. As such a party which times out is still counted as arrived.
+ * 
+ * All parties must use the same number of parties, for the same barrierID.
+ * 
+ * See DistributedCounterStructure, for the polling and local wakeup behaviour.
+ **/
+public class DistributedBarrier extends DistributedCounterStructure {
+	
+	//----------------------------------------------------------------
+	//
+	//  Constructor
+	//
+	//----------------------------------------------------------------
+	
+	/**
+	 * Setup DistributedBarrier structure given a stack, and its name
+	 * 
+	 * @param  CommonStack / DStack system to use
+	 * @param  Name used to setup the prefix of the complex structure
+	 **/
+	public DistributedBarrier(CommonStack inStack, String inName) {
+		super(inStack, inName);
+	}
+	
+	/**
+	 * Setup DistributedBarrier structure given its internal structures
+	 * 
+	 * @param  inCounterMap   used to store the arrival counts
+	 **/
+	public DistributedBarrier(KeyLongMap inCounterMap) {
+		super(inCounterMap);
+	}
+	
+	//----------------------------------------------------------------
+	//
+	//  Barrier handling
+	//
+	//----------------------------------------------------------------
+	
+	/**
+	 * Arrive at the barrier, and wait for the other parties of the same phase, up to maxWait
+	 * 
+	 * @param barrierID  to arrive at
+	 * @param parties    number of parties per phase
+	 * @param lifespan   lifespan of the barrier in ms (renewed on every arrival),
+	 *                   after which it is removed
+	 * @param maxWait    maximum time to wait in ms
+	 * 
+	 * @return the phase completed (starting from 0), -1 if not completed within maxWait
+	 * 
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public long await(String barrierID, int parties, long lifespan, long maxWait)
+		throws InterruptedException {
+		if (parties <= 0) {
+			throw new IllegalArgumentException("Invalid barrier parties (barrierID = " + barrierID
+				+ ") : " + parties);
+		}
+		
+		// Arrive, and renew the barrier lifespan
+		long arrival = counterMap.incrementAndGet(barrierID);
+		counterMap.setLifeSpan(barrierID, lifespan);
+		
+		// Phase of the arrival, and the arrivals needed to complete it
+		long phase = (arrival - 1) / parties;
+		long target = (phase + 1) * parties;
+		
+		// Last party to arrive, completes the phase
+		if (arrival >= target) {
+			wakeLocalWaiters(barrierID);
+			return phase;
+		}
+		return awaitCounter(barrierID, (count) -> count >= target, maxWait) ? phase : -1;
+	}
+	
+	/**
+	 * @return the total number of arrivals, across all phases
+	 */
+	public long getArrivals(String barrierID) {
+		return counterMap.getLong(barrierID);
+	}
+}
@@ -0,0 +1,117 @@
+package picoded.dstack.module.lock;
+
+import java.util.*;
+
+import picoded.dstack.*;
+
+/**
+ * # DistributedCountDownLatch
+ * 
+ * CountDownLatch equivalent shared across nodes, where waiters are released once
+ * the latch count reaches 0. Multiple latches are supported, by their latchID.
+ * 
+ * The latch is setup once with its count (and lifespan, so abandoned latches are cleared),
+ * after which each party calls `countDown`. Missing or expired latches are treated as open,
+ * as such the latch should be setup before any party waits on it.
+ * 
+ * See DistributedCounterStructure, for the polling and local wakeup behaviour.
+ **/
+public class DistributedCountDownLatch extends DistributedCounterStructure {
+	
+	//----------------------------------------------------------------
+	//
+	//  Constructor
+	//
+	//----------------------------------------------------------------
+	
+	/**
+	 * Setup DistributedCountDownLatch structure given a stack, and its name
+	 * 
+	 * @param  CommonStack / DStack system to use
+	 * @param  Name used to setup the prefix of the complex structure
+	 **/
+	public DistributedCountDownLatch(CommonStack inStack, String inName) {
+		super(inStack, inName);
+	}
+	
+	/**
+	 * Setup DistributedCountDownLatch structure given its internal structures
+	 * 
+	 * @param  inCounterMap   used to store the latch counts
+	 **/
+	public DistributedCountDownLatch(KeyLongMap inCounterMap) {
+		super(inCounterMap);
+	}
+	
+	//----------------------------------------------------------------
+	//
+	//  Latch handling
+	//
+	//----------------------------------------------------------------
+	
+	/**
+	 * Setup the latch with its count, if it does not exist
+	 * 
+	 * @param latchID    to setup
+	 * @param count      number of countDown calls, before the latch is released
+	 * @param lifespan   lifespan of the latch in ms, after which it is removed
+	 * 
+	 * @return true, if the latch was setup (false if it already exists)
+	 */
+	public boolean setupLatch(String latchID, long count, long lifespan) {
+		if (count <= 0) {
+			throw new IllegalArgumentException("Invalid latch count (latchID = " + latchID + ") : "
+				+ count);
+		}
+		if (!counterMap.weakCompareAndSet(latchID, 0l, count)) {
+			return false;
+		}
+		counterMap.setLifeSpan(latchID, lifespan);
+		return true;
+	}
+	
+	/**
+	 * Decrement the latch count, releasing the waiters when it reaches 0
+	 * 
+	 * @param latchID    to count down
+	 * 
+	 * @return the remaining count
+	 */
+	public long countDown(String latchID) {
+		// Count down with a compare-and-set loop, so that concurrent count downs never take
+		// the count below 0 (and open or missing latches are skipped)
+		long current = counterMap.getLong(latchID);
+		while (current > 0) {
+			if (counterMap.weakCompareAndSet(latchID, current, current - 1)) {
+				// Wakeup the local waiters once released
+				if (current - 1 <= 0) {
+					wakeLocalWaiters(latchID);
+				}
+				return current - 1;
+			}
+			current = counterMap.getLong(latchID);
+		}
+		return 0;
+	}
+	
+	/**
+	 * @return the remaining latch count, 0 if released (or missing)
+	 */
+	public long getCount(String latchID) {
+		return Math.max(0l, counterMap.getLong(latchID));
+	}
+	
+	/**
+	 * Wait for the latch to be released, up to maxWait
+	 * 
+	 * @param latchID    to wait for
+	 * @param maxWait    maximum time to wait in ms
+	 * 
+	 * @return true, if the latch was released within maxWait
+	 * 
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public boolean await(String latchID, long maxWait) throws InterruptedException {
+		return awaitCounter(latchID, (count) -> count <= 0, maxWait);
+	}
+}
@@ -0,0 +1,257 @@
+package picoded.dstack.module.lock;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongPredicate;
+
+import picoded.dstack.module.*;
+import picoded.dstack.*;
+
+/**
+ * # DistributedCounterStructure
+ * 
+ * Common base for the coordination primitives built on a shared KeyLongMap counter
+ * (see DistributedCountDownLatch, and DistributedBarrier).
+ * 
+ * Waiting is done by polling the counter, starting at the poll base interval, and doubling
+ * up to the poll cap. So that short waits complete quickly, without long waits flooding the
+ * backend with calls.
+ * 
+ * When the releasing party is on the same instance (same JVM), local waiters are woken up
+ * immediately, instead of waiting for their next poll (see `localWakeup`).
+ **/
+public abstract class DistributedCounterStructure extends ModuleStructure {
+	
+	//----------------------------------------------------------------
+	//
+	//  Constructor
+	//
+	//----------------------------------------------------------------
+	
+	/**
+	 * Setup the structure given a stack, and its name
+	 * 
+	 * @param  CommonStack / DStack system to use
+	 * @param  Name used to setup the prefix of the complex structure
+	 **/
+	public DistributedCounterStructure(CommonStack inStack, String inName) {
+		super(inStack, inName);
+		internalStructureList = setupInternalStructureList();
+	}
+	
+	/**
+	 * Setup the structure given its internal structures
+	 * 
+	 * @param  inCounterMap   used to store the counters
+	 **/
+	public DistributedCounterStructure(KeyLongMap inCounterMap) {
+		counterMap = inCounterMap;
+		internalStructureList = setupInternalStructureList();
+	}
+	
+	//----------------------------------------------------------------
+	//
+	//  Class setup
+	//
+	//----------------------------------------------------------------
+	
+	/**
+	 * Shared counters, by their ID
+	 */
+	protected KeyLongMap counterMap = null;
+	
+	/**
+	 * Setup the internal structure given the stack + name, if needed
+	 * 
+	 * @return internal common structures, for used by the various initialize / teardown commands
+	 */
+	protected List<CommonStructure> setupInternalStructureList() {
+		// Safety check
+		if (counterMap == null) {
+			if (stack == null) {
+				throw new RuntimeException(
+					"Missing required KeyLongMap, and the stack/name param requried to be initialized");
+			}
+		}
+		
+		// The internal KeyLongMap required
+		if (counterMap == null) {
+			counterMap = stack.keyLongMap(name + "_counter");
+		}
+		
+		// Return as a list collection
+		return Arrays.asList(new CommonStructure[] { counterMap });
+	}
+	
+	//----------------------------------------------------------------
+	//
+	//  Polling controls
+	//
+	//----------------------------------------------------------------
+	
+	// Poll interval range in ms, and the local wakeup flag
+	protected long pollBase = 5;
+	protected long pollCap = 500;
+	protected volatile boolean localWakeup = true;
+	
+	/**
+	 * @return initial poll interval, in ms
+	 */
+	public long pollBase() {
+		return pollBase;
+	}
+	
+	/**
+	 * Configure the initial poll interval, which doubles on every poll up to the poll cap
+	 * 
+	 * @param interval in ms - the minimum is 1 ms
+	 * @return the configured interval
+	 */
+	public long pollBase(long interval) {
+		pollBase = Math.max(1l, interval);
+		pollCap = Math.max(pollBase, pollCap);
+		return pollBase;
+	}
+	
+	/**
+	 * @return maximum poll interval, in ms
+	 */
+	public long pollCap() {
+		return pollCap;
+	}
+	
+	/**
+	 * Configure the maximum poll interval
+	 * 
+	 * @param interval in ms - this cannot be lower then the poll base
+	 * @return the configured interval
+	 */
+	public long pollCap(long interval) {
+		return pollCap = Math.max(pollBase, interval);
+	}
+	
+	/**
+	 * @return true, if local waiters are woken up by local releases
+	 */
+	public boolean localWakeup() {
+		return localWakeup;
+	}
+	
+	/**
+	 * Configure the local wakeup, when enabled waiters on this instance are woken up
+	 * immediately when released by this instance. Waiters released by other nodes,
+	 * are still woken up by polling.
+	 * 
+	 * @param enable local wakeup
+	 * @return the configured flag
+	 */
+	public boolean localWakeup(boolean enable) {
+		return localWakeup = enable;
+	}
+	
+	//----------------------------------------------------------------
+	//
+	//  Waiting and wakeup
+	//
+	//----------------------------------------------------------------
+	
+	/**
+	 * Local wakeup signal of a counterID, shared by its local waiters
+	 */
+	protected static class LocalSignal {
+		// Incremented on every wakeup (guarded by the signal monitor)
+		long version = 0;
+		
+		// Number of local waiters (only updated within localSignals compute calls)
+		int waiters = 0;
+	}
+	
+	/**
+	 * Local wakeup signals, by counterID. Entries are added by the first local waiter,
+	 * and removed once the last local waiter exits.
+	 */
+	protected ConcurrentHashMap<String, LocalSignal> localSignals = new ConcurrentHashMap<>();
+	
+	/**
+	 * Wait for the counter value to match the condition, up to maxWait
+	 * 
+	 * @param counterID   to wait on
+	 * @param condition   to wait for, given the counter value
+	 * @param maxWait     maximum time to wait in ms
+	 * 
+	 * @return true, if the condition was met within maxWait
+	 * 
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	protected boolean awaitCounter(String counterID, LongPredicate condition, long maxWait)
+		throws InterruptedException {
+		long deadline = System.currentTimeMillis() + Math.max(0l, maxWait);
+		long sleep = pollBase;
+		
+		// Register as a local waiter
+		LocalSignal signal = null;
+		if (localWakeup) {
+			signal = localSignals.compute(counterID, (k, v) -> {
+				LocalSignal ret = (v != null) ? v : new LocalSignal();
+				ret.waiters++;
+				return ret;
+			});
+		}
+		
+		try {
+			while (true) {
+				// Wakeup signal, before the check
+				long seen = 0;
+				if (signal != null) {
+					synchronized (signal) {
+						seen = signal.version;
+					}
+				}
+				
+				// Condition check
+				if (condition.test(counterMap.getLong(counterID))) {
+					return true;
+				}
+				
+				// Time check
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					return false;
+				}
+				
+				// Wait for the poll interval, or a local wakeup
+				long wait = Math.min(sleep, remaining);
+				if (signal == null) {
+					Thread.sleep(wait);
+				} else {
+					synchronized (signal) {
+						if (signal.version == seen) {
+							signal.wait(wait);
+						}
+					}
+				}
+				sleep = Math.min(pollCap, sleep * 2);
+			}
+		} finally {
+			// Unregister, removing the signal after the last local waiter
+			if (signal != null) {
+				localSignals.computeIfPresent(counterID, (k, v) -> (--v.waiters > 0) ? v : null);
+			}
+		}
+	}
+	
+	/**
+	 * Wake up the local waiters of the counter, to recheck it immediately
+	 * 
+	 * @param counterID   to wakeup
+	 */
+	protected void wakeLocalWaiters(String counterID) {
+		LocalSignal signal = localSignals.get(counterID);
+		if (signal != null) {
+			synchronized (signal) {
+				signal.version++;
+				signal.notifyAll();
+			}
+		}
+	}
+}
@@ -0,0 +1,376 @@
+package picoded.dstack.module.lock;
+
+import java.util.*;
+
+import picoded.dstack.module.*;
+import picoded.dstack.*;
+import picoded.core.conv.*;
+
+/**
+ * # FairLockQueue
+ * 
+ * Fair (FIFO) lock acquisition, on top of a LockTokenManager.
+ * 
+ * Instead of every waiting node retrying the lock at once when it is released (thundering herd),
+ * each waiter takes an increasing ticket from a KeyLongMap counter. Only the waiter whose ticket
+ * is being served attempts the lock, while the others poll the "now serving" value with a backoff
+ * proportional to their position in the queue.
+ * 
+ * Each waiter keeps a heartbeat entry alive while waiting. Tickets whose heartbeat has expired
+ * (crashed waiters) are skipped, so that the queue does not stall. As a ticket is issued before
+ * its heartbeat is written, a missing heartbeat is only skipped after it has been missing for the
+ * waiterLifespan. Waiters which time out mark their ticket as abandoned, so it is skipped at once.
+ * 
+ * # Storage
+ * 
+ * The ticket map stores the following per lockID
+ * 
+ * + "t_" prefix - last issued ticket
+ * + "s_" prefix - last served ticket
+ * + "w_" prefix (with the ticket suffix) - waiter heartbeat (1 if waiting, 0 if abandoned)
+ * 
+ * The ticket counters expire once the queue is idle, with a lifespan of (waiterLifespan +
+ * lockTimeout) refreshed on every ticket and heartbeat. The served counter is given an extra
+ * waiterLifespan, so that it never expires before the issued counter. A fresh ticket which finds
+ * the served counter ahead of it (as the issued counter has reset), rewinds the served counter.
+ * 
+ * Note that lock attempts done directly on the LockTokenManager, are not part of the queue.
+ **/
+public class FairLockQueue extends ModuleStructure {
+	
+	//----------------------------------------------------------------
+	//
+	//  Constructor
+	//
+	//----------------------------------------------------------------
+	
+	/**
+	 * Setup FairLockQueue structure given a stack, and its name
+	 * 
+	 * @param  CommonStack / DStack system to use
+	 * @param  Name used to setup the prefix of the complex structure
+	 **/
+	public FairLockQueue(CommonStack inStack, String inName) {
+		super(inStack, inName);
+		internalStructureList = setupInternalStructureList();
+	}
+	
+	/**
+	 * Setup FairLockQueue structure given its internal structures
+	 * 
+	 * @param  inLockManager  used to issue the lock tokens
+	 * @param  inTicketMap    used to store the ticket counters, and waiter heartbeats
+	 **/
+	public FairLockQueue(LockTokenManager inLockManager, KeyLongMap inTicketMap) {
+		lockManager = inLockManager;
+		ticketMap = inTicketMap;
+		internalStructureList = setupInternalStructureList();
+	}
+	
+	//----------------------------------------------------------------
+	//
+	//  Class setup
+	//
+	//----------------------------------------------------------------
+	
+	/**
+	 * Lock token manager used to issue the lock tokens
+	 */
+	protected LockTokenManager lockManager = null;
+	
+	/**
+	 * Ticket counters, and waiter heartbeats
+	 */
+	protected KeyLongMap ticketMap = null;
+	
+	/**
+	 * Setup the internal structure given the stack + name, if needed
+	 * 
+	 * @return internal common structures, for used by the various initialize / teardown commands
+	 */
+	protected List<CommonStructure> setupInternalStructureList() {
+		// Safety check
+		if (lockManager == null || ticketMap == null) {
+			if (stack == null) {
+				throw new RuntimeException(
+					"Missing required LockTokenManager / KeyLongMap, and the stack/name param requried to be initialized");
+			}
+		}
+		
+		// The internal structures required
+		if (lockManager == null) {
+			lockManager = new LockTokenManager(stack, name);
+		}
+		if (ticketMap == null) {
+			ticketMap = stack.keyLongMap(name + "_ticket");
+		}
+		
+		// Return as a list collection (including the lock manager structures)
+		List<CommonStructure> ret = new ArrayList<CommonStructure>(
+			lockManager.setupInternalStructureList());
+		ret.add(ticketMap);
+		return ret;
+	}
+	
+	/**
+	 * @return the lock token manager used
+	 */
+	public LockTokenManager lockTokenManager() {
+		return lockManager;
+	}
+	
+	//----------------------------------------------------------------
+	//
+	//  Waiter heartbeat controls
+	//
+	//----------------------------------------------------------------
+	
+	// Waiter heartbeat lifespan, in ms (default is 5 seconds)
+	protected long waiterLifespan = 5000;
+	
+	/**
+	 * @return waiter heartbeat lifespan, after which a waiter ticket can be skipped
+	 */
+	public long waiterLifespan() {
+		return waiterLifespan;
+	}
+	
+	/**
+	 * Configure the waiter heartbeat lifespan, after which a waiter ticket can be skipped.
+	 * Waiters refresh their heartbeat at a third of this value.
+	 * 
+	 * @param lifespan in ms - the minimum is 30 ms
+	 * @return the configured lifespan
+	 */
+	public long waiterLifespan(long lifespan) {
+		return waiterLifespan = Math.max(30l, lifespan);
+	}
+	
+	//----------------------------------------------------------------
+	//
+	//  Ticket handling
+	//
+	//----------------------------------------------------------------
+	
+	/**
+	 * @return the waiter heartbeat key, for the lockID ticket
+	 */
+	protected String waiterKey(String lockID, long ticket) {
+		return "w_" + ticket + "_" + lockID;
+	}
+	
+	/**
+	 * @return the last served ticket, for the lockID
+	 */
+	protected long getServingTicket(String lockID) {
+		return GenericConvert.toLong(ticketMap.getLong("s_" + lockID), 0);
+	}
+	
+	/**
+	 * @return the ticket counter lifespan, for the given lock timeout
+	 */
+	protected long counterLifespan(long lockTimeout) {
+		return waiterLifespan + Math.max(0l, lockTimeout);
+	}
+	
+	/**
+	 * Refresh the ticket counter lifespans, the served counter outlives the issued counter
+	 * 
+	 * @param lockID       to refresh
+	 * @param lockTimeout  lock timeout used by the waiter
+	 */
+	protected void refreshCounterLifespan(String lockID, long lockTimeout) {
+		ticketMap.setLifeSpan("t_" + lockID, counterLifespan(lockTimeout));
+		ticketMap.setLifeSpan("s_" + lockID, counterLifespan(lockTimeout) + waiterLifespan);
+	}
+	
+	/**
+	 * Set the served ticket, if it is still the last known served ticket
+	 * 
+	 * @param lockID       to update
+	 * @param serving      last known served ticket
+	 * @param ticket       to set
+	 * @param lockTimeout  lock timeout used by the waiter
+	 * 
+	 * @return true, if the served ticket was updated
+	 */
+	protected boolean setServingTicket(String lockID, long serving, long ticket, long lockTimeout) {
+		if (!ticketMap.weakCompareAndSet("s_" + lockID, serving, ticket)) {
+			return false;
+		}
+		ticketMap.setLifeSpan("s_" + lockID, counterLifespan(lockTimeout) + waiterLifespan);
+		return true;
+	}
+	
+	/**
+	 * Advance the served ticket, to the given ticket (if it is lower)
+	 * 
+	 * @param lockID       to update
+	 * @param serving      last known served ticket
+	 * @param ticket       to advance to
+	 * @param lockTimeout  lock timeout used by the waiter
+	 */
+	protected void advanceServingTicket(String lockID, long serving, long ticket,
+		long lockTimeout) {
+		while (serving < ticket) {
+			if (setServingTicket(lockID, serving, ticket, lockTimeout)) {
+				return;
+			}
+			serving = getServingTicket(lockID);
+		}
+	}
+	
+	/**
+	 * Skip the ticket at the head of the queue, if it was abandoned, or if its waiter heartbeat
+	 * has been missing for the waiterLifespan.
+	 * 
+	 * A missing heartbeat is not skipped on sight, as a newly issued ticket has no heartbeat
+	 * till its waiter writes it.
+	 * 
+	 * @param lockID        to check
+	 * @param serving       last known served ticket
+	 * @param missingHead   head ticket, and the timestamp its heartbeat was first seen missing
+	 *                      (updated by this call)
+	 * @param lockTimeout   lock timeout used by the waiter
+	 */
+	protected void skipExpiredTicket(String lockID, long serving, long[] missingHead,
+		long lockTimeout) {
+		long head = serving + 1;
+		Long heartbeat = ticketMap.getValue(waiterKey(lockID, head));
+		if (heartbeat != null && heartbeat.longValue() > 0) {
+			return;
+		}
+		
+		// Missing heartbeat, within its grace period
+		if (heartbeat == null) {
+			long now = System.currentTimeMillis();
+			if (missingHead[0] != head) {
+				missingHead[0] = head;
+				missingHead[1] = now;
+				return;
+			}
+			if (now - missingHead[1] < waiterLifespan) {
+				return;
+			}
+		}
+		
+		// A failure here means the queue has moved on
+		setServingTicket(lockID, serving, head, lockTimeout);
+	}
+	
+	//----------------------------------------------------------------
+	//
+	//  Lock handling
+	//
+	//----------------------------------------------------------------
+	
+	/**
+	 * Issues a lock token for the given lockID, waiting up to maxWait for its turn.
+	 * 
+	 * Waiters are served in the order they called this function. If interrupted,
+	 * the interruption is deferred, with the thread interrupt flag restored on return.
+	 * 
+	 * Note that a waiter which stops its heartbeat (such as a long GC pause), may be skipped,
+	 * in which it attempts the lock out of order (together with the waiter at the head).
+	 * 
+	 * @param lockID         to use
+	 * @param lockTimeout    lock timeout for token
+	 * @param maxWait        maximum time to wait for the lock in ms
+	 * 
+	 * @return the lock token if valid, -1 if no valid token was issued within maxWait
+	 */
+	public long awaitLockToken(String lockID, long lockTimeout, long maxWait) {
+		// Timings to use
+		long deadline = System.currentTimeMillis() + Math.max(0l, maxWait);
+		long sleep = lockManager.awaitBackoffBase();
+		boolean interrupted = false;
+		
+		// Take a ticket, and start the heartbeat
+		long ticket = GenericConvert.toLong(ticketMap.incrementAndGet("t_" + lockID), 0);
+		ticketMap.setLifeSpan("t_" + lockID, counterLifespan(lockTimeout));
+		String waiterKey = waiterKey(lockID, ticket);
+		ticketMap.putWithLifespan(waiterKey, 1l, waiterLifespan);
+		long heartbeat = System.currentTimeMillis();
+		long[] missingHead = new long[] { 0l, 0l };
+		boolean freshTicket = true;
+		
+		try {
+			while (true) {
+				// Position in the queue, where 1 (or less) is the head
+				long serving = getServingTicket(lockID);
+				
+				// Served ticket ahead of a fresh ticket, means the issued counter has reset
+				// (while the served counter has not yet), so the served counter is rewound
+				if (freshTicket && serving >= ticket) {
+					setServingTicket(lockID, serving, ticket - 1, lockTimeout);
+					serving = getServingTicket(lockID);
+				}
+				freshTicket = false;
+				long position = ticket - serving;
+				
+				// Attempt the lock at the head, else skip any expired head ticket
+				if (position <= 1) {
+					long token = lockManager.issueLockToken(lockID, lockTimeout);
+					if (token > 0) {
+						advanceServingTicket(lockID, serving, ticket, lockTimeout);
+						ticketMap.remove(waiterKey);
+						return token;
+					}
+				} else {
+					skipExpiredTicket(lockID, serving, missingHead, lockTimeout);
+				}
+				
+				// Time check, abandoning the ticket on timeout
+				long now = System.currentTimeMillis();
+				long remaining = deadline - now;
+				if (remaining <= 0) {
+					if (position <= 1) {
+						ticketMap.remove(waiterKey);
+						advanceServingTicket(lockID, serving, ticket, lockTimeout);
+					} else {
+						ticketMap.putWithLifespan(waiterKey, 0l, waiterLifespan);
+					}
+					return -1;
+				}
+				
+				// Heartbeat refresh, together with the ticket counters
+				if (now - heartbeat >= waiterLifespan / 3) {
+					ticketMap.setLifeSpan(waiterKey, waiterLifespan);
+					refreshCounterLifespan(lockID, lockTimeout);
+					heartbeat = now;
+				}
+				
+				// Backoff, the head waits for the lock expiry, while others
+				// poll the queue at an interval proportional to their position
+				if (position <= 1) {
+					sleep = lockManager.nextAwaitBackoff(sleep, lockManager.getLockLifespan(lockID));
+				} else {
+					sleep = Math.min(lockManager.awaitBackoffCap(), lockManager.awaitBackoffBase()
+						* position);
+				}
+				try {
+					Thread.sleep(Math.min(Math.min(sleep, remaining), waiterLifespan / 3));
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		} finally {
+			// Restore the deferred interruption
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+	
+	/**
+	 * Unlock an existing lock, see LockTokenManager.returnLockToken
+	 * 
+	 * @param lockID         to use
+	 * @param existingToken  existing token, to return
+	 * 
+	 * @return true, if unlock was succesful, else false if failed
+	 */
+	public boolean returnLockToken(String lockID, long existingToken) {
+		return lockManager.returnLockToken(lockID, existingToken);
+	}
+}
@@ -0,0 +1,676 @@
+package picoded.dstack.module.lock;
+
+import java.util.*;
+
+import picoded.core.common.SystemSetupInterface;
+import picoded.core.conv.*;
+import picoded.dstack.connector.jsql.*;
+
+/**
+ * # JSqlLockStore
+ * 
+ * LockStore implementation, which uses a JSql connection directly, with its own table.
+ * 
+ * Unlike KeyLongMapLockStore, the lock value and its expiry are stored in the same row,
+ * and updated together by a single conditional UPDATE statement - where the compare is
+ * done in the WHERE clause, and its outcome is the number of affected rows.
+ * 
+ * Renewal and return are a single conditional UPDATE. Issue is a single conditional upsert,
+ * in the syntax of the SQL variant (ON CONFLICT for SQLite / Postgres, ON DUPLICATE KEY UPDATE
+ * for MySQL, and MERGE for MSSQL / Oracle) - which inserts a new lockID, or takes over a
+ * released or expired row, but leaves a held row untouched. As such a contended issue is a
+ * single round trip, without relying on a primary key violation.
+ * 
+ * For MySQL, an affected row count of 1 is either an insert, or an untouched held row (when
+ * the driver reports found rows), which is resolved with a SELECT.
+ * 
+ * Multiple lock issue and renewal (see LockTokenManager.issueLockTokens and renewLockTokens)
+ * are batched into single statements, instead of a round trip per lockID.
+ * 
+ * Released locks are kept (with the given lifespan) for reuse, and removed by sweepReleased.
+ * 
+ * Note that as with the other JSql structures, expiry uses the JVM clock of each node.
+ **/
+public class JSqlLockStore implements LockStore, SystemSetupInterface {
+	
+	//----------------------------------------------------------------
+	//
+	//  Constructor
+	//
+	//----------------------------------------------------------------
+	
+	/**
+	 * Setup the lock store, given the JSql connection and table name to use
+	 * 
+	 * @param  inSql        JSql connection to use
+	 * @param  inTableName  used to store the lockID to token mapping
+	 **/
+	public JSqlLockStore(JSql inSql, String inTableName) {
+		if (inSql == null) {
+			throw new IllegalArgumentException("Missing required JSql connection");
+		}
+		if (inTableName == null || inTableName.isEmpty()) {
+			throw new IllegalArgumentException("Missing required table name");
+		}
+		sqlObj = inSql;
+		tableName = inTableName;
+	}
+	
+	/**
+	 * JSql connection used
+	 */
+	protected JSql sqlObj = null;
+	
+	/**
+	 * Table name used
+	 */
+	protected String tableName = null;
+	
+	/**
+	 * Maximum number of lockIDs used in a single `IN (...)` clause
+	 */
+	protected static final int IN_CLAUSE_LIMIT = 100;
+	
+	/**
+	 * Execute an update statement, every update of this store goes through this
+	 * 
+	 * @param statement  SQL statement, with ? placeholders
+	 * @param args       placeholder values
+	 * 
+	 * @return number of affected rows
+	 */
+	protected int sqlUpdate(String statement, Object... args) {
+		return sqlObj.update(statement, args);
+	}
+	
+	/**
+	 * Execute a query statement, every query of this store goes through this
+	 * 
+	 * @param statement  SQL statement, with ? placeholders
+	 * @param args       placeholder values
+	 * 
+	 * @return the query result
+	 */
+	protected JSqlResult sqlQuery(String statement, Object... args) {
+		return sqlObj.query(statement, args);
+	}
+	
+	//----------------------------------------------------------------
+	//
+	//  SystemSetupInterface implementation
+	//
+	//----------------------------------------------------------------
+	
+	/**
+	 * Setup the lock table, if it does not exist
+	 */
+	public void systemSetup() {
+		sqlObj.createTable(tableName, new String[] { "lockid", "lockval", "expiry" },
+			new String[] { "VARCHAR(255) PRIMARY KEY", "BIGINT", "BIGINT" });
+	}
+	
+	/**
+	 * Drop the lock table, if it exists (using the syntax of the SQL variant)
+	 */
+	public void systemDestroy() {
+		JSqlType type = sqlObj.sqlType();
+		if (type == JSqlType.MSSQL) {
+			sqlUpdate("IF OBJECT_ID('" + tableName + "', 'U') IS NOT NULL DROP TABLE "
+				+ tableName);
+		} else if (type == JSqlType.ORACLE) {
+			sqlUpdate("BEGIN EXECUTE IMMEDIATE 'DROP TABLE " + tableName + "';"
+				+ " EXCEPTION WHEN OTHERS THEN IF SQLCODE != -942 THEN RAISE; END IF; END;");
+		} else {
+			sqlUpdate("DROP TABLE IF EXISTS " + tableName);
+		}
+	}
+	
+	/**
+	 * Remove all expired lock entries
+	 */
+	public void maintenance() {
+		sqlUpdate("DELETE FROM " + tableName + " WHERE expiry > 0 AND expiry <= ?",
+			System.currentTimeMillis());
+	}
+	
+	/**
+	 * Remove all lock entries
+	 */
+	public void clear() {
+		sqlUpdate("DELETE FROM " + tableName);
+	}
+	
+	//----------------------------------------------------------------
+	//
+	//  LockStore implementation
+	//
+	//----------------------------------------------------------------
+	
+	/**
+	 * Conditional compare-and-set with lifespan, see LockStore.compareAndSetWithLifespan
+	 * 
+	 * @param lockID    to update
+	 * @param expect    expected current value, 0l if lock is not expected to exist
+	 * @param update    value to update to
+	 * @param lifespan  lifespan to apply in ms
+	 * 
+	 * @return true if the value was updated
+	 */
+	public boolean compareAndSetWithLifespan(String lockID, long expect, long update,
+		long lifespan) {
+		long now = System.currentTimeMillis();
+		long expiry = (lifespan > 0l) ? now + lifespan : 0l;
+		
+		// Existing lock (renewal / return), which must not have expired
+		if (expect != 0l) {
+			return sqlUpdate("UPDATE " + tableName
+				+ " SET lockval = ?, expiry = ? WHERE lockid = ? AND lockval = ?"
+				+ " AND (expiry = 0 OR expiry > ?)", update, expiry, lockID, expect, now) > 0;
+		}
+		
+		// New lock, with a conditional upsert for the SQL variant
+		JSqlType type = sqlObj.sqlType();
+		if (type == JSqlType.SQLITE || type == JSqlType.POSTGRES) {
+			return sqlUpdate("INSERT INTO " + tableName
+				+ " (lockid, lockval, expiry) VALUES (?, ?, ?) ON CONFLICT (lockid) DO UPDATE"
+				+ " SET lockval = excluded.lockval, expiry = excluded.expiry WHERE "
+				+ tableName + ".lockval = 0 OR (" + tableName + ".expiry > 0 AND " + tableName
+				+ ".expiry <= ?)", lockID, update, expiry, now) > 0;
+		}
+		if (type == JSqlType.MSSQL) {
+			return sqlUpdate("MERGE INTO " + tableName + " WITH (HOLDLOCK) AS tgt"
+				+ " USING (SELECT ? AS lockid) AS src ON tgt.lockid = src.lockid"
+				+ " WHEN MATCHED AND (tgt.lockval = 0 OR (tgt.expiry > 0 AND tgt.expiry <= ?))"
+				+ " THEN UPDATE SET lockval = ?, expiry = ?"
+				+ " WHEN NOT MATCHED THEN INSERT (lockid, lockval, expiry)"
+				+ " VALUES (src.lockid, ?, ?);", lockID, now, update, expiry, update, expiry) > 0;
+		}
+		if (type == JSqlType.ORACLE) {
+			return sqlUpdate("MERGE INTO " + tableName + " tgt"
+				+ " USING (SELECT ? AS lockid FROM dual) src ON (tgt.lockid = src.lockid)"
+				+ " WHEN MATCHED THEN UPDATE SET tgt.lockval = ?, tgt.expiry = ?"
+				+ " WHERE tgt.lockval = 0 OR (tgt.expiry > 0 AND tgt.expiry <= ?)"
+				+ " WHEN NOT MATCHED THEN INSERT (lockid, lockval, expiry)"
+				+ " VALUES (src.lockid, ?, ?)", lockID, update, expiry, now, update, expiry) > 0;
+		}
+		if (type == JSqlType.MYSQL) {
+			// The lockval is assigned first, so the expiry is only updated along with it
+			int res = sqlUpdate("INSERT INTO " + tableName
+				+ " (lockid, lockval, expiry) VALUES (?, ?, ?) ON DUPLICATE KEY UPDATE"
+				+ " lockval = IF(lockval = 0 OR (expiry > 0 AND expiry <= ?), VALUES(lockval),"
+				+ " lockval), expiry = IF(lockval = VALUES(lockval), VALUES(expiry), expiry)",
+				lockID, update, expiry, now);
+			if (res != 1) {
+				return res > 1;
+			}
+			long[] row = getValuesWithLifespan(Collections.singletonList(lockID))[0];
+			return row[0] == update;
+		}
+		
+		// Other SQL variants, reuse the released or expired row if it exists
+		int reused = sqlUpdate("UPDATE " + tableName
+			+ " SET lockval = ?, expiry = ? WHERE lockid = ?"
+			+ " AND (lockval = 0 OR (expiry > 0 AND expiry <= ?))", update, expiry, lockID, now);
+		if (reused > 0) {
+			return true;
+		}
+		
+		// Else the row is either held, or does not exist yet. The insert fails on the
+		// primary key for the former, or if another node inserted it concurrently.
+		try {
+			return sqlUpdate("INSERT INTO " + tableName
+				+ " (lockid, lockval, expiry) VALUES (?, ?, ?)", lockID, update, expiry) > 0;
+		} catch (JSqlException e) {
+			// Rethrow if the failure is not due to an existing row
+			if (hasRow(lockID)) {
+				return false;
+			}
+			throw e;
+		}
+	}
+	
+	/**
+	 * Round trips for a single compareAndSetWithLifespan, for the conditional upsert of the
+	 * SQL variant (see compareAndSetWithLifespan). This is 1, except for MySQL where an
+	 * ambiguous row count needs a SELECT, and other variants which UPDATE before an INSERT.
+	 * 
+	 * @return number of backend round trips
+	 */
+	public int roundTripsPerUpdate() {
+		JSqlType type = sqlObj.sqlType();
+		if (type == JSqlType.SQLITE || type == JSqlType.POSTGRES || type == JSqlType.MSSQL
+			|| type == JSqlType.ORACLE) {
+			return 1;
+		}
+		return 2;
+	}
+	
+	/**
+	 * @return true, if a row exists for the lockID (regardless of its value)
+	 */
+	protected boolean hasRow(String lockID) {
+		JSqlResult r = sqlQuery("SELECT lockid FROM " + tableName + " WHERE lockid = ?",
+			lockID);
+		return r != null && r.rowCount() > 0;
+	}
+	
+	/**
+	 * Sweep cursor, as the last lockID scanned (null to start from the beginning)
+	 */
+	protected String sweepCursor = null;
+	
+	/**
+	 * Incrementally remove released and expired lock entries, see LockStore.sweepReleased
+	 * 
+	 * Each batch is removed with a single DELETE, which rechecks the release / expiry
+	 * condition - so a lock issued after the page listing is left untouched.
+	 * 
+	 * @param batchSize  maximum number of entries to scan
+	 * 
+	 * @return number of entries removed
+	 */
+	public synchronized int sweepReleased(int batchSize) {
+		// Get the next page of lockIDs
+		List<String> page = listLockIDs("", sweepCursor, batchSize);
+		sweepCursor = (page.size() < batchSize) ? null : page.get(page.size() - 1);
+		if (page.isEmpty()) {
+			return 0;
+		}
+		
+		// Remove the released or expired entries
+		List<Object> args = new ArrayList<Object>(page);
+		args.add(System.currentTimeMillis());
+		return sqlUpdate("DELETE FROM " + tableName + " WHERE lockid IN ("
+			+ placeholders(page.size()) + ") AND (lockval = 0 OR (expiry > 0 AND expiry <= ?))",
+			args.toArray());
+	}
+	
+	//----------------------------------------------------------------
+	//
+	//  Lock lookup
+	//
+	//----------------------------------------------------------------
+	
+	/**
+	 * Get the current lock value
+	 * 
+	 * @param lockID    to lookup
+	 * 
+	 * @return current lock value, 0l if it does not exist
+	 */
+	public long getValue(String lockID) {
+		return getValuesWithLifespan(Collections.singletonList(lockID))[0][0];
+	}
+	
+	/**
+	 * Get the current lock remaining lifespan
+	 * 
+	 * @param lockID    to lookup
+	 * 
+	 * @return -1 if lock does not exist, 0 if no lifespan is configured, >0 is lifespan left
+	 */
+	public long getLifespan(String lockID) {
+		return getValuesWithLifespan(Collections.singletonList(lockID))[0][1];
+	}
+	
+	/**
+	 * Get the current lock values, for multiple lockID (see getValuesWithLifespan)
+	 * 
+	 * @param lockIDs   to lookup
+	 * 
+	 * @return current lock value for each lockID, 0l if it does not exist
+	 */
+	public long[] getValues(List<String> lockIDs) {
+		long[][] values = getValuesWithLifespan(lockIDs);
+		long[] ret = new long[values.length];
+		for (int i = 0; i < ret.length; ++i) {
+			ret[i] = values[i][0];
+		}
+		return ret;
+	}
+	
+	/**
+	 * Get the current lock values, and remaining lifespan, for multiple lockID
+	 * 
+	 * This uses a single SELECT query, for every IN_CLAUSE_LIMIT lockIDs
+	 * 
+	 * @param lockIDs   to lookup
+	 * 
+	 * @return `{ value, lifespan }` for each lockID, as per getValue and getLifespan
+	 */
+	public long[][] getValuesWithLifespan(List<String> lockIDs) {
+		// Fetch the rows, in batches
+		Map<String, long[]> rowMap = new HashMap<String, long[]>();
+		for (int from = 0; from < lockIDs.size(); from += IN_CLAUSE_LIMIT) {
+			List<String> batch = lockIDs.subList(from,
+				Math.min(lockIDs.size(), from + IN_CLAUSE_LIMIT));
+			JSqlResult r = sqlQuery("SELECT lockid, lockval, expiry FROM " + tableName
+				+ " WHERE lockid IN (" + placeholders(batch.size()) + ")", batch.toArray());
+			if (r == null || r.rowCount() <= 0) {
+				continue;
+			}
+			
+			Object[] ids = r.get("lockid");
+			Object[] vals = r.get("lockval");
+			Object[] expiries = r.get("expiry");
+			for (int i = 0; i < ids.length; ++i) {
+				rowMap.put(GenericConvert.toString(ids[i], null), new long[] {
+					GenericConvert.toLong(vals[i], 0l), GenericConvert.toLong(expiries[i], 0l) });
+			}
+		}
+		
+		// Convert to value / lifespan, treating expired rows as missing
+		long now = System.currentTimeMillis();
+		long[][] ret = new long[lockIDs.size()][];
+		for (int i = 0; i < ret.length; ++i) {
+			long[] row = rowMap.get(lockIDs.get(i));
+			if (row == null || (row[1] > 0l && row[1] <= now)) {
+				ret[i] = new long[] { 0l, -1l };
+			} else {
+				long lifespan = (row[1] <= 0l) ? 0l : Math.max(1l, row[1] - now);
+				ret[i] = new long[] { row[0], lifespan };
+			}
+		}
+		return ret;
+	}
+	
+	/**
+	 * List the stored lockIDs with the given prefix, in sorted order, see LockStore.listLockIDs
+	 * 
+	 * The ordering, paging and row limit is done by the database, using the row limiting
+	 * syntax of the SQL variant (`TOP` for MSSQL, `FETCH FIRST` for Oracle, else `LIMIT`)
+	 * 
+	 * @param prefix       of the lockIDs to list, empty string for all lockIDs
+	 * @param afterLockID  list only the lockIDs after this, null to start from the beginning
+	 * @param limit        maximum number of lockIDs to list
+	 * 
+	 * @return sorted list of lockIDs
+	 */
+	public List<String> listLockIDs(String prefix, String afterLockID, int limit) {
+		List<String> ret = new ArrayList<String>();
+		if (limit <= 0) {
+			return ret;
+		}
+		
+		// Build the query
+		JSqlType type = sqlObj.sqlType();
+		StringBuilder query = new StringBuilder("SELECT ");
+		if (type == JSqlType.MSSQL) {
+			query.append("TOP " + limit + " ");
+		}
+		query.append("lockid FROM " + tableName + " WHERE 1=1");
+		List<Object> args = new ArrayList<Object>();
+		if (prefix != null && !prefix.isEmpty()) {
+			query.append(" AND lockid LIKE ? ESCAPE '!'");
+			args.add(prefix.replace("!", "!!").replace("%", "!%").replace("_", "!_") + "%");
+		}
+		if (afterLockID != null) {
+			query.append(" AND lockid > ?");
+			args.add(afterLockID);
+		}
+		query.append(" ORDER BY lockid");
+		if (type == JSqlType.ORACLE) {
+			query.append(" FETCH FIRST " + limit + " ROWS ONLY");
+		} else if (type != JSqlType.MSSQL) {
+			query.append(" LIMIT " + limit);
+		}
+		
+		// And fetch the page
+		JSqlResult r = sqlQuery(query.toString(), args.toArray());
+		if (r == null || r.rowCount() <= 0) {
+			return ret;
+		}
+		Object[] ids = r.get("lockid");
+		for (int i = 0; i < ids.length && ret.size() < limit; ++i) {
+			ret.add(GenericConvert.toString(ids[i], null));
+		}
+		return ret;
+	}
+	
+	//----------------------------------------------------------------
+	//
+	//  Batched updates
+	//
+	//----------------------------------------------------------------
+	
+	/**
+	 * Does `compareAndSetWithLifespan` for multiple lockID, see
+	 * LockStore.compareAndSetAllWithLifespan. This rolls back on failure, returning 0.
+	 * 
+	 * Lock renewals (expect == update) are a single UPDATE statement. As the values are not
+	 * changed, a partial renewal is left as it is (the caller treats the whole set as lost).
+	 * 
+	 * Lock issues (expect == 0) are a single UPDATE statement reusing existing rows, followed
+	 * by a SELECT and a multi row INSERT only if some rows do not exist yet. On failure the
+	 * issued rows are released back.
+	 * 
+	 * Other updates (and batches over IN_CLAUSE_LIMIT, with duplicate lockIDs, or lock issues on
+	 * Oracle which lacks the multi row INSERT) are done one at a time, as per the LockStore default.
+	 * 
+	 * @param lockIDs   to update, in order
+	 * @param expect    expected current value for every lockID
+	 * @param update    value to update to
+	 * @param lifespan  lifespan to apply in ms
+	 * 
+	 * @return number of lockIDs updated, this is the list size if all was succesful
+	 */
+	public int compareAndSetAllWithLifespan(List<String> lockIDs, long expect, long update,
+		long lifespan) {
+		int size = lockIDs.size();
+		if (size <= 0) {
+			return 0;
+		}
+		if ((expect != 0l && expect != update) || size > IN_CLAUSE_LIMIT
+			|| (expect == 0l && sqlObj.sqlType() == JSqlType.ORACLE)
+			|| new HashSet<String>(lockIDs).size() != size) {
+			return LockStore.super.compareAndSetAllWithLifespan(lockIDs, expect, update, lifespan);
+		}
+		long now = System.currentTimeMillis();
+		long expiry = (lifespan > 0l) ? now + lifespan : 0l;
+		String inClause = "lockid IN (" + placeholders(size) + ")";
+		
+		// Lock renewal, for the unexpired rows
+		if (expect != 0l) {
+			List<Object> args = new ArrayList<Object>(Arrays.asList(update, expiry));
+			args.addAll(lockIDs);
+			args.add(expect);
+			args.add(now);
+			int renewed = sqlUpdate("UPDATE " + tableName + " SET lockval = ?, expiry = ?"
+				+ " WHERE " + inClause + " AND lockval = ? AND (expiry = 0 OR expiry > ?)",
+				args.toArray());
+			return (renewed >= size) ? size : 0;
+		}
+		
+		// Lock issue, reusing the released or expired rows
+		List<Object> args = new ArrayList<Object>(Arrays.asList(update, expiry));
+		args.addAll(lockIDs);
+		args.add(now);
+		int reused = sqlUpdate("UPDATE " + tableName + " SET lockval = ?, expiry = ?"
+			+ " WHERE " + inClause + " AND (lockval = 0 OR (expiry > 0 AND expiry <= ?))",
+			args.toArray());
+		if (reused >= size) {
+			return size;
+		}
+		
+		// Find the rows which do not exist yet, failing if any other row is held
+		Set<String> missing = new LinkedHashSet<String>(lockIDs);
+		JSqlResult r = sqlQuery("SELECT lockid, lockval FROM " + tableName + " WHERE "
+			+ inClause, lockIDs.toArray());
+		if (r != null && r.rowCount() > 0) {
+			Object[] ids = r.get("lockid");
+			Object[] vals = r.get("lockval");
+			for (int i = 0; i < ids.length; ++i) {
+				if (GenericConvert.toLong(vals[i], 0l) != update) {
+					releaseIssued(lockIDs, update);
+					return 0;
+				}
+				missing.remove(GenericConvert.toString(ids[i], null));
+			}
+		}
+		
+		if (missing.isEmpty()) {
+			return size;
+		}
+		
+		// Insert the missing rows, which fails on the primary key if another node inserted
+		// any of them concurrently
+		List<Object> insertArgs = new ArrayList<Object>();
+		StringBuilder values = new StringBuilder();
+		for (String lockID : missing) {
+			values.append((values.length() == 0) ? "(?, ?, ?)" : ", (?, ?, ?)");
+			insertArgs.addAll(Arrays.asList(lockID, update, expiry));
+		}
+		try {
+			if (sqlUpdate("INSERT INTO " + tableName + " (lockid, lockval, expiry) VALUES "
+				+ values, insertArgs.toArray()) >= missing.size()) {
+				return size;
+			}
+		} catch (JSqlException e) {
+			// Rethrow if the failure is not due to an existing row
+			if (!hasAnyRow(missing)) {
+				throw e;
+			}
+		}
+		releaseIssued(lockIDs, update);
+		return 0;
+	}
+	
+	/**
+	 * @return true, if a row exists for any of the lockIDs (regardless of its value)
+	 */
+	protected boolean hasAnyRow(Collection<String> lockIDs) {
+		JSqlResult r = sqlQuery("SELECT lockid FROM " + tableName + " WHERE lockid IN ("
+			+ placeholders(lockIDs.size()) + ")", lockIDs.toArray());
+		return r != null && r.rowCount() > 0;
+	}
+	
+	/**
+	 * Release the rows issued by a failed compareAndSetAllWithLifespan call (if any).
+	 * As the lock token is unique, this does not affect rows held by others.
+	 * 
+	 * @param lockIDs  attempted to be issued
+	 * @param token    lock token that was used
+	 */
+	protected void releaseIssued(List<String> lockIDs, long token) {
+		List<Object> args = new ArrayList<Object>(lockIDs);
+		args.add(token);
+		sqlUpdate("UPDATE " + tableName + " SET lockval = 0 WHERE lockid IN ("
+			+ placeholders(lockIDs.size()) + ") AND lockval = ?", args.toArray());
+	}
+	
+	/**
+	 * Does `compareAndSetWithLifespan` for multiple lockID, each with its own expected and
+	 * update value, see LockStore.compareAndSetEachWithLifespan
+	 * 
+	 * Lock renewals (expect == update) are batched into a single UPDATE statement, for every
+	 * IN_CLAUSE_LIMIT lockIDs. If not every row is renewed, a single SELECT is used to find out
+	 * which were. Other updates are done one at a time.
+	 * 
+	 * @param lockIDs   to update
+	 * @param expect    expected current value, for each lockID
+	 * @param update    value to update to, for each lockID
+	 * @param lifespan  lifespan to apply in ms
+	 * 
+	 * @return the update result, for each lockID
+	 */
+	public boolean[] compareAndSetEachWithLifespan(List<String> lockIDs, long[] expect,
+		long[] update, long lifespan) {
+		boolean[] ret = new boolean[lockIDs.size()];
+		
+		// Split the renewals from the other updates
+		List<Integer> renewals = new ArrayList<Integer>();
+		for (int i = 0; i < ret.length; ++i) {
+			if (expect[i] != 0l && expect[i] == update[i]) {
+				renewals.add(i);
+			} else {
+				ret[i] = compareAndSetWithLifespan(lockIDs.get(i), expect[i], update[i], lifespan);
+			}
+		}
+		
+		// Renew in batches
+		for (int from = 0; from < renewals.size(); from += IN_CLAUSE_LIMIT) {
+			List<Integer> batch = renewals.subList(from,
+				Math.min(renewals.size(), from + IN_CLAUSE_LIMIT));
+			renewBatch(lockIDs, expect, batch, lifespan, ret);
+		}
+		return ret;
+	}
+	
+	/**
+	 * Renew a batch of lockIDs with a single UPDATE statement, for compareAndSetEachWithLifespan
+	 * 
+	 * @param lockIDs   to update
+	 * @param tokens    current lock token, for each lockID
+	 * @param batch     index of the lockIDs to renew
+	 * @param lifespan  lifespan to apply in ms
+	 * @param ret       update result to fill, for each lockID
+	 */
+	protected void renewBatch(List<String> lockIDs, long[] tokens, List<Integer> batch,
+		long lifespan, boolean[] ret) {
+		long now = System.currentTimeMillis();
+		long expiry = (lifespan > 0l) ? now + lifespan : 0l;
+		
+		// Renew every (lockid, lockval) pair in the batch
+		StringBuilder where = new StringBuilder();
+		List<Object> args = new ArrayList<Object>();
+		args.add(expiry);
+		for (int i : batch) {
+			where.append((where.length() == 0) ? "(lockid = ? AND lockval = ?)"
+				: " OR (lockid = ? AND lockval = ?)");
+			args.add(lockIDs.get(i));
+			args.add(tokens[i]);
+		}
+		args.add(now);
+		int renewed = sqlUpdate("UPDATE " + tableName + " SET expiry = ? WHERE (" + where
+			+ ") AND (expiry = 0 OR expiry > ?)", args.toArray());
+		
+		// All renewed (this assumes the lockIDs in a batch are unique, as per a map key)
+		if (renewed >= batch.size()) {
+			for (int i : batch) {
+				ret[i] = true;
+			}
+			return;
+		}
+		
+		// Else find out which were renewed, by their updated expiry
+		List<String> batchIDs = new ArrayList<String>();
+		for (int i : batch) {
+			batchIDs.add(lockIDs.get(i));
+		}
+		JSqlResult r = sqlQuery("SELECT lockid, lockval, expiry FROM " + tableName
+			+ " WHERE lockid IN (" + placeholders(batchIDs.size()) + ")", batchIDs.toArray());
+		if (r == null || r.rowCount() <= 0) {
+			return;
+		}
+		Map<String, long[]> rowMap = new HashMap<String, long[]>();
+		Object[] ids = r.get("lockid");
+		Object[] vals = r.get("lockval");
+		Object[] expiries = r.get("expiry");
+		for (int i = 0; i < ids.length; ++i) {
+			rowMap.put(GenericConvert.toString(ids[i], null), new long[] {
+				GenericConvert.toLong(vals[i], 0l), GenericConvert.toLong(expiries[i], 0l) });
+		}
+		for (int i : batch) {
+			long[] row = rowMap.get(lockIDs.get(i));
+			ret[i] = row != null && row[0] == tokens[i] && row[1] == expiry;
+		}
+	}
+	
+	//----------------------------------------------------------------
+	//
+	//  Utility functions
+	//
+	//----------------------------------------------------------------
+	
+	/**
+	 * @return the `?, ?, ...` placeholder string, for the given count
+	 */
+	protected static String placeholders(int count) {
+		StringBuilder ret = new StringBuilder();
+		for (int i = 0; i < count; ++i) {
+			ret.append((i == 0) ? "?" : ", ?");
+		}
+		return ret.toString();
+	}
+	
+}
@@ -0,0 +1,412 @@
+package picoded.dstack.module.lock;
+
+import java.util.*;
+import java.util.concurrent.locks.LockSupport;
+
+import picoded.dstack.*;
+
+/**
+ * # KeyLongMapLockStore
+ * 
+ * LockStore implementation, which works with any Atomic compliant KeyLongMap backend.
+ * 
+ * As KeyLongMap does not support a compare-and-set with expiry operation, this is emulated
+ * using `weakCompareAndSet`, `setLifeSpan`, and a validation `getLong` call.
+ * 
+ * This is the default LockStore used by LockTokenManager, when initialized with a KeyLongMap.
+ **/
+public class KeyLongMapLockStore implements LockStore {
+	
+	//----------------------------------------------------------------
+	//
+	//  Constructor
+	//
+	//----------------------------------------------------------------
+	
+	/**
+	 * Setup the lock store, given the KeyLongMap to use
+	 * 
+	 * @param  inLockMap used to store the lockID to token mapping
+	 **/
+	public KeyLongMapLockStore(KeyLongMap inLockMap) {
+		if (inLockMap == null) {
+			throw new IllegalArgumentException("Missing required KeyLongMap");
+		}
+		lockMap = inLockMap;
+	}
+	
+	/**
+	 * Internal lock map
+	 */
+	protected KeyLongMap lockMap = null;
+	
+	/**
+	 * @return the internal KeyLongMap used
+	 */
+	public KeyLongMap keyLongMap() {
+		return lockMap;
+	}
+	
+	//----------------------------------------------------------------
+	//
+	//  LockStore implementation
+	//
+	//----------------------------------------------------------------
+	
+	/**
+	 * Emulated compare-and-set with lifespan, see LockStore.compareAndSetWithLifespan
+	 * 
+	 * @param lockID    to update
+	 * @param expect    expected current value, 0l if lock is not expected to exist
+	 * @param update    value to update to
+	 * @param lifespan  lifespan to apply in ms
+	 * 
+	 * @return true if the value was updated
+	 */
+	public boolean compareAndSetWithLifespan(String lockID, long expect, long update,
+		long lifespan) {
+		// Release is handled seperately, due to its various edge cases
+		if (update == 0l) {
+			return releaseWithLifespan(lockID, expect, lifespan);
+		}
+		
+		// Lets attempt to get a lock
+		KeyLong val = null;
+		for (int attempt = 0;; ++attempt) {
+			if (lockMap.weakCompareAndSet(lockID, expect, update)) {
+				// YAY lock succesful - enforce expiry
+				lockMap.setLifeSpan(lockID, lifespan);
+				
+				// Validate the existing value, this guard against a narrow
+				// lock expriy window which occurs between
+				// a weakCompareAndSet, and the setLifeSpan command.
+				return lockMap.getLong(lockID) == update;
+			}
+			
+			// A released entry claimed by the sweeper is about to be removed,
+			// retry once it is removed (see sweepEntry)
+			val = lockMap.get(lockID);
+			if (expect != 0l || val == null || val.longValue() != SWEEP_MARK
+				|| attempt >= SWEEP_WAIT_ATTEMPTS) {
+				break;
+			}
+			LockSupport.parkNanos(SWEEP_WAIT_NANOS);
+		}
+		
+		// Double check if there is an expiry - reapply if needed
+		// this is to work around hypothetical crashes after weakCompare
+		//
+		// # UNLOCK_DEADLOCK_WARNING
+		//
+		// This is intentional to guard against accidental deadlock
+		// done during an unlock call. By ensuring when such a large "lock"
+		// occurs - multiple "setupToken" will resolve the deadlock.
+		//
+		// See UNLOCK_DEADLOCK_WARNING below in `releaseWithLifespan`
+		if (val != null) {
+			long expiry = val.getExpiry();
+			if (expiry <= 0l || expiry - System.currentTimeMillis() > lifespan) {
+				lockMap.setLifeSpan(lockID, lifespan);
+			}
+		}
+		
+		// Lock failure
+		return false;
+	}
+	
+	/**
+	 * Release an existing lock, setting its value to 0l
+	 * 
+	 * @param lockID    to update
+	 * @param expect    expected current value
+	 * @param lifespan  lifespan to apply to the released entry in ms
+	 * 
+	 * @return true if the value was updated
+	 */
+	protected boolean releaseWithLifespan(String lockID, long expect, long lifespan) {
+		// Lets attempt to do an unlock!
+		if (lockMap.weakCompareAndSet(lockID, expect, 0l)) {
+			//
+			// Unlock is done, lets make sure a value expiry is configured.
+			//
+			// This is done to help ensure unused lock tokenID will eventually
+			// be cleared from the system. However by doing so it introduces,
+			// various edge case race conditions, which is addressed below.
+			//
+			
+			// Get the existing KeyLong
+			KeyLong val = lockMap.get(lockID);
+			
+			// Value was invalidated / expired
+			// this is a small time window for this to be able to occur
+			// but oh well, it happened, and unlock is succesful - return
+			if (val == null) {
+				return true;
+			}
+			
+			// Check if there is an existing lock expiry,
+			// if configured - returns true if it exists
+			// and follow that lock expiry.
+			if (val.getExpiry() > 0l) {
+				return true;
+			}
+			
+			// Check if value is != 0, meaning its this unlockToken
+			// expiry time, belongs to another "setupToken" call
+			if (val.longValue() != 0l) {
+				return true;
+			}
+			
+			//
+			// Lets setup an unlock expiry (to remove the 0l eventually)
+			//
+			// # UNLOCK_DEADLOCK_WARNING
+			//
+			// There exist a potential deadlock window, when a succesful lock
+			// occurs between an unlock `weakCompareAndSet` and `setLifespan`.
+			// (the time window in this comment block?)
+			//
+			// This would result in the subsequent setLifespan,
+			// either being too long, or too short. As such the
+			// value of this "setLifeSpan", should be configured to be
+			// significantly higher then all current expected use cases.
+			// (LockTokenManager uses 24 hours)
+			//
+			// Letting the setupToken, be in charge of
+			// updating the lifespan if needed.
+			//
+			// Additional measures such as getting the existing keyLong,
+			// and validating it for a lifespan value was done above
+			// to reduce the possible surface vector.
+			//
+			// See UNLOCK_DEADLOCK_WARNING above in `compareAndSetWithLifespan`
+			//
+			// @TODO consideration - add "setLifespan_ifBlank" support to KeyLongMap
+			//
+			lockMap.setLifeSpan(lockID, lifespan); // PLEASE READ COMMENT ABOVE (do not remove)
+			
+			// Return res true for succesful unlock
+			return true;
+		}
+		// Unlock fail
+		return false;
+	}
+	
+	/**
+	 * Succesful lock updates uses 3 calls (weakCompareAndSet, setLifeSpan, getLong)
+	 * 
+	 * @return number of backend round trips
+	 */
+	public int roundTripsPerUpdate() {
+		return 3;
+	}
+	
+	//----------------------------------------------------------------
+	//
+	//  Released entry sweeper
+	//
+	//----------------------------------------------------------------
+	
+	/**
+	 * Temporary value, used to claim a released entry for removal.
+	 * As lock tokens are always positive, no lock operation can update it.
+	 * 
+	 * Lookups report a marked entry as not existing, and lock attempts wait briefly
+	 * for its removal (up to SWEEP_WAIT_ATTEMPTS) instead of failing.
+	 */
+	protected static final long SWEEP_MARK = -1l;
+	
+	// Lock attempts made on an entry marked for removal, and the wait between them
+	protected static final int SWEEP_WAIT_ATTEMPTS = 5;
+	protected static final long SWEEP_WAIT_NANOS = 1000 * 1000;
+	
+	/**
+	 * Sweep cursor, over the released lockIDs
+	 */
+	protected Iterator<String> sweepCursor = null;
+	
+	/**
+	 * Incrementally remove released lock entries, see LockStore.sweepReleased
+	 * 
+	 * Each scan fetches only the released (0l) lockIDs with `keySet(0l)`, which the backend
+	 * filters by value (instead of loading the whole keyspace), and removes a batch at a time.
+	 * Expired entries are already removed by the KeyLongMap expiry.
+	 * 
+	 * @param batchSize  maximum number of entries to scan
+	 * 
+	 * @return number of entries removed
+	 */
+	public synchronized int sweepReleased(int batchSize) {
+		// Start a new scan over the released lockIDs
+		if (sweepCursor == null) {
+			sweepCursor = lockMap.keySet(0l).iterator();
+		}
+		
+		// Sweep the next batch, restarting the scan if the keySet view does not support
+		// concurrent modification
+		int removed = 0;
+		try {
+			for (int i = 0; i < batchSize && sweepCursor.hasNext(); ++i) {
+				if (sweepEntry(sweepCursor.next())) {
+					++removed;
+				}
+			}
+		} catch (ConcurrentModificationException e) {
+			sweepCursor = null;
+			return removed;
+		}
+		
+		// Scan completed
+		if (!sweepCursor.hasNext()) {
+			sweepCursor = null;
+		}
+		return removed;
+	}
+	
+	/**
+	 * Remove a single lock entry, if it is released (0l) or expired.
+	 * 
+	 * A plain remove is not safe, as the lock could be issued between the value check and
+	 * its removal. Instead the released entry is first claimed using `SWEEP_MARK`, which
+	 * no lock operation can update, and lock attempts wait on till it is removed.
+	 * 
+	 * If the removal does not happen (a crash in between), the mark is given a lifespan by
+	 * the next failed lock attempt (see UNLOCK_DEADLOCK_WARNING in `compareAndSetWithLifespan`)
+	 * 
+	 * @param lockID  to remove
+	 * 
+	 * @return true, if the entry was removed
+	 */
+	protected boolean sweepEntry(String lockID) {
+		// Skip held locks
+		KeyLong val = lockMap.get(lockID);
+		if (val != null && val.longValue() != 0l) {
+			return false;
+		}
+		
+		// Claim the entry, and remove it
+		if (!lockMap.weakCompareAndSet(lockID, 0l, SWEEP_MARK)) {
+			return false;
+		}
+		lockMap.remove(lockID);
+		return true;
+	}
+	
+	//----------------------------------------------------------------
+	//
+	//  Lock lookup
+	//
+	//----------------------------------------------------------------
+	
+	/**
+	 * Get the current lock value
+	 * 
+	 * @param lockID    to lookup
+	 * 
+	 * @return current lock value, 0l if it does not exist
+	 */
+	public long getValue(String lockID) {
+		// This fetches the expiry, and lock value in a single call
+		KeyLong val = lockMap.get(lockID);
+		if (val == null || val.longValue() == SWEEP_MARK) {
+			return 0l;
+		}
+		return val.longValue();
+	}
+	
+	/**
+	 * Get the current lock remaining lifespan
+	 * 
+	 * @param lockID    to lookup
+	 * 
+	 * @return -1 if lock does not exist, 0 if no lifespan is configured, >0 is lifespan left
+	 */
+	public long getLifespan(String lockID) {
+		return getValuesWithLifespan(Collections.singletonList(lockID))[0][1];
+	}
+	
+	/**
+	 * Get the current lock values, and remaining lifespan, for multiple lockID
+	 * 
+	 * This is not batched, as KeyLongMap has no multi key fetch. Instead it uses a single
+	 * KeyLong fetch per lockID, which includes both the value and expiry.
+	 * 
+	 * @param lockIDs   to lookup
+	 * 
+	 * @return `{ value, lifespan }` for each lockID, as per getValue and getLifespan
+	 */
+	public long[][] getValuesWithLifespan(List<String> lockIDs) {
+		long now = System.currentTimeMillis();
+		long[][] ret = new long[lockIDs.size()][];
+		for (int i = 0; i < ret.length; ++i) {
+			KeyLong val = lockMap.get(lockIDs.get(i));
+			if (val == null || val.longValue() == SWEEP_MARK) {
+				ret[i] = new long[] { 0l, -1l };
+			} else {
+				long expiry = val.getExpiry();
+				long lifespan = (expiry <= 0l) ? 0l : Math.max(1l, expiry - now);
+				ret[i] = new long[] { val.longValue(), lifespan };
+			}
+		}
+		return ret;
+	}
+	
+	/**
+	 * Maximum age in ms of the listing snapshot, before a new one is taken
+	 */
+	protected static final long LIST_SNAPSHOT_TTL = 10 * 1000;
+	
+	/**
+	 * Sorted lockID snapshot for the current listing, its prefix and timestamp
+	 */
+	protected NavigableSet<String> listSnapshot = null;
+	protected String listSnapshotPrefix = null;
+	protected long listSnapshotTime = 0;
+	
+	/**
+	 * List the stored lockIDs with the given prefix, in sorted order, see LockStore.listLockIDs
+	 * 
+	 * As KeyLongMap has no paged or ordered key scan, a sorted snapshot of the keySet is taken
+	 * when a listing starts (afterLockID is null), and the following pages are served from it.
+	 * This is a single keySet fetch per listing, instead of per page. The snapshot is retaken
+	 * if the prefix changes, or once it is older than LIST_SNAPSHOT_TTL.
+	 * 
+	 * @param prefix       of the lockIDs to list, empty string for all lockIDs
+	 * @param afterLockID  list only the lockIDs after this, null to start from the beginning
+	 * @param limit        maximum number of lockIDs to list
+	 * 
+	 * @return sorted list of lockIDs
+	 */
+	public synchronized List<String> listLockIDs(String prefix, String afterLockID, int limit) {
+		// Take a new snapshot, when starting a listing
+		long now = System.currentTimeMillis();
+		if (afterLockID == null || listSnapshot == null || !prefix.equals(listSnapshotPrefix)
+			|| listSnapshotTime + LIST_SNAPSHOT_TTL < now) {
+			TreeSet<String> snapshot = new TreeSet<String>();
+			for (String lockID : lockMap.keySet()) {
+				if (lockID.startsWith(prefix)) {
+					snapshot.add(lockID);
+				}
+			}
+			listSnapshot = snapshot;
+			listSnapshotPrefix = prefix;
+			listSnapshotTime = now;
+		}
+		
+		// Get the page from the snapshot
+		List<String> ret = new ArrayList<String>();
+		Iterator<String> lockIDs = (afterLockID == null) ? listSnapshot.iterator()
+			: listSnapshot.tailSet(afterLockID, false).iterator();
+		while (ret.size() < limit && lockIDs.hasNext()) {
+			ret.add(lockIDs.next());
+		}
+		
+		// Release the snapshot, on the last page
+		if (ret.size() < limit) {
+			listSnapshot = null;
+			listSnapshotPrefix = null;
+		}
+		return ret;
+	}
+	
+}
@@ -0,0 +1,442 @@
+package picoded.dstack.module.lock;
+
+import java.util.*;
+
+import picoded.dstack.module.*;
+import picoded.dstack.*;
+import picoded.core.conv.*;
+
+/**
+ * # LeasedConcurrencyManager
+ * 
+ * Concurrency limit module, where each granted concurrency is an individual lease with its own
+ * leaseID and timeout. Unlike SimpleConcurrencyManager, leases which are not renewed (or released)
+ * drop out of the count on their own - so the count can be relied on, without a background job
+ * to correct it.
+ * 
+ * # Design notes
+ * 
+ * Leases are counted in time buckets (of `bucketSize` ms), by the bucket their expiry falls in.
+ * The concurrency count is the sum of the buckets which have not ended, and a bucket counter
+ * expires from the backend after it ends. As such the count never requires a scan of the leases,
+ * only of the buckets within `maxLeaseTimeout` (which bounds the lease timeout).
+ * 
+ * The bucket size is derived from `maxLeaseTimeout` and `bucketCount`, so that each count sums
+ * at most `bucketCount + 1` buckets, regardless of the configured timeout.
+ * 
+ * As a lease is counted till the end of its bucket, an expired (not renewed) lease can be counted
+ * for up to `bucketSize` after its expiry. A larger bucket count reduces this, at the cost of more
+ * buckets to sum for each count.
+ * 
+ * Each lease is stored with its bucket, so that renewals move it to a later bucket, and releases
+ * remove it from its bucket immediately.
+ * 
+ * # Limits
+ * 
+ * After each lease, the count is rechecked and the lease is reverted if it went past the limit.
+ * As such concurrent leases near the limit may both be rejected, but do not go past the limit.
+ * A limit of -1 means unlimited, which skips the count checks entirely.
+ * 
+ * Note that `bucketCount` and `maxLeaseTimeout` must be configured consistently across all nodes.
+ **/
+public class LeasedConcurrencyManager extends ModuleStructure {
+	
+	//----------------------------------------------------------------
+	//
+	//  Constructor
+	//
+	//----------------------------------------------------------------
+	
+	/**
+	 * Setup LeasedConcurrencyManager structure given a stack, and its name
+	 * 
+	 * @param  CommonStack / DStack system to use
+	 * @param  Name used to setup the prefix of the complex structure
+	 **/
+	public LeasedConcurrencyManager(CommonStack inStack, String inName) {
+		super(inStack, inName);
+		internalStructureList = setupInternalStructureList();
+	}
+	
+	/**
+	 * Setup LeasedConcurrencyManager structure given its internal structures
+	 * 
+	 * @param  inLimitMap   used to store the concurrencyID limits
+	 * @param  inBucketMap  used to store the lease count, of each time bucket
+	 * @param  inLeaseMap   used to store the leaseID to time bucket mapping
+	 **/
+	public LeasedConcurrencyManager(KeyLongMap inLimitMap, KeyLongMap inBucketMap,
+		KeyLongMap inLeaseMap) {
+		limitMap = inLimitMap;
+		bucketMap = inBucketMap;
+		leaseMap = inLeaseMap;
+		internalStructureList = setupInternalStructureList();
+	}
+	
+	//----------------------------------------------------------------
+	//
+	//  Class setup
+	//
+	//----------------------------------------------------------------
+	
+	/**
+	 * Limit of each concurrencyID, stored with a "h_" prefix
+	 */
+	protected KeyLongMap limitMap = null;
+	
+	/**
+	 * Lease count of each concurrencyID time bucket, stored as "b{bucket}_{concurrencyID}"
+	 */
+	protected KeyLongMap bucketMap = null;
+	
+	/**
+	 * Time bucket of each lease, stored as "l{leaseID}_{concurrencyID}"
+	 */
+	protected KeyLongMap leaseMap = null;
+	
+	/**
+	 * Setup the internal structure given the stack + name, if needed
+	 * 
+	 * @return internal common structures, for used by the various initialize / teardown commands
+	 */
+	protected List<CommonStructure> setupInternalStructureList() {
+		// Safety check
+		if (limitMap == null || bucketMap == null || leaseMap == null) {
+			if (stack == null) {
+				throw new RuntimeException(
+					"Missing required Map, and the stack/name param requried to be initialized");
+			}
+		}
+		
+		// The internal Maps required,
+		if (limitMap == null) {
+			limitMap = stack.keyLongMap(name + "_limit");
+		}
+		if (bucketMap == null) {
+			bucketMap = stack.keyLongMap(name + "_bucket");
+		}
+		if (leaseMap == null) {
+			leaseMap = stack.keyLongMap(name + "_lease");
+		}
+		
+		// Return as a list collection
+		return Arrays.asList(new CommonStructure[] { limitMap, bucketMap, leaseMap });
+	}
+	
+	//----------------------------------------------------------------
+	//
+	//  Bucket configuration
+	//
+	//----------------------------------------------------------------
+	
+	// Number of time buckets within the maximum lease timeout
+	protected volatile int bucketCount = 16;
+	
+	// Maximum lease timeout in ms
+	protected volatile long maxLeaseTimeout = 60 * 1000;
+	
+	/**
+	 * @return the number of time buckets within the maximum lease timeout
+	 */
+	public int bucketCount() {
+		return bucketCount;
+	}
+	
+	/**
+	 * Configure the number of time buckets within the maximum lease timeout, this must be
+	 * consistent across all nodes, and should not be changed while there are active leases.
+	 * 
+	 * @param count number of time buckets
+	 * @return the configured count
+	 */
+	public int bucketCount(int count) {
+		if (count <= 0) {
+			throw new IllegalArgumentException("Invalid bucketCount : " + count);
+		}
+		return bucketCount = count;
+	}
+	
+	/**
+	 * @return the time bucket size in ms, as maxLeaseTimeout / bucketCount (rounded up)
+	 */
+	public long bucketSize() {
+		return (maxLeaseTimeout + bucketCount - 1) / bucketCount;
+	}
+	
+	/**
+	 * @return the maximum lease timeout in ms
+	 */
+	public long maxLeaseTimeout() {
+		return maxLeaseTimeout;
+	}
+	
+	/**
+	 * Configure the maximum lease timeout, which together with the bucketCount derives the
+	 * bucket size. As with bucketCount, this must be consistent across all nodes, and should
+	 * not be changed while there are active leases.
+	 * 
+	 * @param timeout maximum lease timeout in ms
+	 * @return the configured timeout
+	 */
+	public long maxLeaseTimeout(long timeout) {
+		if (timeout <= 0) {
+			throw new IllegalArgumentException("Invalid maxLeaseTimeout : " + timeout);
+		}
+		return maxLeaseTimeout = timeout;
+	}
+	
+	//----------------------------------------------------------------
+	//
+	//  Utility functions
+	//
+	//----------------------------------------------------------------
+	
+	/**
+	 * Validate and throw an exception on an illfomratted concurrencyID
+	 * @param concurrencyID
+	 */
+	static protected void validateConcurrencyID(String concurrencyID) {
+		if (concurrencyID == null || concurrencyID.length() <= 0) {
+			throw new IllegalArgumentException("Invalid concurrencyID : " + concurrencyID);
+		}
+	}
+	
+	/**
+	 * Validate and throw an exception on an invalid lease timeout
+	 * @param leaseTimeout
+	 */
+	protected void validateLeaseTimeout(long leaseTimeout) {
+		if (leaseTimeout <= 0 || leaseTimeout > maxLeaseTimeout) {
+			throw new IllegalArgumentException("Invalid leaseTimeout (maxLeaseTimeout = "
+				+ maxLeaseTimeout + ") : " + leaseTimeout);
+		}
+	}
+	
+	/**
+	 * @return the time bucket, which the given expiry timestamp is counted in
+	 */
+	protected long bucketIndex(long expiry) {
+		return expiry / bucketSize() + 1;
+	}
+	
+	/**
+	 * @return the bucket count key
+	 */
+	protected static String bucketKey(String concurrencyID, long bucket) {
+		return "b" + bucket + "_" + concurrencyID;
+	}
+	
+	/**
+	 * @return the lease key
+	 */
+	protected static String leaseKey(String concurrencyID, String leaseID) {
+		return "l" + leaseID + "_" + concurrencyID;
+	}
+	
+	/**
+	 * Increment the bucket count, with a lifespan till shortly after the bucket ends
+	 */
+	protected void incrementBucket(String concurrencyID, long bucket) {
+		String key = bucketKey(concurrencyID, bucket);
+		long count = GenericConvert.toLong(bucketMap.incrementAndGet(key), 0);
+		
+		// Only the first increment needs to configure the lifespan
+		if (count == 1) {
+			setBucketLifespan(key, bucket);
+		}
+	}
+	
+	/**
+	 * Decrement the bucket count, if the bucket has not ended
+	 * 
+	 * If the bucket counter expired between the check and the decrement, the decrement
+	 * recreates it below zero without a lifespan. Such a counter is given its bucket lifespan
+	 * (so it does not linger), and negative buckets are ignored by getConcurrencyCount.
+	 */
+	protected void decrementBucket(String concurrencyID, long bucket) {
+		if (bucket * bucketSize() <= System.currentTimeMillis()) {
+			return;
+		}
+		String key = bucketKey(concurrencyID, bucket);
+		long count = GenericConvert.toLong(bucketMap.decrementAndGet(key), 0);
+		if (count < 0) {
+			setBucketLifespan(key, bucket);
+		}
+	}
+	
+	/**
+	 * Set the bucket counter lifespan, till shortly after the bucket ends
+	 */
+	protected void setBucketLifespan(String key, long bucket) {
+		long size = bucketSize();
+		long lifespan = (bucket + 1) * size - System.currentTimeMillis();
+		bucketMap.setLifeSpan(key, Math.max(size, lifespan));
+	}
+	
+	//----------------------------------------------------------------
+	//
+	//  Limit configuration
+	//
+	//----------------------------------------------------------------
+	
+	/**
+	 * Configure the limit, with a given lifespan. After the given lifespan, the limit will reset to 0
+	 * 
+	 * @param concurrencyID   concurrency ID to be used (cannot be blank / null)
+	 * @param limit           maximum number of leases, -1 means unlimited
+	 * @param lifespan        lifespan of the limit in ms (resets to zero after the limit), -1 means default (unlimited)
+	 */
+	public void setLimit(String concurrencyID, long limit, long lifespan) {
+		validateConcurrencyID(concurrencyID);
+		if (lifespan <= 0) {
+			limitMap.putValue("h_" + concurrencyID, limit);
+		} else {
+			limitMap.putWithLifespan("h_" + concurrencyID, limit, lifespan);
+		}
+	}
+	
+	/**
+	 * Configure the limit, without a lifespan
+	 * 
+	 * @param concurrencyID   concurrency ID to be used (cannot be blank / null)
+	 * @param limit           maximum number of leases, -1 means unlimited
+	 */
+	public void setLimit(String concurrencyID, long limit) {
+		setLimit(concurrencyID, limit, -1);
+	}
+	
+	/**
+	 * Get and return the configured limit
+	 * 
+	 * @param concurrencyID   concurrency ID to be used (cannot be blank / null)
+	 * 
+	 * @return limit value
+	 */
+	public long getLimit(String concurrencyID) {
+		Long val = limitMap.getValue("h_" + concurrencyID);
+		if (val != null) {
+			return val.longValue();
+		}
+		return 0;
+	}
+	
+	//----------------------------------------------------------------
+	//
+	//  Lease handling
+	//
+	//----------------------------------------------------------------
+	
+	/**
+	 * Get the current concurrency count, as the sum of the time buckets which have not ended
+	 * (this is at most `bucketCount + 1` bucket lookups)
+	 * 
+	 * @param concurrencyID   concurrency ID to be used (cannot be blank / null)
+	 * 
+	 * @return current concurrency count
+	 */
+	public long getConcurrencyCount(String concurrencyID) {
+		long now = System.currentTimeMillis();
+		long lastBucket = bucketIndex(now + maxLeaseTimeout);
+		long ret = 0;
+		for (long bucket = bucketIndex(now); bucket <= lastBucket; ++bucket) {
+			Long val = bucketMap.getValue(bucketKey(concurrencyID, bucket));
+			if (val != null) {
+				ret += Math.max(0, val.longValue());
+			}
+		}
+		return ret;
+	}
+	
+	/**
+	 * Attempts to lease a concurrency, which is counted till it is released or its timeout
+	 * 
+	 * @param concurrencyID   concurrency ID to be used (cannot be blank / null)
+	 * @param leaseTimeout    lease timeout in ms, up to `maxLeaseTimeout`
+	 * 
+	 * @return the leaseID if succesful, else null if the limit is hit
+	 */
+	public String leaseConcurrency(String concurrencyID, long leaseTimeout) {
+		validateConcurrencyID(concurrencyID);
+		validateLeaseTimeout(leaseTimeout);
+		
+		// Fail early if the limit is hit
+		long limit = getLimit(concurrencyID);
+		if (limit > -1 && getConcurrencyCount(concurrencyID) >= limit) {
+			return null;
+		}
+		
+		// Issue the lease, and count it in its bucket
+		String leaseID = GUID.base58();
+		long bucket = bucketIndex(System.currentTimeMillis() + leaseTimeout);
+		leaseMap.putWithLifespan(leaseKey(concurrencyID, leaseID), bucket, leaseTimeout);
+		incrementBucket(concurrencyID, bucket);
+		
+		// Recheck the limit, reverting the lease if a concurrent lease went past it
+		if (limit > -1 && getConcurrencyCount(concurrencyID) > limit) {
+			releaseLease(concurrencyID, leaseID);
+			return null;
+		}
+		return leaseID;
+	}
+	
+	/**
+	 * Renew an existing lease, with a new timeout
+	 * 
+	 * @param concurrencyID   concurrency ID to be used (cannot be blank / null)
+	 * @param leaseID         to renew
+	 * @param leaseTimeout    lease timeout in ms, up to `maxLeaseTimeout`
+	 * 
+	 * @return true, if the lease was renewed (false if it has expired, or was released)
+	 */
+	public boolean renewLease(String concurrencyID, String leaseID, long leaseTimeout) {
+		validateLeaseTimeout(leaseTimeout);
+		String key = leaseKey(concurrencyID, leaseID);
+		long current = GenericConvert.toLong(leaseMap.getValue(key), 0);
+		if (current <= 0) {
+			return false;
+		}
+		
+		// Same bucket, only the lease lifespan is extended
+		long bucket = bucketIndex(System.currentTimeMillis() + leaseTimeout);
+		if (bucket == current) {
+			leaseMap.setLifeSpan(key, leaseTimeout);
+			return leaseMap.getValue(key) != null;
+		}
+		
+		// Move the lease to its new bucket (counting it in the new bucket first)
+		if (!leaseMap.weakCompareAndSet(key, current, bucket)) {
+			return false;
+		}
+		leaseMap.setLifeSpan(key, leaseTimeout);
+		incrementBucket(concurrencyID, bucket);
+		decrementBucket(concurrencyID, current);
+		return true;
+	}
+	
+	/**
+	 * Release an existing lease, removing it from the count immediately
+	 * 
+	 * @param concurrencyID   concurrency ID to be used (cannot be blank / null)
+	 * @param leaseID         to release
+	 * 
+	 * @return true, if the lease was released (false if it has expired, or was released)
+	 */
+	public boolean releaseLease(String concurrencyID, String leaseID) {
+		String key = leaseKey(concurrencyID, leaseID);
+		long current = GenericConvert.toLong(leaseMap.getValue(key), 0);
+		if (current <= 0 || !leaseMap.weakCompareAndSet(key, current, 0l)) {
+			return false;
+		}
+		leaseMap.remove(key);
+		decrementBucket(concurrencyID, current);
+		return true;
+	}
+	
+	/**
+	 * @return true, if the lease has not expired, or been released
+	 */
+	public boolean isLeased(String concurrencyID, String leaseID) {
+		return GenericConvert.toLong(leaseMap.getValue(leaseKey(concurrencyID, leaseID)), 0) > 0;
+	}
+	
+}
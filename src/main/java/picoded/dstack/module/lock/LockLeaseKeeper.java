@@ -0,0 +1,289 @@
+package picoded.dstack.module.lock;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.logging.Logger;
+
+/**
+ * # LockLeaseKeeper
+ * 
+ * Shared lease renewal service, for lock tokens issued by a LockTokenManager.
+ * 
+ * Instead of each lock holder doing its own renewal loop (with a thread each), held
+ * tokens are registered with the keeper - which renews all of them from a single
+ * scheduler thread. Renewals which are due together, are grouped by their lock timeout,
+ * and renewed as a single batch (see `LockTokenManager.renewLockTokens`).
+ * 
+ * When a renewal fails, the lease is removed from the keeper, and its owner is notified
+ * via the registered callback (on the scheduler thread).
+ **/
+public class LockLeaseKeeper {
+	
+	//----------------------------------------------------------------
+	//
+	//  Constructor
+	//
+	//----------------------------------------------------------------
+	
+	/**
+	 * Setup the lease keeper, with the LockTokenManager to renew with
+	 * 
+	 * @param  inLockManager   lock token manager, which issued the tokens
+	 * @param  inCheckInterval interval between renewal checks in ms
+	 **/
+	public LockLeaseKeeper(LockTokenManager inLockManager, long inCheckInterval) {
+		if (inLockManager == null) {
+			throw new IllegalArgumentException("Missing required LockTokenManager");
+		}
+		lockManager = inLockManager;
+		checkInterval = Math.max(1l, inCheckInterval);
+		setupBackgroundExecutor();
+	}
+	
+	/**
+	 * Setup the lease keeper, with the LockTokenManager to renew with
+	 * (and a default check interval of 1 second)
+	 * 
+	 * @param  inLockManager   lock token manager, which issued the tokens
+	 **/
+	public LockLeaseKeeper(LockTokenManager inLockManager) {
+		this(inLockManager, 1000);
+	}
+	
+	//----------------------------------------------------------------
+	//
+	//  Class setup
+	//
+	//----------------------------------------------------------------
+	
+	/**
+	 * Held lease, and its renewal state
+	 */
+	protected static class Lease {
+		final String lockID;
+		final long token;
+		final long lockTimeout;
+		final BiConsumer<String, Long> onRenewFailure;
+		volatile long lastRenewal;
+		
+		Lease(String inLockID, long inToken, long inLockTimeout,
+			BiConsumer<String, Long> inOnRenewFailure) {
+			lockID = inLockID;
+			token = inToken;
+			lockTimeout = inLockTimeout;
+			onRenewFailure = inOnRenewFailure;
+			lastRenewal = System.currentTimeMillis();
+		}
+		
+		/**
+		 * @return true, if lease is due for renewal (after a third of its timeout)
+		 */
+		boolean isDue(long now, long checkInterval) {
+			return now + checkInterval >= lastRenewal + lockTimeout / 3;
+		}
+	}
+	
+	/**
+	 * Lock token manager used for renewals
+	 */
+	protected LockTokenManager lockManager = null;
+	
+	/**
+	 * Leases held, by lockID
+	 */
+	protected ConcurrentHashMap<String, Lease> leaseMap = new ConcurrentHashMap<>();
+	
+	// Interval between renewal checks, in ms
+	protected long checkInterval = 1000;
+	
+	// Setup the executor service to be used internally
+	protected ScheduledExecutorService executorService = Executors
+		.newSingleThreadScheduledExecutor();
+	
+	/**
+	 * Setup ScheduledExecutorService, to renew leases in the background
+	 */
+	protected void setupBackgroundExecutor() {
+		LockLeaseKeeper self = this;
+		Runnable runTask = () -> {
+			self.renewDueLeases();
+		};
+		executorService.scheduleWithFixedDelay(runTask, checkInterval, checkInterval,
+			TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Does the immediate shutdown of the renewal executor.
+	 * Held leases are not returned, and will expire on their own.
+	 */
+	public void shutdown() {
+		executorService.shutdownNow();
+	}
+	
+	//----------------------------------------------------------------
+	//
+	// Reusable output logger
+	//
+	//----------------------------------------------------------------
+	
+	/**
+	 * logging interface
+	 * 
+	 * This is not a static class, so that the this object inherits
+	 * any extensions if needed
+	 **/
+	public Logger log() {
+		if (logObj != null) {
+			return logObj;
+		}
+		logObj = Logger.getLogger(this.getClass().getName());
+		return logObj;
+	}
+	
+	// Memoizer for log() function
+	protected Logger logObj = null;
+	
+	//----------------------------------------------------------------
+	//
+	//  Lease management
+	//
+	//----------------------------------------------------------------
+	
+	/**
+	 * Register a held lock token, to be renewed by the keeper
+	 * 
+	 * @param lockID          of the held lock
+	 * @param token           lock token held
+	 * @param lockTimeout     lock timeout to renew with, which must be longer then the check
+	 *                        interval (else the lock may expire before it is renewed)
+	 * @param onRenewFailure  callback with the lockID and token, if renewal fails (can be null)
+	 */
+	public void keepLockToken(String lockID, long token, long lockTimeout,
+		BiConsumer<String, Long> onRenewFailure) {
+		if (token <= 0) {
+			throw new RuntimeException("Invalid lock token used (lockID = " + lockID + ") : "
+				+ token);
+		}
+		if (lockTimeout <= checkInterval) {
+			throw new IllegalArgumentException("Invalid lockTimeout (lockID = " + lockID
+				+ ", checkInterval = " + checkInterval + ") : " + lockTimeout);
+		}
+		leaseMap.put(lockID, new Lease(lockID, token, lockTimeout, onRenewFailure));
+	}
+	
+	/**
+	 * Stop renewing the lock token, without returning it
+	 * 
+	 * @param lockID          of the held lock
+	 * 
+	 * @return the lock token if it was held by the keeper, else -1
+	 */
+	public long removeLockToken(String lockID) {
+		Lease lease = leaseMap.remove(lockID);
+		return (lease == null) ? -1 : lease.token;
+	}
+	
+	/**
+	 * Stop renewing the lock token, and return it to the LockTokenManager
+	 * 
+	 * @param lockID          of the held lock
+	 * 
+	 * @return true, if unlock was succesful, else false if failed (or not held)
+	 */
+	public boolean returnLockToken(String lockID) {
+		long token = removeLockToken(lockID);
+		if (token <= 0) {
+			return false;
+		}
+		return lockManager.returnLockToken(lockID, token);
+	}
+	
+	/**
+	 * @return the lock token held by the keeper for the lockID, else -1
+	 */
+	public long getLockToken(String lockID) {
+		Lease lease = leaseMap.get(lockID);
+		return (lease == null) ? -1 : lease.token;
+	}
+	
+	/**
+	 * @return number of leases currently held by the keeper
+	 */
+	public int size() {
+		return leaseMap.size();
+	}
+	
+	//----------------------------------------------------------------
+	//
+	//  Lease renewal
+	//
+	//----------------------------------------------------------------
+	
+	/**
+	 * Renew all leases which are due, grouped by their lock timeout.
+	 * This is called periodically by the background executor.
+	 */
+	protected void renewDueLeases() {
+		// Group the due leases by their lockTimeout
+		long now = System.currentTimeMillis();
+		Map<Long, List<Lease>> dueGroups = new HashMap<>();
+		for (Lease lease : leaseMap.values()) {
+			if (lease.isDue(now, checkInterval)) {
+				dueGroups.computeIfAbsent(lease.lockTimeout, (k) -> new ArrayList<>()).add(lease);
+			}
+		}
+		
+		// Renew each group as a batch
+		for (Map.Entry<Long, List<Lease>> group : dueGroups.entrySet()) {
+			try {
+				renewLeaseGroup(group.getKey(), group.getValue());
+			} catch (Exception e) {
+				// Backend failure, renewal is retried on the next cycle (till it expires)
+				log().warning(
+					"WARNING - LockLeaseKeeper renewal exception : " + e.getMessage() + "\n"
+						+ picoded.core.exception.ExceptionUtils.getStackTrace(e));
+			}
+		}
+	}
+	
+	/**
+	 * Renew a group of leases, with the same lockTimeout
+	 * 
+	 * @param lockTimeout  to renew with
+	 * @param leases       to renew
+	 */
+	protected void renewLeaseGroup(long lockTimeout, List<Lease> leases) {
+		// Prepare and perform the batch renewal
+		Map<String, Long> lockTokens = new HashMap<>();
+		for (Lease lease : leases) {
+			lockTokens.put(lease.lockID, lease.token);
+		}
+		long renewalTime = System.currentTimeMillis();
+		Map<String, Long> result = lockManager.renewLockTokens(lockTokens, lockTimeout);
+		
+		// Process the results
+		for (Lease lease : leases) {
+			if (result.getOrDefault(lease.lockID, -1l) > 0) {
+				lease.lastRenewal = renewalTime;
+				continue;
+			}
+			
+			// Renewal failed, remove the lease (if it was not removed concurrently)
+			if (leaseMap.remove(lease.lockID, lease) && lease.onRenewFailure != null) {
+				try {
+					lease.onRenewFailure.accept(lease.lockID, lease.token);
+				} catch (Exception e) {
+					log().warning(
+						"WARNING (lockID=" + lease.lockID + ") - onRenewFailure callback exception : "
+							+ e.getMessage() + "\n"
+							+ picoded.core.exception.ExceptionUtils.getStackTrace(e));
+				}
+			}
+		}
+	}
+	
+}
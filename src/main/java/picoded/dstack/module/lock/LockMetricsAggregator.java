@@ -0,0 +1,386 @@
+package picoded.dstack.module.lock;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * # LockMetricsAggregator
+ * 
+ * Lock-free in memory LockMetricsListener, which aggregates the lock metrics by lockID prefix.
+ * 
+ * Counters are striped (LongAdder) to avoid contention between locking threads, while latency
+ * and held time are recorded into log-linear (HDR style) histograms, with a bounded relative
+ * error of 1/8 (12.5%) across the full range of long values.
+ * 
+ * The lockID prefix, is the lockID up to the first occurance of the prefix separator.
+ **/
+public class LockMetricsAggregator implements LockMetricsListener {
+	
+	//----------------------------------------------------------------
+	//
+	//  Constructor
+	//
+	//----------------------------------------------------------------
+	
+	/**
+	 * Setup the aggregator, with the given lockID prefix separator
+	 * 
+	 * @param  inSeparator  lockID prefix separator, null or empty to aggregate by the full lockID
+	 **/
+	public LockMetricsAggregator(String inSeparator) {
+		separator = inSeparator;
+	}
+	
+	/**
+	 * Setup the aggregator, using ":" as the lockID prefix separator
+	 **/
+	public LockMetricsAggregator() {
+		this(":");
+	}
+	
+	/**
+	 * lockID prefix separator
+	 */
+	protected String separator = null;
+	
+	/**
+	 * Metrics, by lockID prefix
+	 */
+	protected ConcurrentHashMap<String, Metrics> metricsMap = new ConcurrentHashMap<>();
+	
+	/**
+	 * Get the lockID prefix to aggregate with
+	 * 
+	 * @param lockID  to get the prefix for
+	 * 
+	 * @return the lockID prefix
+	 */
+	protected String lockPrefix(String lockID) {
+		if (separator == null || separator.isEmpty()) {
+			return lockID;
+		}
+		int pos = lockID.indexOf(separator);
+		return (pos < 0) ? lockID : lockID.substring(0, pos);
+	}
+	
+	/**
+	 * Get the metrics for the lockID, creating it if needed
+	 */
+	protected Metrics metricsFor(String lockID) {
+		String prefix = lockPrefix(lockID);
+		Metrics ret = metricsMap.get(prefix);
+		if (ret != null) {
+			return ret;
+		}
+		return metricsMap.computeIfAbsent(prefix, (key) -> new Metrics());
+	}
+	
+	//----------------------------------------------------------------
+	//
+	//  Metrics access
+	//
+	//----------------------------------------------------------------
+	
+	/**
+	 * @return set of lockID prefixes with metrics
+	 */
+	public Set<String> prefixSet() {
+		return Collections.unmodifiableSet(metricsMap.keySet());
+	}
+	
+	/**
+	 * @param prefix  lockID prefix to get
+	 * 
+	 * @return metrics for the lockID prefix, null if none was recorded
+	 */
+	public Metrics getMetrics(String prefix) {
+		return metricsMap.get(prefix);
+	}
+	
+	/**
+	 * Clear all recorded metrics
+	 */
+	public void reset() {
+		metricsMap.clear();
+	}
+	
+	//----------------------------------------------------------------
+	//
+	//  LockMetricsListener implementation
+	//
+	//----------------------------------------------------------------
+	
+	@Override
+	public void onAcquire(String lockID, Outcome outcome, long latencyNanos, int roundTrips) {
+		Metrics m = metricsFor(lockID);
+		m.count(m.acquireCount, outcome);
+		m.acquireLatency.record(latencyNanos);
+		m.acquireRoundTrips.add(roundTrips);
+	}
+	
+	@Override
+	public void onRenew(String lockID, Outcome outcome, long latencyNanos, int roundTrips) {
+		Metrics m = metricsFor(lockID);
+		m.count(m.renewCount, outcome);
+		m.renewRoundTrips.add(roundTrips);
+	}
+	
+	@Override
+	public void onReturn(String lockID, Outcome outcome, long heldMillis, int roundTrips) {
+		Metrics m = metricsFor(lockID);
+		m.count(m.returnCount, outcome);
+		m.returnRoundTrips.add(roundTrips);
+		if (heldMillis >= 0) {
+			m.heldTime.record(heldMillis);
+		}
+	}
+	
+	//----------------------------------------------------------------
+	//
+	//  Metrics, for a single lockID prefix
+	//
+	//----------------------------------------------------------------
+	
+	/**
+	 * Aggregated metrics, for a single lockID prefix
+	 */
+	public static class Metrics {
+		
+		// Counters, indexed by the Outcome ordinal
+		protected final LongAdder[] acquireCount = newCounters();
+		protected final LongAdder[] renewCount = newCounters();
+		protected final LongAdder[] returnCount = newCounters();
+		
+		// Round trips, by operation type
+		protected final LongAdder acquireRoundTrips = new LongAdder();
+		protected final LongAdder renewRoundTrips = new LongAdder();
+		protected final LongAdder returnRoundTrips = new LongAdder();
+		
+		// Acquisition latency in nanoseconds, and time held in milliseconds
+		protected final Histogram acquireLatency = new Histogram();
+		protected final Histogram heldTime = new Histogram();
+		
+		/**
+		 * @return counters, for each outcome
+		 */
+		protected static LongAdder[] newCounters() {
+			LongAdder[] ret = new LongAdder[Outcome.values().length];
+			for (int i = 0; i < ret.length; ++i) {
+				ret[i] = new LongAdder();
+			}
+			return ret;
+		}
+		
+		/**
+		 * Increment the outcome counter
+		 */
+		protected void count(LongAdder[] counters, Outcome outcome) {
+			counters[outcome.ordinal()].increment();
+		}
+		
+		/**
+		 * @return number of acquisition attempts, with the given outcome
+		 */
+		public long acquireCount(Outcome outcome) {
+			return acquireCount[outcome.ordinal()].sum();
+		}
+		
+		/**
+		 * @return number of renewal attempts, with the given outcome
+		 */
+		public long renewCount(Outcome outcome) {
+			return renewCount[outcome.ordinal()].sum();
+		}
+		
+		/**
+		 * @return number of release attempts, with the given outcome
+		 */
+		public long returnCount(Outcome outcome) {
+			return returnCount[outcome.ordinal()].sum();
+		}
+		
+		/**
+		 * @return number of failed renewals (contention, or backend failure)
+		 */
+		public long renewFailureCount() {
+			return renewCount(Outcome.CONTENTION) + renewCount(Outcome.FAILURE);
+		}
+		
+		/**
+		 * @return average round trips per acquisition attempt
+		 */
+		public double acquireRoundTrips() {
+			return average(acquireRoundTrips, acquireCount);
+		}
+		
+		/**
+		 * @return average round trips per renewal attempt
+		 */
+		public double renewRoundTrips() {
+			return average(renewRoundTrips, renewCount);
+		}
+		
+		/**
+		 * @return average round trips per release attempt
+		 */
+		public double returnRoundTrips() {
+			return average(returnRoundTrips, returnCount);
+		}
+		
+		/**
+		 * @return acquisition latency histogram, in nanoseconds
+		 */
+		public Histogram acquireLatency() {
+			return acquireLatency;
+		}
+		
+		/**
+		 * @return time held histogram, in milliseconds
+		 */
+		public Histogram heldTime() {
+			return heldTime;
+		}
+		
+		/**
+		 * @return the total divided by the sum of the counters (0 if there is no count)
+		 */
+		protected static double average(LongAdder total, LongAdder[] counters) {
+			long count = 0;
+			for (LongAdder counter : counters) {
+				count += counter.sum();
+			}
+			return (count == 0) ? 0.0 : ((double) total.sum()) / count;
+		}
+	}
+	
+	//----------------------------------------------------------------
+	//
+	//  Log-linear histogram
+	//
+	//----------------------------------------------------------------
+	
+	/**
+	 * Lock-free log-linear histogram (HDR style) of non negative long values.
+	 * 
+	 * Values are bucketed by their highest bit, with each power of 2 range split into
+	 * 8 linear sub-buckets. Values below 8 are recorded exactly.
+	 */
+	public static class Histogram {
+		
+		// Sub-bucket bits, and count, for each power of 2
+		protected static final int SUB_BUCKET_BITS = 3;
+		protected static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+		
+		// Total number of buckets, to cover all positive long values
+		protected static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+		
+		// Bucket counts, total, and max value
+		protected final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+		protected final LongAdder count = new LongAdder();
+		protected final LongAdder total = new LongAdder();
+		protected final LongAccumulator max = new LongAccumulator(Math::max, 0l);
+		
+		/**
+		 * @return the bucket index of the value
+		 */
+		protected static int bucketIndex(long value) {
+			if (value < SUB_BUCKET_COUNT) {
+				return (int) Math.max(0l, value);
+			}
+			int exponent = 63 - Long.numberOfLeadingZeros(value);
+			int sub = (int) ((value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1));
+			return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT + sub;
+		}
+		
+		/**
+		 * @return the lowest value, of the bucket index
+		 */
+		protected static long bucketLowerBound(int index) {
+			if (index < SUB_BUCKET_COUNT) {
+				return index;
+			}
+			int exponent = index / SUB_BUCKET_COUNT + SUB_BUCKET_BITS - 1;
+			long sub = index % SUB_BUCKET_COUNT;
+			return (SUB_BUCKET_COUNT | sub) << (exponent - SUB_BUCKET_BITS);
+		}
+		
+		/**
+		 * @return the highest value, of the bucket index
+		 */
+		protected static long bucketUpperBound(int index) {
+			if (index + 1 >= BUCKET_COUNT) {
+				return Long.MAX_VALUE;
+			}
+			return bucketLowerBound(index + 1) - 1;
+		}
+		
+		/**
+		 * Record a value (negative values are recorded as 0)
+		 */
+		public void record(long value) {
+			value = Math.max(0l, value);
+			buckets.incrementAndGet(bucketIndex(value));
+			count.increment();
+			total.add(value);
+			max.accumulate(value);
+		}
+		
+		/**
+		 * @return number of recorded values
+		 */
+		public long getCount() {
+			return count.sum();
+		}
+		
+		/**
+		 * @return highest recorded value
+		 */
+		public long getMax() {
+			return max.get();
+		}
+		
+		/**
+		 * @return average of the recorded values
+		 */
+		public double getMean() {
+			long c = count.sum();
+			return (c == 0) ? 0.0 : ((double) total.sum()) / c;
+		}
+		
+		/**
+		 * Get the (approximate) value at the given percentile.
+		 * This is the upper bound of the bucket it falls in, capped to the max value.
+		 * 
+		 * @param percentile  between 0 and 100
+		 * 
+		 * @return the value at the percentile, 0 if there is no recorded value
+		 */
+		public long getPercentile(double percentile) {
+			// Snapshot the buckets, and their total
+			long[] snapshot = new long[BUCKET_COUNT];
+			long snapshotCount = 0;
+			for (int i = 0; i < BUCKET_COUNT; ++i) {
+				snapshot[i] = buckets.get(i);
+				snapshotCount += snapshot[i];
+			}
+			if (snapshotCount == 0) {
+				return 0l;
+			}
+			
+			// Find the bucket, with the percentile rank
+			double p = Math.min(100.0, Math.max(0.0, percentile));
+			long rank = Math.max(1l, (long) Math.ceil(p / 100.0 * snapshotCount));
+			long seen = 0;
+			for (int i = 0; i < BUCKET_COUNT; ++i) {
+				seen += snapshot[i];
+				if (seen >= rank) {
+					return Math.min(bucketUpperBound(i), getMax());
+				}
+			}
+			return getMax();
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package picoded.dstack.module.lock;
+
+/**
+ * # LockMetricsListener
+ * 
+ * Instrumentation hook for LockTokenManager, see `LockTokenManager.metricsListener`.
+ * 
+ * Every method has a no-op default, so implementations only need to override the
+ * measurements they are interested in. The default listener (`NOOP`) is disabled, in
+ * which LockTokenManager skips all timing and tracking work.
+ * 
+ * Listeners are called synchronously on the locking thread, and should not block.
+ * 
+ * Round trips are reported as the estimated backend calls made by the LockStore
+ * (see `LockStore.roundTripsPerUpdate`), which differs for emulated backends.
+ **/
+public interface LockMetricsListener {
+	
+	/**
+	 * Outcome of a lock operation
+	 */
+	enum Outcome {
+		/** Operation was succesful */
+		SUCCESS,
+		/** Lock was held by another token (or has expired) */
+		CONTENTION,
+		/** Backend exception */
+		FAILURE
+	}
+	
+	/**
+	 * Disabled listener, used by default
+	 */
+	LockMetricsListener NOOP = new LockMetricsListener() {
+		@Override
+		public boolean isEnabled() {
+			return false;
+		}
+	};
+	
+	/**
+	 * @return false, if LockTokenManager should skip calling the listener
+	 */
+	default boolean isEnabled() {
+		return true;
+	}
+	
+	/**
+	 * Lock acquisition attempt (issueLockToken)
+	 * 
+	 * @param lockID        attempted
+	 * @param outcome       of the attempt
+	 * @param latencyNanos  time taken for the attempt
+	 * @param roundTrips    estimated backend round trips
+	 */
+	default void onAcquire(String lockID, Outcome outcome, long latencyNanos, int roundTrips) {
+	}
+	
+	/**
+	 * Lock renewal attempt (renewLockToken)
+	 * 
+	 * @param lockID        attempted
+	 * @param outcome       of the attempt
+	 * @param latencyNanos  time taken for the attempt
+	 * @param roundTrips    estimated backend round trips
+	 */
+	default void onRenew(String lockID, Outcome outcome, long latencyNanos, int roundTrips) {
+	}
+	
+	/**
+	 * Lock release attempt (returnLockToken)
+	 * 
+	 * @param lockID        attempted
+	 * @param outcome       of the attempt
+	 * @param heldMillis    time the lock was held, since it was issued (-1 if unknown)
+	 * @param roundTrips    estimated backend round trips
+	 */
+	default void onReturn(String lockID, Outcome outcome, long heldMillis, int roundTrips) {
+	}
+}
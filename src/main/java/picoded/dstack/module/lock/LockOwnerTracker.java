@@ -0,0 +1,486 @@
+package picoded.dstack.module.lock;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+import java.lang.management.ManagementFactory;
+
+import picoded.dstack.module.*;
+import picoded.dstack.*;
+
+/**
+ * # LockOwnerTracker
+ * 
+ * Opt-in companion structure for a LockTokenManager, which records the lock holder node,
+ * its acquire timestamp, and a sampled contention count per lockID. Along with an in memory
+ * top-K of the most contended (hot) lockIDs on this node (see SpaceSavingSketch).
+ * 
+ * This is registered as the LockTokenManager metrics listener (see `track`). The records are
+ * coalesced in memory by lockID, and written to the backend asynchronously on a background
+ * thread, so that no latency is added to the lock operations.
+ * 
+ * As the records are written asynchronously, they are a best effort diagnostic view, which
+ * may briefly lag behind the actual lock state.
+ * 
+ * # Storage
+ * 
+ * + owner map - lockID to the holder nodeID
+ * + stats map, "a_" prefix - acquire timestamp of the holder
+ * + stats map, "c_" prefix - sampled contention count (scaled by the sample rate)
+ **/
+public class LockOwnerTracker extends ModuleStructure implements LockMetricsListener {
+	
+	//----------------------------------------------------------------
+	//
+	//  Constructor
+	//
+	//----------------------------------------------------------------
+	
+	/**
+	 * Setup LockOwnerTracker structure given a stack, and its name
+	 * 
+	 * @param  CommonStack / DStack system to use
+	 * @param  Name used to setup the prefix of the complex structure
+	 **/
+	public LockOwnerTracker(CommonStack inStack, String inName) {
+		super(inStack, inName);
+		internalStructureList = setupInternalStructureList();
+	}
+	
+	/**
+	 * Setup LockOwnerTracker structure given its internal structures
+	 * 
+	 * @param  inOwnerMap   used to store the lockID holder nodeID
+	 * @param  inStatsMap   used to store the acquire timestamps, and contention counts
+	 **/
+	public LockOwnerTracker(KeyValueMap inOwnerMap, KeyLongMap inStatsMap) {
+		ownerMap = inOwnerMap;
+		statsMap = inStatsMap;
+		internalStructureList = setupInternalStructureList();
+	}
+	
+	//----------------------------------------------------------------
+	//
+	//  Class setup
+	//
+	//----------------------------------------------------------------
+	
+	/**
+	 * lockID to the holder nodeID
+	 */
+	protected KeyValueMap ownerMap = null;
+	
+	/**
+	 * Acquire timestamps ("a_" prefix), and contention counts ("c_" prefix)
+	 */
+	protected KeyLongMap statsMap = null;
+	
+	/**
+	 * Setup the internal structure given the stack + name, if needed
+	 * 
+	 * @return internal common structures, for used by the various initialize / teardown commands
+	 */
+	protected List<CommonStructure> setupInternalStructureList() {
+		// Safety check
+		if (ownerMap == null || statsMap == null) {
+			if (stack == null) {
+				throw new RuntimeException(
+					"Missing required KeyValueMap / KeyLongMap, and the stack/name param requried to be initialized");
+			}
+		}
+		
+		// The internal Maps required
+		if (ownerMap == null) {
+			ownerMap = stack.keyValueMap(name + "_owner");
+		}
+		if (statsMap == null) {
+			statsMap = stack.keyLongMap(name + "_stats");
+		}
+		
+		// Return as a list collection
+		return Arrays.asList(new CommonStructure[] { ownerMap, statsMap });
+	}
+	
+	/**
+	 * Register the tracker as the metrics listener of the LockTokenManager. Any existing
+	 * enabled listener is kept as the delegate, and continues to receive all events.
+	 * 
+	 * @param lockManager  to track
+	 */
+	public void track(LockTokenManager lockManager) {
+		LockMetricsListener existing = lockManager.metricsListener();
+		if (existing != this && existing.isEnabled()) {
+			delegate = existing;
+		}
+		lockManager.metricsListener(this);
+	}
+	
+	//----------------------------------------------------------------
+	//
+	// Reusable output logger
+	//
+	//----------------------------------------------------------------
+	
+	/**
+	 * logging interface
+	 * 
+	 * This is not a static class, so that the this object inherits
+	 * any extensions if needed
+	 **/
+	public Logger log() {
+		if (logObj != null) {
+			return logObj;
+		}
+		logObj = Logger.getLogger(this.getClass().getName());
+		return logObj;
+	}
+	
+	// Memoizer for log() function
+	protected Logger logObj = null;
+	
+	//----------------------------------------------------------------
+	//
+	//  Tracking controls
+	//
+	//----------------------------------------------------------------
+	
+	// Node identity, default is the JVM name ("pid@hostname")
+	protected volatile String nodeID = ManagementFactory.getRuntimeMXBean().getName();
+	
+	// Lifespan of the records in ms, contention sample rate, and the write interval in ms
+	protected long recordLifespan = 10 * 60 * 1000;
+	protected double contentionSampleRate = 0.1;
+	protected long flushInterval = 100;
+	
+	// Listener to forward the events to, if any
+	protected volatile LockMetricsListener delegate = LockMetricsListener.NOOP;
+	
+	/**
+	 * @return the nodeID recorded as the lock holder
+	 */
+	public String nodeID() {
+		return nodeID;
+	}
+	
+	/**
+	 * Configure the nodeID recorded as the lock holder (for example, the hostname or task ID)
+	 * 
+	 * @param id  of this node
+	 * @return the configured nodeID
+	 */
+	public String nodeID(String id) {
+		if (id == null || id.isEmpty()) {
+			throw new IllegalArgumentException("Missing required nodeID");
+		}
+		return nodeID = id;
+	}
+	
+	/**
+	 * @return lifespan of the records in ms
+	 */
+	public long recordLifespan() {
+		return recordLifespan;
+	}
+	
+	/**
+	 * Configure the lifespan of the records, this should be longer then the lock timeouts used,
+	 * as holder records are only removed on a succesful lock return.
+	 * 
+	 * @param lifespan in ms
+	 * @return the configured lifespan
+	 */
+	public long recordLifespan(long lifespan) {
+		return recordLifespan = Math.max(1l, lifespan);
+	}
+	
+	/**
+	 * @return fraction of the contended lock attempts, recorded in the contention count
+	 */
+	public double contentionSampleRate() {
+		return contentionSampleRate;
+	}
+	
+	/**
+	 * Configure the fraction of contended lock attempts recorded in the contention count.
+	 * Each sampled attempt is counted as `1 / rate` attempts, to estimate the total.
+	 * 
+	 * The in memory hot lock top-K, counts every contended attempt regardless.
+	 * 
+	 * @param rate between 0 (disabled) and 1 (every attempt)
+	 * @return the configured rate
+	 */
+	public double contentionSampleRate(double rate) {
+		return contentionSampleRate = Math.max(0.0, Math.min(1.0, rate));
+	}
+	
+	/**
+	 * @return the listener, which the events are forwarded to
+	 */
+	public LockMetricsListener delegate() {
+		return delegate;
+	}
+	
+	/**
+	 * Configure the listener, which the events are forwarded to
+	 * 
+	 * @param listener to forward to, null to disable
+	 * @return the configured listener
+	 */
+	public LockMetricsListener delegate(LockMetricsListener listener) {
+		return delegate = (listener == null) ? LockMetricsListener.NOOP : listener;
+	}
+	
+	//----------------------------------------------------------------
+	//
+	//  LockMetricsListener implementation
+	//
+	//----------------------------------------------------------------
+	
+	/**
+	 * Holder record, coalesced by lockID. For a released lock, this is the acquisition
+	 * which was released (so that a newer holder record is not removed).
+	 */
+	protected static class OwnerRecord {
+		final String nodeID;
+		final long acquiredAt;
+		final boolean released;
+		
+		OwnerRecord(String inNodeID, long inAcquiredAt, boolean inReleased) {
+			nodeID = inNodeID;
+			acquiredAt = inAcquiredAt;
+			released = inReleased;
+		}
+	}
+	
+	/**
+	 * Pending writes, by lockID
+	 */
+	protected ConcurrentHashMap<String, OwnerRecord> pendingOwners = new ConcurrentHashMap<>();
+	
+	/**
+	 * Holder records of the locks acquired on this node, till they are returned
+	 * (or are older than the recordLifespan, see pruneHeldOwners)
+	 */
+	protected ConcurrentHashMap<String, OwnerRecord> heldOwners = new ConcurrentHashMap<>();
+	protected ConcurrentHashMap<String, LongAdder> pendingContention = new ConcurrentHashMap<>();
+	
+	/**
+	 * Hot lockIDs on this node, by contended attempts
+	 */
+	protected SpaceSavingSketch hotLocks = new SpaceSavingSketch(100);
+	
+	/**
+	 * Record the holder on a succesful acquisition, and the contention on a failure
+	 */
+	public void onAcquire(String lockID, Outcome outcome, long latencyNanos, int roundTrips) {
+		if (outcome == Outcome.SUCCESS) {
+			OwnerRecord record = new OwnerRecord(nodeID, System.currentTimeMillis(), false);
+			heldOwners.put(lockID, record);
+			pendingOwners.put(lockID, record);
+			scheduleFlush();
+		} else if (outcome == Outcome.CONTENTION) {
+			hotLocks.offer(lockID);
+			
+			// Sampled contention count
+			double rate = contentionSampleRate;
+			if (rate > 0.0 && ThreadLocalRandom.current().nextDouble() < rate) {
+				pendingContention.computeIfAbsent(lockID, (k) -> new LongAdder()).add(
+					Math.round(1.0 / rate));
+				scheduleFlush();
+			}
+		}
+		delegate.onAcquire(lockID, outcome, latencyNanos, roundTrips);
+	}
+	
+	/**
+	 * Forwarded to the delegate
+	 */
+	public void onRenew(String lockID, Outcome outcome, long latencyNanos, int roundTrips) {
+		delegate.onRenew(lockID, outcome, latencyNanos, roundTrips);
+	}
+	
+	/**
+	 * Remove the holder on a succesful return (if it was acquired on this node)
+	 */
+	public void onReturn(String lockID, Outcome outcome, long heldMillis, int roundTrips) {
+		OwnerRecord held = (outcome == Outcome.SUCCESS) ? heldOwners.remove(lockID) : null;
+		if (held != null) {
+			pendingOwners.put(lockID, new OwnerRecord(held.nodeID, held.acquiredAt, true));
+			scheduleFlush();
+		}
+		delegate.onReturn(lockID, outcome, heldMillis, roundTrips);
+	}
+	
+	//----------------------------------------------------------------
+	//
+	//  Background writes
+	//
+	//----------------------------------------------------------------
+	
+	// Background writer, and its scheduled flag (lazily initialized)
+	protected ScheduledExecutorService flushExecutor = null;
+	protected AtomicBoolean flushScheduled = new AtomicBoolean(false);
+	
+	/**
+	 * Schedule the pending writes to be flushed, if it is not already scheduled
+	 */
+	protected void scheduleFlush() {
+		if (flushScheduled.compareAndSet(false, true)) {
+			flushExecutor().schedule(() -> {
+				flushScheduled.set(false);
+				flush();
+			}, flushInterval, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	/**
+	 * @return the background writer, initializing it if needed
+	 */
+	protected synchronized ScheduledExecutorService flushExecutor() {
+		if (flushExecutor == null) {
+			flushExecutor = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+				Thread ret = new Thread(runnable, "LockOwnerTracker-flush");
+				ret.setDaemon(true);
+				return ret;
+			});
+		}
+		return flushExecutor;
+	}
+	
+	/**
+	 * Write all pending records to the backend. This is called by the background writer,
+	 * but can be called directly to write them immediately.
+	 */
+	public void flush() {
+		// Holder records
+		for (String lockID : pendingOwners.keySet()) {
+			OwnerRecord record = pendingOwners.remove(lockID);
+			if (record == null) {
+				continue;
+			}
+			try {
+				if (record.released) {
+					removeOwnerRecord(lockID, record);
+				} else {
+					ownerMap.putWithLifespan(lockID, record.nodeID, recordLifespan);
+					statsMap.putWithLifespan("a_" + lockID, record.acquiredAt, recordLifespan);
+				}
+			} catch (RuntimeException e) {
+				log().warning(
+					"WARNING (lockID=" + lockID + ") - LockOwnerTracker write exception : "
+						+ e.getMessage());
+			}
+		}
+		
+		// Contention counts
+		for (String lockID : pendingContention.keySet()) {
+			LongAdder count = pendingContention.remove(lockID);
+			if (count == null) {
+				continue;
+			}
+			try {
+				statsMap.addAndGet("c_" + lockID, count.sum());
+				statsMap.setLifeSpan("c_" + lockID, recordLifespan);
+			} catch (RuntimeException e) {
+				log().warning(
+					"WARNING (lockID=" + lockID + ") - LockOwnerTracker write exception : "
+						+ e.getMessage());
+			}
+		}
+		
+		pruneHeldOwners();
+	}
+	
+	/**
+	 * Remove the stored holder record, only if it is still the released acquisition
+	 * (same nodeID and acquire timestamp). Otherwise the lock was since acquired by another
+	 * node (or again by this node), and its record is kept.
+	 * 
+	 * @param lockID    released
+	 * @param released  holder record of the released acquisition
+	 */
+	protected void removeOwnerRecord(String lockID, OwnerRecord released) {
+		if (!released.nodeID.equals(ownerMap.getValue(lockID))
+			|| statsMap.getLong("a_" + lockID) != released.acquiredAt) {
+			return;
+		}
+		ownerMap.remove(lockID);
+		statsMap.remove("a_" + lockID);
+	}
+	
+	// Timestamp of the last pruneHeldOwners
+	protected volatile long lastHeldPrune = System.currentTimeMillis();
+	
+	/**
+	 * Remove the local holder records older than the recordLifespan, at most once per
+	 * recordLifespan. These are locks which expired without being returned, whose stored
+	 * records would have expired as well.
+	 */
+	protected void pruneHeldOwners() {
+		long now = System.currentTimeMillis();
+		if (now - lastHeldPrune < recordLifespan) {
+			return;
+		}
+		lastHeldPrune = now;
+		heldOwners.values().removeIf((record) -> record.acquiredAt < now - recordLifespan);
+	}
+	
+	/**
+	 * Write the pending records, and stop the background writer.
+	 * (it is reinitialized on the next record)
+	 */
+	public synchronized void shutdown() {
+		flush();
+		if (flushExecutor != null) {
+			flushExecutor.shutdownNow();
+			flushExecutor = null;
+			flushScheduled.set(false);
+		}
+	}
+	
+	//----------------------------------------------------------------
+	//
+	//  Lookup
+	//
+	//----------------------------------------------------------------
+	
+	/**
+	 * @return the nodeID holding the lockID, null if unknown (or not held)
+	 */
+	public String getLockOwner(String lockID) {
+		return ownerMap.getValue(lockID);
+	}
+	
+	/**
+	 * @return the timestamp the lockID was acquired by its holder, -1 if unknown
+	 */
+	public long getAcquiredAt(String lockID) {
+		long ret = statsMap.getLong("a_" + lockID);
+		return (ret > 0) ? ret : -1;
+	}
+	
+	/**
+	 * @return the sampled contention count of the lockID, across all nodes
+	 */
+	public long getContentionCount(String lockID) {
+		return statsMap.getLong("c_" + lockID);
+	}
+	
+	/**
+	 * Get the most contended lockIDs on this node
+	 * 
+	 * @param k  number of lockIDs to return
+	 * 
+	 * @return lockID to its estimated contended attempts, by descending count
+	 */
+	public LinkedHashMap<String, Long> topHotLocks(int k) {
+		return hotLocks.topK(k);
+	}
+	
+}
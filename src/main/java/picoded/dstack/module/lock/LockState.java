@@ -0,0 +1,108 @@
+package picoded.dstack.module.lock;
+
+/**
+ * # LockState
+ * 
+ * Snapshot of a lockID state, returned by `LockTokenManager.getLockStates`
+ * (and `LockTokenManager.lockStateIterator`)
+ * 
+ * The token and lifespan are read from the backend. The holder details are only known
+ * for tokens issued by the same LockTokenManager, and tracked by it (see `isHeldLocally`)
+ **/
+public class LockState {
+	
+	/**
+	 * lockID of the state
+	 */
+	protected final String lockID;
+	
+	/**
+	 * Lock token, 0 if not locked
+	 */
+	protected final long token;
+	
+	/**
+	 * Remaining lifespan in ms, -1 if the lock does not exist, 0 if no lifespan is configured
+	 */
+	protected final long lifespan;
+	
+	/**
+	 * Holder details, tracked by the LockTokenManager
+	 */
+	protected final boolean heldLocally;
+	protected final long heldSince;
+	protected final boolean lingering;
+	
+	/**
+	 * Setup the lock state
+	 * 
+	 * @param inLockID      of the state
+	 * @param inToken       lock token, 0 if not locked
+	 * @param inLifespan    remaining lifespan in ms
+	 * @param inHeldLocally token was issued by the LockTokenManager
+	 * @param inHeldSince   timestamp the token was issued at, -1 if unknown
+	 * @param inLingering   token is an affinity lease lingering after its return
+	 */
+	protected LockState(String inLockID, long inToken, long inLifespan, boolean inHeldLocally,
+		long inHeldSince, boolean inLingering) {
+		lockID = inLockID;
+		token = inToken;
+		lifespan = inLifespan;
+		heldLocally = inHeldLocally;
+		heldSince = inHeldSince;
+		lingering = inLingering;
+	}
+	
+	/**
+	 * @return the lockID of the state
+	 */
+	public String getLockID() {
+		return lockID;
+	}
+	
+	/**
+	 * @return the lock token, 0 if not locked
+	 */
+	public long getToken() {
+		return token;
+	}
+	
+	/**
+	 * @return -1 if lock does not exist, 0 if no lifespan is configured, >0 is lifespan left
+	 */
+	public long getLifespan() {
+		return lifespan;
+	}
+	
+	/**
+	 * @return true, if the lockID is locked
+	 */
+	public boolean isLocked() {
+		return token > 0l;
+	}
+	
+	/**
+	 * Locally issued tokens are tracked while instrumentation (metricsListener), reentrant
+	 * mode, or affinity mode is enabled. Otherwise this is always false.
+	 * 
+	 * @return true, if the token was issued by this LockTokenManager
+	 */
+	public boolean isHeldLocally() {
+		return heldLocally;
+	}
+	
+	/**
+	 * @return timestamp the token was issued at, -1 if unknown (tracked with instrumentation)
+	 */
+	public long getHeldSince() {
+		return heldSince;
+	}
+	
+	/**
+	 * @return true, if the token is an affinity lease lingering after its return
+	 */
+	public boolean isLingering() {
+		return lingering;
+	}
+	
+}
@@ -0,0 +1,207 @@
+package picoded.dstack.module.lock;
+
+import java.util.*;
+
+/**
+ * # LockStore
+ * 
+ * Backend strategy used by LockTokenManager to store the `lockID` to token mapping.
+ * 
+ * The key operation is `compareAndSetWithLifespan`, which is expected to update both the
+ * lock value, and its expiry as a single backend operation where the backend supports it.
+ * This reduces the lock acquisition / renewal into a single round trip.
+ * 
+ * Backends which do not support such an operation natively, can emulate it with multiple
+ * calls (see KeyLongMapLockStore), at the cost of additional round trips.
+ * 
+ * For all operations, a missing or expired lockID is treated as a value of 0l
+ **/
+public interface LockStore {
+	
+	/**
+	 * Atomically set the lock value, and its lifespan, only if the current value
+	 * matches the expected value.
+	 * 
+	 * When the update value is 0l (a lock release), the lifespan is applied to the released
+	 * entry, to ensure it is eventually cleared. Implementations may choose to remove the
+	 * entry immediately instead.
+	 * 
+	 * @param lockID    to update
+	 * @param expect    expected current value, 0l if lock is not expected to exist
+	 * @param update    value to update to
+	 * @param lifespan  lifespan to apply in ms
+	 * 
+	 * @return true if the value was updated
+	 */
+	boolean compareAndSetWithLifespan(String lockID, long expect, long update, long lifespan);
+	
+	/**
+	 * Get the current lock value
+	 * 
+	 * @param lockID    to lookup
+	 * 
+	 * @return current lock value, 0l if it does not exist
+	 */
+	long getValue(String lockID);
+	
+	/**
+	 * Get the current lock remaining lifespan
+	 * 
+	 * @param lockID    to lookup
+	 * 
+	 * @return -1 if lock does not exist, 0 if no lifespan is configured, >0 is lifespan left
+	 */
+	long getLifespan(String lockID);
+	
+	/**
+	 * Get the current lock values, for multiple lockID
+	 * 
+	 * Backends which support it, should override this to perform the lookup in a single batch.
+	 * 
+	 * @param lockIDs   to lookup
+	 * 
+	 * @return current lock value for each lockID, 0l if it does not exist
+	 */
+	default long[] getValues(List<String> lockIDs) {
+		long[] ret = new long[lockIDs.size()];
+		for (int i = 0; i < ret.length; ++i) {
+			ret[i] = getValue(lockIDs.get(i));
+		}
+		return ret;
+	}
+	
+	/**
+	 * Get the current lock values, and remaining lifespan, for multiple lockID
+	 * 
+	 * Backends which support it, should override this to perform the lookup in a single batch.
+	 * 
+	 * @param lockIDs   to lookup
+	 * 
+	 * @return `{ value, lifespan }` for each lockID, as per getValue and getLifespan
+	 */
+	default long[][] getValuesWithLifespan(List<String> lockIDs) {
+		long[][] ret = new long[lockIDs.size()][];
+		for (int i = 0; i < ret.length; ++i) {
+			String lockID = lockIDs.get(i);
+			ret[i] = new long[] { getValue(lockID), getLifespan(lockID) };
+		}
+		return ret;
+	}
+	
+	/**
+	 * List the stored lockIDs with the given prefix, in sorted order. This is used to page
+	 * through the locks, by passing the last lockID of the previous page as afterLockID.
+	 * 
+	 * The listed lockIDs may include released entries, which are not yet removed.
+	 * 
+	 * @param prefix       of the lockIDs to list, empty string for all lockIDs
+	 * @param afterLockID  list only the lockIDs after this, null to start from the beginning
+	 * @param limit        maximum number of lockIDs to list
+	 * 
+	 * @return sorted list of lockIDs
+	 */
+	default List<String> listLockIDs(String prefix, String afterLockID, int limit) {
+		throw new RuntimeException("listLockIDs is not supported by : " + getClass().getName());
+	}
+	
+	/**
+	 * Utility function used to implement listLockIDs, from a collection of lockIDs
+	 * 
+	 * @param lockIDs      to filter and sort
+	 * @param prefix       of the lockIDs to list, empty string for all lockIDs
+	 * @param afterLockID  list only the lockIDs after this, null to start from the beginning
+	 * @param limit        maximum number of lockIDs to list
+	 * 
+	 * @return sorted list of lockIDs
+	 */
+	static List<String> pageLockIDs(Collection<String> lockIDs, String prefix, String afterLockID,
+		int limit) {
+		// Filter the lockIDs, keeping only the first `limit` in sorted order
+		TreeSet<String> page = new TreeSet<String>();
+		for (String lockID : lockIDs) {
+			if (!lockID.startsWith(prefix)
+				|| (afterLockID != null && lockID.compareTo(afterLockID) <= 0)) {
+				continue;
+			}
+			page.add(lockID);
+			if (page.size() > limit) {
+				page.pollLast();
+			}
+		}
+		return new ArrayList<String>(page);
+	}
+	
+	/**
+	 * Estimated backend round trips, for a single `compareAndSetWithLifespan` call.
+	 * This is used for instrumentation only (see LockMetricsListener)
+	 * 
+	 * @return number of backend round trips
+	 */
+	default int roundTripsPerUpdate() {
+		return 1;
+	}
+	
+	/**
+	 * Incrementally remove released (0l) and expired lock entries, scanning up to the given
+	 * number of entries per call. Each call continues the scan from where the previous call
+	 * stopped, and restarts from the beginning once all entries are scanned.
+	 * 
+	 * This must be safe to run concurrently with the other lock operations.
+	 * Backends which do not keep such entries, can leave this as a no-op.
+	 * 
+	 * @param batchSize  maximum number of entries to scan
+	 * 
+	 * @return number of entries removed
+	 */
+	default int sweepReleased(int batchSize) {
+		return 0;
+	}
+	
+	/**
+	 * Does `compareAndSetWithLifespan` for multiple lockID, in the given order, stopping on the
+	 * first failure. IDs before the failure are left updated, for the caller to rollback.
+	 * 
+	 * Backends which support it, should override this to perform the updates in a single batch.
+	 * (and may choose to rollback on failure, returning 0)
+	 * 
+	 * @param lockIDs   to update, in order
+	 * @param expect    expected current value for every lockID
+	 * @param update    value to update to
+	 * @param lifespan  lifespan to apply in ms
+	 * 
+	 * @return number of lockIDs updated, this is the list size if all was succesful
+	 */
+	default int compareAndSetAllWithLifespan(List<String> lockIDs, long expect, long update,
+		long lifespan) {
+		for (int i = 0; i < lockIDs.size(); ++i) {
+			if (!compareAndSetWithLifespan(lockIDs.get(i), expect, update, lifespan)) {
+				return i;
+			}
+		}
+		return lockIDs.size();
+	}
+	
+	/**
+	 * Does `compareAndSetWithLifespan` for multiple lockID, each with its own expected
+	 * and update value. Unlike `compareAndSetAllWithLifespan`, each update is independent
+	 * of the others, and a failure does not stop the remaining updates.
+	 * 
+	 * Backends which support it, should override this to perform the updates in a single batch.
+	 * 
+	 * @param lockIDs   to update
+	 * @param expect    expected current value, for each lockID
+	 * @param update    value to update to, for each lockID
+	 * @param lifespan  lifespan to apply in ms
+	 * 
+	 * @return the update result, for each lockID
+	 */
+	default boolean[] compareAndSetEachWithLifespan(List<String> lockIDs, long[] expect,
+		long[] update, long lifespan) {
+		boolean[] ret = new boolean[lockIDs.size()];
+		for (int i = 0; i < lockIDs.size(); ++i) {
+			ret[i] = compareAndSetWithLifespan(lockIDs.get(i), expect[i], update[i], lifespan);
+		}
+		return ret;
+	}
+	
+}
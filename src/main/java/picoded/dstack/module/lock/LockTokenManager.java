@@ -1,11 +1,24 @@
 package picoded.dstack.module.lock;
 
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 import java.security.SecureRandom;
 
 import picoded.dstack.module.*;
 import picoded.dstack.*;
 import picoded.core.conv.*;
+import picoded.core.common.SystemSetupInterface;
 
 /**
  * # LockTokenManager
@@ -19,6 +32,10 @@ import picoded.core.conv.*;
  * This allow the lock manager to be more reliably be used if for example.
  * In a configuration with a "low" timeout (<= 1 seconds) 
  * 
+ * The underlying storage is handled by a LockStore, which defaults to a KeyLongMapLockStore.
+ * Backends which support an atomic compare-and-set with expiry (such as MemoryLockStore),
+ * allows lock issue / renewal to be done in a single round trip.
+ * 
  **/
 public class LockTokenManager extends ModuleStructure {
 	
@@ -49,6 +66,45 @@ public class LockTokenManager extends ModuleStructure {
 		internalStructureList = setupInternalStructureList();
 	}
 	
+	/**
+	 * Setup LockTokenManager structure given the LockStore backend to use
+	 *
+	 * @param  inLockStore used to store the lockID to token mapping
+	 **/
+	public LockTokenManager(LockStore inLockStore) {
+		lockStore = inLockStore;
+		if (inLockStore instanceof KeyLongMapLockStore) {
+			lockMap = ((KeyLongMapLockStore) inLockStore).keyLongMap();
+		}
+		internalStructureList = setupInternalStructureList();
+	}
+	
+	/**
+	 * Setup LockTokenManager structure given its internal structures,
+	 * with monotonic fencing tokens enabled (see `fencingMap`)
+	 *
+	 * @param  inLockMap     used to store the lockID to token mapping
+	 * @param  inFencingMap  used to store the fencing token counter of each lockID
+	 **/
+	public LockTokenManager(KeyLongMap inLockMap, KeyLongMap inFencingMap) {
+		lockMap = inLockMap;
+		fencingMap = inFencingMap;
+		internalStructureList = setupInternalStructureList();
+	}
+	
+	/**
+	 * Setup LockTokenManager structure given the LockStore backend to use,
+	 * with monotonic fencing tokens enabled (see `fencingMap`)
+	 *
+	 * @param  inLockStore   used to store the lockID to token mapping
+	 * @param  inFencingMap  used to store the fencing token counter of each lockID
+	 **/
+	public LockTokenManager(LockStore inLockStore, KeyLongMap inFencingMap) {
+		this(inLockStore);
+		fencingMap = inFencingMap;
+		internalStructureList = setupInternalStructureList();
+	}
+	
 	//----------------------------------------------------------------
 	//
 	//  Class setup
@@ -60,13 +116,34 @@ public class LockTokenManager extends ModuleStructure {
 	 */
 	protected KeyLongMap lockMap = null;
 	
+	/**
+	 * Internal lock store, used for all lock token operations
+	 * (defaults to a KeyLongMapLockStore, using the lockMap)
+	 */
+	protected LockStore lockStore = null;
+	
+	/**
+	 * Fencing token counter map (optional), when configured lock tokens are issued
+	 * from a strictly increasing counter for each lockID, instead of randomly.
+	 * 
+	 * This allows downstream writers to reject writes from a stale lock holder, by
+	 * rejecting any token lower then the highest token it has seen.
+	 * 
+	 * Note that tokens are increasing in the order they are issued, which is immediately
+	 * before the lock attempt. In the rare case that a slow lock attempt succeeds after a
+	 * later token was used, the lower token would be rejected downstream (which is safe).
+	 * 
+	 * Counters are never expired, as that would break their monotonic property.
+	 */
+	protected KeyLongMap fencingMap = null;
+	
 	/**
 	 * Setup the internal structure given the stack + name, if needed
 	 * @return internal common structures, for used by the various initialize / teardown commands
 	 */
 	protected List<CommonStructure> setupInternalStructureList() {
 		// Safety check
-		if (lockMap == null) {
+		if (lockMap == null && lockStore == null) {
 			if (stack == null || name == null) {
 				throw new RuntimeException(
 					"Missing required Map, and the stack/name param requried to be initialized");
@@ -74,12 +151,56 @@ public class LockTokenManager extends ModuleStructure {
 		}
 		
 		// The internal Maps required, 
-		if (lockMap == null) {
+		if (lockMap == null && lockStore == null) {
 			lockMap = stack.keyLongMap(name);
 		}
+		if (lockStore == null) {
+			lockStore = new KeyLongMapLockStore(lockMap);
+		}
+		
+		// Return as a list collection (lockMap is null for custom lock stores)
+		List<CommonStructure> ret = new ArrayList<CommonStructure>();
+		if (lockMap != null) {
+			ret.add(lockMap);
+		}
+		if (fencingMap != null) {
+			ret.add(fencingMap);
+		}
+		return ret;
+	}
+	
+	/**
+	 * SystemSetupInterface collection, including the lock store itself when it manages
+	 * its own storage (such as JSqlLockStore)
+	 **/
+	public Collection<SystemSetupInterface> systemSetupInterfaceCollection() {
+		LockStore store = lockStore;
+		if (store instanceof CoalescingLockStore) {
+			store = ((CoalescingLockStore) store).lockStore;
+		}
+		if (!(store instanceof SystemSetupInterface)) {
+			return super.systemSetupInterfaceCollection();
+		}
 		
-		// Return as a list collection
-		return Arrays.asList(new CommonStructure[] { lockMap });
+		List<SystemSetupInterface> ret = new ArrayList<SystemSetupInterface>(
+			super.systemSetupInterfaceCollection());
+		ret.add((SystemSetupInterface) store);
+		return ret;
+	}
+	
+	/**
+	 * Enable the in-JVM contention coalescing layer (see CoalescingLockStore),
+	 * wrapping around the current lock store.
+	 * 
+	 * This is useful for hot lockIDs, which are raced by many threads on the same node.
+	 * 
+	 * @return the coalescing lock store, for further configuration
+	 */
+	public CoalescingLockStore enableLocalCoalescing() {
+		if (!(lockStore instanceof CoalescingLockStore)) {
+			lockStore = new CoalescingLockStore(lockStore);
+		}
+		return (CoalescingLockStore) lockStore;
 	}
 	
 	//----------------------------------------------------------------
@@ -89,10 +210,79 @@ public class LockTokenManager extends ModuleStructure {
 	//----------------------------------------------------------------
 	
 	/**
-	 * Internal random number generator
+	 * Lifespan of a released lock, before it is removed
+	 */
+	protected static final long RELEASED_LOCK_LIFESPAN = 24 * 60 * 60 * 1000;
+	
+	/**
+	 * Internal random number generator (used when fencing tokens are not enabled)
 	 */
 	SecureRandom randObj = new SecureRandom();
 	
+	/**
+	 * @return true, if monotonic fencing tokens are used
+	 */
+	public boolean isFencingTokenEnabled() {
+		return fencingMap != null;
+	}
+	
+	/**
+	 * Derive a new lock token, for the given lockID
+	 * 
+	 * @param lockID         to issue the token for
+	 * 
+	 * @return the next fencing token if enabled, else a random positive token
+	 */
+	protected long nextLockToken(String lockID) {
+		// Fencing token counter
+		if (fencingMap != null) {
+			return GenericConvert.toLong(fencingMap.incrementAndGet(lockID), 0);
+		}
+		
+		// Lets derive the "new" lock token randomly!
+		//
+		// This is intentionally an integer value, as it is "random enough"
+		// and would avoid a known issue with mysql long accuracy
+		long token = 0l;
+		while (token <= 0l) {
+			token = Math.abs((randObj).nextInt());
+		}
+		return token;
+	}
+	
+	/**
+	 * Derive a new shared lock token, for a group of lockIDs
+	 * 
+	 * For fencing tokens, this is the highest counter value across all the lockIDs,
+	 * with the lower counters advanced to it (to keep them monotonic).
+	 * 
+	 * @param lockIDs        to issue the token for
+	 * 
+	 * @return the shared lock token
+	 */
+	protected long nextLockToken(List<String> lockIDs) {
+		// Random token
+		if (fencingMap == null) {
+			return nextLockToken(lockIDs.get(0));
+		}
+		
+		// Get the next counter value for each lockID, and the highest of them
+		long[] counters = new long[lockIDs.size()];
+		long token = 0l;
+		for (int i = 0; i < counters.length; ++i) {
+			counters[i] = nextLockToken(lockIDs.get(i));
+			token = Math.max(token, counters[i]);
+		}
+		
+		// Advance the lower counters (as counters only increase, this does not need a CAS)
+		for (int i = 0; i < counters.length; ++i) {
+			if (counters[i] < token) {
+				fencingMap.addAndGet(lockIDs.get(i), token - counters[i]);
+			}
+		}
+		return token;
+	}
+	
 	/**
 	 * Issues a lock token internally
 	 * 
@@ -109,44 +299,17 @@ public class LockTokenManager extends ModuleStructure {
 		// in asyncronous use cases (such as locking API's)
 		long nextLockToken = existingToken;
 		
-		// Lets derive the "new" lock token if needed  - randomly!
-		//
-		// This is intentionally an integer value, as it is "random enough"
-		// and would avoid a known issue with mysql long accuracy
+		// Lets derive the "new" lock token if needed
 		if (nextLockToken <= 0l) {
-			nextLockToken = Math.abs((randObj).nextInt());
-		}
-		
-		// Lets attempt to get a lock
-		if (lockMap.weakCompareAndSet(lockID, existingToken, nextLockToken)) {
-			// YAY lock succesful - enforce expiry
-			lockMap.setLifeSpan(lockID, lockTimeout);
-			
-			// Validate the existing value, this guard against a narrow
-			// lock expriy window which occurs between
-			// a weakCompareAndSet, and the setLifeSpan command.
-			long registeredToken = lockMap.getLong(lockID);
-			if (registeredToken != nextLockToken) {
-				return -1;
-			}
-			
-			// Return the lock
-			return nextLockToken;
+			nextLockToken = nextLockToken(lockID);
 		}
 		
-		// Double check if there is an expiry - reapply if needed
-		// this is to work around hypothetical crashes after weakCompare
-		//
-		// # UNLOCK_DEADLOCK_WARNING
+		// Lets attempt to get a lock, with its expiry
 		//
-		// This is intentional to guard against accidental deadlock
-		// done during an unlock call. By ensuring when such a large "lock"
-		// occurs - multiple "setupToken" will resolve the deadlock.
-		//
-		// See UNLOCK_DEADLOCK_WARNING below in `unlockToken`
-		long currentLifespan = lockMap.getLifespan(lockID);
-		if (currentLifespan == 0 || currentLifespan > lockTimeout) {
-			lockMap.setLifeSpan(lockID, lockTimeout);
+		// This is a single round trip, for LockStore backends which supports it
+		if (lockStore
+			.compareAndSetWithLifespan(lockID, existingToken, nextLockToken, lockTimeout)) {
+			return nextLockToken;
 		}
 		
 		// Return -1 on lock failure
@@ -167,10 +330,7 @@ public class LockTokenManager extends ModuleStructure {
 	 * @return true, if lock exists
 	 */
 	public boolean isLocked(String lockID) {
-		// This fetches the expiry, and lock value in a single call
-		KeyLong val = lockMap.get(lockID);
-		// Validate it
-		return val != null && val.longValue() != 0l;
+		return lockStore.getValue(lockID) != 0l;
 	}
 	
 	/**
@@ -181,7 +341,7 @@ public class LockTokenManager extends ModuleStructure {
 	 * @return -1 if lock does not exist, 0 if no lifespan is configured (possible in race condition), >0 is lifespan left
 	 */
 	public long getLockLifespan(String lockID) {
-		return lockMap.getLifespan(lockID);
+		return lockStore.getLifespan(lockID);
 	}
 	
 	/**
@@ -196,7 +356,51 @@ public class LockTokenManager extends ModuleStructure {
 	 * @return the lock token if valid, -1 if no valid token issued
 	 */
 	public long issueLockToken(String lockID, long lockTimeout) {
-		return setupToken(lockID, 0l, lockTimeout);
+		if (reentrantMode) {
+			return issueLockToken_reentrant(lockID, lockTimeout);
+		}
+		if (lingerWindow > 0) {
+			return issueLockToken_affinity(lockID, lockTimeout);
+		}
+		return issueLockToken_internal(lockID, lockTimeout);
+	}
+	
+	/**
+	 * Issues a lock token for the given lockID, from the backend
+	 * 
+	 * @param lockID         to use
+	 * @param lockTimeout    lock timeout for token
+	 * 
+	 * @return the lock token if valid, -1 if no valid token issued
+	 */
+	protected long issueLockToken_internal(String lockID, long lockTimeout) {
+		// Skip all instrumentation, if its disabled
+		LockMetricsListener metrics = metricsListener;
+		if (!metrics.isEnabled()) {
+			return setupToken(lockID, 0l, lockTimeout);
+		}
+		
+		// Issue the token, with instrumentation
+		int roundTrips = lockStore.roundTripsPerUpdate() + ((fencingMap != null) ? 1 : 0);
+		long startTime = System.nanoTime();
+		long token = -1;
+		try {
+			token = setupToken(lockID, 0l, lockTimeout);
+		} catch (RuntimeException e) {
+			metrics.onAcquire(lockID, LockMetricsListener.Outcome.FAILURE, System.nanoTime()
+				- startTime, roundTrips);
+			throw e;
+		}
+		metrics.onAcquire(lockID, metricsOutcome(token > 0), System.nanoTime() - startTime,
+			roundTrips);
+		
+		// Track the time held
+		if (token > 0) {
+			long now = System.currentTimeMillis();
+			heldSinceMap.put(lockID, new long[] { token, now, now + lockTimeout });
+			pruneHeldSince(now);
+		}
+		return token;
 	}
 	
 	/**
@@ -216,7 +420,70 @@ public class LockTokenManager extends ModuleStructure {
 			throw new RuntimeException("Invalid lock token used (lockID = " + lockID + ") : "
 				+ originalToken);
 		}
-		return setupToken(lockID, originalToken, lockTimeout);
+		
+		// Renew the token
+		long startTime = System.currentTimeMillis();
+		long token = renewLockToken_internal(lockID, originalToken, lockTimeout);
+		
+		// Update the local reentrant hold expiry, if any
+		if (token > 0 && !reentrantMap.isEmpty()) {
+			ReentrantHold hold = reentrantMap.get(lockID);
+			if (hold != null && hold.token == token) {
+				hold.expiry = startTime + lockTimeout;
+			}
+		}
+		
+		// Update the affinity lease expiry, if any
+		if (token > 0 && !affinityHeldMap.isEmpty()) {
+			long[] held = affinityHeldMap.get(lockID);
+			if (held != null && held[0] == token) {
+				affinityHeldMap.replace(lockID, held,
+					new long[] { token, startTime + lockTimeout });
+			}
+		}
+		return token;
+	}
+	
+	/**
+	 * Renew a lock token for the given lockID, from the backend
+	 * 
+	 * @param lockID         to use
+	 * @param existingToken  existing token, to renew
+	 * @param lockTimeout    lock timeout for token
+	 * 
+	 * @return the lock token if valid, -1 if no valid token issued
+	 */
+	protected long renewLockToken_internal(String lockID, long originalToken, long lockTimeout) {
+		// Skip all instrumentation, if its disabled
+		LockMetricsListener metrics = metricsListener;
+		if (!metrics.isEnabled()) {
+			return setupToken(lockID, originalToken, lockTimeout);
+		}
+		
+		// Renew the token, with instrumentation
+		long startTime = System.nanoTime();
+		long token = -1;
+		try {
+			token = setupToken(lockID, originalToken, lockTimeout);
+		} catch (RuntimeException e) {
+			metrics.onRenew(lockID, LockMetricsListener.Outcome.FAILURE, System.nanoTime()
+				- startTime, lockStore.roundTripsPerUpdate());
+			throw e;
+		}
+		metrics.onRenew(lockID, metricsOutcome(token > 0), System.nanoTime() - startTime,
+			lockStore.roundTripsPerUpdate());
+		
+		// Extend the tracked expiry, or stop tracking a lost token
+		long[] heldSince = heldSinceMap.get(lockID);
+		if (heldSince != null && heldSince[0] == originalToken) {
+			if (token > 0) {
+				heldSinceMap.replace(lockID, heldSince, new long[] { token, heldSince[1],
+					System.currentTimeMillis() + lockTimeout });
+			} else {
+				heldSinceMap.remove(lockID, heldSince);
+			}
+		}
+		return token;
 	}
 	
 	/**
@@ -228,71 +495,1819 @@ public class LockTokenManager extends ModuleStructure {
 	 * @return true, if unlock was succesful, else false if failed
 	 */
 	public boolean returnLockToken(String lockID, long existingToken) {
+		// Nested reentrant holds are released locally
+		if (!reentrantMap.isEmpty() && returnLockToken_reentrant(lockID, existingToken)) {
+			return true;
+		}
+		
+		// Affinity leases linger locally
+		if (!affinityHeldMap.isEmpty() && returnLockToken_affinity(lockID, existingToken)) {
+			return true;
+		}
+		return returnLockToken_internal(lockID, existingToken);
+	}
+	
+	/**
+	 * Unlock an existing lock, from the backend
+	 * 
+	 * @param lockID         to use
+	 * @param existingToken  existing token, to return
+	 * 
+	 * @return true, if unlock was succesful, else false if failed
+	 */
+	protected boolean returnLockToken_internal(String lockID, long existingToken) {
 		// Lets attempt to do an unlock!
-		if (lockMap.weakCompareAndSet(lockID, existingToken, 0l)) {
-			//
-			// Unlock is done, lets make sure a value expiry is configured.
-			//
-			// This is done to help ensure unused lock tokenID will eventually 
-			// be cleared from the system. However by doing so it introduces,
-			// various edge case race conditions, which is addressed below.
-			// 
-			
-			// Get the existing KeyLong
-			KeyLong val = lockMap.get(lockID);
-			
-			// Value was invalidated / expired
-			// this is a small time window for this to be able to occur
-			// but oh well, it happened, and unlock is succesful - return
-			if (val == null) {
-				return true;
-			}
-			
-			// Check if there is an existing lock expiry,
-			// if configured - returns true if it exists
-			// and follow that lock expiry.
-			if (val.getExpiry() > 0l) {
-				return true;
+		//
+		// The released lock is configured with a 24 hour expiry, to help ensure
+		// unused lock tokenID will eventually be cleared from the system.
+		//
+		// This value is intentionally significantly higher then all current expected
+		// use cases. See UNLOCK_DEADLOCK_WARNING in KeyLongMapLockStore
+		LockMetricsListener metrics = metricsListener;
+		if (!metrics.isEnabled()) {
+			return lockStore.compareAndSetWithLifespan(lockID, existingToken, 0l,
+				RELEASED_LOCK_LIFESPAN);
+		}
+		
+		// Time held, if this token was issued by this manager
+		long heldMillis = -1;
+		long[] heldSince = heldSinceMap.get(lockID);
+		if (heldSince != null && heldSince[0] == existingToken
+			&& heldSinceMap.remove(lockID, heldSince)) {
+			heldMillis = System.currentTimeMillis() - heldSince[1];
+		}
+		
+		// Unlock, with instrumentation
+		boolean res = false;
+		try {
+			res = lockStore.compareAndSetWithLifespan(lockID, existingToken, 0l,
+				RELEASED_LOCK_LIFESPAN);
+		} catch (RuntimeException e) {
+			metrics.onReturn(lockID, LockMetricsListener.Outcome.FAILURE, heldMillis,
+				lockStore.roundTripsPerUpdate());
+			throw e;
+		}
+		metrics.onReturn(lockID, metricsOutcome(res), heldMillis, lockStore.roundTripsPerUpdate());
+		return res;
+	}
+	
+	//----------------------------------------------------------------
+	//
+	//  Reentrant lock handling
+	//
+	//----------------------------------------------------------------
+	
+	/**
+	 * Locally held reentrant lock, all access to the hold count is synchronized on the object
+	 */
+	protected static class ReentrantHold {
+		final Object owner;
+		final long token;
+		int holdCount = 1;
+		volatile long expiry;
+		
+		ReentrantHold(Object inOwner, long inToken, long inExpiry) {
+			owner = inOwner;
+			token = inToken;
+			expiry = inExpiry;
+		}
+	}
+	
+	/**
+	 * Locally held reentrant locks, by lockID
+	 */
+	protected ConcurrentHashMap<String, ReentrantHold> reentrantMap = new ConcurrentHashMap<>();
+	
+	// Reentrant mode flag, and the owner supplier (default is the current thread)
+	protected volatile boolean reentrantMode = false;
+	protected volatile Supplier<Object> reentrantOwner = Thread::currentThread;
+	
+	/**
+	 * @return true, if reentrant mode is enabled
+	 */
+	public boolean reentrantMode() {
+		return reentrantMode;
+	}
+	
+	/**
+	 * Configure the reentrant mode, when enabled `issueLockToken` is reentrant for the
+	 * lock owner (see `reentrantOwner`). The outermost issueLockToken and returnLockToken
+	 * calls are done on the backend, while nested calls are served from memory.
+	 * 
+	 * Nested calls return the same token, without extending the lock (use renewLockToken).
+	 * A lock held locally by another owner fails without any backend call.
+	 * 
+	 * Note that this applies only to issueLockToken (and awaitLockToken),
+	 * and not to composite locks, or shared leases.
+	 * 
+	 * @param enable reentrant mode
+	 * @return the configured mode
+	 */
+	public boolean reentrantMode(boolean enable) {
+		return reentrantMode = enable;
+	}
+	
+	/**
+	 * @return the reentrant lock owner supplier
+	 */
+	public Supplier<Object> reentrantOwner() {
+		return reentrantOwner;
+	}
+	
+	/**
+	 * Configure the reentrant lock owner supplier, the default is the current thread.
+	 * For example, `() -> "node"` makes locks reentrant across the whole node.
+	 * 
+	 * @param owner supplier, of the current lock owner
+	 * @return the configured supplier
+	 */
+	public Supplier<Object> reentrantOwner(Supplier<Object> owner) {
+		if (owner == null) {
+			throw new IllegalArgumentException("Missing required reentrant owner supplier");
+		}
+		return reentrantOwner = owner;
+	}
+	
+	/**
+	 * Issues a reentrant lock token for the given lockID, for the current owner
+	 * 
+	 * @param lockID         to use
+	 * @param lockTimeout    lock timeout for token
+	 * 
+	 * @return the lock token if valid, -1 if no valid token issued
+	 */
+	protected long issueLockToken_reentrant(String lockID, long lockTimeout) {
+		Object owner = reentrantOwner.get();
+		long startTime = System.currentTimeMillis();
+		
+		// Existing local hold
+		ReentrantHold hold = reentrantMap.get(lockID);
+		if (hold != null) {
+			synchronized (hold) {
+				if (hold.holdCount > 0 && hold.expiry > startTime) {
+					// Nested lock, by the same owner
+					if (hold.owner.equals(owner)) {
+						hold.holdCount++;
+						return hold.token;
+					}
+					// Held by another local owner
+					return -1;
+				}
 			}
-			
-			// Check if value is != 0, meaning its this unlockToken
-			// expiry time, belongs to another "setupToken" call
-			if (val.longValue() != 0l) {
+			// Local hold has expired, its lock status is left to the backend
+			reentrantMap.remove(lockID, hold);
+		}
+		
+		// Outermost lock, from the backend (or a lingering affinity lease)
+		long token = (lingerWindow > 0) ? issueLockToken_affinity(lockID, lockTimeout)
+			: issueLockToken_internal(lockID, lockTimeout);
+		if (token > 0) {
+			reentrantMap.put(lockID, new ReentrantHold(owner, token, startTime + lockTimeout));
+		}
+		return token;
+	}
+	
+	/**
+	 * Release a nested reentrant hold locally, if possible
+	 * 
+	 * @param lockID         to use
+	 * @param existingToken  existing token, to return
+	 * 
+	 * @return true, if a nested hold was released, false if the backend lock should be returned
+	 */
+	protected boolean returnLockToken_reentrant(String lockID, long existingToken) {
+		ReentrantHold hold = reentrantMap.get(lockID);
+		if (hold == null || hold.token != existingToken) {
+			return false;
+		}
+		synchronized (hold) {
+			if (hold.holdCount > 1 && hold.expiry > System.currentTimeMillis()) {
+				hold.holdCount--;
 				return true;
 			}
-			
-			//
-			// Lets setup an unlock expiry (to remove the 0l eventually)
-			// Currently this is configured as a 24 hour unlock window
-			//
-			// # UNLOCK_DEADLOCK_WARNING
-			//
-			// There exist a potential deadlock window, when a succesful lock
-			// occurs between an unlock `weakCompareAndSet` and `setLifespan`.
-			// (the time window in this comment block?)
-			// 
-			// This would result in the subsequent setLifespan,
-			// either being too long, or too short. As such the default
-			// value of this "setLifeSpan", is configured to be 24 hours,
-			// a number significantly higher then all current expected use cases.
-			//
-			// Letting the setupToken, be in charge of 
-			// updating the lifespan if needed.
-			//
-			// Additional measures such as getting the existing keyLong,
-			// and validating it for a lifespan value was done above
-			// to reduce the possible surface vector.
-			// 
-			// See UNLOCK_DEADLOCK_WARNING above in `setupToken`
-			//
-			// @TODO consideration - add "setLifespan_ifBlank" support to KeyLongMap
-			//
-			lockMap.setLifeSpan(lockID, 24 * 60 * 60 * 1000); // PLEASE READ COMMENT ABOVE (do not remove)
-			
-			// Return res true for succesful unlock
-			return true;
+			hold.holdCount = 0;
 		}
-		// Unlock fail
+		reentrantMap.remove(lockID, hold);
 		return false;
 	}
-}
\ No newline at end of file
+	
+	//----------------------------------------------------------------
+	//
+	//  Lease affinity handling
+	//
+	//----------------------------------------------------------------
+	
+	/**
+	 * Lease kept by this node after a local release, till its linger window ends
+	 */
+	protected static class LingerLease {
+		final long token;
+		final long remoteExpiry;
+		final long lingerUntil;
+		
+		LingerLease(long inToken, long inRemoteExpiry, long inLingerUntil) {
+			token = inToken;
+			remoteExpiry = inRemoteExpiry;
+			lingerUntil = inLingerUntil;
+		}
+	}
+	
+	/**
+	 * Tokens issued in affinity mode, by lockID ({ token, backend expiry timestamp })
+	 */
+	protected ConcurrentHashMap<String, long[]> affinityHeldMap = new ConcurrentHashMap<>();
+	
+	/**
+	 * Leases lingering after a local release, by lockID
+	 */
+	protected ConcurrentHashMap<String, LingerLease> lingerMap = new ConcurrentHashMap<>();
+	
+	// Linger window in ms, 0 disables the affinity mode
+	protected volatile long lingerWindow = 0;
+	
+	/**
+	 * @return the affinity linger window in ms, 0 if affinity mode is disabled
+	 */
+	public long lingerWindow() {
+		return lingerWindow;
+	}
+	
+	/**
+	 * Configure the affinity mode linger window. When enabled, a lock returned with
+	 * `returnLockToken` is kept by this node for up to the linger window, before it is
+	 * returned on the backend (handed off).
+	 * 
+	 * An `issueLockToken` within the linger window reuses the same token, from memory if the
+	 * backend lease still covers the lockTimeout, else with a single renewal. To make the
+	 * former the common case, tokens are issued with the linger window added to their
+	 * lifespan on the backend.
+	 * 
+	 * Other nodes see the lock as held, till it is handed off (or expires if this node fails).
+	 * As such this is intended for lockIDs which are repeatedly used by the same node.
+	 * 
+	 * Note that this applies only to issueLockToken (and awaitLockToken),
+	 * and not to composite locks, or shared leases.
+	 * 
+	 * @param window linger window in ms, 0 to disable (handing off all lingering leases)
+	 * @return the configured window
+	 */
+	public long lingerWindow(long window) {
+		lingerWindow = Math.max(0l, window);
+		if (lingerWindow == 0) {
+			handoffLingerLeases();
+		}
+		return lingerWindow;
+	}
+	
+	/**
+	 * Issues a lock token for the given lockID, reusing the lingering lease if possible
+	 * 
+	 * @param lockID         to use
+	 * @param lockTimeout    lock timeout for token
+	 * 
+	 * @return the lock token if valid, -1 if no valid token issued
+	 */
+	protected long issueLockToken_affinity(String lockID, long lockTimeout) {
+		long startTime = System.currentTimeMillis();
+		long backendTimeout = lockTimeout + lingerWindow;
+		
+		// Lingering lease, claimed from the handoff
+		LingerLease lease = lingerMap.remove(lockID);
+		if (lease != null) {
+			if (startTime >= lease.lingerUntil) {
+				// Linger window is over, hand it off
+				returnLockToken_internal(lockID, lease.token);
+			} else if (lease.remoteExpiry - startTime >= lockTimeout) {
+				// Backend lease still covers the lockTimeout, reuse it without any backend call
+				affinityHeldMap.put(lockID, new long[] { lease.token, lease.remoteExpiry });
+				return lease.token;
+			} else {
+				// Extend the backend lease
+				long token = renewLockToken_internal(lockID, lease.token, backendTimeout);
+				if (token > 0) {
+					affinityHeldMap.put(lockID, new long[] { token, startTime + backendTimeout });
+					return token;
+				}
+			}
+		}
+		
+		// Issue a new token from the backend
+		long token = issueLockToken_internal(lockID, backendTimeout);
+		if (token > 0) {
+			affinityHeldMap.put(lockID, new long[] { token, startTime + backendTimeout });
+		}
+		return token;
+	}
+	
+	/**
+	 * Keep the returned token as a lingering lease, if possible
+	 * 
+	 * @param lockID         to use
+	 * @param existingToken  existing token, to return
+	 * 
+	 * @return true, if the lease is lingering, false if the backend lock should be returned
+	 */
+	protected boolean returnLockToken_affinity(String lockID, long existingToken) {
+		// Only tokens issued in affinity mode
+		long[] held = affinityHeldMap.get(lockID);
+		if (held == null || held[0] != existingToken || !affinityHeldMap.remove(lockID, held)) {
+			return false;
+		}
+		
+		// Affinity mode was disabled, or the backend lease has expired
+		long window = lingerWindow;
+		long now = System.currentTimeMillis();
+		if (window <= 0 || held[1] <= now) {
+			return false;
+		}
+		
+		// Keep the lease, and schedule its handoff
+		LingerLease lease = new LingerLease(existingToken, held[1], now + window);
+		lingerMap.put(lockID, lease);
+		try {
+			asyncScheduler().schedule(() -> {
+				handoffLingerLease(lockID, lease);
+			}, window, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// Scheduler was shutdown, hand it off immediately
+			handoffLingerLease(lockID, lease);
+		}
+		return true;
+	}
+	
+	/**
+	 * Hand off the lingering lease, by returning it on the backend.
+	 * This does nothing if the lease was since reused (or handed off).
+	 * 
+	 * @param lockID   of the lease
+	 * @param lease    lingering lease to hand off
+	 * 
+	 * @return true, if the lease was handed off
+	 */
+	protected boolean handoffLingerLease(String lockID, LingerLease lease) {
+		if (!lingerMap.remove(lockID, lease)) {
+			return false;
+		}
+		try {
+			returnLockToken_internal(lockID, lease.token);
+		} catch (RuntimeException e) {
+			// Backend failure, the lease expires on its own
+		}
+		return true;
+	}
+	
+	/**
+	 * Hand off all lingering leases immediately, for example before a node shutdown.
+	 * 
+	 * @return number of leases handed off
+	 */
+	public int handoffLingerLeases() {
+		int ret = 0;
+		for (Map.Entry<String, LingerLease> entry : lingerMap.entrySet()) {
+			if (handoffLingerLease(entry.getKey(), entry.getValue())) {
+				++ret;
+			}
+		}
+		return ret;
+	}
+	
+	//----------------------------------------------------------------
+	//
+	//  Released lock sweeper
+	//
+	//----------------------------------------------------------------
+	
+	/**
+	 * Incrementally remove released (0l) and expired lock entries, scanning up to batchSize
+	 * entries per call. Each call continues from where the previous call stopped.
+	 * 
+	 * Released locks are otherwise kept for RELEASED_LOCK_LIFESPAN, which adds up when using
+	 * many short lived lockIDs. This is safe to run concurrently with other lock operations,
+	 * though a lock attempt on a lockID being removed can fail (as if it is locked).
+	 * 
+	 * @param batchSize  maximum number of entries to scan
+	 * 
+	 * @return number of entries removed
+	 */
+	public int sweepReleasedLocks(int batchSize) {
+		return lockStore.sweepReleased(Math.max(1, batchSize));
+	}
+	
+	/**
+	 * Runnable which does a single `sweepReleasedLocks` batch, for use with a task scheduler.
+	 * 
+	 * For example, to sweep once a minute across a cluster
+	 * `taskCluster.scheduleRunnableTask("lock_sweeper", lockManager.sweepReleasedLocksTask(1000), 60000)`
+	 * 
+	 * @param batchSize  maximum number of entries to scan per run
+	 * 
+	 * @return the sweeper runnable
+	 */
+	public Runnable sweepReleasedLocksTask(int batchSize) {
+		return () -> {
+			sweepReleasedLocks(batchSize);
+		};
+	}
+	
+	//----------------------------------------------------------------
+	//
+	//  Instrumentation
+	//
+	//----------------------------------------------------------------
+	
+	/**
+	 * Metrics listener, which is disabled by default
+	 */
+	protected volatile LockMetricsListener metricsListener = LockMetricsListener.NOOP;
+	
+	/**
+	 * Issued token, its issue timestamp, and its expiry, by lockID (only tracked when metrics is enabled).
+	 * 
+	 * Entries are removed when the token is returned, fails to renew, or replaced when the lockID
+	 * is reissued. Tokens which expire without being returned, are pruned periodically on issue.
+	 */
+	protected Map<String, long[]> heldSinceMap = new ConcurrentHashMap<>();
+	
+	/**
+	 * Interval between the pruning of expired heldSinceMap entries, in ms
+	 */
+	protected static final long HELD_SINCE_PRUNE_INTERVAL = 60 * 1000;
+	
+	/**
+	 * Timestamp of the next heldSinceMap pruning
+	 */
+	protected volatile long heldSincePruneTime = 0;
+	
+	/**
+	 * Remove the heldSinceMap entries whose token has expired, at most once per
+	 * HELD_SINCE_PRUNE_INTERVAL (so that issuing locks does not scan the map each time)
+	 * 
+	 * @param now  current timestamp
+	 */
+	protected void pruneHeldSince(long now) {
+		if (now < heldSincePruneTime) {
+			return;
+		}
+		heldSincePruneTime = now + HELD_SINCE_PRUNE_INTERVAL;
+		heldSinceMap.entrySet().removeIf((entry) -> entry.getValue()[2] < now);
+	}
+	
+	/**
+	 * @return the metrics listener used
+	 */
+	public LockMetricsListener metricsListener() {
+		return metricsListener;
+	}
+	
+	/**
+	 * Configure the metrics listener used for issueLockToken, renewLockToken and returnLockToken
+	 * (this includes their use within the other lock functions)
+	 * 
+	 * @param listener to use, null resets it to the disabled LockMetricsListener.NOOP
+	 * @return the configured listener
+	 */
+	public LockMetricsListener metricsListener(LockMetricsListener listener) {
+		if (listener == null) {
+			listener = LockMetricsListener.NOOP;
+		}
+		heldSinceMap.clear();
+		return metricsListener = listener;
+	}
+	
+	/**
+	 * @return the metric outcome, of a non exception result
+	 */
+	protected static LockMetricsListener.Outcome metricsOutcome(boolean success) {
+		return success ? LockMetricsListener.Outcome.SUCCESS
+			: LockMetricsListener.Outcome.CONTENTION;
+	}
+	
+	//----------------------------------------------------------------
+	//
+	//  Blocking lock handling
+	//
+	//----------------------------------------------------------------
+	
+	// Minimum backoff between lock attempts, in ms (default is 10ms)
+	protected long awaitBackoffBase = 10;
+	
+	// Maximum backoff between lock attempts, in ms (default is 1 second)
+	protected long awaitBackoffCap = 1000;
+	
+	/**
+	 * @return minimum backoff between lock attempts, used by awaitLockToken
+	 */
+	public long awaitBackoffBase() {
+		return awaitBackoffBase;
+	}
+	
+	/**
+	 * Configure the minimum backoff between lock attempts, used by awaitLockToken
+	 * 
+	 * @param backoff in ms - the minimum is 1 ms
+	 * @return the configured backoff
+	 */
+	public long awaitBackoffBase(long backoff) {
+		return awaitBackoffBase = Math.max(1l, backoff);
+	}
+	
+	/**
+	 * @return maximum backoff between lock attempts, used by awaitLockToken
+	 */
+	public long awaitBackoffCap() {
+		return awaitBackoffCap;
+	}
+	
+	/**
+	 * Configure the maximum backoff between lock attempts, used by awaitLockToken
+	 * 
+	 * @param backoff in ms - this cannot be lower then the base backoff
+	 * @return the configured backoff
+	 */
+	public long awaitBackoffCap(long backoff) {
+		return awaitBackoffCap = Math.max(awaitBackoffBase, backoff);
+	}
+	
+	/**
+	 * Compute the next backoff sleep, using decorrelated jitter.
+	 * 
+	 * If the existing lock remaining lifespan is known, and is within the backoff cap,
+	 * sleep till its likely expiry instead (with a small jitter to spread out waiters)
+	 * 
+	 * @param previousSleep  previous sleep duration
+	 * @param lockLifespan   remaining lifespan of the existing lock (<=0 if unknown)
+	 * 
+	 * @return the sleep duration to use
+	 */
+	protected long nextAwaitBackoff(long previousSleep, long lockLifespan) {
+		ThreadLocalRandom rand = ThreadLocalRandom.current();
+		long base = awaitBackoffBase;
+		long cap = Math.max(base, awaitBackoffCap);
+		
+		// Sleep till the likely expiry
+		if (lockLifespan > 0 && lockLifespan <= cap) {
+			return lockLifespan + rand.nextLong(base + 1);
+		}
+		
+		// Decorrelated jitter : min(cap, random(base, previous * 3))
+		long upper = Math.max(base, Math.min(cap, previousSleep * 3));
+		return Math.min(cap, base + rand.nextLong(upper - base + 1));
+	}
+	
+	/**
+	 * Internal implementation of awaitLockToken, and its interruptible varient
+	 * 
+	 * @param lockID         to use
+	 * @param lockTimeout    lock timeout for token
+	 * @param maxWait        maximum time to wait for the lock in ms
+	 * @param interruptible  if true, throws InterruptedException on interruption,
+	 *                       else the interruption is deferred till the function returns
+	 * 
+	 * @return the lock token if valid, -1 if no valid token was issued within maxWait
+	 */
+	protected long awaitLockToken_internal(String lockID, long lockTimeout, long maxWait,
+		boolean interruptible) throws InterruptedException {
+		// Timings to use
+		long deadline = System.currentTimeMillis() + Math.max(0l, maxWait);
+		long sleep = awaitBackoffBase;
+		boolean interrupted = false;
+		
+		try {
+			while (true) {
+				// Lets try to get the lock
+				long token = issueLockToken(lockID, lockTimeout);
+				if (token > 0) {
+					return token;
+				}
+				
+				// Time check
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					return -1;
+				}
+				
+				// Sleep with a backoff, without going beyond the deadline
+				sleep = nextAwaitBackoff(sleep, getLockLifespan(lockID));
+				try {
+					Thread.sleep(Math.min(sleep, remaining));
+				} catch (InterruptedException e) {
+					if (interruptible) {
+						throw e;
+					}
+					interrupted = true;
+				}
+			}
+		} finally {
+			// Restore the deferred interruption
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+	
+	/**
+	 * Issues a lock token for the given lockID, waiting up to maxWait for it.
+	 * 
+	 * Lock attempts are retried using a jittered backoff, taking into account the
+	 * existing lock lifespan (see `nextAwaitBackoff`). If interrupted, the interruption
+	 * is deferred, with the thread interrupt flag restored on return.
+	 * 
+	 * @param lockID         to use
+	 * @param lockTimeout    lock timeout for token
+	 * @param maxWait        maximum time to wait for the lock in ms
+	 * 
+	 * @return the lock token if valid, -1 if no valid token was issued within maxWait
+	 */
+	public long awaitLockToken(String lockID, long lockTimeout, long maxWait) {
+		try {
+			return awaitLockToken_internal(lockID, lockTimeout, maxWait, false);
+		} catch (InterruptedException e) {
+			// Should not happen, as interruptions are deferred
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * Issues a lock token for the given lockID, waiting up to maxWait for it.
+	 * 
+	 * Interruptible varient of `awaitLockToken`
+	 * 
+	 * @param lockID         to use
+	 * @param lockTimeout    lock timeout for token
+	 * @param maxWait        maximum time to wait for the lock in ms
+	 * 
+	 * @return the lock token if valid, -1 if no valid token was issued within maxWait
+	 * 
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public long awaitLockToken_interruptible(String lockID, long lockTimeout, long maxWait)
+		throws InterruptedException {
+		return awaitLockToken_internal(lockID, lockTimeout, maxWait, true);
+	}
+	
+	//----------------------------------------------------------------
+	//
+	//  Async lock handling
+	//
+	//----------------------------------------------------------------
+	
+	// Async executor thread count, and its queue size
+	protected int asyncThreads = 8;
+	protected int asyncQueueSize = 1000;
+	
+	// Async executor, and the scheduler used for awaitLockToken_async backoffs (lazily initialized)
+	protected ThreadPoolExecutor asyncExecutor = null;
+	protected ScheduledExecutorService asyncScheduler = null;
+	
+	/**
+	 * Get the bounded executor used by the async functions, initializing it if needed.
+	 * 
+	 * @return the async executor
+	 */
+	public synchronized ThreadPoolExecutor asyncExecutor() {
+		if (asyncExecutor == null) {
+			asyncExecutor = new ThreadPoolExecutor(asyncThreads, asyncThreads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(asyncQueueSize), asyncThreadFactory("async"),
+				new ThreadPoolExecutor.AbortPolicy());
+			asyncExecutor.allowCoreThreadTimeOut(true);
+		}
+		return asyncExecutor;
+	}
+	
+	/**
+	 * Configure the bounded executor used by the async functions. Once both its threads,
+	 * and queue are used up, async calls are rejected (with a RejectedExecutionException).
+	 * 
+	 * Any existing executor is shutdown (after completing its queued calls), and replaced.
+	 * 
+	 * @param threads    maximum number of threads
+	 * @param queueSize  maximum number of queued calls
+	 */
+	public synchronized void asyncExecutor(int threads, int queueSize) {
+		if (threads <= 0 || queueSize <= 0) {
+			throw new IllegalArgumentException("Invalid async executor configuration : " + threads
+				+ " threads, " + queueSize + " queue size");
+		}
+		asyncThreads = threads;
+		asyncQueueSize = queueSize;
+		if (asyncExecutor != null) {
+			asyncExecutor.shutdown();
+			asyncExecutor = null;
+		}
+	}
+	
+	/**
+	 * Does the immediate shutdown of the async executor, and its scheduler.
+	 * (they are reinitialized on the next async call)
+	 * 
+	 * Lingering leases are handed off first, as their scheduled handoffs are cancelled
+	 * with the scheduler (leaving other nodes to wait for the lease to expire).
+	 */
+	public synchronized void shutdownAsyncExecutor() {
+		handoffLingerLeases();
+		if (asyncExecutor != null) {
+			asyncExecutor.shutdownNow();
+			asyncExecutor = null;
+		}
+		if (asyncScheduler != null) {
+			asyncScheduler.shutdownNow();
+			asyncScheduler = null;
+		}
+	}
+	
+	/**
+	 * @return the scheduler used for awaitLockToken_async backoffs (and affinity lease handoffs),
+	 *         initializing it if needed
+	 */
+	protected synchronized ScheduledExecutorService asyncScheduler() {
+		if (asyncScheduler == null) {
+			asyncScheduler = Executors
+				.newSingleThreadScheduledExecutor(asyncThreadFactory("scheduler"));
+		}
+		return asyncScheduler;
+	}
+	
+	/**
+	 * @return daemon thread factory, so that async threads do not block the JVM shutdown
+	 */
+	protected ThreadFactory asyncThreadFactory(String type) {
+		AtomicInteger counter = new AtomicInteger();
+		return (runnable) -> {
+			Thread ret = new Thread(runnable, "LockTokenManager-" + type + "-"
+				+ counter.incrementAndGet());
+			ret.setDaemon(true);
+			return ret;
+		};
+	}
+	
+	/**
+	 * Run the call on the async executor
+	 * 
+	 * @param call to run
+	 * 
+	 * @return future of the call, completed exceptionally if the executor is saturated
+	 */
+	protected <T> CompletableFuture<T> supplyAsync(Supplier<T> call) {
+		try {
+			return CompletableFuture.supplyAsync(call, asyncExecutor());
+		} catch (RejectedExecutionException e) {
+			CompletableFuture<T> ret = new CompletableFuture<T>();
+			ret.completeExceptionally(e);
+			return ret;
+		}
+	}
+	
+	/**
+	 * Async varient of `issueLockToken`, run on the async executor.
+	 * 
+	 * Note that in reentrant mode, the lock owner is the executor thread (unless
+	 * configured otherwise with `reentrantOwner`)
+	 * 
+	 * @param lockID         to use
+	 * @param lockTimeout    lock timeout for token
+	 * 
+	 * @return future of the lock token if valid, -1 if no valid token issued
+	 */
+	public CompletableFuture<Long> issueLockToken_async(String lockID, long lockTimeout) {
+		return supplyAsync(() -> issueLockToken(lockID, lockTimeout));
+	}
+	
+	/**
+	 * Async varient of `renewLockToken`, run on the async executor
+	 * 
+	 * @param lockID         to use
+	 * @param existingToken  existing token, to renew
+	 * @param lockTimeout    lock timeout for token
+	 * 
+	 * @return future of the lock token if valid, -1 if no valid token issued
+	 */
+	public CompletableFuture<Long> renewLockToken_async(String lockID, long originalToken,
+		long lockTimeout) {
+		return supplyAsync(() -> renewLockToken(lockID, originalToken, lockTimeout));
+	}
+	
+	/**
+	 * Async varient of `returnLockToken`, run on the async executor
+	 * 
+	 * @param lockID         to use
+	 * @param existingToken  existing token, to return
+	 * 
+	 * @return future of true, if unlock was succesful, else false if failed
+	 */
+	public CompletableFuture<Boolean> returnLockToken_async(String lockID, long existingToken) {
+		return supplyAsync(() -> returnLockToken(lockID, existingToken));
+	}
+	
+	/**
+	 * Async varient of `awaitLockToken`.
+	 * 
+	 * Each lock attempt is run on the async executor, while the backoff between attempts
+	 * is scheduled without holding any thread. If the future is cancelled, subsequent
+	 * attempts are skipped (and a token issued concurrently is returned).
+	 * 
+	 * @param lockID         to use
+	 * @param lockTimeout    lock timeout for token
+	 * @param maxWait        maximum time to wait for the lock in ms
+	 * 
+	 * @return future of the lock token if valid, -1 if no valid token was issued within maxWait
+	 */
+	public CompletableFuture<Long> awaitLockToken_async(String lockID, long lockTimeout,
+		long maxWait) {
+		CompletableFuture<Long> ret = new CompletableFuture<Long>();
+		long deadline = System.currentTimeMillis() + Math.max(0l, maxWait);
+		awaitLockToken_asyncAttempt(ret, lockID, lockTimeout, deadline, awaitBackoffBase);
+		return ret;
+	}
+	
+	/**
+	 * Does a single awaitLockToken_async lock attempt on the async executor,
+	 * scheduling the next attempt if needed.
+	 * 
+	 * @param ret            future to complete
+	 * @param lockID         to use
+	 * @param lockTimeout    lock timeout for token
+	 * @param deadline       timestamp to stop waiting at
+	 * @param sleep          previous backoff sleep
+	 */
+	protected void awaitLockToken_asyncAttempt(CompletableFuture<Long> ret, String lockID,
+		long lockTimeout, long deadline, long sleep) {
+		Runnable attempt = () -> {
+			// Cancelled
+			if (ret.isDone()) {
+				return;
+			}
+			try {
+				// Lets try to get the lock
+				long token = issueLockToken(lockID, lockTimeout);
+				if (token > 0) {
+					// Return the token, if the future was cancelled concurrently
+					if (!ret.complete(token)) {
+						returnLockToken(lockID, token);
+					}
+					return;
+				}
+				
+				// Time check
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					ret.complete(-1l);
+					return;
+				}
+				
+				// Schedule the next attempt with a backoff, without going beyond the deadline
+				long nextSleep = nextAwaitBackoff(sleep, getLockLifespan(lockID));
+				asyncScheduler().schedule(() -> {
+					awaitLockToken_asyncAttempt(ret, lockID, lockTimeout, deadline, nextSleep);
+				}, Math.min(nextSleep, remaining), TimeUnit.MILLISECONDS);
+			} catch (Throwable e) {
+				ret.completeExceptionally(e);
+			}
+		};
+		
+		// Run the attempt, failing the future if the executor is saturated
+		try {
+			asyncExecutor().execute(attempt);
+		} catch (RejectedExecutionException e) {
+			ret.completeExceptionally(e);
+		}
+	}
+	
+	//----------------------------------------------------------------
+	//
+	//  Multiple lock handling
+	//
+	//----------------------------------------------------------------
+	
+	/**
+	 * Issues a lock token for multiple lockID, in an all or nothing manner.
+	 * 
+	 * Locks are acquired in a canonical (sorted) order, to avoid livelocks between
+	 * nodes locking overlapping sets. On the first failure, all previously acquired
+	 * locks in the set are released.
+	 * 
+	 * @param lockIDs        to lock together (duplicates are ignored)
+	 * @param lockTimeout    lock timeout for token
+	 * 
+	 * @return the composite lock token if valid, null if no valid token issued
+	 */
+	public CompositeLockToken issueLockTokens(Collection<String> lockIDs, long lockTimeout) {
+		// Quick validation
+		if (lockIDs == null || lockIDs.size() <= 0) {
+			throw new IllegalArgumentException("Missing lockIDs to issue lock tokens for");
+		}
+		
+		// Canonical ordering of lockIDs
+		List<String> orderedIDs = new ArrayList<String>(new TreeSet<String>(lockIDs));
+		
+		// Shared token, used across all the locks
+		long nextLockToken = nextLockToken(orderedIDs);
+		
+		// Lets attempt to get all the locks
+		int locked = lockStore.compareAndSetAllWithLifespan(orderedIDs, 0l, nextLockToken,
+			lockTimeout);
+		if (locked >= orderedIDs.size()) {
+			return new CompositeLockToken(orderedIDs, nextLockToken);
+		}
+		
+		// Partial lock failure, rollback the acquired locks
+		for (int i = locked - 1; i >= 0; --i) {
+			returnLockToken(orderedIDs.get(i), nextLockToken);
+		}
+		return null;
+	}
+	
+	/**
+	 * Renew a previously issued composite lock token.
+	 * 
+	 * If this fails, some of the locks in the set may no longer be held,
+	 * and the caller should treat the whole set as lost (and return it).
+	 * 
+	 * @param compositeToken existing composite token, to renew
+	 * @param lockTimeout    lock timeout for token
+	 * 
+	 * @return the composite lock token if valid, null if renewal failed
+	 */
+	public CompositeLockToken renewLockTokens(CompositeLockToken compositeToken, long lockTimeout) {
+		if (compositeToken == null || compositeToken.getToken() <= 0) {
+			throw new RuntimeException("Invalid composite lock token used");
+		}
+		
+		// Renew all the locks
+		List<String> orderedIDs = compositeToken.getLockIDs();
+		long token = compositeToken.getToken();
+		int renewed = lockStore.compareAndSetAllWithLifespan(orderedIDs, token, token, lockTimeout);
+		if (renewed >= orderedIDs.size()) {
+			return compositeToken;
+		}
+		return null;
+	}
+	
+	/**
+	 * Renew multiple previously issued lock tokens, with the same lockTimeout.
+	 * 
+	 * Each renewal is independent of the others, and is done as a single batch
+	 * for LockStore backends which supports it.
+	 * 
+	 * @param lockTokens     lockID to existing token map, to renew
+	 * @param lockTimeout    lock timeout for the tokens
+	 * 
+	 * @return lockID to renewed token map, with -1 for failed renewals
+	 */
+	public Map<String, Long> renewLockTokens(Map<String, Long> lockTokens, long lockTimeout) {
+		// Prepare the batch
+		List<String> lockIDs = new ArrayList<String>(lockTokens.keySet());
+		long[] tokens = new long[lockIDs.size()];
+		for (int i = 0; i < tokens.length; ++i) {
+			tokens[i] = lockTokens.get(lockIDs.get(i));
+			if (tokens[i] <= 0) {
+				throw new RuntimeException("Invalid lock token used (lockID = " + lockIDs.get(i)
+					+ ") : " + tokens[i]);
+			}
+		}
+		
+		// Renew it
+		boolean[] renewed = lockStore.compareAndSetEachWithLifespan(lockIDs, tokens, tokens,
+			lockTimeout);
+		
+		// And return the result
+		Map<String, Long> ret = new HashMap<String, Long>();
+		for (int i = 0; i < tokens.length; ++i) {
+			ret.put(lockIDs.get(i), renewed[i] ? tokens[i] : -1l);
+		}
+		return ret;
+	}
+	
+	/**
+	 * Unlock a previously issued composite lock token.
+	 * 
+	 * Every lock in the set is released, even if some of them fail.
+	 * 
+	 * @param compositeToken existing composite token, to return
+	 * 
+	 * @return true, if all locks was unlocked succesfully, else false if any failed
+	 */
+	public boolean returnLockTokens(CompositeLockToken compositeToken) {
+		boolean ret = true;
+		for (String lockID : compositeToken.getLockIDs()) {
+			ret = returnLockToken(lockID, compositeToken.getToken()) && ret;
+		}
+		return ret;
+	}
+	
+	//----------------------------------------------------------------
+	//
+	//  Lock state inspection
+	//
+	//----------------------------------------------------------------
+	
+	/**
+	 * Get the state of multiple lockID, with a single batched backend read
+	 * 
+	 * @param lockIDs        to lookup
+	 * 
+	 * @return lockID to its state, in the given order (including unlocked lockIDs)
+	 */
+	public Map<String, LockState> getLockStates(Collection<String> lockIDs) {
+		List<String> lockIDList = new ArrayList<String>(new LinkedHashSet<String>(lockIDs));
+		long[][] values = lockStore.getValuesWithLifespan(lockIDList);
+		
+		Map<String, LockState> ret = new LinkedHashMap<String, LockState>();
+		for (int i = 0; i < lockIDList.size(); ++i) {
+			String lockID = lockIDList.get(i);
+			ret.put(lockID, toLockState(lockID, values[i][0], values[i][1]));
+		}
+		return ret;
+	}
+	
+	/**
+	 * Iterate the locked lockIDs with the given prefix, in sorted order. Each page of lockIDs
+	 * is listed, and its state fetched, with a single batched backend read each.
+	 * 
+	 * Locks issued or returned while iterating, may or may not be included.
+	 * Internal entries (shared leases, and intention counts) are skipped.
+	 * 
+	 * @param prefix     of the lockIDs to iterate, empty string for all lockIDs
+	 * @param pageSize   number of lockIDs to fetch per page
+	 * 
+	 * @return iterator of the locked lockIDs state
+	 */
+	public Iterator<LockState> lockStateIterator(String prefix, int pageSize) {
+		if (pageSize <= 0) {
+			throw new IllegalArgumentException("Invalid page size : " + pageSize);
+		}
+		return new LockStateIterator((prefix == null) ? "" : prefix, pageSize);
+	}
+	
+	/**
+	 * Setup the lock state, with the locally tracked holder details
+	 * 
+	 * @param lockID         of the state
+	 * @param token          lock token from the backend
+	 * @param lifespan       remaining lifespan from the backend
+	 * 
+	 * @return the lock state
+	 */
+	protected LockState toLockState(String lockID, long token, long lifespan) {
+		if (token <= 0l) {
+			return new LockState(lockID, token, lifespan, false, -1, false);
+		}
+		
+		// Holder details, from the local tracking
+		long[] heldSince = heldSinceMap.get(lockID);
+		long[] affinityHeld = affinityHeldMap.get(lockID);
+		ReentrantHold hold = reentrantMap.get(lockID);
+		LingerLease lease = lingerMap.get(lockID);
+		
+		boolean lingering = (lease != null && lease.token == token);
+		boolean tracked = (heldSince != null && heldSince[0] == token);
+		boolean heldLocally = lingering || tracked
+			|| (affinityHeld != null && affinityHeld[0] == token)
+			|| (hold != null && hold.token == token);
+		return new LockState(lockID, token, lifespan, heldLocally, tracked ? heldSince[1] : -1,
+			lingering);
+	}
+	
+	/**
+	 * @return true, if the lockID is used for the internal entries of shared leases or
+	 *         hierarchical locks
+	 */
+	protected static boolean isInternalLockID(String lockID) {
+		return lockID.startsWith(SHARED_LEASE_PREFIX) || lockID.startsWith(INTENTION_PREFIX);
+	}
+	
+	/**
+	 * Paged iterator of locked lockID states, see `lockStateIterator`
+	 */
+	protected class LockStateIterator implements Iterator<LockState> {
+		final String prefix;
+		final int pageSize;
+		
+		// Last listed lockID, and the current page
+		String lastLockID = null;
+		boolean lastPage = false;
+		Iterator<LockState> page = Collections.emptyIterator();
+		
+		LockStateIterator(String inPrefix, int inPageSize) {
+			prefix = inPrefix;
+			pageSize = inPageSize;
+		}
+		
+		public boolean hasNext() {
+			while (!page.hasNext() && !lastPage) {
+				fetchPage();
+			}
+			return page.hasNext();
+		}
+		
+		public LockState next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return page.next();
+		}
+		
+		/**
+		 * Fetch the next page of lockIDs, and their state
+		 */
+		void fetchPage() {
+			// List the next page of lockIDs
+			List<String> lockIDs = lockStore.listLockIDs(prefix, lastLockID, pageSize);
+			lastPage = lockIDs.size() < pageSize;
+			if (lockIDs.isEmpty()) {
+				return;
+			}
+			lastLockID = lockIDs.get(lockIDs.size() - 1);
+			
+			// Get their state, keeping only the locked lockIDs
+			List<String> filtered = new ArrayList<String>();
+			for (String lockID : lockIDs) {
+				if (!isInternalLockID(lockID)) {
+					filtered.add(lockID);
+				}
+			}
+			List<LockState> states = new ArrayList<LockState>();
+			for (LockState state : getLockStates(filtered).values()) {
+				if (state.isLocked()) {
+					states.add(state);
+				}
+			}
+			page = states.iterator();
+		}
+	}
+	
+	//----------------------------------------------------------------
+	//
+	//  Lease count handling
+	//
+	//----------------------------------------------------------------
+	
+	/**
+	 * Lease counts (shared leases, and intention counts) are kept in time buckets, of
+	 * `leaseBucketSize()` ms, by the bucket their expiry falls in. Each bucket is stored as
+	 * "{countID}@{bucket}", with a lifespan till shortly after the bucket ends.
+	 * 
+	 * The lease count is the sum of the buckets which have not ended, so a lease which is not
+	 * renewed (or returned) drops out of the count once its bucket ends, regardless of the other
+	 * leases being renewed. Each count sums at most `leaseBucketCount + 1` buckets, with a single
+	 * batched lookup.
+	 * 
+	 * As a lease is counted till the end of its bucket, an expired lease can be counted for up
+	 * to `leaseBucketSize()` after its expiry.
+	 */
+	protected static final String LEASE_BUCKET_SEPARATOR = "@";
+	
+	// Maximum compare-and-set attempts for a lease bucket update, under contention
+	protected static final int LEASE_UPDATE_ATTEMPTS = 100;
+	
+	// Number of time buckets within the maximum lease timeout
+	protected volatile int leaseBucketCount = 16;
+	
+	// Maximum lock timeout in ms, for shared leases and hierarchical locks
+	protected volatile long maxLeaseTimeout = 60 * 1000;
+	
+	/**
+	 * @return the number of time buckets within the maximum lease timeout
+	 */
+	public int leaseBucketCount() {
+		return leaseBucketCount;
+	}
+	
+	/**
+	 * Configure the number of time buckets within the maximum lease timeout, this must be
+	 * consistent across all nodes, and should not be changed while there are active leases.
+	 * 
+	 * @param count number of time buckets
+	 * @return the configured count
+	 */
+	public int leaseBucketCount(int count) {
+		if (count <= 0) {
+			throw new IllegalArgumentException("Invalid leaseBucketCount : " + count);
+		}
+		return leaseBucketCount = count;
+	}
+	
+	/**
+	 * @return the time bucket size in ms, as maxLeaseTimeout / leaseBucketCount (rounded up)
+	 */
+	public long leaseBucketSize() {
+		return (maxLeaseTimeout + leaseBucketCount - 1) / leaseBucketCount;
+	}
+	
+	/**
+	 * @return the maximum lock timeout in ms, for shared leases and hierarchical locks
+	 */
+	public long maxLeaseTimeout() {
+		return maxLeaseTimeout;
+	}
+	
+	/**
+	 * Configure the maximum lock timeout for shared leases and hierarchical locks, which together
+	 * with the leaseBucketCount derives the bucket size. As with leaseBucketCount, this must be
+	 * consistent across all nodes, and should not be changed while there are active leases.
+	 * 
+	 * @param timeout maximum lock timeout in ms
+	 * @return the configured timeout
+	 */
+	public long maxLeaseTimeout(long timeout) {
+		if (timeout <= 0) {
+			throw new IllegalArgumentException("Invalid maxLeaseTimeout : " + timeout);
+		}
+		return maxLeaseTimeout = timeout;
+	}
+	
+	/**
+	 * Validate and throw an exception on an invalid lease lock timeout
+	 * @param lockTimeout
+	 */
+	protected void validateLeaseTimeout(long lockTimeout) {
+		if (lockTimeout <= 0 || lockTimeout > maxLeaseTimeout) {
+			throw new IllegalArgumentException("Invalid lockTimeout (maxLeaseTimeout = "
+				+ maxLeaseTimeout + ") : " + lockTimeout);
+		}
+	}
+	
+	/**
+	 * @return the time bucket, which the given expiry timestamp is counted in
+	 */
+	protected long leaseBucket(long expiry) {
+		return expiry / leaseBucketSize() + 1;
+	}
+	
+	/**
+	 * @return the lease bucket entry key
+	 */
+	protected static String leaseBucketKey(String countID, long bucket) {
+		return countID + LEASE_BUCKET_SEPARATOR + bucket;
+	}
+	
+	/**
+	 * Update the lease count of a time bucket, with a lifespan till shortly after the bucket ends
+	 * 
+	 * @param countID      lease count to update
+	 * @param bucket       time bucket of the lease
+	 * @param countDelta   change to the lease count
+	 * 
+	 * @return true, if the update was succesful (false if the bucket has ended, or has no
+	 *         lease left to remove)
+	 */
+	protected boolean updateLeaseBucket(String countID, long bucket, long countDelta) {
+		long size = leaseBucketSize();
+		long lifespan = (bucket + 1) * size - System.currentTimeMillis();
+		if (lifespan <= size) {
+			return false;
+		}
+		
+		String key = leaseBucketKey(countID, bucket);
+		for (int attempt = 0; attempt < LEASE_UPDATE_ATTEMPTS; ++attempt) {
+			// Fail fast on an entry which is not a lease count (or has no lease left to remove)
+			long current = lockStore.getValue(key);
+			long update = current + countDelta;
+			if (current < 0l || update < 0l) {
+				return false;
+			}
+			
+			// Apply the update, retrying only if a concurrent update changed the count
+			if (lockStore.compareAndSetWithLifespan(key, current, update, (update == 0l)
+				? RELEASED_LOCK_LIFESPAN : lifespan)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Move a lease to a new time bucket, as part of its renewal. The lease is counted in the
+	 * new bucket first, so that it is not missed by a concurrent count.
+	 * 
+	 * @param countID      lease count to update
+	 * @param bucket       current time bucket of the lease
+	 * @param newBucket    time bucket to move the lease to
+	 * 
+	 * @return true, if the lease was moved (false if it is no longer counted)
+	 */
+	protected boolean moveLeaseBucket(String countID, long bucket, long newBucket) {
+		if (bucket == newBucket) {
+			return lockStore.getValue(leaseBucketKey(countID, bucket)) > 0l;
+		}
+		if (!updateLeaseBucket(countID, newBucket, 1)) {
+			return false;
+		}
+		if (!updateLeaseBucket(countID, bucket, -1)) {
+			updateLeaseBucket(countID, newBucket, -1);
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * @return the current lease count, as the sum of the time buckets which have not ended
+	 */
+	protected long getLeaseCount(String countID) {
+		long now = System.currentTimeMillis();
+		long lastBucket = leaseBucket(now + maxLeaseTimeout);
+		List<String> keys = new ArrayList<String>();
+		for (long bucket = leaseBucket(now); bucket <= lastBucket; ++bucket) {
+			keys.add(leaseBucketKey(countID, bucket));
+		}
+		long ret = 0l;
+		for (long value : lockStore.getValues(keys)) {
+			ret += Math.max(0l, value);
+		}
+		return ret;
+	}
+	
+	/**
+	 * Wait for a lease count to drain to 0, up to the given deadline.
+	 * If interrupted, the interruption is deferred, with the thread interrupt flag restored on return.
+	 * 
+	 * @param countID      lease count to wait for
+	 * @param deadline     timestamp to stop waiting at
+	 * 
+	 * @return the time spent waiting in ms, or -1 if the deadline was reached
+	 */
+	protected long awaitLeaseCountDrain(String countID, long deadline) {
+		long startTime = System.currentTimeMillis();
+		long sleep = awaitBackoffBase;
+		boolean interrupted = false;
+		
+		try {
+			while (getLeaseCount(countID) > 0) {
+				// Time check
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					return -1;
+				}
+				
+				// Sleep with a backoff (till the current bucket ends at most),
+				// without going beyond the deadline
+				long now = System.currentTimeMillis();
+				sleep = nextAwaitBackoff(sleep, leaseBucket(now) * leaseBucketSize() - now);
+				try {
+					Thread.sleep(Math.min(sleep, remaining));
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		} finally {
+			// Restore the deferred interruption
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		return System.currentTimeMillis() - startTime;
+	}
+	
+	//----------------------------------------------------------------
+	//
+	//  Shared lease handling
+	//
+	//----------------------------------------------------------------
+	
+	/**
+	 * Key prefix, used to store the shared lease (reader) count of a lockID
+	 */
+	protected static final String SHARED_LEASE_PREFIX = "_shared_";
+	
+	/**
+	 * Acquire a shared lease on the lockID, multiple shared leases can be held at once.
+	 * This fails if the lockID is exclusively locked.
+	 * 
+	 * Each shared lease is counted in the time bucket of its expiry (see `leaseBucketSize`),
+	 * which the returned lease token identifies. As such a shared lease which is not returned,
+	 * only holds back the exclusive lock till its own bucket ends.
+	 * 
+	 * Note that the exclusive lock must be acquired using `issueExclusiveLockToken` for lockIDs
+	 * used with shared leases, as `issueLockToken` does not check for shared leases.
+	 * 
+	 * @param lockID         to use
+	 * @param lockTimeout    lock timeout for the shared lease, up to `maxLeaseTimeout`
+	 * 
+	 * @return the lease token if acquired, -1 if the lockID is exclusively locked
+	 */
+	public long acquireSharedLease(String lockID, long lockTimeout) {
+		validateLeaseTimeout(lockTimeout);
+		
+		// Exclusively locked
+		if (lockStore.getValue(lockID) != 0l) {
+			return -1;
+		}
+		
+		// Count the shared lease, in the bucket of its expiry
+		long leaseToken = leaseBucket(System.currentTimeMillis() + lockTimeout);
+		if (!updateLeaseBucket(SHARED_LEASE_PREFIX + lockID, leaseToken, 1)) {
+			return -1;
+		}
+		
+		// Recheck for an exclusive lock, issued concurrently with the update
+		// (the exclusive lock checks the shared lease count after it is locked)
+		if (lockStore.getValue(lockID) != 0l) {
+			updateLeaseBucket(SHARED_LEASE_PREFIX + lockID, leaseToken, -1);
+			return -1;
+		}
+		return leaseToken;
+	}
+	
+	/**
+	 * Renew a shared lease on the lockID
+	 * 
+	 * @param lockID         to use
+	 * @param leaseToken     existing lease token, to renew
+	 * @param lockTimeout    lock timeout for the shared lease, up to `maxLeaseTimeout`
+	 * 
+	 * @return the lease token if renewed, -1 if the shared lease has expired
+	 */
+	public long renewSharedLease(String lockID, long leaseToken, long lockTimeout) {
+		validateLeaseTimeout(lockTimeout);
+		long newToken = leaseBucket(System.currentTimeMillis() + lockTimeout);
+		if (!moveLeaseBucket(SHARED_LEASE_PREFIX + lockID, leaseToken, newToken)) {
+			return -1;
+		}
+		return newToken;
+	}
+	
+	/**
+	 * Return a shared lease on the lockID
+	 * 
+	 * @param lockID         to use
+	 * @param leaseToken     existing lease token, to return
+	 * 
+	 * @return true, if the shared lease was returned (false if it has expired)
+	 */
+	public boolean returnSharedLease(String lockID, long leaseToken) {
+		return updateLeaseBucket(SHARED_LEASE_PREFIX + lockID, leaseToken, -1);
+	}
+	
+	/**
+	 * @return the number of shared leases currently held on the lockID
+	 */
+	public long getSharedLeaseCount(String lockID) {
+		return getLeaseCount(SHARED_LEASE_PREFIX + lockID);
+	}
+	
+	/**
+	 * Issues an exclusive lock token for a lockID used with shared leases, waiting up to
+	 * maxWait for it (0 to not wait).
+	 * 
+	 * The exclusive lock is acquired first, which prevents any new shared leases, before
+	 * waiting for the existing shared leases to drain (renewing the lock while waiting).
+	 * If interrupted, the interruption is deferred, with the thread interrupt flag restored
+	 * on return.
+	 * 
+	 * The returned token is used with `renewLockToken` and `returnLockToken` as per normal.
+	 * 
+	 * @param lockID         to use
+	 * @param lockTimeout    lock timeout for token
+	 * @param maxWait        maximum time to wait for the lock in ms
+	 * 
+	 * @return the lock token if valid, -1 if no valid token was issued within maxWait
+	 */
+	public long issueExclusiveLockToken(String lockID, long lockTimeout, long maxWait) {
+		long deadline = System.currentTimeMillis() + Math.max(0l, maxWait);
+		
+		// Get the exclusive lock first
+		long token = awaitLockToken(lockID, lockTimeout, maxWait);
+		if (token <= 0) {
+			return -1;
+		}
+		
+		// Wait for the shared leases to drain, renewing the lock every half lockTimeout,
+		// so that it does not expire while waiting
+		long waited = 0;
+		while (true) {
+			long waitDeadline = Math.min(deadline, System.currentTimeMillis()
+				+ Math.max(1l, lockTimeout / 2));
+			long res = awaitLeaseCountDrain(SHARED_LEASE_PREFIX + lockID, waitDeadline);
+			if (res >= 0) {
+				waited += res;
+				break;
+			}
+			if (waitDeadline >= deadline) {
+				returnLockToken(lockID, token);
+				return -1;
+			}
+			token = renewLockToken(lockID, token, lockTimeout);
+			if (token <= 0) {
+				return -1;
+			}
+			waited = 0;
+		}
+		
+		// Reset the lock lifespan, as part of it was spent waiting
+		if (waited > 0) {
+			return renewLockToken(lockID, token, lockTimeout);
+		}
+		return token;
+	}
+	
+	//----------------------------------------------------------------
+	//
+	//  Hierarchical lock handling
+	//
+	//----------------------------------------------------------------
+	
+	/**
+	 * Key prefix, used to store the intention count of a lock path.
+	 * This is the number of locks held on its descendant paths.
+	 */
+	protected static final String INTENTION_PREFIX = "_intent_";
+	
+	// Lock path seperator (default is ":")
+	protected String hierarchySeparator = ":";
+	
+	/**
+	 * @return the lock path seperator, used for hierarchical locks
+	 */
+	public String hierarchySeparator() {
+		return hierarchySeparator;
+	}
+	
+	/**
+	 * Configure the lock path seperator, used for hierarchical locks
+	 * 
+	 * @param separator to use
+	 * @return the configured seperator
+	 */
+	public String hierarchySeparator(String separator) {
+		if (separator == null || separator.isEmpty()) {
+			throw new IllegalArgumentException("Missing required hierarchy separator");
+		}
+		return hierarchySeparator = separator;
+	}
+	
+	/**
+	 * Get the ancestor paths of a lock path, from the root down.
+	 * For example "account:123:session" has the ancestors "account", and "account:123"
+	 * 
+	 * @param lockPath  to get the ancestors for
+	 * 
+	 * @return the ancestor paths
+	 */
+	protected List<String> lockPathAncestors(String lockPath) {
+		List<String> ret = new ArrayList<String>();
+		int pos = lockPath.indexOf(hierarchySeparator);
+		while (pos > 0) {
+			ret.add(lockPath.substring(0, pos));
+			pos = lockPath.indexOf(hierarchySeparator, pos + hierarchySeparator.length());
+		}
+		return ret;
+	}
+	
+	/**
+	 * Held hierarchical lock token, and the time bucket of its intention counts, by lock path.
+	 * 
+	 * Entries are removed when the lock is returned, or fails to renew. Locks which expire
+	 * without being returned, are pruned periodically on issue.
+	 */
+	protected Map<String, long[]> intentionBucketMap = new ConcurrentHashMap<>();
+	
+	// Minimum interval between intentionBucketMap pruning, in ms
+	protected static final long INTENTION_PRUNE_INTERVAL = 60 * 1000;
+	
+	/**
+	 * Timestamp of the next intentionBucketMap pruning
+	 */
+	protected volatile long intentionPruneTime = 0;
+	
+	/**
+	 * Remove the intentionBucketMap entries whose time bucket has ended, at most once per
+	 * INTENTION_PRUNE_INTERVAL (so that issuing locks does not scan the map each time)
+	 * 
+	 * @param now  current timestamp
+	 */
+	protected void pruneIntentionBuckets(long now) {
+		if (now < intentionPruneTime) {
+			return;
+		}
+		intentionPruneTime = now + INTENTION_PRUNE_INTERVAL;
+		long size = leaseBucketSize();
+		intentionBucketMap.entrySet().removeIf((entry) -> entry.getValue()[1] * size <= now);
+	}
+	
+	/**
+	 * Update the intention count of all the given ancestors, stopping on the first failure
+	 * 
+	 * @param ancestors    to update
+	 * @param bucket       time bucket of the intention
+	 * @param countDelta   change to the intention count
+	 * 
+	 * @return number of ancestors updated
+	 */
+	protected int updateIntentionCounts(List<String> ancestors, long bucket, long countDelta) {
+		for (int i = 0; i < ancestors.size(); ++i) {
+			if (!updateLeaseBucket(INTENTION_PREFIX + ancestors.get(i), bucket, countDelta)) {
+				return i;
+			}
+		}
+		return ancestors.size();
+	}
+	
+	/**
+	 * Attempt to lock the lock path, after declaring the intention on its ancestors
+	 * 
+	 * @param lockPath     to lock
+	 * @param ancestors    of the lock path
+	 * @param lockTimeout  lock timeout for token
+	 * 
+	 * @return the lock token if valid, -1 if no valid token issued
+	 */
+	protected long tryHierarchicalLockToken(String lockPath, List<String> ancestors,
+		long lockTimeout) {
+		// Declare the intention on every ancestor, in the time bucket of the lock expiry
+		long now = System.currentTimeMillis();
+		long bucket = leaseBucket(now + lockTimeout);
+		int declared = updateIntentionCounts(ancestors, bucket, 1);
+		
+		// Check that no ancestor is locked (with a single batched read),
+		// this is done after the intention is declared, as ancestors check the
+		// intention count after they are locked.
+		long token = -1;
+		if (declared == ancestors.size()) {
+			boolean ancestorLocked = false;
+			for (long value : lockStore.getValues(ancestors)) {
+				ancestorLocked = ancestorLocked || (value != 0l);
+			}
+			if (!ancestorLocked) {
+				token = issueLockToken(lockPath, lockTimeout);
+			}
+		}
+		
+		// Rollback the intentions on failure, or track them for renewal and return
+		if (token <= 0) {
+			updateIntentionCounts(ancestors.subList(0, declared), bucket, -1);
+		} else {
+			pruneIntentionBuckets(now);
+			intentionBucketMap.put(lockPath, new long[] { token, bucket });
+		}
+		return token;
+	}
+	
+	/**
+	 * Issues a hierarchical lock token for the given lock path, waiting up to maxWait for it
+	 * (0 to not wait). If interrupted, the interruption is deferred, with the thread
+	 * interrupt flag restored on return.
+	 * 
+	 * A lock on a path, excludes every lock on its ancestor and descendant paths. For example
+	 * locking "account:123" excludes both "account", and "account:123:session:abc".
+	 * 
+	 * This is done by declaring an intention count on every ancestor path, before locking the
+	 * path. Which then waits for its own intention count to drain (descendant locks released),
+	 * while new descendant locks are blocked. Intention counts are lease counts (see
+	 * `leaseBucketSize`), so the intention of a lock which is not returned expires with it.
+	 * 
+	 * Hierarchical locks must be renewed and returned with `renewHierarchicalLockToken` and
+	 * `returnHierarchicalLockToken`, on the same LockTokenManager which issued them (which
+	 * tracks the intention counts to update). Paths locked with `issueLockToken` are not part
+	 * of the hierarchy (though they block descendant locks).
+	 * 
+	 * @param lockPath       to use
+	 * @param lockTimeout    lock timeout for token, up to `maxLeaseTimeout`
+	 * @param maxWait        maximum time to wait for the lock in ms
+	 * 
+	 * @return the lock token if valid, -1 if no valid token was issued within maxWait
+	 */
+	public long issueHierarchicalLockToken(String lockPath, long lockTimeout, long maxWait) {
+		validateLeaseTimeout(lockTimeout);
+		
+		// Timings to use
+		long deadline = System.currentTimeMillis() + Math.max(0l, maxWait);
+		long sleep = awaitBackoffBase;
+		boolean interrupted = false;
+		List<String> ancestors = lockPathAncestors(lockPath);
+		
+		// Get the lock on the path
+		long token = -1;
+		try {
+			while ((token = tryHierarchicalLockToken(lockPath, ancestors, lockTimeout)) <= 0) {
+				// Time check
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					return -1;
+				}
+				
+				// Sleep with a backoff, without going beyond the deadline
+				sleep = nextAwaitBackoff(sleep, getLockLifespan(lockPath));
+				try {
+					Thread.sleep(Math.min(sleep, remaining));
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		} finally {
+			// Restore the deferred interruption
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		
+		// Wait for the descendant locks to be released, renewing the lock (and intentions)
+		// every half lockTimeout, so that it does not expire while waiting
+		long waited = 0;
+		while (true) {
+			long waitDeadline = Math.min(deadline, System.currentTimeMillis()
+				+ Math.max(1l, lockTimeout / 2));
+			long res = awaitLeaseCountDrain(INTENTION_PREFIX + lockPath, waitDeadline);
+			if (res >= 0) {
+				waited += res;
+				break;
+			}
+			
+			// Rollback the lock and intentions, as the lock is still held at this point
+			if (waitDeadline >= deadline) {
+				returnHierarchicalLockToken(lockPath, token);
+				return -1;
+			}
+			
+			// Renewal failures, are rolled back by renewHierarchicalLockToken
+			token = renewHierarchicalLockToken(lockPath, token, lockTimeout);
+			if (token <= 0) {
+				return -1;
+			}
+			waited = 0;
+		}
+		
+		// Reset the lock lifespan, as part of it was spent waiting
+		if (waited > 0) {
+			return renewHierarchicalLockToken(lockPath, token, lockTimeout);
+		}
+		return token;
+	}
+	
+	/**
+	 * Renew a hierarchical lock token, together with its ancestors intention counts
+	 * 
+	 * The intention counts are moved to the time bucket of the renewed lock expiry. If any
+	 * intention count was lost (expired, or not tracked by this LockTokenManager), the ancestor
+	 * may have been locked, and the lock is considered lost. In which case the lock is returned,
+	 * and the intention counts which were renewed are released.
+	 * 
+	 * @param lockPath       to use
+	 * @param originalToken  existing token, to renew
+	 * @param lockTimeout    lock timeout for token, up to `maxLeaseTimeout`
+	 * 
+	 * @return the lock token if valid, -1 if no valid token issued
+	 */
+	public long renewHierarchicalLockToken(String lockPath, long originalToken, long lockTimeout) {
+		validateLeaseTimeout(lockTimeout);
+		long[] held = intentionBucketMap.get(lockPath);
+		if (held != null && held[0] != originalToken) {
+			held = null;
+		}
+		
+		long token = renewLockToken(lockPath, originalToken, lockTimeout);
+		if (token <= 0) {
+			if (held != null) {
+				intentionBucketMap.remove(lockPath, held);
+			}
+			return -1;
+		}
+		
+		// Move every intention count, even after a failure (for the rollback below)
+		long bucket = leaseBucket(System.currentTimeMillis() + lockTimeout);
+		List<String> ancestors = lockPathAncestors(lockPath);
+		List<String> renewed = new ArrayList<String>();
+		for (String ancestor : ancestors) {
+			if (held != null && moveLeaseBucket(INTENTION_PREFIX + ancestor, held[1], bucket)) {
+				renewed.add(ancestor);
+			}
+		}
+		if (renewed.size() == ancestors.size()) {
+			intentionBucketMap.put(lockPath, new long[] { token, bucket });
+			return token;
+		}
+		
+		// Lost intention, rollback the lock, and the remaining intentions
+		intentionBucketMap.remove(lockPath);
+		returnLockToken(lockPath, token);
+		updateIntentionCounts(renewed, bucket, -1);
+		return -1;
+	}
+	
+	/**
+	 * Unlock a hierarchical lock token, together with its ancestors intention counts
+	 * 
+	 * The intention counts are only released if the lock was still valid, as the intention
+	 * of an expired lock expires on its own.
+	 * 
+	 * @param lockPath       to use
+	 * @param existingToken  existing token, to return
+	 * 
+	 * @return true, if unlock was succesful, else false if failed
+	 */
+	public boolean returnHierarchicalLockToken(String lockPath, long existingToken) {
+		if (!returnLockToken(lockPath, existingToken)) {
+			return false;
+		}
+		long[] held = intentionBucketMap.get(lockPath);
+		if (held != null && held[0] == existingToken && intentionBucketMap.remove(lockPath, held)) {
+			updateIntentionCounts(lockPathAncestors(lockPath), held[1], -1);
+		}
+		return true;
+	}
+	
+	/**
+	 * @return the number of hierarchical locks held on the descendants of the lock path
+	 */
+	public long getIntentionCount(String lockPath) {
+		return getLeaseCount(INTENTION_PREFIX + lockPath);
+	}
+}
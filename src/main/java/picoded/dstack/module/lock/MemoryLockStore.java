@@ -0,0 +1,297 @@
+package picoded.dstack.module.lock;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * # MemoryLockStore
+ * 
+ * In memory LockStore implementation, for single node deployments (or testing).
+ * 
+ * Lock value, and its expiry, is updated together in a single atomic operation.
+ * Released locks are removed immediately, instead of being kept till its expiry.
+ * Multiple lock updates (see compareAndSetAllWithLifespan) are done atomically.
+ * 
+ * Note that as this is purely in memory, locks are NOT shared across multiple JVM's.
+ **/
+public class MemoryLockStore implements LockStore {
+	
+	//----------------------------------------------------------------
+	//
+	//  Internal storage
+	//
+	//----------------------------------------------------------------
+	
+	/**
+	 * Immutable lock value, with its expiry timestamp
+	 */
+	protected static class LockEntry {
+		final long value;
+		final long expiry;
+		
+		LockEntry(long inValue, long inExpiry) {
+			value = inValue;
+			expiry = inExpiry;
+		}
+		
+		/**
+		 * @return true, if entry has expired at the given timestamp
+		 */
+		boolean isExpired(long now) {
+			return expiry > 0l && expiry <= now;
+		}
+	}
+	
+	/**
+	 * Internal lockID to entry map
+	 */
+	protected ConcurrentHashMap<String, LockEntry> lockMap = new ConcurrentHashMap<>();
+	
+	// Number of update lock stripes (a power of 2)
+	protected static final int STRIPE_COUNT = 64;
+	
+	/**
+	 * Update locks, striped by the lockID hash. Single lockID updates take the lockID stripe,
+	 * while compareAndSetAllWithLifespan takes the stripes of all its lockIDs (in stripe order,
+	 * to avoid deadlocks) - so that no other update happens between its checks and updates.
+	 * 
+	 * Lookups do not take any lock.
+	 */
+	protected final ReentrantLock[] stripes = new ReentrantLock[STRIPE_COUNT];
+	{
+		for (int i = 0; i < STRIPE_COUNT; ++i) {
+			stripes[i] = new ReentrantLock();
+		}
+	}
+	
+	/**
+	 * @return the update lock stripe index, for the lockID
+	 */
+	protected static int stripeIndex(String lockID) {
+		int h = lockID.hashCode();
+		return (h ^ (h >>> 16)) & (STRIPE_COUNT - 1);
+	}
+	
+	/**
+	 * Get the lock entry, if it exists and has not expired
+	 * 
+	 * @param lockID    to lookup
+	 * 
+	 * @return valid lock entry, else null
+	 */
+	protected LockEntry getEntry(String lockID) {
+		LockEntry entry = lockMap.get(lockID);
+		if (entry == null || entry.isExpired(System.currentTimeMillis())) {
+			return null;
+		}
+		return entry;
+	}
+	
+	//----------------------------------------------------------------
+	//
+	//  LockStore implementation
+	//
+	//----------------------------------------------------------------
+	
+	/**
+	 * Atomic compare-and-set with lifespan, see LockStore.compareAndSetWithLifespan
+	 * 
+	 * @param lockID    to update
+	 * @param expect    expected current value, 0l if lock is not expected to exist
+	 * @param update    value to update to
+	 * @param lifespan  lifespan to apply in ms
+	 * 
+	 * @return true if the value was updated
+	 */
+	public boolean compareAndSetWithLifespan(String lockID, long expect, long update,
+		long lifespan) {
+		// Result flag, and the timestamp to use
+		final boolean[] updated = new boolean[] { false };
+		final long now = System.currentTimeMillis();
+		
+		// Does the update atomically
+		ReentrantLock stripe = stripes[stripeIndex(lockID)];
+		stripe.lock();
+		try {
+			lockMap.compute(lockID, (key, current) -> {
+				// Expired values are treated as a 0l
+				if (current != null && current.isExpired(now)) {
+					current = null;
+				}
+				long currentValue = (current == null) ? 0l : current.value;
+				
+				// Value mismatch, leave it as it is
+				if (currentValue != expect) {
+					return current;
+				}
+				
+				// Update it, removing released values
+				updated[0] = true;
+				if (update == 0l) {
+					return null;
+				}
+				return new LockEntry(update, (lifespan > 0l) ? now + lifespan : 0l);
+			});
+		} finally {
+			stripe.unlock();
+		}
+		
+		// Return the result
+		return updated[0];
+	}
+	
+	/**
+	 * Atomic compare-and-set with lifespan for multiple lockID, see
+	 * LockStore.compareAndSetAllWithLifespan. Either every lockID is updated, or none are
+	 * (returning 0), with no other update in between.
+	 * 
+	 * @param lockIDs   to update, in order
+	 * @param expect    expected current value for every lockID
+	 * @param update    value to update to
+	 * @param lifespan  lifespan to apply in ms
+	 * 
+	 * @return number of lockIDs updated, this is the list size if all was succesful
+	 */
+	public int compareAndSetAllWithLifespan(List<String> lockIDs, long expect, long update,
+		long lifespan) {
+		// Take the stripes of every lockID, in order
+		int[] stripeIndexes = lockIDs.stream().mapToInt(MemoryLockStore::stripeIndex).distinct()
+			.sorted().toArray();
+		for (int index : stripeIndexes) {
+			stripes[index].lock();
+		}
+		
+		long now = System.currentTimeMillis();
+		try {
+			// Check every lockID, expired values are treated as a 0l
+			for (String lockID : lockIDs) {
+				LockEntry current = lockMap.get(lockID);
+				long currentValue = (current == null || current.isExpired(now)) ? 0l
+					: current.value;
+				if (currentValue != expect) {
+					return 0;
+				}
+			}
+			
+			// Update them, removing released values
+			LockEntry entry = new LockEntry(update, (lifespan > 0l) ? now + lifespan : 0l);
+			for (String lockID : lockIDs) {
+				if (update == 0l) {
+					lockMap.remove(lockID);
+				} else {
+					lockMap.put(lockID, entry);
+				}
+			}
+			return lockIDs.size();
+		} finally {
+			for (int i = stripeIndexes.length - 1; i >= 0; --i) {
+				stripes[stripeIndexes[i]].unlock();
+			}
+		}
+	}
+	
+	/**
+	 * Sweep cursor, over the lockMap entries
+	 */
+	protected Iterator<Map.Entry<String, LockEntry>> sweepCursor = null;
+	
+	/**
+	 * Incrementally remove expired lock entries, see LockStore.sweepReleased
+	 * (released locks are removed immediately)
+	 * 
+	 * @param batchSize  maximum number of entries to scan
+	 * 
+	 * @return number of entries removed
+	 */
+	public synchronized int sweepReleased(int batchSize) {
+		// Start a new scan if needed (the iterator is weakly consistent)
+		if (sweepCursor == null) {
+			sweepCursor = lockMap.entrySet().iterator();
+		}
+		
+		// Sweep the next batch, only removing the exact expired entry
+		long now = System.currentTimeMillis();
+		int removed = 0;
+		for (int i = 0; i < batchSize && sweepCursor.hasNext(); ++i) {
+			Map.Entry<String, LockEntry> entry = sweepCursor.next();
+			if (entry.getValue().isExpired(now)
+				&& lockMap.remove(entry.getKey(), entry.getValue())) {
+				++removed;
+			}
+		}
+		
+		// Scan completed
+		if (!sweepCursor.hasNext()) {
+			sweepCursor = null;
+		}
+		return removed;
+	}
+	
+	/**
+	 * Get the current lock value
+	 * 
+	 * @param lockID    to lookup
+	 * 
+	 * @return current lock value, 0l if it does not exist
+	 */
+	public long getValue(String lockID) {
+		LockEntry entry = getEntry(lockID);
+		return (entry == null) ? 0l : entry.value;
+	}
+	
+	/**
+	 * Get the current lock remaining lifespan
+	 * 
+	 * @param lockID    to lookup
+	 * 
+	 * @return -1 if lock does not exist, 0 if no lifespan is configured, >0 is lifespan left
+	 */
+	public long getLifespan(String lockID) {
+		LockEntry entry = getEntry(lockID);
+		if (entry == null) {
+			return -1;
+		}
+		if (entry.expiry <= 0l) {
+			return 0;
+		}
+		return Math.max(1l, entry.expiry - System.currentTimeMillis());
+	}
+	
+	/**
+	 * Get the current lock values, and remaining lifespan, for multiple lockID
+	 * (each entry holds both, so they are read together)
+	 * 
+	 * @param lockIDs   to lookup
+	 * 
+	 * @return `{ value, lifespan }` for each lockID, as per getValue and getLifespan
+	 */
+	public long[][] getValuesWithLifespan(List<String> lockIDs) {
+		long now = System.currentTimeMillis();
+		long[][] ret = new long[lockIDs.size()][];
+		for (int i = 0; i < ret.length; ++i) {
+			LockEntry entry = lockMap.get(lockIDs.get(i));
+			if (entry == null || entry.isExpired(now)) {
+				ret[i] = new long[] { 0l, -1l };
+			} else {
+				long lifespan = (entry.expiry <= 0l) ? 0l : Math.max(1l, entry.expiry - now);
+				ret[i] = new long[] { entry.value, lifespan };
+			}
+		}
+		return ret;
+	}
+	
+	/**
+	 * List the stored lockIDs with the given prefix, in sorted order, see LockStore.listLockIDs
+	 * 
+	 * @param prefix       of the lockIDs to list, empty string for all lockIDs
+	 * @param afterLockID  list only the lockIDs after this, null to start from the beginning
+	 * @param limit        maximum number of lockIDs to list
+	 * 
+	 * @return sorted list of lockIDs
+	 */
+	public List<String> listLockIDs(String prefix, String afterLockID, int limit) {
+		return LockStore.pageLockIDs(lockMap.keySet(), prefix, afterLockID, limit);
+	}
+	
+}
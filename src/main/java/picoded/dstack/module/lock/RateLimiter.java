@@ -0,0 +1,540 @@
+package picoded.dstack.module.lock;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import picoded.dstack.module.*;
+import picoded.dstack.*;
+import picoded.core.conv.*;
+
+/**
+ * # RateLimiter
+ * 
+ * Utility module, used to limit the number of requests per interval - tied to a rateID.
+ * This complements SimpleConcurrencyManager, which limits the requests in flight instead.
+ * 
+ * # Algorithms
+ * 
+ * **GCRA** (default) - Generic cell rate algorithm, which tracks the "theoretical arrival time" (TAT)
+ *            of the next request. Each request moves the TAT forward by `interval / limit`, and is
+ *            rejected if the TAT would be more then an interval ahead. This allows bursts of up to
+ *            the limit, and needs a single `weakCompareAndSet` per decision.
+ * 
+ * **SLIDING_WINDOW** - Counts the requests in fixed windows of the interval, and estimates the
+ *            sliding window count from the current and previous window (weighted by the overlap).
+ *            This needs two reads and an `addAndGet` per decision, and is reverted if a concurrent
+ *            request went past the limit.
+ * 
+ * # Local pre-check
+ * 
+ * Each node keeps the last state it has seen for each rateID, which is a lower bound of the
+ * actual state. Requests which are over the limit even with this lower bound, are rejected
+ * without any backend calls. This is intended for rateIDs which are hammered past their limit.
+ * 
+ * The configured limits are cached on each node for `configCacheTTL`, see setRate.
+ **/
+public class RateLimiter extends ModuleStructure {
+	
+	//----------------------------------------------------------------
+	//
+	//  Constructor
+	//
+	//----------------------------------------------------------------
+	
+	/**
+	 * Setup RateLimiter structure given a stack, and its name
+	 * 
+	 * @param  CommonStack / DStack system to use
+	 * @param  Name used to setup the prefix of the complex structure
+	 **/
+	public RateLimiter(CommonStack inStack, String inName) {
+		super(inStack, inName);
+		internalStructureList = setupInternalStructureList();
+	}
+	
+	/**
+	 * Setup RateLimiter structure given its internal structures
+	 * 
+	 * @param  inLimitMap   used to store the rate limit and interval of each rateID
+	 * @param  inStateMap   used to store the rate state (TAT, or window counts) of each rateID
+	 **/
+	public RateLimiter(KeyLongMap inLimitMap, KeyLongMap inStateMap) {
+		limitMap = inLimitMap;
+		stateMap = inStateMap;
+		internalStructureList = setupInternalStructureList();
+	}
+	
+	//----------------------------------------------------------------
+	//
+	//  Class setup
+	//
+	//----------------------------------------------------------------
+	
+	/**
+	 * Rate limit and interval of each rateID, stored with "l_" and "i_" prefix respectively
+	 */
+	protected KeyLongMap limitMap = null;
+	
+	/**
+	 * Rate state of each rateID, stored as "t_{rateID}" for the GCRA TAT (in microseconds),
+	 * or "w{window}_{rateID}" for the sliding window counts
+	 */
+	protected KeyLongMap stateMap = null;
+	
+	/**
+	 * Setup the internal structure given the stack + name, if needed
+	 * 
+	 * @return internal common structures, for used by the various initialize / teardown commands
+	 */
+	protected List<CommonStructure> setupInternalStructureList() {
+		// Safety check
+		if (limitMap == null || stateMap == null) {
+			if (stack == null) {
+				throw new RuntimeException(
+					"Missing required Map, and the stack/name param requried to be initialized");
+			}
+		}
+		
+		// The internal Maps required,
+		if (limitMap == null) {
+			limitMap = stack.keyLongMap(name + "_limit");
+		}
+		if (stateMap == null) {
+			stateMap = stack.keyLongMap(name + "_rate");
+		}
+		
+		// Return as a list collection
+		return Arrays.asList(new CommonStructure[] { limitMap, stateMap });
+	}
+	
+	/**
+	 * Rate limiting algorithm used, see the class notes
+	 */
+	public enum Algorithm {
+		GCRA, SLIDING_WINDOW
+	}
+	
+	// Algorithm used by tryAcquire
+	protected volatile Algorithm algorithm = Algorithm.GCRA;
+	
+	/**
+	 * @return the algorithm used by tryAcquire
+	 */
+	public Algorithm algorithm() {
+		return algorithm;
+	}
+	
+	/**
+	 * Configure the algorithm used by tryAcquire, this must be consistent across all nodes
+	 * 
+	 * @param inAlgorithm to use
+	 * @return the configured algorithm
+	 */
+	public Algorithm algorithm(Algorithm inAlgorithm) {
+		if (inAlgorithm == null) {
+			throw new IllegalArgumentException("Missing required Algorithm");
+		}
+		localStateMap.clear();
+		return algorithm = inAlgorithm;
+	}
+	
+	//----------------------------------------------------------------
+	//
+	//  Utility functions
+	//
+	//----------------------------------------------------------------
+	
+	/**
+	 * Maximum number of `weakCompareAndSet` attempts per decision
+	 */
+	protected static final int MAX_CAS_ATTEMPTS = 5;
+	
+	/**
+	 * Validate and throw an exception on an illfomratted rateID
+	 * @param rateID
+	 */
+	static protected void validateRateID(String rateID) {
+		if (rateID == null || rateID.length() <= 0) {
+			throw new IllegalArgumentException("Invalid rateID : " + rateID);
+		}
+	}
+	
+	//----------------------------------------------------------------
+	//
+	//  Rate configuration
+	//
+	//----------------------------------------------------------------
+	
+	/**
+	 * Rate limit and interval, cached locally till the given timestamp
+	 */
+	protected static class CachedRate {
+		final long limit;
+		final long interval;
+		final long cacheExpiry;
+		
+		CachedRate(long inLimit, long inInterval, long inCacheExpiry) {
+			limit = inLimit;
+			interval = inInterval;
+			cacheExpiry = inCacheExpiry;
+		}
+	}
+	
+	/**
+	 * Locally cached rates, by rateID
+	 */
+	protected ConcurrentHashMap<String, CachedRate> rateCacheMap = new ConcurrentHashMap<>();
+	
+	// Rate cache TTL in ms, 0 disables the cache
+	protected volatile long configCacheTTL = 1000;
+	
+	/**
+	 * @return the rate cache TTL in ms, 0 if the cache is disabled
+	 */
+	public long configCacheTTL() {
+		return configCacheTTL;
+	}
+	
+	/**
+	 * Configure the local rate cache TTL. Rate changes from setRate are seen immediately on the
+	 * local node, and after the TTL on other nodes (unless `invalidateConfigCache` is called).
+	 * 
+	 * @param ttl cache TTL in ms, 0 to disable (and clear) the cache
+	 * @return the configured TTL
+	 */
+	public long configCacheTTL(long ttl) {
+		configCacheTTL = Math.max(0, ttl);
+		if (configCacheTTL <= 0) {
+			rateCacheMap.clear();
+		}
+		return configCacheTTL;
+	}
+	
+	/**
+	 * Invalidate the locally cached rate for the rateID
+	 * 
+	 * @param rateID   rate ID to be used (cannot be blank / null)
+	 */
+	public void invalidateConfigCache(String rateID) {
+		rateCacheMap.remove(rateID);
+	}
+	
+	/**
+	 * Configure the rate limit, with a given lifespan. After the given lifespan, the limit will reset to 0
+	 * 
+	 * @param rateID     rate ID to be used (cannot be blank / null)
+	 * @param limit      number of requests allowed per interval, -1 means unlimited
+	 * @param interval   interval in ms
+	 * @param lifespan   lifespan of the limit in ms (resets to zero after the limit), -1 means default (unlimited)
+	 */
+	public void setRate(String rateID, long limit, long interval, long lifespan) {
+		// Quick validation
+		validateRateID(rateID);
+		if (interval <= 0) {
+			throw new IllegalArgumentException("Invalid rate interval : " + interval);
+		}
+		
+		// Put with the respective lifespan
+		if (lifespan <= 0) {
+			limitMap.putValue("l_" + rateID, limit);
+			limitMap.putValue("i_" + rateID, interval);
+		} else {
+			limitMap.putWithLifespan("l_" + rateID, limit, lifespan);
+			limitMap.putWithLifespan("i_" + rateID, interval, lifespan);
+		}
+		
+		// Update the local cache immediately
+		long cacheExpiry = System.currentTimeMillis() + configCacheTTL;
+		if (lifespan > 0) {
+			cacheExpiry = Math.min(cacheExpiry, System.currentTimeMillis() + lifespan);
+		}
+		rateCacheMap.put(rateID, new CachedRate(limit, interval, cacheExpiry));
+		localStateMap.remove(rateID);
+	}
+	
+	/**
+	 * Configure the rate limit, without a lifespan
+	 * 
+	 * @param rateID     rate ID to be used (cannot be blank / null)
+	 * @param limit      number of requests allowed per interval, -1 means unlimited
+	 * @param interval   interval in ms
+	 */
+	public void setRate(String rateID, long limit, long interval) {
+		setRate(rateID, limit, interval, -1);
+	}
+	
+	/**
+	 * Get the configured rate, from the local cache if enabled
+	 * 
+	 * @param rateID     rate ID to be used (cannot be blank / null)
+	 * 
+	 * @return the configured rate (with a limit of 0, if it is not configured)
+	 */
+	protected CachedRate getRate(String rateID) {
+		long now = System.currentTimeMillis();
+		CachedRate ret = rateCacheMap.get(rateID);
+		if (ret != null && ret.cacheExpiry > now) {
+			return ret;
+		}
+		
+		// Load the rate from the backend
+		ret = new CachedRate(GenericConvert.toLong(limitMap.getValue("l_" + rateID), 0),
+			GenericConvert.toLong(limitMap.getValue("i_" + rateID), 0), now + configCacheTTL);
+		if (configCacheTTL > 0) {
+			rateCacheMap.put(rateID, ret);
+		}
+		return ret;
+	}
+	
+	/**
+	 * @return the configured number of requests per interval (0 if not configured)
+	 */
+	public long getRateLimit(String rateID) {
+		return getRate(rateID).limit;
+	}
+	
+	/**
+	 * @return the configured interval in ms (0 if not configured)
+	 */
+	public long getRateInterval(String rateID) {
+		return getRate(rateID).interval;
+	}
+	
+	//----------------------------------------------------------------
+	//
+	//  Local pre-check state
+	//
+	//----------------------------------------------------------------
+	
+	/**
+	 * Maximum number of rateIDs with local state, before stale entries are pruned
+	 */
+	protected static final int LOCAL_STATE_LIMIT = 10000;
+	
+	/**
+	 * Minimum interval between the pruning of the local state, in ms
+	 */
+	protected static final long LOCAL_STATE_PRUNE_INTERVAL = 1000;
+	
+	// Timestamp of the next allowed local state pruning
+	protected volatile long localStatePruneTime = 0;
+	
+	/**
+	 * Last seen state of each rateID, `{ TAT }` for GCRA,
+	 * or `{ window, previous count, current count }` for SLIDING_WINDOW
+	 */
+	protected ConcurrentHashMap<String, long[]> localStateMap = new ConcurrentHashMap<>();
+	
+	// Local pre-check flag
+	protected volatile boolean localPreCheck = true;
+	
+	/**
+	 * @return true, if the local pre-check is enabled
+	 */
+	public boolean localPreCheck() {
+		return localPreCheck;
+	}
+	
+	/**
+	 * @param enable the local pre-check, which rejects requests over the limit of the last seen state
+	 * @return the configured flag
+	 */
+	public boolean localPreCheck(boolean enable) {
+		if (!enable) {
+			localStateMap.clear();
+		}
+		return localPreCheck = enable;
+	}
+	
+	/**
+	 * Update the last seen state of the rateID
+	 * 
+	 * Once LOCAL_STATE_LIMIT is reached, stale entries are pruned at most once per
+	 * LOCAL_STATE_PRUNE_INTERVAL. Till then only existing rateIDs are updated, with new
+	 * rateIDs going without a local pre-check.
+	 */
+	protected void updateLocalState(String rateID, long[] state) {
+		if (!localPreCheck) {
+			return;
+		}
+		if (localStateMap.size() >= LOCAL_STATE_LIMIT) {
+			long now = System.currentTimeMillis();
+			if (now >= localStatePruneTime) {
+				localStatePruneTime = now + LOCAL_STATE_PRUNE_INTERVAL;
+				pruneLocalState();
+			}
+			if (localStateMap.size() >= LOCAL_STATE_LIMIT) {
+				localStateMap.replace(rateID, state);
+				return;
+			}
+		}
+		localStateMap.put(rateID, state);
+	}
+	
+	/**
+	 * Remove the local state, which can no longer reject any requests
+	 */
+	protected void pruneLocalState() {
+		long now = System.currentTimeMillis();
+		for (Map.Entry<String, long[]> entry : localStateMap.entrySet()) {
+			long[] state = entry.getValue();
+			CachedRate rate = rateCacheMap.get(entry.getKey());
+			boolean stale = (state.length == 1) ? state[0] <= now * 1000 : (rate == null
+				|| state[0] < now / Math.max(1, rate.interval) - 1);
+			if (stale) {
+				localStateMap.remove(entry.getKey(), state);
+			}
+		}
+	}
+	
+	//----------------------------------------------------------------
+	//
+	//  Rate limiting
+	//
+	//----------------------------------------------------------------
+	
+	/**
+	 * Attempts to acquire permits for the given number of requests
+	 * 
+	 * @param rateID     rate ID to be used (cannot be blank / null)
+	 * @param permits    number of requests to acquire together
+	 * 
+	 * @return true, if the requests are within the rate limit (and are counted)
+	 */
+	public boolean tryAcquire(String rateID, long permits) {
+		validateRateID(rateID);
+		if (permits <= 0) {
+			throw new IllegalArgumentException("Invalid permits (rateID = " + rateID + ") : "
+				+ permits);
+		}
+		
+		// Handle unlimited, and impossible requests
+		CachedRate rate = getRate(rateID);
+		if (rate.limit <= -1) {
+			return true;
+		}
+		if (permits > rate.limit || rate.interval <= 0) {
+			return false;
+		}
+		
+		// Does the respective algorithm
+		if (algorithm == Algorithm.SLIDING_WINDOW) {
+			return tryAcquire_slidingWindow(rateID, permits, rate.limit, rate.interval);
+		}
+		return tryAcquire_gcra(rateID, permits, rate.limit, rate.interval);
+	}
+	
+	/**
+	 * Attempts to acquire a permit for a single request
+	 * 
+	 * @param rateID     rate ID to be used (cannot be blank / null)
+	 * 
+	 * @return true, if the request is within the rate limit (and is counted)
+	 */
+	public boolean tryAcquire(String rateID) {
+		return tryAcquire(rateID, 1);
+	}
+	
+	/**
+	 * tryAcquire implementation, using GCRA (with timestamps in microseconds)
+	 * 
+	 * @param rateID     rate ID to be used (cannot be blank / null)
+	 * @param permits    number of requests to acquire together
+	 * @param limit      number of requests allowed per interval
+	 * @param interval   interval in ms
+	 * 
+	 * @return true, if the requests are within the rate limit (and are counted)
+	 */
+	protected boolean tryAcquire_gcra(String rateID, long permits, long limit, long interval) {
+		long now = System.currentTimeMillis() * 1000;
+		long tolerance = interval * 1000;
+		long increment = permits * tolerance / limit;
+		
+		// Local pre-check, the TAT only moves forward
+		long[] localState = localStateMap.get(rateID);
+		if (localState != null && Math.max(localState[0], now) + increment - now > tolerance) {
+			return false;
+		}
+		
+		String stateID = "t_" + rateID;
+		for (int tries = 0; tries < MAX_CAS_ATTEMPTS; ++tries) {
+			long tat = GenericConvert.toLong(stateMap.getValue(stateID), 0);
+			long updated = Math.max(tat, now) + increment;
+			
+			// Over the limit
+			if (updated - now > tolerance) {
+				updateLocalState(rateID, new long[] { tat });
+				return false;
+			}
+			
+			// Single CAS per decision
+			if (stateMap.weakCompareAndSet(stateID, tat, updated)) {
+				updateLocalState(rateID, new long[] { updated });
+				
+				// Refresh the lifespan, when idle or once per interval of TAT progress
+				// (as the TAT is never more then an interval ahead, this covers it till the next refresh)
+				if (tat <= now || updated / tolerance != tat / tolerance) {
+					stateMap.setLifeSpan(stateID, interval * 3);
+				}
+				return true;
+			}
+			
+			// Contention, retry with the updated time
+			now = System.currentTimeMillis() * 1000;
+		}
+		
+		// Too many attempts
+		return false;
+	}
+	
+	/**
+	 * tryAcquire implementation, using a two window sliding estimate
+	 * 
+	 * @param rateID     rate ID to be used (cannot be blank / null)
+	 * @param permits    number of requests to acquire together
+	 * @param limit      number of requests allowed per interval
+	 * @param interval   interval in ms
+	 * 
+	 * @return true, if the requests are within the rate limit (and are counted)
+	 */
+	protected boolean tryAcquire_slidingWindow(String rateID, long permits, long limit,
+		long interval) {
+		long now = System.currentTimeMillis();
+		long window = now / interval;
+		double previousWeight = (double) (interval - (now % interval)) / interval;
+		
+		// Local pre-check, window counts only go up (except reverts)
+		long[] localState = localStateMap.get(rateID);
+		if (localState != null && localState[0] >= window - 1) {
+			long localPrevious = (localState[0] == window) ? localState[1] : localState[2];
+			long localCurrent = (localState[0] == window) ? localState[2] : 0;
+			if (localPrevious * previousWeight + localCurrent + permits > limit) {
+				return false;
+			}
+		}
+		
+		// Estimate the sliding window count
+		String previousID = "w" + (window - 1) + "_" + rateID;
+		String currentID = "w" + window + "_" + rateID;
+		long previous = GenericConvert.toLong(stateMap.getValue(previousID), 0);
+		long current = GenericConvert.toLong(stateMap.getValue(currentID), 0);
+		if (previous * previousWeight + current + permits > limit) {
+			updateLocalState(rateID, new long[] { window, previous, current });
+			return false;
+		}
+		
+		// Count the requests, reverting if a concurrent request went past the limit
+		long updated = GenericConvert.toLong(stateMap.addAndGet(currentID, permits), 0);
+		if (updated == permits) {
+			stateMap.setLifeSpan(currentID, interval * 2);
+		}
+		if (previous * previousWeight + updated > limit) {
+			stateMap.addAndGet(currentID, -permits);
+			updateLocalState(rateID, new long[] { window, previous, updated - permits });
+			return false;
+		}
+		updateLocalState(rateID, new long[] { window, previous, updated });
+		return true;
+	}
+	
+}
@@ -1,6 +1,12 @@
 package picoded.dstack.module.lock;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.function.BiFunction;
 
 import picoded.dstack.module.*;
@@ -56,6 +62,27 @@ import picoded.core.conv.*;
  * setConcurrencyCount should be used instead, as this helps to prevent edge cases (such as server restarts),
  * where a concurrency is issued - but never returned. 
  * 
+ * # Permit prefetching
+ * 
+ * For hot concurrencyIDs shared by many nodes, prefetching can be enabled with `prefetchLimit`. Each node then
+ * leases a block of permits with a single `addAndGet`, and hands them out (and takes them back on release)
+ * from a local permit pool. Unused permits are returned after `prefetchIdleTimeout`, or on `shutdown`.
+ * 
+ * Pooled permits are included in the concurrency count, as they are leased from the backend.
+ * 
+ * # Sharded counters
+ * 
+ * For hot concurrencyIDs past the soft limit, the `weakCompareAndSet` loop on a single count often fails
+ * under contention. With `shardCount`, the count is spread over multiple keys, each with a proportional slice
+ * of the soft and hard limits. Leases go to a random shard (falling back to the others), while reads sum the
+ * shards. As no shard goes past its slice of the hard limit, their sum does not go past the hard limit.
+ * Sharded counters cannot be used together with permit prefetching.
+ * 
+ * # Limit caching
+ * 
+ * As limits rarely change, they can be cached on each node with `limitCacheTTL`. This removes the limit lookups
+ * from every lease, at the cost of other nodes seeing a limit change only after the TTL.
+ * 
  **/
 public class SimpleConcurrencyManager extends ModuleStructure {
 	
@@ -182,6 +209,12 @@ public class SimpleConcurrencyManager extends ModuleStructure {
 			limitMap.putWithLifespan("s_" + concurrencyID, softLimit, lifespan);
 			limitMap.putWithLifespan("h_" + concurrencyID, hardLimit, lifespan);
 		}
+		
+		// Update the local cache immediately (if enabled)
+		if (limitCacheTTL > 0) {
+			long expiry = (lifespan <= 0) ? 0l : System.currentTimeMillis() + lifespan;
+			cacheLimits(concurrencyID, softLimit, hardLimit, expiry);
+		}
 	}
 	
 	/**
@@ -227,6 +260,9 @@ public class SimpleConcurrencyManager extends ModuleStructure {
 	 * @return soft limit value
 	 */
 	public long getSoftLimit(String concurrencyID) {
+		if (limitCacheTTL > 0) {
+			return getCachedLimits(concurrencyID).softLimit;
+		}
 		Long val = limitMap.getValue("s_" + concurrencyID);
 		if (val != null) {
 			return val.longValue();
@@ -242,6 +278,9 @@ public class SimpleConcurrencyManager extends ModuleStructure {
 	 * @return hard limit value
 	 */
 	public long getHardLimit(String concurrencyID) {
+		if (limitCacheTTL > 0) {
+			return getCachedLimits(concurrencyID).hardLimit;
+		}
 		Long val = limitMap.getValue("h_" + concurrencyID);
 		if (val != null) {
 			return val.longValue();
@@ -249,6 +288,124 @@ public class SimpleConcurrencyManager extends ModuleStructure {
 		return 0;
 	}
 	
+	//----------------------------------------------------------------
+	//
+	//  Limit caching
+	//
+	//----------------------------------------------------------------
+	
+	/**
+	 * Soft and hard limits, cached locally till the given timestamp
+	 */
+	protected static class CachedLimits {
+		final long softLimit;
+		final long hardLimit;
+		final long cacheExpiry;
+		
+		CachedLimits(long inSoftLimit, long inHardLimit, long inCacheExpiry) {
+			softLimit = inSoftLimit;
+			hardLimit = inHardLimit;
+			cacheExpiry = inCacheExpiry;
+		}
+	}
+	
+	/**
+	 * Locally cached limits, by concurrencyID
+	 */
+	protected ConcurrentHashMap<String, CachedLimits> limitCacheMap = new ConcurrentHashMap<>();
+	
+	// Limit cache TTL in ms, 0 disables the cache
+	protected volatile long limitCacheTTL = 0;
+	
+	/**
+	 * @return the limit cache TTL in ms, 0 if the cache is disabled
+	 */
+	public long limitCacheTTL() {
+		return limitCacheTTL;
+	}
+	
+	/**
+	 * Configure the local limit cache. When enabled, `getSoftLimit` and `getHardLimit` are
+	 * served from a per node cache, which is loaded with both limits together, and kept for
+	 * up to the TTL (or the remaining lifespan of the limits, if shorter).
+	 * 
+	 * `setLimits` updates the cache of the local node immediately, while other nodes see the
+	 * change after their TTL (unless `invalidateLimitCache` is called on them).
+	 * 
+	 * @param ttl cache TTL in ms, 0 to disable (and clear) the cache
+	 * @return the configured TTL
+	 */
+	public long limitCacheTTL(long ttl) {
+		limitCacheTTL = Math.max(0, ttl);
+		if (limitCacheTTL <= 0) {
+			limitCacheMap.clear();
+		}
+		return limitCacheTTL;
+	}
+	
+	/**
+	 * Invalidate the locally cached limits for the concurrencyID
+	 * 
+	 * @param concurrencyID   concurrency ID to be used (cannot be blank / null)
+	 */
+	public void invalidateLimitCache(String concurrencyID) {
+		limitCacheMap.remove(concurrencyID);
+	}
+	
+	/**
+	 * Invalidate all locally cached limits
+	 */
+	public void invalidateLimitCache() {
+		limitCacheMap.clear();
+	}
+	
+	/**
+	 * Cache the limits, till the TTL or the limit expiry, whichever is earlier
+	 * 
+	 * @param concurrencyID   concurrency ID to be used (cannot be blank / null)
+	 * @param softLimit       soft limit to cache
+	 * @param hardLimit       hard limit to cache
+	 * @param expiry          limit expiry timestamp, 0 if it does not expire
+	 * 
+	 * @return the cached limits
+	 */
+	protected CachedLimits cacheLimits(String concurrencyID, long softLimit, long hardLimit,
+		long expiry) {
+		long cacheExpiry = System.currentTimeMillis() + limitCacheTTL;
+		if (expiry > 0) {
+			cacheExpiry = Math.min(cacheExpiry, expiry);
+		}
+		CachedLimits ret = new CachedLimits(softLimit, hardLimit, cacheExpiry);
+		limitCacheMap.put(concurrencyID, ret);
+		return ret;
+	}
+	
+	/**
+	 * Get the cached limits, loading them from the backend if needed
+	 * 
+	 * @param concurrencyID   concurrency ID to be used (cannot be blank / null)
+	 * 
+	 * @return the cached limits
+	 */
+	protected CachedLimits getCachedLimits(String concurrencyID) {
+		CachedLimits ret = limitCacheMap.get(concurrencyID);
+		if (ret != null && ret.cacheExpiry > System.currentTimeMillis()) {
+			return ret;
+		}
+		
+		// Load both limits, with their expiry (missing limits are treated as 0)
+		KeyLong soft = limitMap.get("s_" + concurrencyID);
+		KeyLong hard = limitMap.get("h_" + concurrencyID);
+		long expiry = 0l;
+		for (KeyLong val : new KeyLong[] { soft, hard }) {
+			if (val != null && val.getExpiry() > 0l) {
+				expiry = (expiry > 0l) ? Math.min(expiry, val.getExpiry()) : val.getExpiry();
+			}
+		}
+		return cacheLimits(concurrencyID, (soft == null) ? 0l : soft.longValue(),
+			(hard == null) ? 0l : hard.longValue(), expiry);
+	}
+	
 	//----------------------------------------------------------------
 	//
 	//  councurrency counting
@@ -263,6 +420,9 @@ public class SimpleConcurrencyManager extends ModuleStructure {
 	 * @return current concurrency count
 	 */
 	public long getConcurrencyCount(String concurrencyID) {
+		if (shardCount > 1) {
+			return getConcurrencyCount_sharded(concurrencyID);
+		}
 		Long val = concurrencyMap.getValue("c_" + concurrencyID);
 		if (val != null) {
 			return val.longValue();
@@ -284,6 +444,11 @@ public class SimpleConcurrencyManager extends ModuleStructure {
 		if (count < 0) {
 			count = 0;
 		}
+		// Spread over the shards, in sharded mode
+		if (shardCount > 1) {
+			setConcurrencyCount_sharded(concurrencyID, count, lifespan);
+			return;
+		}
 		// Configuring count value
 		if (lifespan <= 0) {
 			concurrencyMap.putValue("c_" + concurrencyID, count);
@@ -411,16 +576,28 @@ public class SimpleConcurrencyManager extends ModuleStructure {
 	 * if current count is above "hard limit", this returns -1
 	 * if too many attempts are done, return -2
 	 * 
+	 * Note that in sharded mode (see `shardCount`), the updated count is that of the shard
+	 * leased from, and not the total concurrency count (use `getConcurrencyCount` for that)
+	 * 
 	 * @param concurrencyID   concurrency ID to be used (cannot be blank / null)
 	 * @param lifespan        lifespan of the limit in ms (resets to zero after the limit), -1 means default (unlimited)
 	 * @param retryCount      number of retries done to get the hard concurrency, -1 means "auto"
 	 * 
-	 * @return the concurrency count (at time of allocation) if succesful, else -1 if limit is hit, or -2 if too many lease atempts occured
+	 * @return the concurrency count (or shard count, in sharded mode) at time of allocation if succesful, else -1 if limit is hit, or -2 if too many lease atempts occured
 	 */
 	public long leaseConcurrency_returnCount(String concurrencyID, long lifespan, int retryCount) {
+		// Prefetch mode, serves the lease from the local permit pool
+		if (prefetchLimit > 0) {
+			return leaseConcurrency_prefetch(concurrencyID, lifespan, retryCount);
+		}
+		
+		// Sharded mode, leases from one of the shards
+		if (shardCount > 1) {
+			return leaseConcurrency_sharded(concurrencyID, lifespan, retryCount);
+		}
+		
 		long softLimit = getSoftLimit(concurrencyID);
 		long count = getConcurrencyCount(concurrencyID);
-		String countID = "c_" + concurrencyID;
 		
 		// Does the soft limit based increment
 		if (softLimit <= -1 || count < softLimit) {
@@ -428,7 +605,23 @@ public class SimpleConcurrencyManager extends ModuleStructure {
 		}
 		
 		// Time to do the hard limit based increment
-		long hardLimit = getHardLimit(concurrencyID);
+		return leaseConcurrency_hardLimit("c_" + concurrencyID, lifespan, retryCount, count,
+			getHardLimit(concurrencyID));
+	}
+	
+	/**
+	 * Attempts to lease a concurrency, past the soft limit, via a `weakCompareAndSet` loop
+	 * 
+	 * @param countID         concurrency count key to increment (see shardCountID)
+	 * @param lifespan        lifespan of the limit in ms (resets to zero after the limit), -1 means default (unlimited)
+	 * @param retryCount      number of retries done to get the hard concurrency, -1 means "auto"
+	 * @param count           current count of the countID
+	 * @param hardLimit       hard limit of the countID
+	 * 
+	 * @return the concurrency count (at time of allocation) if succesful, else -1 if limit is hit, or -2 if too many lease atempts occured
+	 */
+	protected long leaseConcurrency_hardLimit(String countID, long lifespan, int retryCount,
+		long count, long hardLimit) {
 		
 		// Fail if count is higher then hard limit
 		if (count >= hardLimit) {
@@ -451,7 +644,7 @@ public class SimpleConcurrencyManager extends ModuleStructure {
 			}
 			
 			// Allocation failed, double check the count
-			count = getConcurrencyCount(concurrencyID);
+			count = GenericConvert.toLong(concurrencyMap.getValue(countID), 0);
 			
 			// Fail if count is higher then hard limit
 			if (count >= hardLimit) {
@@ -473,7 +666,7 @@ public class SimpleConcurrencyManager extends ModuleStructure {
 	 * @param concurrencyID   concurrency ID to be used (cannot be blank / null)
 	 * @param lifespan        lifespan of the limit in ms (resets to zero after the limit), -1 means default (unlimited)
 	 * 
-	 * @return the concurrency count (at time of allocation) if succesful, else -1 if limit is hit, or -2 if too many lease atempts occured
+	 * @return the concurrency count (or shard count, in sharded mode) at time of allocation if succesful, else -1 if limit is hit, or -2 if too many lease atempts occured
 	 */
 	public long leaseConcurrency_returnCount(String concurrencyID, long lifespan) {
 		return leaseConcurrency_returnCount(concurrencyID, lifespan, -1);
@@ -488,7 +681,7 @@ public class SimpleConcurrencyManager extends ModuleStructure {
 	 * 
 	 * @param concurrencyID   concurrency ID to be used (cannot be blank / null)
 	 * 
-	 * @return the concurrency count (at time of allocation) if succesful, else -1 if limit is hit, or -2 if too many lease atempts occured
+	 * @return the concurrency count (or shard count, in sharded mode) at time of allocation if succesful, else -1 if limit is hit, or -2 if too many lease atempts occured
 	 */
 	public long leaseConcurrency_returnCount(String concurrencyID) {
 		return leaseConcurrency_returnCount(concurrencyID, -1, -1);
@@ -536,6 +729,17 @@ public class SimpleConcurrencyManager extends ModuleStructure {
 	 * @return the concurrency count (at time of release)
 	 */
 	public void releaseConcurrency(String concurrencyID) {
+		// Prefetch mode, returns the permit to the local permit pool (if possible)
+		if (prefetchLimit > 0 && releaseConcurrency_prefetch(concurrencyID)) {
+			return;
+		}
+		
+		// Sharded mode, releases from one of the shards
+		if (shardCount > 1) {
+			releaseConcurrency_sharded(concurrencyID);
+			return;
+		}
+		
 		// Lets release a count
 		String countID = "c_" + concurrencyID;
 		long count = GenericConvert.toLong(concurrencyMap.decrementAndGet(countID), 0);
@@ -576,4 +780,545 @@ public class SimpleConcurrencyManager extends ModuleStructure {
 			"Oh Snap - Unexpected releaseConcurrency call, value is now stuck at :" + count);
 	}
 	
+	//----------------------------------------------------------------
+	//
+	//  Permit prefetching
+	//
+	//----------------------------------------------------------------
+	
+	/**
+	 * Each block lease takes at most 1/PREFETCH_HEADROOM_DIVISOR of the remaining
+	 * headroom below the soft limit, so that other nodes can still lease their own blocks
+	 */
+	protected static final long PREFETCH_HEADROOM_DIVISOR = 4;
+	
+	/**
+	 * Local pool of permits, leased from the backend as a block for a concurrencyID
+	 */
+	protected static class PermitPool {
+		// Unused permits held locally
+		long available = 0;
+		// Concurrency count, as of the last block lease
+		long count = 0;
+		// Last lease / release timestamp
+		long lastUsed = System.currentTimeMillis();
+		// Closed pools, were removed from the pool map (with their permits returned)
+		boolean closed = false;
+		
+		/**
+		 * @return the concurrency count as of the last block lease, if a permit was taken, else -1
+		 */
+		synchronized long take() {
+			if (closed || available <= 0) {
+				return -1;
+			}
+			--available;
+			lastUsed = System.currentTimeMillis();
+			return count;
+		}
+		
+		/**
+		 * Add the permits from a block lease
+		 * 
+		 * @return false, if the pool is closed (and the permits are not added)
+		 */
+		synchronized boolean add(long permits, long inCount) {
+			if (closed) {
+				return false;
+			}
+			available += permits;
+			count = inCount;
+			lastUsed = System.currentTimeMillis();
+			return true;
+		}
+		
+		/**
+		 * Update the concurrency count, as observed from the backend
+		 */
+		synchronized void observe(long inCount) {
+			count = inCount;
+		}
+		
+		/**
+		 * Return a single permit to the pool
+		 * 
+		 * @param softLimit  current soft limit, -1 if unlimited
+		 * @param blockSize  adaptive block size, for the soft limit and count
+		 * 
+		 * @return false, if the pool is closed, full, or past the soft limit (and the permit is not added)
+		 */
+		synchronized boolean release(long softLimit, BiFunction<Long, Long, Long> blockSize) {
+			if (closed || (softLimit > -1 && count >= softLimit)) {
+				return false;
+			}
+			if (available >= blockSize.apply(softLimit, count)) {
+				return false;
+			}
+			++available;
+			lastUsed = System.currentTimeMillis();
+			return true;
+		}
+		
+		/**
+		 * Close the pool, if it has been idle since the given timestamp
+		 * 
+		 * @return the unused permits to return to the backend, -1 if the pool is not closed
+		 */
+		synchronized long close(long idleSince) {
+			if (closed || lastUsed > idleSince) {
+				return -1;
+			}
+			closed = true;
+			long ret = available;
+			available = 0;
+			return ret;
+		}
+	}
+	
+	/**
+	 * Local permit pools, by concurrencyID
+	 */
+	protected ConcurrentHashMap<String, PermitPool> permitPoolMap = new ConcurrentHashMap<>();
+	
+	// Maximum block size to prefetch, 0 disables prefetching
+	protected volatile long prefetchLimit = 0;
+	
+	// Idle time in ms, after which unused permits are returned
+	protected volatile long prefetchIdleTimeout = 1000;
+	
+	// Background executor, used to return idle permits (lazily initialized)
+	protected ScheduledExecutorService prefetchExecutor = null;
+	
+	// Next scheduled idle permit return, on the background executor
+	protected ScheduledFuture<?> idleReturnFuture = null;
+	
+	/**
+	 * @return the maximum number of permits prefetched per block, 0 if prefetching is disabled
+	 */
+	public long prefetchLimit() {
+		return prefetchLimit;
+	}
+	
+	/**
+	 * Configure the permit prefetching. When enabled, `leaseConcurrency` takes a permit from the
+	 * local permit pool if available, else leases a block of permits from the backend with a
+	 * single `addAndGet`. `releaseConcurrency` returns permits to the local pool.
+	 * 
+	 * The block size adapts to the headroom below the soft limit, taking at most a quarter of it
+	 * (and up to the prefetch limit). Once the soft limit is reached, leases fall back to the
+	 * hard limit `weakCompareAndSet` loop, one permit at a time.
+	 * 
+	 * Note that `setConcurrencyCount` does not account for permits pooled on other nodes.
+	 * Prefetching cannot be used together with sharded counters (see `shardCount`), as the
+	 * blocks are leased from a single count key, past the hard limit slice of its shard.
+	 * 
+	 * @param limit maximum number of permits prefetched per block, 0 to disable (returning all pooled permits)
+	 * @return the configured limit
+	 */
+	public synchronized long prefetchLimit(long limit) {
+		if (limit > 0 && shardCount > 1) {
+			throw new IllegalArgumentException("prefetchLimit cannot be used with shardCount > 1");
+		}
+		prefetchLimit = Math.max(0, limit);
+		if (prefetchLimit > 0) {
+			prefetchExecutor();
+		} else {
+			returnPooledPermits(Long.MAX_VALUE);
+		}
+		return prefetchLimit;
+	}
+	
+	/**
+	 * @return the idle time in ms, after which unused permits are returned
+	 */
+	public long prefetchIdleTimeout() {
+		return prefetchIdleTimeout;
+	}
+	
+	/**
+	 * @param timeout idle time in ms, after which unused permits are returned
+	 * @return the configured timeout
+	 */
+	public synchronized long prefetchIdleTimeout(long timeout) {
+		prefetchIdleTimeout = Math.max(1, timeout);
+		
+		// Reschedule the pending idle return, with the new timeout
+		if (prefetchExecutor != null) {
+			if (idleReturnFuture != null) {
+				idleReturnFuture.cancel(false);
+			}
+			scheduleIdleReturn(prefetchExecutor);
+		}
+		return prefetchIdleTimeout;
+	}
+	
+	/**
+	 * @return the number of unused permits, held in the local pool for the concurrencyID
+	 */
+	public long getPooledPermits(String concurrencyID) {
+		PermitPool pool = permitPoolMap.get(concurrencyID);
+		if (pool == null) {
+			return 0;
+		}
+		synchronized (pool) {
+			return pool.available;
+		}
+	}
+	
+	/**
+	 * @return the background executor, initializing it if needed
+	 */
+	protected synchronized ScheduledExecutorService prefetchExecutor() {
+		if (prefetchExecutor == null) {
+			prefetchExecutor = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+				Thread ret = new Thread(runnable, "SimpleConcurrencyManager-prefetch");
+				ret.setDaemon(true);
+				return ret;
+			});
+			scheduleIdleReturn(prefetchExecutor);
+		}
+		return prefetchExecutor;
+	}
+	
+	/**
+	 * Schedule the next idle permit return, which reschedules itself after each run.
+	 * As the delay is read on each run, `prefetchIdleTimeout` changes take effect.
+	 * 
+	 * @param executor  background executor to schedule on
+	 */
+	protected synchronized void scheduleIdleReturn(ScheduledExecutorService executor) {
+		if (executor != prefetchExecutor || executor.isShutdown()) {
+			return;
+		}
+		idleReturnFuture = executor.schedule(() -> {
+			try {
+				returnIdlePermits();
+			} finally {
+				scheduleIdleReturn(executor);
+			}
+		}, prefetchIdleTimeout, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Get the block size to prefetch, given the current limit and count
+	 * 
+	 * @param softLimit  current soft limit, -1 if unlimited
+	 * @param count      current concurrency count
+	 * 
+	 * @return number of permits to lease
+	 */
+	protected long prefetchBlockSize(long softLimit, long count) {
+		if (softLimit <= -1) {
+			return prefetchLimit;
+		}
+		long headroomBlock = (softLimit - count) / PREFETCH_HEADROOM_DIVISOR;
+		return Math.max(1, Math.min(prefetchLimit, headroomBlock));
+	}
+	
+	/**
+	 * leaseConcurrency_returnCount implementation, in prefetch mode
+	 * 
+	 * @param concurrencyID   concurrency ID to be used (cannot be blank / null)
+	 * @param lifespan        lifespan of the limit in ms (resets to zero after the limit), -1 means default (unlimited)
+	 * @param retryCount      number of retries done to get the hard concurrency, -1 means "auto"
+	 * 
+	 * @return the concurrency count (as of the last block lease for pooled permits) if succesful, else -1 if limit is hit, or -2 if too many lease atempts occured
+	 */
+	protected long leaseConcurrency_prefetch(String concurrencyID, long lifespan, int retryCount) {
+		// Take from the local pool, without any backend calls
+		PermitPool pool = permitPoolMap.computeIfAbsent(concurrencyID, (k) -> new PermitPool());
+		long pooledCount = pool.take();
+		if (pooledCount > 0) {
+			return pooledCount;
+		}
+		
+		// Past the soft limit, leases are done one at a time
+		String countID = "c_" + concurrencyID;
+		long softLimit = getSoftLimit(concurrencyID);
+		long count = getConcurrencyCount(concurrencyID);
+		pool.observe(count);
+		if (softLimit > -1 && count >= softLimit) {
+			return leaseConcurrency_hardLimit(countID, lifespan, retryCount, count,
+				getHardLimit(concurrencyID));
+		}
+		
+		// Lease a block of permits
+		long block = prefetchBlockSize(softLimit, count);
+		long updated = concurrencyMap.addAndGet(countID, block);
+		if (lifespan > 0) {
+			concurrencyMap.setLifeSpan(countID, lifespan);
+		}
+		
+		// Trim the block, if other nodes have raced past the soft limit
+		// (keeping the first permit, as per the soft limit increment)
+		long firstCount = updated - block + 1;
+		long keep = block;
+		if (softLimit > -1) {
+			keep = Math.max(1, Math.min(block, softLimit - firstCount + 1));
+		}
+		
+		// Pool the rest, returning those which cannot be used
+		long unused = block - keep;
+		if (keep > 1 && !pool.add(keep - 1, firstCount)) {
+			unused += keep - 1;
+		}
+		if (unused > 0) {
+			returnPermits(concurrencyID, unused);
+		}
+		return firstCount;
+	}
+	
+	/**
+	 * releaseConcurrency implementation, in prefetch mode
+	 * 
+	 * The pool keeps at most the adaptive block size (for the last observed count), and keeps
+	 * none once the count has reached the soft limit - so that near the limit, released permits
+	 * go back to the backend for other nodes to lease.
+	 * 
+	 * @param concurrencyID   concurrency ID to be used (cannot be blank / null)
+	 * 
+	 * @return true, if the permit was returned to the local pool
+	 */
+	protected boolean releaseConcurrency_prefetch(String concurrencyID) {
+		PermitPool pool = permitPoolMap.get(concurrencyID);
+		if (pool == null) {
+			return false;
+		}
+		return pool.release(getSoftLimit(concurrencyID), this::prefetchBlockSize);
+	}
+	
+	/**
+	 * Return unused permits to the backend, normalizing the count to zero if it goes below
+	 * (which can happen if setConcurrencyCount was called, while the permits were pooled)
+	 * 
+	 * @param concurrencyID   concurrency ID to be used (cannot be blank / null)
+	 * @param permits         number of permits to return
+	 */
+	protected void returnPermits(String concurrencyID, long permits) {
+		String countID = "c_" + concurrencyID;
+		long count = GenericConvert.toLong(concurrencyMap.addAndGet(countID, -permits), 0);
+		if (count < 0) {
+			// Best effort, a failure means the count was updated concurrently
+			concurrencyMap.weakCompareAndSet(countID, count, 0l);
+		}
+	}
+	
+	/**
+	 * Return the permits of local pools, which are idle since the given timestamp
+	 * 
+	 * @param idleSince  timestamp, Long.MAX_VALUE for all pools
+	 * 
+	 * @return number of permits returned
+	 */
+	protected long returnPooledPermits(long idleSince) {
+		long ret = 0;
+		for (Map.Entry<String, PermitPool> entry : permitPoolMap.entrySet()) {
+			long permits = entry.getValue().close(idleSince);
+			if (permits < 0) {
+				continue;
+			}
+			permitPoolMap.remove(entry.getKey(), entry.getValue());
+			if (permits > 0) {
+				returnPermits(entry.getKey(), permits);
+				ret += permits;
+			}
+		}
+		return ret;
+	}
+	
+	/**
+	 * Return the unused permits of local pools, which are idle for `prefetchIdleTimeout`.
+	 * This is called periodically by the background executor.
+	 * 
+	 * @return number of permits returned
+	 */
+	public long returnIdlePermits() {
+		return returnPooledPermits(System.currentTimeMillis() - prefetchIdleTimeout);
+	}
+	
+	/**
+	 * Return all unused permits, and stop the background executor
+	 * (it is reinitialized if prefetching is reconfigured)
+	 */
+	public synchronized void shutdown() {
+		returnPooledPermits(Long.MAX_VALUE);
+		if (prefetchExecutor != null) {
+			prefetchExecutor.shutdownNow();
+			prefetchExecutor = null;
+			idleReturnFuture = null;
+		}
+	}
+	
+	//----------------------------------------------------------------
+	//
+	//  Sharded counters
+	//
+	//----------------------------------------------------------------
+	
+	// Number of shards each concurrency count is spread over, 1 disables sharding
+	protected volatile int shardCount = 1;
+	
+	/**
+	 * @return the number of shards each concurrency count is spread over
+	 */
+	public int shardCount() {
+		return shardCount;
+	}
+	
+	/**
+	 * Configure the number of shards each concurrency count is spread over.
+	 * 
+	 * The first shard uses the same key as the unsharded count, which is also used by
+	 * `leaseUncheckedConcurrency` and `leaseSoftConcurrency`.
+	 * The count of the other shards are not migrated when this is changed, so this should be
+	 * configured consistently across all nodes, before the concurrencyIDs are used.
+	 * 
+	 * Sharding cannot be used together with permit prefetching (see `prefetchLimit`)
+	 * 
+	 * @param shards number of shards, 1 to disable sharding
+	 * @return the configured shard count
+	 */
+	public synchronized int shardCount(int shards) {
+		if (shards < 1) {
+			throw new IllegalArgumentException("Invalid shardCount : " + shards);
+		}
+		if (shards > 1 && prefetchLimit > 0) {
+			throw new IllegalArgumentException("shardCount > 1 cannot be used with prefetchLimit");
+		}
+		return shardCount = shards;
+	}
+	
+	/**
+	 * @return the count key used for the given shard
+	 */
+	protected static String shardCountID(String concurrencyID, int shard) {
+		return (shard == 0) ? "c_" + concurrencyID : "c" + shard + "_" + concurrencyID;
+	}
+	
+	/**
+	 * Get the slice of a limit, for the given shard. The slices of all shards sum to the limit.
+	 * 
+	 * @param limit  soft or hard limit, -1 if unlimited
+	 * @param shard  to get the slice for
+	 * 
+	 * @return the shard limit, -1 if unlimited
+	 */
+	protected long shardLimit(long limit, int shard) {
+		if (limit <= -1) {
+			return limit;
+		}
+		return limit / shardCount + ((shard < limit % shardCount) ? 1 : 0);
+	}
+	
+	/**
+	 * leaseConcurrency_returnCount implementation, in sharded mode
+	 * 
+	 * @param concurrencyID   concurrency ID to be used (cannot be blank / null)
+	 * @param lifespan        lifespan of the limit in ms (resets to zero after the limit), -1 means default (unlimited)
+	 * @param retryCount      number of retries done to get the hard concurrency for each shard, -1 means "auto"
+	 * 
+	 * @return the shard count (at time of allocation) if succesful, else -1 if limit is hit, or -2 if too many lease atempts occured
+	 */
+	protected long leaseConcurrency_sharded(String concurrencyID, long lifespan, int retryCount) {
+		int shards = shardCount;
+		int start = ThreadLocalRandom.current().nextInt(shards);
+		long softLimit = getSoftLimit(concurrencyID);
+		long hardLimit = -2;
+		long ret = -1;
+		
+		// Try the random shard, then its neighbours
+		for (int i = 0; i < shards; ++i) {
+			int shard = (start + i) % shards;
+			String countID = shardCountID(concurrencyID, shard);
+			long count = GenericConvert.toLong(concurrencyMap.getValue(countID), 0);
+			
+			// Does the soft limit based increment
+			if (softLimit <= -1 || count < shardLimit(softLimit, shard)) {
+				long updated = concurrencyMap.incrementAndGet(countID);
+				if (lifespan > 0) {
+					concurrencyMap.setLifeSpan(countID, lifespan);
+				}
+				return updated;
+			}
+			
+			// Hard limit based increment (the hard limit is only fetched if needed)
+			if (hardLimit == -2) {
+				hardLimit = getHardLimit(concurrencyID);
+			}
+			long res = leaseConcurrency_hardLimit(countID, lifespan, retryCount, count,
+				shardLimit(hardLimit, shard));
+			if (res >= 0) {
+				return res;
+			}
+			
+			// Report contention over the limit, if any shard was contended
+			ret = Math.min(ret, res);
+		}
+		return ret;
+	}
+	
+	/**
+	 * releaseConcurrency implementation, in sharded mode.
+	 * 
+	 * Decrements a random shard, falling back to its neighbours. A shard which goes below zero
+	 * (the lease was from another shard) is incremented back, before moving on to the next.
+	 * If all shards are at zero, the last shard is normalized back to zero.
+	 * 
+	 * @param concurrencyID   concurrency ID to be used (cannot be blank / null)
+	 */
+	protected void releaseConcurrency_sharded(String concurrencyID) {
+		int shards = shardCount;
+		int start = ThreadLocalRandom.current().nextInt(shards);
+		for (int i = 0; i < shards; ++i) {
+			String countID = shardCountID(concurrencyID, (start + i) % shards);
+			long count = GenericConvert.toLong(concurrencyMap.decrementAndGet(countID), 0);
+			if (count >= 0) {
+				return;
+			}
+			
+			// Over released shard, undo the decrement and try the next shard
+			if (i < shards - 1) {
+				concurrencyMap.incrementAndGet(countID);
+				continue;
+			}
+			
+			// All shards are at zero, normalize the last shard (best effort, as per returnPermits)
+			concurrencyMap.weakCompareAndSet(countID, count, 0l);
+		}
+	}
+	
+	/**
+	 * getConcurrencyCount implementation, in sharded mode
+	 * 
+	 * @param concurrencyID   concurrency ID to be used (cannot be blank / null)
+	 * 
+	 * @return sum of all shard counts
+	 */
+	protected long getConcurrencyCount_sharded(String concurrencyID) {
+		long ret = 0;
+		for (int shard = 0; shard < shardCount; ++shard) {
+			Long val = concurrencyMap.getValue(shardCountID(concurrencyID, shard));
+			ret += (val == null) ? 0 : val.longValue();
+		}
+		return ret;
+	}
+	
+	/**
+	 * setConcurrencyCount implementation, in sharded mode.
+	 * The count is spread evenly over the shards.
+	 * 
+	 * @param concurrencyID   concurrency ID to be used (cannot be blank / null)
+	 * @param count           concurrency count to set
+	 * @param lifespan        lifespan of the limit in ms (resets to zero after the limit), -1 means default (unlimited)
+	 */
+	protected void setConcurrencyCount_sharded(String concurrencyID, long count, long lifespan) {
+		for (int shard = 0; shard < shardCount; ++shard) {
+			String countID = shardCountID(concurrencyID, shard);
+			concurrencyMap.putValue(countID, shardLimit(count, shard));
+			if (lifespan > 0) {
+				concurrencyMap.setLifeSpan(countID, lifespan);
+			}
+		}
+	}
+	
 }
\ No newline at end of file
@@ -0,0 +1,170 @@
+package picoded.dstack.module.lock;
+
+import java.util.*;
+
+/**
+ * # SpaceSavingSketch
+ * 
+ * Space-saving top-K frequency sketch (Metwally et al), used to track the most frequent
+ * keys of a stream within a fixed amount of memory.
+ * 
+ * Up to `capacity` keys are counted. When a new key is offered while full, it replaces the
+ * key with the lowest count, and inherits that count (which is tracked as its error). As such
+ * counts are overestimated by at most the error, and any key with a true count above
+ * `total / capacity` is guaranteed to be tracked.
+ * 
+ * Keys are also grouped into buckets by their count (the Stream-Summary structure), so that
+ * the lowest count key is found without scanning every tracked key.
+ **/
+public class SpaceSavingSketch {
+	
+	//----------------------------------------------------------------
+	//
+	//  Constructor
+	//
+	//----------------------------------------------------------------
+	
+	/**
+	 * Setup the sketch, with the number of keys to track
+	 * 
+	 * @param  inCapacity  maximum number of keys tracked
+	 **/
+	public SpaceSavingSketch(int inCapacity) {
+		if (inCapacity <= 0) {
+			throw new IllegalArgumentException("Invalid sketch capacity : " + inCapacity);
+		}
+		capacity = inCapacity;
+	}
+	
+	/**
+	 * Maximum number of keys tracked
+	 */
+	protected final int capacity;
+	
+	/**
+	 * Tracked keys, with their { count, error }
+	 */
+	protected final HashMap<String, long[]> counters = new HashMap<String, long[]>();
+	
+	/**
+	 * Tracked keys, grouped by their count (in insertion order within each count)
+	 */
+	protected final TreeMap<Long, LinkedHashSet<String>> countBuckets = new TreeMap<>();
+	
+	/**
+	 * Total count offered
+	 */
+	protected long total = 0;
+	
+	//----------------------------------------------------------------
+	//
+	//  Sketch handling
+	//
+	//----------------------------------------------------------------
+	
+	/**
+	 * Count an occurance of the key
+	 * 
+	 * @param key  to count
+	 */
+	public void offer(String key) {
+		offer(key, 1);
+	}
+	
+	/**
+	 * Count multiple occurances of the key
+	 * 
+	 * @param key        to count
+	 * @param increment  number of occurances
+	 */
+	public synchronized void offer(String key, long increment) {
+		total += increment;
+		
+		// Already tracked, or there is free capacity
+		long[] counter = counters.get(key);
+		if (counter != null) {
+			removeFromBucket(key, counter[0]);
+			counter[0] += increment;
+			addToBucket(key, counter[0]);
+			return;
+		}
+		if (counters.size() < capacity) {
+			counters.put(key, new long[] { increment, 0 });
+			addToBucket(key, increment);
+			return;
+		}
+		
+		// Replace the lowest count key, inheriting its count as the error
+		Map.Entry<Long, LinkedHashSet<String>> minBucket = countBuckets.firstEntry();
+		long minCount = minBucket.getKey();
+		String minKey = minBucket.getValue().iterator().next();
+		removeFromBucket(minKey, minCount);
+		counters.remove(minKey);
+		counters.put(key, new long[] { minCount + increment, minCount });
+		addToBucket(key, minCount + increment);
+	}
+	
+	/**
+	 * Add the key to its count bucket
+	 */
+	protected void addToBucket(String key, long count) {
+		countBuckets.computeIfAbsent(count, (k) -> new LinkedHashSet<String>()).add(key);
+	}
+	
+	/**
+	 * Remove the key from its count bucket, removing the bucket if it is empty
+	 */
+	protected void removeFromBucket(String key, long count) {
+		LinkedHashSet<String> bucket = countBuckets.get(count);
+		bucket.remove(key);
+		if (bucket.isEmpty()) {
+			countBuckets.remove(count);
+		}
+	}
+	
+	/**
+	 * Get the most frequent keys, with their estimated count
+	 * 
+	 * @param k  number of keys to return
+	 * 
+	 * @return key to its estimated count (an upper bound), by descending count
+	 */
+	public synchronized LinkedHashMap<String, Long> topK(int k) {
+		LinkedHashMap<String, Long> ret = new LinkedHashMap<String, Long>();
+		for (Map.Entry<Long, LinkedHashSet<String>> bucket : countBuckets.descendingMap()
+			.entrySet()) {
+			for (String key : bucket.getValue()) {
+				if (ret.size() >= k) {
+					return ret;
+				}
+				ret.put(key, bucket.getKey());
+			}
+		}
+		return ret;
+	}
+	
+	/**
+	 * @return the maximum overestimation of the key count, -1 if it is not tracked
+	 */
+	public synchronized long getError(String key) {
+		long[] counter = counters.get(key);
+		return (counter == null) ? -1 : counter[1];
+	}
+	
+	/**
+	 * @return the total count offered
+	 */
+	public synchronized long total() {
+		return total;
+	}
+	
+	/**
+	 * Reset the sketch
+	 */
+	public synchronized void clear() {
+		counters.clear();
+		countBuckets.clear();
+		total = 0;
+	}
+	
+}
@@ -0,0 +1,642 @@
+package picoded.dstack.module.lock;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import picoded.dstack.*;
+import picoded.dstack.core.*;
+import picoded.core.conv.*;
+
+/**
+ * # StripedKeyLongMap
+ * 
+ * In memory KeyLongMap implementation, specialised for the lock and counter workloads of this
+ * module (constant compare-and-set, and lifespan updates).
+ * For single node deployments (or testing).
+ * 
+ * - Keys are split across multiple stripes, each an open addressing table of entries
+ * - Entry values are primitive longs, updated using lock-free compare-and-set
+ * - Only key insertion and removal takes the stripe lock
+ * - Expired entries are removed by a hashed timing wheel, which is advanced by the map
+ *   operations themselves, reads included (no background thread is used)
+ * 
+ * Lookups do not check the entry expiry, an entry is live till the timing wheel removes it.
+ * As the wheel is advanced before every operation, an entry expires within a tick of its
+ * expiry (the expiry is effectively rounded up to the tick). An operation which finds the
+ * wheel being advanced by another thread, may see such an entry for the rest of that tick.
+ * 
+ * This is used with the existing KeyLongMap constructors of the lock modules, for example
+ * `new LockTokenManager(new StripedKeyLongMap())`
+ * 
+ * Note that as this is purely in memory, values are NOT shared across multiple JVM's.
+ **/
+public class StripedKeyLongMap extends Core_KeyLongMap {
+	
+	//----------------------------------------------------------------
+	//
+	//  Constructor
+	//
+	//----------------------------------------------------------------
+	
+	/**
+	 * Setup the map, with the given number of stripes, and timing wheel tick
+	 * 
+	 * @param  inStripes  number of stripes (rounded up to a power of 2)
+	 * @param  inTickMs   timing wheel tick in ms, expired entries are removed within a tick
+	 **/
+	public StripedKeyLongMap(int inStripes, long inTickMs) {
+		if (inStripes <= 0 || inTickMs <= 0) {
+			throw new IllegalArgumentException("Stripes and tick must be above 0");
+		}
+		
+		// Setup the stripes
+		int stripeCount = 1;
+		while (stripeCount < inStripes && stripeCount < MAX_STRIPES) {
+			stripeCount <<= 1;
+		}
+		stripes = new Stripe[stripeCount];
+		for (int i = 0; i < stripes.length; ++i) {
+			stripes[i] = new Stripe();
+		}
+		
+		// Setup the timing wheel
+		tickMs = inTickMs;
+		wheel = new ArrayList<ConcurrentLinkedQueue<Entry>>(WHEEL_SIZE);
+		for (int i = 0; i < WHEEL_SIZE; ++i) {
+			wheel.add(new ConcurrentLinkedQueue<Entry>());
+		}
+		wheelTick = System.currentTimeMillis() / tickMs;
+	}
+	
+	/**
+	 * Setup the map, with 16 stripes, and a 10ms timing wheel tick
+	 **/
+	public StripedKeyLongMap() {
+		this(16, 10);
+	}
+	
+	//----------------------------------------------------------------
+	//
+	//  Internal storage
+	//
+	//----------------------------------------------------------------
+	
+	/**
+	 * Mutable entry, with a primitive value and its expiry timestamp.
+	 * 
+	 * Entries are never moved between stripes, or reused once removed. As such a lock-free
+	 * update of an entry, only needs to check that it was not removed concurrently.
+	 */
+	protected static class Entry {
+		final String key;
+		volatile long value;
+		volatile long expiry;
+		volatile boolean removed = false;
+		
+		// Timing wheel tick, the entry is queued for (0 if not queued)
+		volatile long queuedTick = 0l;
+		
+		Entry(String inKey, long inValue, long inExpiry) {
+			key = inKey;
+			value = inValue;
+			expiry = inExpiry;
+		}
+		
+		/**
+		 * @return true, if entry has expired at the given timestamp
+		 */
+		boolean isExpired(long now) {
+			return expiry > 0l && expiry <= now;
+		}
+	}
+	
+	// Atomic updaters, for the entry fields
+	protected static final AtomicLongFieldUpdater<Entry> ENTRY_VALUE = AtomicLongFieldUpdater
+		.newUpdater(Entry.class, "value");
+	protected static final AtomicLongFieldUpdater<Entry> ENTRY_QUEUED_TICK = AtomicLongFieldUpdater
+		.newUpdater(Entry.class, "queuedTick");
+	
+	/**
+	 * Placeholder for removed entries, in the open addressing tables
+	 */
+	protected static final Entry TOMBSTONE = new Entry(null, 0l, 0l);
+	
+	/**
+	 * Open addressing table (linear probing), for a single stripe.
+	 * 
+	 * Lookups are done without locking, while slot changes are done under the stripe lock.
+	 * The table is replaced as a whole on resize, with the same entries.
+	 */
+	protected static class Stripe {
+		volatile AtomicReferenceArray<Entry> table = new AtomicReferenceArray<Entry>(MIN_CAPACITY);
+		
+		// Number of live entries, and slots used (including tombstones)
+		int size = 0;
+		int used = 0;
+	}
+	
+	// Table sizing
+	protected static final int MIN_CAPACITY = 16;
+	protected static final int MAX_STRIPES = 1 << 16;
+	
+	/**
+	 * Stripes used, selected by the key hash
+	 */
+	protected final Stripe[] stripes;
+	
+	/**
+	 * Spread the key hash, the upper bits are used for the stripe selection, and the lower
+	 * bits for the table slot.
+	 */
+	protected static int spread(String key) {
+		int h = key.hashCode() * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+	
+	/**
+	 * @return the stripe, for the given hash
+	 */
+	protected Stripe stripeFor(int hash) {
+		return stripes[(hash >>> 16) & (stripes.length - 1)];
+	}
+	
+	/**
+	 * Lookup the entry for the key, without locking
+	 * 
+	 * @param key   to lookup
+	 * 
+	 * @return live entry, else null if missing (or removed by the timing wheel)
+	 */
+	protected Entry liveEntry(String key) {
+		int hash = spread(key);
+		AtomicReferenceArray<Entry> table = stripeFor(hash).table;
+		int mask = table.length() - 1;
+		for (int i = hash & mask, probe = 0; probe <= mask; i = (i + 1) & mask, ++probe) {
+			Entry entry = table.get(i);
+			if (entry == null) {
+				return null;
+			}
+			if (entry != TOMBSTONE && entry.key.equals(key)) {
+				return entry.removed ? null : entry;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Insert an entry for the key, if it is missing
+	 * 
+	 * @param key      to insert
+	 * @param value    to insert with
+	 * @param expiry   timestamp to insert with, 0 for no expiry
+	 * @param replace  overwrite the existing entry value and expiry, if it exists
+	 * 
+	 * @return the inserted (or replaced) entry, null if a live entry already existed
+	 */
+	protected Entry insertEntry(String key, long value, long expiry, boolean replace) {
+		int hash = spread(key);
+		Stripe stripe = stripeFor(hash);
+		Entry ret = null;
+		
+		synchronized (stripe) {
+			// Resize (or clear the tombstones) if needed, before any slot changes
+			if ((stripe.used + 1) * 4 > stripe.table.length() * 3) {
+				resizeStripe(stripe);
+			}
+			
+			// Find the existing entry, or the first free slot
+			AtomicReferenceArray<Entry> table = stripe.table;
+			int mask = table.length() - 1;
+			int freeSlot = -1;
+			for (int i = hash & mask, probe = 0; probe <= mask; i = (i + 1) & mask, ++probe) {
+				Entry entry = table.get(i);
+				if (entry == null) {
+					freeSlot = (freeSlot < 0) ? i : freeSlot;
+					break;
+				}
+				if (entry == TOMBSTONE) {
+					freeSlot = (freeSlot < 0) ? i : freeSlot;
+					continue;
+				}
+				if (!entry.key.equals(key)) {
+					continue;
+				}
+				
+				// Existing live entry
+				if (!replace) {
+					return null;
+				}
+				entry.value = value;
+				entry.expiry = expiry;
+				ret = entry;
+				break;
+			}
+			
+			// Insert as a new entry
+			if (ret == null) {
+				ret = new Entry(key, value, expiry);
+				if (table.get(freeSlot) == null) {
+					++stripe.used;
+				}
+				++stripe.size;
+				table.set(freeSlot, ret);
+			}
+		}
+		
+		// Queue the expiry (outside the stripe lock)
+		scheduleExpiry(ret);
+		return ret;
+	}
+	
+	/**
+	 * Remove the given entry, from its stripe
+	 * 
+	 * @param entry        to remove
+	 * @param onlyExpired  only remove the entry, if it is still expired
+	 * 
+	 * @return true, if the entry was removed
+	 */
+	protected boolean removeEntry(Entry entry, boolean onlyExpired) {
+		int hash = spread(entry.key);
+		Stripe stripe = stripeFor(hash);
+		synchronized (stripe) {
+			// Expiry could have been renewed, since it was checked
+			if (entry.removed || (onlyExpired && !entry.isExpired(System.currentTimeMillis()))) {
+				return false;
+			}
+			
+			// Find the exact entry and remove it
+			AtomicReferenceArray<Entry> table = stripe.table;
+			int mask = table.length() - 1;
+			for (int i = hash & mask, probe = 0; probe <= mask; i = (i + 1) & mask, ++probe) {
+				Entry slot = table.get(i);
+				if (slot == null) {
+					break;
+				}
+				if (slot == entry) {
+					entry.removed = true;
+					table.set(i, TOMBSTONE);
+					--stripe.size;
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Rebuild the stripe table, without its tombstones, and with enough capacity for it
+	 * to be at most half full. Must be called within the stripe lock.
+	 * 
+	 * @param stripe   to resize
+	 */
+	protected void resizeStripe(Stripe stripe) {
+		int capacity = MIN_CAPACITY;
+		while (capacity < (stripe.size + 1) * 2) {
+			capacity <<= 1;
+		}
+		
+		// Move the live entries, over to the new table
+		AtomicReferenceArray<Entry> table = stripe.table;
+		AtomicReferenceArray<Entry> resized = new AtomicReferenceArray<Entry>(capacity);
+		int mask = capacity - 1;
+		for (int i = 0; i < table.length(); ++i) {
+			Entry entry = table.get(i);
+			if (entry == null || entry == TOMBSTONE || entry.removed) {
+				continue;
+			}
+			int slot = spread(entry.key) & mask;
+			while (resized.get(slot) != null) {
+				slot = (slot + 1) & mask;
+			}
+			resized.set(slot, entry);
+		}
+		
+		// And use it
+		stripe.table = resized;
+		stripe.used = stripe.size;
+	}
+	
+	//----------------------------------------------------------------
+	//
+	//  Timing wheel expiry
+	//
+	//----------------------------------------------------------------
+	
+	// Number of timing wheel buckets (a power of 2)
+	protected static final int WHEEL_SIZE = 512;
+	
+	/**
+	 * Timing wheel buckets, entries are queued in the bucket of the tick after their expiry.
+	 * 
+	 * Expiry beyond a full rotation, are queued at the last bucket of the rotation, and
+	 * requeued when processed. Renewed entries are only requeued when an earlier tick is
+	 * needed, otherwise they are requeued lazily when their current tick is processed.
+	 */
+	protected final List<ConcurrentLinkedQueue<Entry>> wheel;
+	
+	// Timing wheel tick size, and the last processed tick
+	protected final long tickMs;
+	protected volatile long wheelTick;
+	
+	// Lock held while advancing the wheel
+	protected final ReentrantLock wheelLock = new ReentrantLock();
+	
+	/**
+	 * Queue the entry on the timing wheel, according to its expiry
+	 * 
+	 * @param entry   to queue
+	 */
+	protected void scheduleExpiry(Entry entry) {
+		long expiry = entry.expiry;
+		if (expiry <= 0l) {
+			return;
+		}
+		
+		// Tick to queue the entry in, within the current rotation
+		long processedTick = wheelTick;
+		long tick = Math.max(expiry / tickMs + 1, processedTick + 1);
+		tick = Math.min(tick, processedTick + WHEEL_SIZE - 1);
+		
+		while (true) {
+			// Already queued for an earlier tick
+			long queued = entry.queuedTick;
+			if (queued != 0l && queued <= tick) {
+				return;
+			}
+			if (ENTRY_QUEUED_TICK.compareAndSet(entry, queued, tick)) {
+				wheel.get((int) (tick & (WHEEL_SIZE - 1))).add(entry);
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Advance the timing wheel to the current time, removing expired entries. This is done
+	 * by one thread at a time, with other threads skipping it.
+	 */
+	protected void advanceWheel() {
+		// Quick skip, when there is nothing to do
+		long currentTick = System.currentTimeMillis() / tickMs;
+		if (currentTick <= wheelTick || !wheelLock.tryLock()) {
+			return;
+		}
+		
+		try {
+			// Process each elapsed tick (up to a full rotation)
+			long now = System.currentTimeMillis();
+			long fromTick = Math.max(wheelTick + 1, currentTick - WHEEL_SIZE + 1);
+			for (long tick = fromTick; tick <= currentTick; ++tick) {
+				wheelTick = tick;
+				processWheelBucket(tick, now);
+			}
+		} finally {
+			wheelLock.unlock();
+		}
+	}
+	
+	/**
+	 * Process the timing wheel bucket, for the given tick
+	 * 
+	 * @param tick    being processed
+	 * @param now     timestamp to check the expiry with
+	 */
+	protected void processWheelBucket(long tick, long now) {
+		ConcurrentLinkedQueue<Entry> bucket = wheel.get((int) (tick & (WHEEL_SIZE - 1)));
+		Entry entry;
+		while ((entry = bucket.poll()) != null) {
+			// Skip entries which were since queued for a later tick
+			long queued = entry.queuedTick;
+			if (queued == 0l || queued > tick
+				|| !ENTRY_QUEUED_TICK.compareAndSet(entry, queued, 0l)) {
+				continue;
+			}
+			
+			// Remove the expired entry, or queue it again (expiry was renewed)
+			if (entry.removed) {
+				continue;
+			}
+			if (entry.isExpired(now)) {
+				removeEntry(entry, true);
+			} else {
+				scheduleExpiry(entry);
+			}
+		}
+	}
+	
+	//----------------------------------------------------------------
+	//
+	//  Core_KeyLongMap implementation
+	//
+	//----------------------------------------------------------------
+	
+	/**
+	 * Get the value of a key, without boxing the entry itself
+	 * 
+	 * @param key   to lookup
+	 * @param now   timestamp of the lookup (unused, see the timing wheel expiry)
+	 * 
+	 * @return the value, null if it does not exist
+	 */
+	protected Long getValueRaw(String key, long now) {
+		advanceWheel();
+		Entry entry = liveEntry(key);
+		return (entry == null) ? null : entry.value;
+	}
+	
+	/**
+	 * Set the value of a key, with its expiry
+	 * 
+	 * @param key      to update
+	 * @param value    to set, null to remove the key
+	 * @param expire   timestamp to expire at, 0 for no expiry
+	 * 
+	 * @return null
+	 */
+	protected Long setValueRaw(String key, Long value, long expire) {
+		advanceWheel();
+		if (value == null) {
+			Entry entry = liveEntry(key);
+			if (entry != null) {
+				removeEntry(entry, false);
+			}
+			return null;
+		}
+		insertEntry(key, value, expire, true);
+		return null;
+	}
+	
+	/**
+	 * Get the expiry timestamp of a key
+	 * 
+	 * @param key   to lookup
+	 * 
+	 * @return -1 if key does not exist, 0 if no expiry is configured, >0 is the expiry
+	 */
+	public long getExpiryRaw(String key) {
+		advanceWheel();
+		Entry entry = liveEntry(key);
+		return (entry == null) ? -1l : entry.expiry;
+	}
+	
+	/**
+	 * Set the expiry timestamp of an existing key
+	 * 
+	 * @param key    to update
+	 * @param time   timestamp to expire at, 0 for no expiry
+	 */
+	public void setExpiryRaw(String key, long time) {
+		advanceWheel();
+		Entry entry = liveEntry(key);
+		if (entry != null) {
+			entry.expiry = time;
+			scheduleExpiry(entry);
+		}
+	}
+	
+	/**
+	 * Atomic compare-and-set, missing keys are treated as 0l
+	 * 
+	 * @param key      to update
+	 * @param expect   expected current value
+	 * @param update   value to update to
+	 * 
+	 * @return true if the value was updated
+	 */
+	public boolean weakCompareAndSet(String key, Long expect, Long update) {
+		advanceWheel();
+		long expectValue = (expect == null) ? 0l : expect;
+		long updateValue = (update == null) ? 0l : update;
+		
+		while (true) {
+			// Missing key, insert it if it is still missing
+			Entry entry = liveEntry(key);
+			if (entry == null) {
+				if (expectValue != 0l) {
+					return false;
+				}
+				if (insertEntry(key, updateValue, 0l, false) != null) {
+					return true;
+				}
+				continue;
+			}
+			
+			// Lock-free update of the existing entry
+			if (ENTRY_VALUE.compareAndSet(entry, expectValue, updateValue)) {
+				if (!entry.removed) {
+					return true;
+				}
+			} else if (!entry.removed) {
+				return false;
+			}
+			// Entry was removed concurrently, retry with its replacement
+		}
+	}
+	
+	/**
+	 * Atomic add, missing keys are treated as 0l
+	 * 
+	 * @param key     to update
+	 * @param delta   to add
+	 * 
+	 * @return the value before the update
+	 */
+	public Long getAndAdd(Object key, Object delta) {
+		advanceWheel();
+		String keyStr = key.toString();
+		long deltaValue = GenericConvert.toLong(delta, 0l);
+		
+		while (true) {
+			// Missing key, insert it if it is still missing
+			Entry entry = liveEntry(keyStr);
+			if (entry == null) {
+				if (insertEntry(keyStr, deltaValue, 0l, false) != null) {
+					return 0l;
+				}
+				continue;
+			}
+			
+			// Lock-free update of the existing entry
+			long current = entry.value;
+			if (ENTRY_VALUE.compareAndSet(entry, current, current + deltaValue) && !entry.removed) {
+				return current;
+			}
+		}
+	}
+	
+	/**
+	 * Get the keys, with the given value
+	 * 
+	 * @param value   to filter with, null for all keys
+	 * 
+	 * @return set of keys
+	 */
+	public Set<String> keySet(Long value) {
+		advanceWheel();
+		Set<String> ret = new HashSet<String>();
+		for (Stripe stripe : stripes) {
+			AtomicReferenceArray<Entry> table = stripe.table;
+			for (int i = 0; i < table.length(); ++i) {
+				Entry entry = table.get(i);
+				if (entry == null || entry == TOMBSTONE || entry.removed) {
+					continue;
+				}
+				if (value == null || entry.value == value) {
+					ret.add(entry.key);
+				}
+			}
+		}
+		return ret;
+	}
+	
+	//----------------------------------------------------------------
+	//
+	//  Setup / teardown / maintenance
+	//
+	//----------------------------------------------------------------
+	
+	/**
+	 * Setup the map (nothing to do, as it is in memory)
+	 */
+	public void systemSetup() {
+		// Does nothing
+	}
+	
+	/**
+	 * Teardown the map, removing all its values
+	 */
+	public void systemDestroy() {
+		clear();
+	}
+	
+	/**
+	 * Advance the timing wheel, removing expired entries
+	 */
+	public void maintenance() {
+		advanceWheel();
+	}
+	
+	/**
+	 * Remove all values
+	 */
+	public void clear() {
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				AtomicReferenceArray<Entry> table = stripe.table;
+				for (int i = 0; i < table.length(); ++i) {
+					Entry entry = table.get(i);
+					if (entry != null) {
+						entry.removed = true;
+					}
+				}
+				stripe.table = new AtomicReferenceArray<Entry>(MIN_CAPACITY);
+				stripe.size = 0;
+				stripe.used = 0;
+			}
+		}
+	}
+	
+}
@@ -0,0 +1,115 @@
+package picoded.dstack.module.lock;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import picoded.dstack.module.*;
+import picoded.dstack.*;
+
+public class CoalescingLockStore_test extends BaseTestStack {
+	
+	// Test setup
+	//-----------------------------------------------------
+	
+	/**
+	 * Internal test objects being tested
+	 */
+	public LockStore_test.CountingLockStore countingStore = null;
+	public CoalescingLockStore coalescingStore = null;
+	public LockTokenManager testObj = null;
+	
+	/**
+	 * [to override if needed]
+	 * Does the internal stack setup
+	 */
+	@Before
+	public void systemSetup() {
+		super.systemSetup();
+		countingStore = new LockStore_test.CountingLockStore(new KeyLongMapLockStore(
+			stack.keyLongMap(ramdomTableName())));
+		countingStore.latency = 20;
+		testObj = new LockTokenManager(countingStore);
+		coalescingStore = testObj.enableLocalCoalescing();
+		testObj.systemSetup();
+	}
+	
+	// Lets get testing!
+	//-----------------------------------------------------
+	
+	// Timeout range to be used across test
+	long lockTimeoutRange() {
+		return 2000;
+	}
+	
+	// Many threads racing for a single lock, results in a single backend call
+	@Test
+	public void hotLockCoalescing() throws Exception {
+		int threadCount = 50;
+		ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+		CyclicBarrier barrier = new CyclicBarrier(threadCount);
+		AtomicInteger successCount = new AtomicInteger(0);
+		
+		// Race for the lock
+		List<Future<?>> futures = new ArrayList<>();
+		for (int i = 0; i < threadCount; ++i) {
+			futures.add(executor.submit(() -> {
+				barrier.await();
+				if (testObj.issueLockToken("hot", lockTimeoutRange()) > 0l) {
+					successCount.incrementAndGet();
+				}
+				return null;
+			}));
+		}
+		for (Future<?> f : futures) {
+			f.get();
+		}
+		executor.shutdown();
+		
+		// Only one winner, with a single backend call
+		assertEquals(1, successCount.get());
+		assertEquals(1, countingStore.getAndReset());
+	}
+	
+	// Local handoff of a released lock, to a waiting thread
+	@Test
+	public void localHandoff() throws Exception {
+		coalescingStore.handoffWaitTime(lockTimeoutRange());
+		
+		// Lock it
+		long token = testObj.issueLockToken("hello", lockTimeoutRange());
+		assertTrue(token > 0l);
+		countingStore.getAndReset();
+		
+		// Waiting thread
+		AtomicLong waitingToken = new AtomicLong(0);
+		Thread waiter = new Thread(() -> {
+			waitingToken.set(testObj.issueLockToken("hello", lockTimeoutRange()));
+		});
+		waiter.start();
+		Thread.sleep(100);
+		
+		// Release, and handoff (in a single backend call)
+		assertTrue(testObj.returnLockToken("hello", token));
+		waiter.join();
+		assertTrue(waitingToken.get() > 0l);
+		assertEquals(1, countingStore.getAndReset());
+		
+		// Lock is now held by the waiting thread token
+		assertTrue(testObj.isLocked("hello"));
+		assertTrue(testObj.returnLockToken("hello", waitingToken.get()));
+		assertFalse(testObj.isLocked("hello"));
+	}
+	
+	// Handoff wait timeout
+	@Test
+	public void localHandoffTimeout() {
+		coalescingStore.handoffWaitTime(50);
+		assertTrue(testObj.issueLockToken("hello", lockTimeoutRange()) > 0l);
+		assertEquals(-1, testObj.issueLockToken("hello", lockTimeoutRange()));
+	}
+}
@@ -0,0 +1,67 @@
+package picoded.dstack.module.lock;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import picoded.dstack.module.*;
+import picoded.dstack.*;
+
+public class DistributedBarrier_test extends BaseTestStack {
+	
+	// Test setup
+	//-----------------------------------------------------
+	
+	/**
+	 * Internal test object being tested
+	 */
+	public DistributedBarrier testObj = null;
+	
+	/**
+	 * [to override if needed]
+	 * Does the internal stack setup
+	 */
+	@Before
+	public void systemSetup() {
+		super.systemSetup();
+		testObj = new DistributedBarrier(stack, ramdomTableName());
+		testObj.systemSetup();
+	}
+	
+	// Lets get testing!
+	//-----------------------------------------------------
+	
+	// Incomplete phase times out
+	@Test
+	public void timeout() throws Exception {
+		assertEquals(-1, testObj.await("hello", 2, 10000, 50));
+		assertEquals(0, testObj.await("hello", 2, 10000, 50));
+		assertEquals(2, testObj.getArrivals("hello"));
+	}
+	
+	// Parties wait for each other, across multiple phases
+	@Test
+	public void multiplePhases() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		List<Future<List<Long>>> parties = new ArrayList<>();
+		for (int p = 0; p < 3; ++p) {
+			final long delay = p * 30;
+			parties.add(executor.submit(() -> {
+				List<Long> phases = new ArrayList<Long>();
+				for (int i = 0; i < 2; ++i) {
+					Thread.sleep(delay);
+					phases.add(testObj.await("hello", 3, 10000, 10000));
+				}
+				return phases;
+			}));
+		}
+		
+		for (Future<List<Long>> party : parties) {
+			assertEquals(Arrays.asList(0l, 1l), party.get(10, TimeUnit.SECONDS));
+		}
+		assertEquals(6, testObj.getArrivals("hello"));
+		executor.shutdown();
+	}
+}
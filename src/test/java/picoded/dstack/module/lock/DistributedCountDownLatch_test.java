@@ -0,0 +1,120 @@
+package picoded.dstack.module.lock;
+
+import java.util.*;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import picoded.dstack.module.*;
+import picoded.dstack.*;
+
+public class DistributedCountDownLatch_test extends BaseTestStack {
+	
+	// Test setup
+	//-----------------------------------------------------
+	
+	/**
+	 * Internal test object being tested
+	 */
+	public DistributedCountDownLatch testObj = null;
+	
+	/**
+	 * [to override if needed]
+	 * Does the internal stack setup
+	 */
+	@Before
+	public void systemSetup() {
+		super.systemSetup();
+		testObj = new DistributedCountDownLatch(stack, ramdomTableName());
+		testObj.systemSetup();
+	}
+	
+	// Lets get testing!
+	//-----------------------------------------------------
+	
+	// Basic latch handling
+	@Test
+	public void countDown() throws Exception {
+		assertTrue(testObj.setupLatch("hello", 2, 10000));
+		assertFalse(testObj.setupLatch("hello", 2, 10000));
+		assertEquals(2, testObj.getCount("hello"));
+		assertFalse(testObj.await("hello", 50));
+		
+		assertEquals(1, testObj.countDown("hello"));
+		assertEquals(0, testObj.countDown("hello"));
+		assertEquals(0, testObj.countDown("hello"));
+		assertTrue(testObj.await("hello", 0));
+	}
+	
+	// Waiters are released by local count downs, without waiting for the poll interval
+	@Test
+	public void localWakeup() throws Exception {
+		testObj.pollBase(5000);
+		assertTrue(testObj.setupLatch("hello", 3, 10000));
+		
+		Thread worker = new Thread(() -> {
+			for (int i = 0; i < 3; ++i) {
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException e) {
+					// Ignored
+				}
+				testObj.countDown("hello");
+			}
+		});
+		worker.start();
+		
+		long startTime = System.currentTimeMillis();
+		assertTrue(testObj.await("hello", 10000));
+		assertTrue(System.currentTimeMillis() - startTime < 2000);
+		worker.join();
+		
+		// Local wakeup signals are removed once their waiters exit, including on timeouts
+		assertTrue(testObj.setupLatch("world", 1, 10000));
+		assertFalse(testObj.await("world", 50));
+		assertTrue(testObj.localSignals.isEmpty());
+	}
+	
+	// Concurrent count downs, never take the count below 0
+	@Test
+	public void concurrentCountDown() throws Exception {
+		assertTrue(testObj.setupLatch("hello", 50, 10000));
+		
+		List<Thread> workers = new ArrayList<Thread>();
+		for (int t = 0; t < 8; ++t) {
+			Thread worker = new Thread(() -> {
+				for (int i = 0; i < 10; ++i) {
+					testObj.countDown("hello");
+				}
+			});
+			worker.start();
+			workers.add(worker);
+		}
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		
+		assertEquals(0l, testObj.counterMap.getLong("hello"));
+		assertTrue(testObj.await("hello", 0));
+	}
+	
+	// Waiters are released by other nodes, through polling
+	@Test
+	public void remoteCountDown() throws Exception {
+		DistributedCountDownLatch remoteObj = new DistributedCountDownLatch(testObj.counterMap);
+		assertTrue(testObj.setupLatch("hello", 1, 10000));
+		
+		Thread worker = new Thread(() -> {
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {
+				// Ignored
+			}
+			remoteObj.countDown("hello");
+		});
+		worker.start();
+		
+		assertTrue(testObj.await("hello", 10000));
+		worker.join();
+	}
+}
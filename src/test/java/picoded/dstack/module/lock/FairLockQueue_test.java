@@ -0,0 +1,136 @@
+package picoded.dstack.module.lock;
+
+import java.util.*;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import picoded.dstack.module.*;
+import picoded.dstack.*;
+
+public class FairLockQueue_test extends BaseTestStack {
+	
+	// Test setup
+	//-----------------------------------------------------
+	
+	/**
+	 * Internal test object being tested
+	 */
+	public FairLockQueue testObj = null;
+	
+	/**
+	 * [to override if needed]
+	 * Does the internal stack setup
+	 */
+	@Before
+	public void systemSetup() {
+		super.systemSetup();
+		testObj = new FairLockQueue(stack, ramdomTableName());
+		testObj.systemSetup();
+	}
+	
+	// Lets get testing!
+	//-----------------------------------------------------
+	
+	// Basic lock handling
+	@Test
+	public void awaitLockToken() {
+		long token = testObj.awaitLockToken("hello", 1000, 0);
+		assertTrue(token > 0l);
+		assertEquals(-1, testObj.awaitLockToken("hello", 1000, 100));
+		assertTrue(testObj.returnLockToken("hello", token));
+		assertTrue(testObj.awaitLockToken("hello", 1000, 0) > 0l);
+	}
+	
+	// Waiters are served in order
+	@Test
+	public void fifoOrder() throws Exception {
+		long token = testObj.awaitLockToken("hello", 5000, 0);
+		assertTrue(token > 0l);
+		
+		// Queue up the waiters, in order
+		final List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+		List<Thread> waiters = new ArrayList<>();
+		for (int i = 0; i < 4; ++i) {
+			final int id = i;
+			Thread waiter = new Thread(() -> {
+				long t = testObj.awaitLockToken("hello", 5000, 10000);
+				order.add(id);
+				testObj.returnLockToken("hello", t);
+			});
+			waiter.start();
+			waiters.add(waiter);
+			Thread.sleep(50);
+		}
+		
+		// Release the lock, and wait for all waiters
+		assertTrue(testObj.returnLockToken("hello", token));
+		for (Thread waiter : waiters) {
+			waiter.join(15000);
+		}
+		assertEquals(Arrays.asList(0, 1, 2, 3), order);
+	}
+	
+	// Expired tickets are skipped, after the heartbeat grace period
+	@Test
+	public void skipExpiredTicket() {
+		testObj.waiterLifespan(300);
+		
+		// Ticket, without a waiter heartbeat
+		testObj.ticketMap.incrementAndGet("t_hello");
+		
+		long startTime = System.currentTimeMillis();
+		assertTrue(testObj.awaitLockToken("hello", 1000, 5000) > 0l);
+		long elapsed = System.currentTimeMillis() - startTime;
+		assertTrue(elapsed >= 300);
+		assertTrue(elapsed < 2000);
+	}
+	
+	// Abandoned tickets are skipped immediately
+	@Test
+	public void skipAbandonedTicket() {
+		long ticket = testObj.ticketMap.incrementAndGet("t_hello");
+		testObj.ticketMap.putWithLifespan(testObj.waiterKey("hello", ticket), 0l, 5000);
+		
+		long startTime = System.currentTimeMillis();
+		assertTrue(testObj.awaitLockToken("hello", 1000, 5000) > 0l);
+		assertTrue(System.currentTimeMillis() - startTime < 1000);
+	}
+	
+	// Waiters which time out behind the head, abandon their ticket
+	@Test
+	public void abandonOnTimeout() {
+		long token = testObj.awaitLockToken("hello", 5000, 0);
+		assertTrue(token > 0l);
+		
+		// Head waiter times out, followed by the next waiter (which abandons its ticket)
+		testObj.ticketMap.incrementAndGet("t_hello");
+		testObj.ticketMap.putWithLifespan(testObj.waiterKey("hello", 2), 1l, 5000);
+		assertEquals(-1, testObj.awaitLockToken("hello", 1000, 100));
+		assertEquals(0l, testObj.ticketMap.getValue(testObj.waiterKey("hello", 3)).longValue());
+	}
+	
+	// Ticket counters expire once the queue is idle
+	@Test
+	public void counterExpiry() throws Exception {
+		testObj.waiterLifespan(50);
+		long token = testObj.awaitLockToken("hello", 100, 0);
+		assertTrue(token > 0l);
+		assertTrue(testObj.returnLockToken("hello", token));
+		assertEquals(1l, testObj.ticketMap.getValue("t_hello").longValue());
+		assertEquals(1l, testObj.ticketMap.getValue("s_hello").longValue());
+		
+		Thread.sleep(300);
+		assertNull(testObj.ticketMap.getValue("t_hello"));
+		assertNull(testObj.ticketMap.getValue("s_hello"));
+	}
+	
+	// Served counter ahead of a fresh ticket (issued counter reset first), is rewound
+	@Test
+	public void servingCounterRewind() {
+		testObj.ticketMap.putValue("s_hello", 5l);
+		long token = testObj.awaitLockToken("hello", 1000, 0);
+		assertTrue(token > 0l);
+		assertEquals(1l, testObj.ticketMap.getValue("s_hello").longValue());
+	}
+}
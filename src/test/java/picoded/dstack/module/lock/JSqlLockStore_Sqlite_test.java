@@ -0,0 +1,121 @@
+package picoded.dstack.module.lock;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import picoded.dstack.module.*;
+import picoded.dstack.jsql.*;
+import picoded.dstack.*;
+import picoded.dstack.connector.jsql.*;
+
+public class JSqlLockStore_Sqlite_test extends LockStore_test {
+	
+	/**
+	 * JSqlLockStore, which counts the number of SQL statements executed
+	 */
+	public static class CountingJSqlLockStore extends JSqlLockStore {
+		AtomicInteger statements = new AtomicInteger(0);
+		
+		CountingJSqlLockStore(JSql inSql, String inTableName) {
+			super(inSql, inTableName);
+		}
+		
+		protected int sqlUpdate(String statement, Object... args) {
+			statements.incrementAndGet();
+			return super.sqlUpdate(statement, args);
+		}
+		
+		protected JSqlResult sqlQuery(String statement, Object... args) {
+			statements.incrementAndGet();
+			return super.sqlQuery(statement, args);
+		}
+		
+		// Get and reset the statement count
+		int getAndReset() {
+			return statements.getAndSet(0);
+		}
+	}
+	
+	/**
+	 * @return JSql connection to use for the test
+	 */
+	public JSql jsqlConnection() {
+		return JSqlTestConnection.sqlite();
+	}
+	
+	/**
+	 * @return LockStore implementation being tested
+	 */
+	public LockStore lockStoreImplementation() {
+		JSqlLockStore ret = new JSqlLockStore(jsqlConnection(), ramdomTableName());
+		ret.systemSetup();
+		return ret;
+	}
+	
+	// Single SQL statement for issue (including a contended issue), renew and return
+	@Test
+	public void statementRoundTrips() throws Exception {
+		CountingJSqlLockStore store = new CountingJSqlLockStore(jsqlConnection(),
+			ramdomTableName());
+		store.systemSetup();
+		store.getAndReset();
+		assertEquals(1, store.roundTripsPerUpdate());
+		
+		// Issue of a new lockID
+		assertTrue(store.compareAndSetWithLifespan("hello", 0l, 5l, 50));
+		assertEquals(1, store.getAndReset());
+		
+		// Contended issue
+		assertFalse(store.compareAndSetWithLifespan("hello", 0l, 6l, lockTimeoutRange()));
+		assertEquals(1, store.getAndReset());
+		
+		// Renew
+		assertTrue(store.compareAndSetWithLifespan("hello", 5l, 5l, 50));
+		assertEquals(1, store.getAndReset());
+		
+		// Issue of an expired lock
+		Thread.sleep(100);
+		assertTrue(store.compareAndSetWithLifespan("hello", 0l, 7l, lockTimeoutRange()));
+		assertEquals(1, store.getAndReset());
+		
+		// Return, and reissue of the released lock
+		assertTrue(store.compareAndSetWithLifespan("hello", 7l, 0l, lockTimeoutRange()));
+		assertEquals(1, store.getAndReset());
+		assertTrue(store.compareAndSetWithLifespan("hello", 0l, 8l, lockTimeoutRange()));
+		assertEquals(1, store.getAndReset());
+		assertEquals(8l, store.getValue("hello"));
+	}
+	
+	// Released and expired entries are removed by the sweep, while held locks are kept
+	@Test
+	public void sweepReleased() throws Exception {
+		JSqlLockStore store = (JSqlLockStore) countingStore.store;
+		long held = testObj.issueLockToken("held", lockTimeoutRange());
+		long released = testObj.issueLockToken("released", lockTimeoutRange());
+		assertTrue(testObj.returnLockToken("released", released));
+		assertTrue(testObj.issueLockToken("expired", 50) > 0l);
+		Thread.sleep(100);
+		
+		assertEquals(Arrays.asList("expired", "held", "released"), store.listLockIDs("", null, 10));
+		assertEquals(2, store.sweepReleased(10));
+		assertEquals(Arrays.asList("held"), store.listLockIDs("", null, 10));
+		assertEquals(held, store.getValue("held"));
+	}
+	
+	// Prefix listing, escapes the LIKE wildcards
+	@Test
+	public void listLockIDs_prefix() {
+		assertTrue(testObj.issueLockToken("a_1", lockTimeoutRange()) > 0l);
+		assertTrue(testObj.issueLockToken("a_2", lockTimeoutRange()) > 0l);
+		assertTrue(testObj.issueLockToken("ab", lockTimeoutRange()) > 0l);
+		
+		LockStore store = countingStore.store;
+		assertEquals(Arrays.asList("a_1", "a_2"), store.listLockIDs("a_", null, 10));
+		assertEquals(Arrays.asList("a_2"), store.listLockIDs("a_", "a_1", 10));
+		assertEquals(Arrays.asList("a_1"), store.listLockIDs("a", null, 1));
+	}
+	
+}
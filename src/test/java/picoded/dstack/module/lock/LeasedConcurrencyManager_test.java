@@ -0,0 +1,98 @@
+package picoded.dstack.module.lock;
+
+import java.util.*;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import picoded.dstack.module.*;
+import picoded.dstack.*;
+
+public class LeasedConcurrencyManager_test extends BaseTestStack {
+	
+	// Test setup
+	//-----------------------------------------------------
+	
+	/**
+	 * Internal test object being tested
+	 */
+	public LeasedConcurrencyManager testObj = null;
+	
+	/**
+	 * [to override if needed]
+	 * Does the internal stack setup
+	 */
+	@Before
+	public void systemSetup() {
+		super.systemSetup();
+		testObj = new LeasedConcurrencyManager(stack, ramdomTableName());
+		testObj.bucketCount(100);
+		testObj.maxLeaseTimeout(5000);
+		assertEquals(50, testObj.bucketSize());
+		testObj.systemSetup();
+	}
+	
+	// Lets get testing!
+	//-----------------------------------------------------
+	
+	// Leasing up to the limit, and releasing
+	@Test
+	public void leaseAndRelease() {
+		testObj.setLimit("hello", 2);
+		String a = testObj.leaseConcurrency("hello", 1000);
+		String b = testObj.leaseConcurrency("hello", 1000);
+		assertNotNull(a);
+		assertNotNull(b);
+		assertNull(testObj.leaseConcurrency("hello", 1000));
+		assertEquals(2, testObj.getConcurrencyCount("hello"));
+		
+		// Release is immediate, and only once
+		assertTrue(testObj.releaseLease("hello", a));
+		assertFalse(testObj.releaseLease("hello", a));
+		assertFalse(testObj.isLeased("hello", a));
+		assertEquals(1, testObj.getConcurrencyCount("hello"));
+		assertNotNull(testObj.leaseConcurrency("hello", 1000));
+	}
+	
+	// Leases which are not renewed, drop out of the count
+	@Test
+	public void leaseExpiry() throws Exception {
+		testObj.setLimit("hello", 1);
+		String a = testObj.leaseConcurrency("hello", 50);
+		assertNotNull(a);
+		assertNull(testObj.leaseConcurrency("hello", 50));
+		
+		Thread.sleep(200);
+		assertEquals(0, testObj.getConcurrencyCount("hello"));
+		assertFalse(testObj.isLeased("hello", a));
+		assertFalse(testObj.renewLease("hello", a, 50));
+		assertNotNull(testObj.leaseConcurrency("hello", 50));
+	}
+	
+	// Renewed leases move to a later bucket, and stay counted
+	@Test
+	public void leaseRenewal() throws Exception {
+		testObj.setLimit("hello", -1);
+		String a = testObj.leaseConcurrency("hello", 100);
+		assertNotNull(a);
+		
+		for (int i = 0; i < 4; ++i) {
+			Thread.sleep(50);
+			assertTrue(testObj.renewLease("hello", a, 100));
+			assertEquals(1, testObj.getConcurrencyCount("hello"));
+		}
+		assertTrue(testObj.releaseLease("hello", a));
+		assertEquals(0, testObj.getConcurrencyCount("hello"));
+	}
+	
+	// A decrement which recreates an expired bucket counter, is given a lifespan
+	@Test
+	public void decrementMissingBucket() {
+		long bucket = testObj.bucketIndex(System.currentTimeMillis() + 400);
+		testObj.decrementBucket("hello", bucket);
+		assertEquals(0, testObj.getConcurrencyCount("hello"));
+		assertTrue(testObj.bucketMap.getLifespan(LeasedConcurrencyManager.bucketKey("hello",
+			bucket)) > 0);
+	}
+	
+}
@@ -0,0 +1,110 @@
+package picoded.dstack.module.lock;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import picoded.dstack.module.*;
+import picoded.dstack.*;
+
+public class LockLeaseKeeper_test extends BaseTestStack {
+	
+	// Test setup
+	//-----------------------------------------------------
+	
+	/**
+	 * Internal test objects being tested
+	 */
+	public LockTokenManager lockManager = null;
+	public LockLeaseKeeper testObj = null;
+	
+	/**
+	 * [to override if needed]
+	 * Does the internal stack setup
+	 */
+	@Before
+	public void systemSetup() {
+		super.systemSetup();
+		lockManager = new LockTokenManager(stack.keyLongMap(ramdomTableName()));
+		lockManager.systemSetup();
+		testObj = new LockLeaseKeeper(lockManager, 20);
+	}
+	
+	@After
+	public void systemDestroy() {
+		testObj.shutdown();
+		super.systemDestroy();
+	}
+	
+	// Lets get testing!
+	//-----------------------------------------------------
+	
+	// Timeout range to be used across test
+	long lockTimeoutRange() {
+		return 300;
+	}
+	
+	// Leases are kept beyond their original timeout
+	@Test
+	public void keepLeases() throws Exception {
+		// Lock and keep multiple leases
+		for (int i = 0; i < 10; ++i) {
+			long token = lockManager.issueLockToken("lock-" + i, lockTimeoutRange());
+			assertTrue(token > 0l);
+			testObj.keepLockToken("lock-" + i, token, lockTimeoutRange(), null);
+		}
+		assertEquals(10, testObj.size());
+		
+		// Wait beyond the lock timeout, the locks should still be held
+		Thread.sleep(lockTimeoutRange() * 3);
+		for (int i = 0; i < 10; ++i) {
+			assertEquals(-1, lockManager.issueLockToken("lock-" + i, lockTimeoutRange()));
+		}
+		
+		// Return them
+		for (int i = 0; i < 10; ++i) {
+			assertTrue(testObj.returnLockToken("lock-" + i));
+			assertFalse(lockManager.isLocked("lock-" + i));
+		}
+		assertEquals(0, testObj.size());
+	}
+	
+	// Lock timeouts within the check interval, are rejected
+	@Test
+	public void shortLockTimeout() {
+		long token = lockManager.issueLockToken("hello", lockTimeoutRange());
+		assertTrue(token > 0l);
+		try {
+			testObj.keepLockToken("hello", token, 20, null);
+			fail("Expected IllegalArgumentException");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		assertEquals(0, testObj.size());
+	}
+	
+	// Renewal failure callback
+	@Test
+	public void renewFailureCallback() throws Exception {
+		final AtomicInteger failureCount = new AtomicInteger(0);
+		
+		// Lock and keep
+		long token = lockManager.issueLockToken("hello", lockTimeoutRange());
+		assertTrue(token > 0l);
+		testObj.keepLockToken("hello", token, lockTimeoutRange(), (lockID, failedToken) -> {
+			assertEquals("hello", lockID);
+			failureCount.incrementAndGet();
+		});
+		
+		// Lets "lose" the lock
+		assertTrue(lockManager.returnLockToken("hello", token));
+		assertTrue(lockManager.issueLockToken("hello", lockTimeoutRange()) > 0l);
+		
+		// Wait for the renewal failure
+		Thread.sleep(lockTimeoutRange());
+		assertEquals(1, failureCount.get());
+		assertEquals(0, testObj.size());
+	}
+}
@@ -0,0 +1,122 @@
+package picoded.dstack.module.lock;
+
+import java.util.*;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import picoded.dstack.module.*;
+import picoded.dstack.*;
+import picoded.dstack.module.lock.LockMetricsListener.Outcome;
+
+public class LockMetricsAggregator_test extends BaseTestStack {
+	
+	// Test setup
+	//-----------------------------------------------------
+	
+	/**
+	 * Internal test object being tested
+	 */
+	public LockTokenManager testObj = null;
+	public LockMetricsAggregator metrics = null;
+	
+	/**
+	 * [to override if needed]
+	 * Does the internal stack setup
+	 */
+	@Before
+	public void systemSetup() {
+		super.systemSetup();
+		testObj = new LockTokenManager(stack.keyLongMap(ramdomTableName()));
+		testObj.systemSetup();
+		metrics = new LockMetricsAggregator();
+		testObj.metricsListener(metrics);
+	}
+	
+	// Lets get testing!
+	//-----------------------------------------------------
+	
+	// Metrics are disabled by default
+	@Test
+	public void disabledByDefault() {
+		LockTokenManager lockManager = new LockTokenManager(stack.keyLongMap(ramdomTableName()));
+		assertFalse(lockManager.metricsListener().isEnabled());
+	}
+	
+	// Lock operations are aggregated by their prefix
+	@Test
+	public void aggregateByPrefix() throws Exception {
+		long token = testObj.issueLockToken("task:hello", 1000);
+		assertTrue(token > 0l);
+		assertEquals(-1, testObj.issueLockToken("task:hello", 1000));
+		assertTrue(testObj.renewLockToken("task:hello", token, 1000) > 0l);
+		Thread.sleep(50);
+		assertTrue(testObj.returnLockToken("task:hello", token));
+		assertTrue(testObj.issueLockToken("other", 1000) > 0l);
+		
+		// Prefixes
+		assertEquals(new HashSet<>(Arrays.asList("task", "other")), metrics.prefixSet());
+		LockMetricsAggregator.Metrics m = metrics.getMetrics("task");
+		
+		// Counters
+		assertEquals(1, m.acquireCount(Outcome.SUCCESS));
+		assertEquals(1, m.acquireCount(Outcome.CONTENTION));
+		assertEquals(0, m.acquireCount(Outcome.FAILURE));
+		assertEquals(1, m.renewCount(Outcome.SUCCESS));
+		assertEquals(0, m.renewFailureCount());
+		assertEquals(1, m.returnCount(Outcome.SUCCESS));
+		assertTrue(m.acquireRoundTrips() >= 1.0);
+		
+		// Histograms
+		assertEquals(2, m.acquireLatency().getCount());
+		assertEquals(1, m.heldTime().getCount());
+		assertTrue(m.heldTime().getMax() >= 50);
+	}
+	
+	// Held time tracking is dropped on a failed renew, and pruned after expiry
+	@Test
+	public void heldTimeTracking() throws Exception {
+		long token = testObj.issueLockToken("task:hello", 1000);
+		assertTrue(testObj.heldSinceMap.containsKey("task:hello"));
+		assertEquals(-1, testObj.renewLockToken("task:hello", token + 1, 1000));
+		assertTrue(testObj.heldSinceMap.containsKey("task:hello"));
+		
+		// Lost token
+		assertTrue(testObj.returnLockToken("task:hello", token));
+		assertTrue(testObj.issueLockToken("task:other", 50) > 0l);
+		token = testObj.issueLockToken("task:hello", 1000);
+		testObj.lockStore.compareAndSetWithLifespan("task:hello", token, 0l, 1000);
+		assertEquals(-1, testObj.renewLockToken("task:hello", token, 1000));
+		assertFalse(testObj.heldSinceMap.containsKey("task:hello"));
+		
+		// Expired token, pruned on the next issue after the prune interval
+		Thread.sleep(100);
+		testObj.heldSincePruneTime = 0;
+		assertTrue(testObj.issueLockToken("task:hello", 1000) > 0l);
+		assertFalse(testObj.heldSinceMap.containsKey("task:other"));
+		assertTrue(testObj.heldSinceMap.containsKey("task:hello"));
+	}
+	
+	// Histogram percentiles, within its relative error
+	@Test
+	public void histogramPercentile() {
+		LockMetricsAggregator.Histogram histogram = new LockMetricsAggregator.Histogram();
+		for (long i = 1; i <= 10000; ++i) {
+			histogram.record(i);
+		}
+		assertEquals(10000, histogram.getCount());
+		assertEquals(10000, histogram.getMax());
+		assertEquals(5000.5, histogram.getMean(), 0.001);
+		
+		long p50 = histogram.getPercentile(50);
+		assertTrue(p50 >= 5000 && p50 <= 5000 * 1.125);
+		long p99 = histogram.getPercentile(99);
+		assertTrue(p99 >= 9900 && p99 <= 10000);
+		assertEquals(10000, histogram.getPercentile(100));
+		
+		// Small values are exact
+		LockMetricsAggregator.Histogram small = new LockMetricsAggregator.Histogram();
+		small.record(3);
+		assertEquals(3, small.getPercentile(50));
+	}
+}
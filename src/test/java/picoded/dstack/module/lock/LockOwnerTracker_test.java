@@ -0,0 +1,102 @@
+package picoded.dstack.module.lock;
+
+import java.util.*;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import picoded.dstack.module.*;
+import picoded.dstack.*;
+
+public class LockOwnerTracker_test extends BaseTestStack {
+	
+	// Test setup
+	//-----------------------------------------------------
+	
+	/**
+	 * Internal test objects being tested
+	 */
+	public LockTokenManager lockManager = null;
+	public LockOwnerTracker testObj = null;
+	
+	/**
+	 * [to override if needed]
+	 * Does the internal stack setup
+	 */
+	@Before
+	public void systemSetup() {
+		super.systemSetup();
+		lockManager = new LockTokenManager(stack, ramdomTableName());
+		lockManager.systemSetup();
+		testObj = new LockOwnerTracker(stack, ramdomTableName());
+		testObj.systemSetup();
+		testObj.nodeID("node-a");
+		testObj.track(lockManager);
+	}
+	
+	@After
+	public void systemDestroy() {
+		testObj.shutdown();
+		super.systemDestroy();
+	}
+	
+	// Lets get testing!
+	//-----------------------------------------------------
+	
+	// Holder records, written in the background
+	@Test
+	public void lockOwner() throws Exception {
+		long startTime = System.currentTimeMillis();
+		long token = lockManager.issueLockToken("hello", 10000);
+		assertTrue(token > 0l);
+		
+		// Written asynchronously
+		Thread.sleep(300);
+		assertEquals("node-a", testObj.getLockOwner("hello"));
+		assertTrue(testObj.getAcquiredAt("hello") >= startTime);
+		
+		// Removed on return
+		assertTrue(lockManager.returnLockToken("hello", token));
+		testObj.flush();
+		assertNull(testObj.getLockOwner("hello"));
+		assertEquals(-1, testObj.getAcquiredAt("hello"));
+	}
+	
+	// Returns do not remove the holder record of a newer acquisition
+	@Test
+	public void lockOwner_newerHolder() {
+		long token = lockManager.issueLockToken("hello", 10000);
+		assertTrue(token > 0l);
+		testObj.flush();
+		
+		// Another node acquires the lock (after it expired), before the return is flushed
+		assertTrue(lockManager.returnLockToken("hello", token));
+		testObj.ownerMap.putValue("hello", "node-b");
+		testObj.flush();
+		assertEquals("node-b", testObj.getLockOwner("hello"));
+	}
+	
+	// Contention counts, and the hot lock top-K
+	@Test
+	public void contention() {
+		testObj.contentionSampleRate(1.0);
+		LockMetricsAggregator aggregator = new LockMetricsAggregator();
+		testObj.delegate(aggregator);
+		
+		assertTrue(lockManager.issueLockToken("hot", 10000) > 0l);
+		assertTrue(lockManager.issueLockToken("warm", 10000) > 0l);
+		for (int i = 0; i < 5; ++i) {
+			assertEquals(-1, lockManager.issueLockToken("hot", 10000));
+		}
+		assertEquals(-1, lockManager.issueLockToken("warm", 10000));
+		
+		testObj.flush();
+		assertEquals(5, testObj.getContentionCount("hot"));
+		assertEquals(Arrays.asList("hot", "warm"), new ArrayList<>(testObj.topHotLocks(2)
+			.keySet()));
+		
+		// Events are forwarded to the delegate
+		assertEquals(5, aggregator.getMetrics("hot").acquireCount(
+			LockMetricsListener.Outcome.CONTENTION));
+	}
+}
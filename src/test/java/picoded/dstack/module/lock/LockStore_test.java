@@ -0,0 +1,268 @@
+package picoded.dstack.module.lock;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.lang.reflect.*;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import picoded.dstack.module.*;
+import picoded.dstack.*;
+
+public class LockStore_test extends BaseTestStack {
+	
+	// Test setup
+	//-----------------------------------------------------
+	
+	/**
+	 * LockStore wrapper, which counts the number of LockStore calls made (not the backend
+	 * round trips of each call, see countingKeyLongMap for that).
+	 * Batched updates are not forwarded, so they are counted per lockID.
+	 */
+	public static class CountingLockStore implements LockStore {
+		LockStore store;
+		AtomicInteger calls = new AtomicInteger(0);
+		
+		// Simulated backend latency, for compareAndSetWithLifespan
+		long latency = 0;
+		
+		CountingLockStore(LockStore inStore) {
+			store = inStore;
+		}
+		
+		public boolean compareAndSetWithLifespan(String lockID, long expect, long update,
+			long lifespan) {
+			calls.incrementAndGet();
+			if (latency > 0) {
+				try {
+					Thread.sleep(latency);
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+			}
+			return store.compareAndSetWithLifespan(lockID, expect, update, lifespan);
+		}
+		
+		public long getValue(String lockID) {
+			calls.incrementAndGet();
+			return store.getValue(lockID);
+		}
+		
+		public long getLifespan(String lockID) {
+			calls.incrementAndGet();
+			return store.getLifespan(lockID);
+		}
+		
+		public int roundTripsPerUpdate() {
+			return store.roundTripsPerUpdate();
+		}
+		
+		// Get and reset the call count
+		int getAndReset() {
+			return calls.getAndSet(0);
+		}
+	}
+	
+	/**
+	 * KeyLongMap proxy, which counts every call made to the backend map
+	 * (calls made internally by the map itself are not counted)
+	 * 
+	 * @param map      to wrap
+	 * @param counter  to increment on each call
+	 * 
+	 * @return the counting KeyLongMap
+	 */
+	public static KeyLongMap countingKeyLongMap(KeyLongMap map, AtomicInteger counter) {
+		return (KeyLongMap) Proxy.newProxyInstance(KeyLongMap.class.getClassLoader(),
+			new Class<?>[] { KeyLongMap.class }, (proxy, method, args) -> {
+				if (method.getDeclaringClass() != Object.class) {
+					counter.incrementAndGet();
+				}
+				try {
+					return method.invoke(map, args);
+				} catch (InvocationTargetException e) {
+					throw e.getCause();
+				}
+			});
+	}
+	
+	/**
+	 * [to override if needed]
+	 * @return LockStore implementation being tested
+	 */
+	public LockStore lockStoreImplementation() {
+		return new MemoryLockStore();
+	}
+	
+	/**
+	 * Internal test objects being tested
+	 */
+	public CountingLockStore countingStore = null;
+	public LockTokenManager testObj = null;
+	
+	/**
+	 * [to override if needed]
+	 * Does the internal stack setup
+	 */
+	@Before
+	public void systemSetup() {
+		super.systemSetup();
+		countingStore = new CountingLockStore(lockStoreImplementation());
+		testObj = new LockTokenManager(countingStore);
+		testObj.systemSetup();
+	}
+	
+	// Lets get testing!
+	//-----------------------------------------------------
+	
+	// Timeout range to be used across test
+	long lockTimeoutRange() {
+		return 1000;
+	}
+	
+	// Single store call for issue, renew and return
+	@Test
+	public void singleStoreCall() {
+		// Issue
+		long token = testObj.issueLockToken("hello", lockTimeoutRange());
+		assertTrue(token > 0l);
+		assertEquals(1, countingStore.getAndReset());
+		
+		// Failed issue
+		assertEquals(-1, testObj.issueLockToken("hello", lockTimeoutRange()));
+		assertEquals(1, countingStore.getAndReset());
+		
+		// Renew
+		assertEquals(token, testObj.renewLockToken("hello", token, lockTimeoutRange()));
+		assertEquals(1, countingStore.getAndReset());
+		
+		// Return
+		assertTrue(testObj.returnLockToken("hello", token));
+		assertEquals(1, countingStore.getAndReset());
+	}
+	
+	// KeyLongMap backend calls, for the emulated compare-and-set
+	@Test
+	public void keyLongMapRoundTrips() {
+		KeyLongMap lockMap = stack.keyLongMap(ramdomTableName());
+		lockMap.systemSetup();
+		AtomicInteger backendCalls = new AtomicInteger(0);
+		KeyLongMapLockStore store = new KeyLongMapLockStore(countingKeyLongMap(lockMap,
+			backendCalls));
+		
+		// Issue (weakCompareAndSet, setLifeSpan, getLong)
+		assertTrue(store.compareAndSetWithLifespan("hello", 0l, 5l, lockTimeoutRange()));
+		assertEquals(store.roundTripsPerUpdate(), backendCalls.getAndSet(0));
+		
+		// Failed issue (weakCompareAndSet, getLifespan)
+		assertFalse(store.compareAndSetWithLifespan("hello", 0l, 6l, lockTimeoutRange()));
+		assertEquals(2, backendCalls.getAndSet(0));
+		
+		// Renew (weakCompareAndSet, setLifeSpan, getLong)
+		assertTrue(store.compareAndSetWithLifespan("hello", 5l, 5l, lockTimeoutRange()));
+		assertEquals(3, backendCalls.getAndSet(0));
+		
+		// Return (weakCompareAndSet, get)
+		assertTrue(store.compareAndSetWithLifespan("hello", 5l, 0l, lockTimeoutRange()));
+		assertEquals(2, backendCalls.getAndSet(0));
+	}
+	
+	// Entries claimed by the KeyLongMap sweeper, are reported as released, and can be reissued
+	// once removed
+	@Test
+	public void keyLongMapSweepMark() {
+		KeyLongMap lockMap = stack.keyLongMap(ramdomTableName());
+		lockMap.systemSetup();
+		
+		// Sweeper which completes the removal, once the mark is seen by a lock attempt
+		KeyLongMap sweptMap = (KeyLongMap) Proxy.newProxyInstance(KeyLongMap.class
+			.getClassLoader(), new Class<?>[] { KeyLongMap.class }, (proxy, method, args) -> {
+			try {
+				Object ret = method.invoke(lockMap, args);
+				if (method.getName().equals("get") && ret != null
+					&& ((KeyLong) ret).longValue() == KeyLongMapLockStore.SWEEP_MARK) {
+					lockMap.remove(args[0]);
+				}
+				return ret;
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+		});
+		KeyLongMapLockStore store = new KeyLongMapLockStore(sweptMap);
+		LockTokenManager lockManager = new LockTokenManager(store);
+		
+		// Marked entry, is reported as not locked
+		lockMap.putValue("hello", KeyLongMapLockStore.SWEEP_MARK);
+		assertEquals(0l, store.getValue("hello"));
+		assertFalse(lockManager.isLocked("hello"));
+		
+		// Lock attempt waits for the removal
+		assertTrue(lockManager.issueLockToken("hello", lockTimeoutRange()) > 0l);
+		assertTrue(lockManager.isLocked("hello"));
+	}
+	
+	// Lifespan is applied together with the lock
+	@Test
+	public void lifespanWithLock() {
+		assertEquals(-1, testObj.getLockLifespan("hello"));
+		long token = testObj.issueLockToken("hello", lockTimeoutRange());
+		assertTrue(token > 0l);
+		
+		long lifespan = testObj.getLockLifespan("hello");
+		assertTrue(lifespan > 0l);
+		assertTrue(lifespan <= lockTimeoutRange());
+	}
+	
+	// Lock expiry, allows a new lock to be issued
+	@Test
+	public void lockExpiry() throws Exception {
+		long token = testObj.issueLockToken("hello", 50);
+		assertTrue(token > 0l);
+		assertEquals(-1, testObj.issueLockToken("hello", 50));
+		
+		Thread.sleep(100);
+		assertFalse(testObj.isLocked("hello"));
+		assertTrue(testObj.issueLockToken("hello", 50) > 0l);
+	}
+	
+	// Multiple locks are issued in an all or nothing manner, and renewed together
+	@Test
+	public void compareAndSetAll() {
+		LockStore store = countingStore.store;
+		List<String> lockIDs = Arrays.asList("a", "b", "c");
+		assertTrue(store.compareAndSetWithLifespan("b", 0l, 7l, lockTimeoutRange()));
+		
+		// Fails on the held lock, with the partial updates (if any) rolled back by the caller
+		int locked = store.compareAndSetAllWithLifespan(lockIDs, 0l, 5l, lockTimeoutRange());
+		assertTrue(locked < lockIDs.size());
+		for (int i = 0; i < locked; ++i) {
+			assertTrue(store.compareAndSetWithLifespan(lockIDs.get(i), 5l, 0l, lockTimeoutRange()));
+		}
+		assertEquals(0l, store.getValue("a"));
+		assertEquals(7l, store.getValue("b"));
+		
+		// Issue and renew, once the lock is released
+		assertTrue(store.compareAndSetWithLifespan("b", 7l, 0l, lockTimeoutRange()));
+		assertEquals(3, store.compareAndSetAllWithLifespan(lockIDs, 0l, 5l, lockTimeoutRange()));
+		assertEquals(3, store.compareAndSetAllWithLifespan(lockIDs, 5l, 5l, lockTimeoutRange()));
+		assertEquals(0, store.compareAndSetAllWithLifespan(lockIDs, 6l, 6l, lockTimeoutRange()));
+		assertEquals(5l, store.getValue("c"));
+	}
+	
+	// Each update is independent of the others
+	@Test
+	public void compareAndSetEach() {
+		LockStore store = countingStore.store;
+		assertTrue(store.compareAndSetWithLifespan("a", 0l, 5l, lockTimeoutRange()));
+		assertTrue(store.compareAndSetWithLifespan("b", 0l, 6l, lockTimeoutRange()));
+		
+		boolean[] res = store.compareAndSetEachWithLifespan(Arrays.asList("a", "b", "c"),
+			new long[] { 5l, 7l, 0l }, new long[] { 5l, 7l, 8l }, lockTimeoutRange());
+		assertTrue(res[0]);
+		assertFalse(res[1]);
+		assertTrue(res[2]);
+		assertEquals(6l, store.getValue("b"));
+		assertEquals(8l, store.getValue("c"));
+	}
+}
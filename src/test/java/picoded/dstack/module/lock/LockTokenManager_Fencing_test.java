@@ -0,0 +1,58 @@
+package picoded.dstack.module.lock;
+
+import java.util.*;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import picoded.dstack.module.*;
+import picoded.dstack.*;
+
+public class LockTokenManager_Fencing_test extends LockTokenManager_test {
+	
+	/**
+	 * [to override if needed]
+	 * Does the internal stack setup
+	 */
+	@Before
+	public void systemSetup() {
+		super.systemSetup();
+		testObj = new LockTokenManager(stack.keyLongMap(ramdomTableName()), stack
+			.keyLongMap(ramdomTableName()));
+		testObj.systemSetup();
+	}
+	
+	// Fencing tokens are strictly increasing, for each lockID
+	@Test
+	public void monotonicFencingToken() {
+		assertTrue(testObj.isFencingTokenEnabled());
+		
+		long previousToken = 0l;
+		for (int i = 0; i < 10; ++i) {
+			long token = testObj.issueLockToken("hello", lockTimeoutRange());
+			assertTrue(token > previousToken);
+			assertTrue(testObj.returnLockToken("hello", token));
+			previousToken = token;
+		}
+	}
+	
+	// Composite tokens advance the fencing token of every lockID
+	@Test
+	public void monotonicFencingToken_composite() {
+		// Advance "world" ahead of "hello"
+		for (int i = 0; i < 5; ++i) {
+			assertTrue(testObj.returnLockToken("world", testObj.issueLockToken("world",
+				lockTimeoutRange())));
+		}
+		
+		// Composite lock, uses the highest counter
+		CompositeLockToken composite = testObj.issueLockTokens(Arrays.asList("hello", "world"),
+			lockTimeoutRange());
+		assertNotNull(composite);
+		assertTrue(testObj.returnLockTokens(composite));
+		
+		// Subsequent tokens are higher
+		assertTrue(testObj.issueLockToken("hello", lockTimeoutRange()) > composite.getToken());
+		assertTrue(testObj.issueLockToken("world", lockTimeoutRange()) > composite.getToken());
+	}
+}
@@ -0,0 +1,26 @@
+package picoded.dstack.module.lock;
+
+import java.util.*;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import picoded.dstack.module.*;
+import picoded.dstack.jsql.*;
+import picoded.dstack.*;
+import picoded.dstack.connector.jsql.*;
+
+public class LockTokenManager_JSqlLockStore_Mssql_test extends
+	LockTokenManager_JSqlLockStore_Sqlite_test {
+	
+	// To override for implementation
+	//-----------------------------------------------------
+	
+	/**
+	 * @return JSql connection to use for the test
+	 */
+	public JSql jsqlConnection() {
+		return JSqlTestConnection.mssql();
+	}
+	
+}
@@ -0,0 +1,26 @@
+package picoded.dstack.module.lock;
+
+import java.util.*;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import picoded.dstack.module.*;
+import picoded.dstack.jsql.*;
+import picoded.dstack.*;
+import picoded.dstack.connector.jsql.*;
+
+public class LockTokenManager_JSqlLockStore_Sqlite_test extends LockTokenManager_Sqlite_test {
+	
+	/**
+	 * [to override if needed]
+	 * Does the internal stack setup
+	 */
+	@Before
+	public void systemSetup() {
+		super.systemSetup();
+		testObj = new LockTokenManager(new JSqlLockStore(jsqlConnection(), ramdomTableName()));
+		testObj.systemSetup();
+	}
+	
+}
@@ -0,0 +1,65 @@
+package picoded.dstack.module.lock;
+
+import java.util.*;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import picoded.dstack.module.*;
+import picoded.dstack.*;
+
+public class LockTokenManager_MemoryLockStore_test extends LockTokenManager_test {
+	
+	/**
+	 * [to override if needed]
+	 * Does the internal stack setup
+	 */
+	@Before
+	public void systemSetup() {
+		super.systemSetup();
+		testObj = new LockTokenManager(new MemoryLockStore());
+		testObj.systemSetup();
+	}
+	
+	// Overlapping composite locks, from multiple threads, are never held together
+	@Test
+	public void concurrentCompositeLocks() throws Exception {
+		List<List<String>> lockSets = Arrays.asList(Arrays.asList("a", "b"), Arrays.asList("b",
+			"c"), Arrays.asList("c", "a"), Arrays.asList("a", "b", "c"));
+		Map<String, Integer> holders = new HashMap<String, Integer>();
+		List<String> errors = Collections.synchronizedList(new ArrayList<String>());
+		
+		List<Thread> workers = new ArrayList<Thread>();
+		for (List<String> lockSet : lockSets) {
+			Thread worker = new Thread(() -> {
+				for (int i = 0; i < 200; ++i) {
+					CompositeLockToken token = testObj.issueLockTokens(lockSet, 5000);
+					if (token == null) {
+						continue;
+					}
+					synchronized (holders) {
+						for (String lockID : lockSet) {
+							if (holders.merge(lockID, 1, Integer::sum) > 1) {
+								errors.add(lockID);
+							}
+						}
+					}
+					synchronized (holders) {
+						for (String lockID : lockSet) {
+							holders.merge(lockID, -1, Integer::sum);
+						}
+					}
+					testObj.returnLockTokens(token);
+				}
+			});
+			worker.start();
+			workers.add(worker);
+		}
+		for (Thread worker : workers) {
+			worker.join(10000);
+		}
+		assertEquals(0, errors.size());
+		assertFalse(testObj.isLocked("a"));
+	}
+	
+}
@@ -0,0 +1,24 @@
+package picoded.dstack.module.lock;
+
+import java.util.*;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import picoded.dstack.module.*;
+import picoded.dstack.*;
+
+public class LockTokenManager_StripedKeyLongMap_test extends LockTokenManager_test {
+	
+	/**
+	 * [to override if needed]
+	 * Does the internal stack setup
+	 */
+	@Before
+	public void systemSetup() {
+		super.systemSetup();
+		testObj = new LockTokenManager(new StripedKeyLongMap());
+		testObj.systemSetup();
+	}
+	
+}
@@ -1,6 +1,8 @@
 package picoded.dstack.module.lock;
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.*;
 import static org.junit.Assert.*;
@@ -121,4 +123,462 @@ public class LockTokenManager_test extends BaseTestStack {
 		assertEquals(-1, testObj.issueLockToken("hello", lockTimeoutRange()));
 		assertTrue(testObj.isLocked("hello"));
 	}
+	
+	// Multiple lock issue, renew and return
+	@Test
+	public void multipleLockTokens() {
+		CompositeLockToken token = testObj.issueLockTokens(Arrays.asList("world", "hello", "world"),
+			lockTimeoutRange());
+		assertNotNull(token);
+		assertEquals(Arrays.asList("hello", "world"), token.getLockIDs());
+		assertTrue(testObj.isLocked("hello"));
+		assertTrue(testObj.isLocked("world"));
+		
+		// Overlapping lock fails
+		assertNull(testObj.issueLockTokens(Arrays.asList("world", "foo"), lockTimeoutRange()));
+		assertEquals(-1, testObj.issueLockToken("hello", lockTimeoutRange()));
+		
+		// Renew and return
+		assertNotNull(testObj.renewLockTokens(token, lockTimeoutRange()));
+		assertTrue(testObj.returnLockTokens(token));
+		assertFalse(testObj.isLocked("hello"));
+		assertFalse(testObj.isLocked("world"));
+	}
+	
+	// Multiple lock failure, rollbacks previously acquired locks
+	@Test
+	public void multipleLockTokens_rollback() {
+		assertTrue(testObj.issueLockToken("world", lockTimeoutRange()) > 0l);
+		
+		// "hello" is acquired first, and needs to be rolled back
+		assertNull(testObj.issueLockTokens(Arrays.asList("world", "hello"), lockTimeoutRange()));
+		assertFalse(testObj.isLocked("hello"));
+		assertTrue(testObj.issueLockToken("hello", lockTimeoutRange()) > 0l);
+	}
+	
+	// Awaiting for a lock, till its expiry
+	@Test
+	public void awaitLockToken() {
+		assertTrue(testObj.issueLockToken("hello", 300) > 0l);
+		
+		long startTime = System.currentTimeMillis();
+		assertTrue(testObj.awaitLockToken("hello", lockTimeoutRange(), 5000) > 0l);
+		assertTrue(System.currentTimeMillis() - startTime >= 200);
+	}
+	
+	// Awaiting for a lock, with a timeout
+	@Test
+	public void awaitLockToken_timeout() {
+		assertTrue(testObj.issueLockToken("hello", 5000) > 0l);
+		
+		long startTime = System.currentTimeMillis();
+		assertEquals(-1, testObj.awaitLockToken("hello", lockTimeoutRange(), 200));
+		assertTrue(System.currentTimeMillis() - startTime >= 200);
+	}
+	
+	// Interruption of a lock wait
+	@Test
+	public void awaitLockToken_interruptible() throws Exception {
+		assertTrue(testObj.issueLockToken("hello", 5000) > 0l);
+		
+		// Wait for the lock in a seperate thread
+		final List<Throwable> result = Collections.synchronizedList(new ArrayList<>());
+		Thread waiter = new Thread(() -> {
+			try {
+				testObj.awaitLockToken_interruptible("hello", lockTimeoutRange(), 5000);
+			} catch (Throwable e) {
+				result.add(e);
+			}
+		});
+		waiter.start();
+		Thread.sleep(100);
+		
+		// Interrupt it
+		waiter.interrupt();
+		waiter.join(2000);
+		assertEquals(1, result.size());
+		assertTrue(result.get(0) instanceof InterruptedException);
+	}
+	
+	// Reentrant locks, for the same thread
+	@Test
+	public void reentrantLockToken() throws Exception {
+		testObj.reentrantMode(true);
+		
+		// Nested locks, returns the same token
+		long token = testObj.issueLockToken("hello", lockTimeoutRange());
+		assertTrue(token > 0l);
+		assertEquals(token, testObj.issueLockToken("hello", lockTimeoutRange()));
+		
+		// Another thread cannot get the lock
+		final long[] otherToken = new long[] { 0l };
+		Thread other = new Thread(() -> {
+			otherToken[0] = testObj.issueLockToken("hello", lockTimeoutRange());
+		});
+		other.start();
+		other.join(2000);
+		assertEquals(-1, otherToken[0]);
+		
+		// Only the outermost return, releases the lock
+		assertTrue(testObj.returnLockToken("hello", token));
+		assertTrue(testObj.isLocked("hello"));
+		assertTrue(testObj.returnLockToken("hello", token));
+		assertFalse(testObj.isLocked("hello"));
+		assertFalse(testObj.returnLockToken("hello", token));
+	}
+	
+	// Nested reentrant locks, are served without backend calls
+	@Test
+	public void reentrantRoundTrip() {
+		AtomicInteger backendCalls = new AtomicInteger(0);
+		LockTokenManager lockManager = new LockTokenManager(LockStore_test.countingKeyLongMap(
+			stack.keyLongMap(ramdomTableName()), backendCalls));
+		lockManager.systemSetup();
+		lockManager.reentrantMode(true);
+		backendCalls.set(0);
+		
+		// Outermost issue (weakCompareAndSet, setLifeSpan, getLong)
+		long token = lockManager.issueLockToken("hello", lockTimeoutRange());
+		assertTrue(token > 0l);
+		assertEquals(3, backendCalls.getAndSet(0));
+		
+		// Nested issue and return
+		assertEquals(token, lockManager.issueLockToken("hello", lockTimeoutRange()));
+		assertTrue(lockManager.returnLockToken("hello", token));
+		assertEquals(0, backendCalls.getAndSet(0));
+		
+		// Outermost return (weakCompareAndSet, get)
+		assertTrue(lockManager.returnLockToken("hello", token));
+		assertEquals(2, backendCalls.getAndSet(0));
+	}
+	
+	// Affinity leases linger locally after a return, and are reused without backend calls
+	@Test
+	public void affinityRoundTrip() throws Exception {
+		KeyLongMap lockMap = stack.keyLongMap(ramdomTableName());
+		AtomicInteger backendCalls = new AtomicInteger(0);
+		LockTokenManager lockManager = new LockTokenManager(LockStore_test.countingKeyLongMap(
+			lockMap, backendCalls));
+		lockManager.systemSetup();
+		lockManager.lingerWindow(200);
+		LockTokenManager remoteObj = new LockTokenManager(lockMap);
+		backendCalls.set(0);
+		
+		// Issue (weakCompareAndSet, setLifeSpan, getLong), and a lingering return
+		long token = lockManager.issueLockToken("hello", lockTimeoutRange());
+		assertTrue(token > 0l);
+		assertTrue(lockManager.returnLockToken("hello", token));
+		assertEquals(3, backendCalls.getAndSet(0));
+		
+		// Reissue within the linger window
+		assertEquals(token, lockManager.issueLockToken("hello", lockTimeoutRange()));
+		assertTrue(lockManager.returnLockToken("hello", token));
+		assertEquals(0, backendCalls.getAndSet(0));
+		
+		// Remote contenders, see the lease till it is handed off (polled till the lockTimeout,
+		// which is before the lease expires with its linger window)
+		long startTime = System.currentTimeMillis();
+		long remoteToken = remoteObj.issueLockToken("hello", lockTimeoutRange());
+		assertEquals(-1, remoteToken);
+		while (remoteToken <= 0 && System.currentTimeMillis() - startTime < lockTimeoutRange()) {
+			Thread.sleep(20);
+			remoteToken = remoteObj.issueLockToken("hello", lockTimeoutRange());
+		}
+		assertTrue(remoteToken > 0l);
+		assertTrue(backendCalls.get() > 0);
+	}
+	
+	// Lingering leases are handed off when the async executor is shutdown
+	@Test
+	public void affinityShutdownHandoff() {
+		KeyLongMap lockMap = stack.keyLongMap(ramdomTableName());
+		LockTokenManager lockManager = new LockTokenManager(lockMap);
+		lockManager.systemSetup();
+		lockManager.lingerWindow(60000);
+		LockTokenManager remoteObj = new LockTokenManager(lockMap);
+		
+		long token = lockManager.issueLockToken("hello", lockTimeoutRange());
+		assertTrue(lockManager.returnLockToken("hello", token));
+		assertEquals(-1, remoteObj.issueLockToken("hello", lockTimeoutRange()));
+		
+		lockManager.shutdownAsyncExecutor();
+		assertTrue(remoteObj.issueLockToken("hello", lockTimeoutRange()) > 0l);
+	}
+	
+	// Async lock handling
+	@Test
+	public void asyncLockToken() throws Exception {
+		try {
+			long token = testObj.issueLockToken_async("hello", 300).get();
+			assertTrue(token > 0l);
+			assertEquals(-1l, (long) testObj.issueLockToken_async("hello", 300).get());
+			assertEquals(token, (long) testObj.renewLockToken_async("hello", token, 300).get());
+			
+			// Await the lock expiry
+			long startTime = System.currentTimeMillis();
+			assertTrue(testObj.awaitLockToken_async("hello", lockTimeoutRange(), 5000).get() > 0l);
+			assertTrue(System.currentTimeMillis() - startTime >= 200);
+			assertFalse(testObj.returnLockToken_async("hello", token).get());
+			
+			// Await timeout
+			assertEquals(-1l, (long) testObj.awaitLockToken_async("hello", lockTimeoutRange(), 100)
+				.get());
+		} finally {
+			testObj.shutdownAsyncExecutor();
+		}
+	}
+	
+	// Async calls are rejected, when the executor is saturated
+	@Test
+	public void asyncLockToken_saturated() throws Exception {
+		testObj.asyncExecutor(1, 1);
+		CountDownLatch latch = new CountDownLatch(1);
+		try {
+			// Use up the executor thread, and its queue
+			testObj.asyncExecutor().execute(() -> {
+				try {
+					latch.await();
+				} catch (InterruptedException e) {
+					// Ignored
+				}
+			});
+			CompletableFuture<Long> queued = testObj.issueLockToken_async("hello",
+				lockTimeoutRange());
+			
+			// Rejected
+			CompletableFuture<Long> rejected = testObj.issueLockToken_async("hello",
+				lockTimeoutRange());
+			assertTrue(rejected.isCompletedExceptionally());
+			
+			// Queued call completes, once the executor is freed
+			latch.countDown();
+			assertTrue(queued.get() > 0l);
+		} finally {
+			latch.countDown();
+			testObj.shutdownAsyncExecutor();
+		}
+	}
+	
+	// Hierarchical locks, between parent and child paths
+	@Test
+	public void hierarchicalLockToken() {
+		// Child locks, blocks the parent
+		long child = testObj.issueHierarchicalLockToken("account:123:session:abc", lockTimeoutRange(),
+			0);
+		assertTrue(child > 0l);
+		assertEquals(1, testObj.getIntentionCount("account:123"));
+		assertEquals(1, testObj.getIntentionCount("account"));
+		assertEquals(-1, testObj.issueHierarchicalLockToken("account:123", lockTimeoutRange(), 0));
+		assertEquals(-1, testObj.issueHierarchicalLockToken("account", lockTimeoutRange(), 0));
+		
+		// Sibling locks are unaffected
+		long sibling = testObj.issueHierarchicalLockToken("account:456", lockTimeoutRange(), 0);
+		assertTrue(sibling > 0l);
+		assertTrue(testObj.returnHierarchicalLockToken("account:456", sibling));
+		
+		// Release the child, parent can be locked
+		assertTrue(testObj.returnHierarchicalLockToken("account:123:session:abc", child));
+		assertEquals(0, testObj.getIntentionCount("account:123"));
+		long parent = testObj.issueHierarchicalLockToken("account:123", lockTimeoutRange(), 0);
+		assertTrue(parent > 0l);
+		
+		// Parent lock, blocks the child
+		assertEquals(-1, testObj.issueHierarchicalLockToken("account:123:session:abc",
+			lockTimeoutRange(), 0));
+		assertTrue(testObj.renewHierarchicalLockToken("account:123", parent, lockTimeoutRange()) > 0l);
+		assertTrue(testObj.returnHierarchicalLockToken("account:123", parent));
+		assertTrue(testObj.issueHierarchicalLockToken("account:123:session:abc", lockTimeoutRange(),
+			0) > 0l);
+	}
+	
+	// Parent lock, waiting for child locks to drain
+	@Test
+	public void hierarchicalLockToken_parentWait() throws Exception {
+		long child = testObj.issueHierarchicalLockToken("account:123:session:abc", 5000, 0);
+		assertTrue(child > 0l);
+		
+		// Release the child in a seperate thread
+		Thread releaser = new Thread(() -> {
+			try {
+				Thread.sleep(200);
+			} catch (InterruptedException e) {
+				// Ignored
+			}
+			testObj.returnHierarchicalLockToken("account:123:session:abc", child);
+		});
+		releaser.start();
+		
+		long startTime = System.currentTimeMillis();
+		assertTrue(testObj.issueHierarchicalLockToken("account", lockTimeoutRange(), 5000) > 0l);
+		assertTrue(System.currentTimeMillis() - startTime >= 150);
+		releaser.join(2000);
+	}
+	
+	// Parent lock, kept alive while waiting, and rolled back if the child locks do not drain
+	@Test
+	public void hierarchicalLockToken_parentWaitTimeout() {
+		long child = testObj.issueHierarchicalLockToken("account:123:session:abc", 5000, 0);
+		assertTrue(child > 0l);
+		
+		assertEquals(-1, testObj.issueHierarchicalLockToken("account:123", 100, 300));
+		assertFalse(testObj.isLocked("account:123"));
+		assertEquals(1, testObj.getIntentionCount("account"));
+	}
+	
+	// Renewal with a lost intention count, rolls back the lock and the other intentions
+	@Test
+	public void hierarchicalLockToken_lostIntention() {
+		long token = testObj.issueHierarchicalLockToken("account:123:session", lockTimeoutRange(),
+			0);
+		assertTrue(token > 0l);
+		
+		// Simulate the expiry of the "account" intention count
+		String intentID = LockTokenManager.leaseBucketKey(LockTokenManager.INTENTION_PREFIX
+			+ "account", testObj.intentionBucketMap.get("account:123:session")[1]);
+		assertTrue(testObj.lockStore.compareAndSetWithLifespan(intentID, 1l, 0l, 1000));
+		
+		assertEquals(-1, testObj.renewHierarchicalLockToken("account:123:session", token,
+			lockTimeoutRange()));
+		assertFalse(testObj.isLocked("account:123:session"));
+		assertEquals(0, testObj.getIntentionCount("account:123"));
+	}
+	
+	// Batched lock state lookup
+	@Test
+	public void getLockStates() {
+		long token = testObj.issueLockToken("hello", lockTimeoutRange());
+		assertTrue(token > 0l);
+		
+		Map<String, LockState> states = testObj.getLockStates(Arrays.asList("hello", "world"));
+		assertEquals(2, states.size());
+		assertEquals(token, states.get("hello").getToken());
+		assertTrue(states.get("hello").isLocked());
+		assertTrue(states.get("hello").getLifespan() > 0l);
+		assertTrue(states.get("hello").getLifespan() <= lockTimeoutRange());
+		assertFalse(states.get("world").isLocked());
+	}
+	
+	// Paged iteration of the locked lockIDs, by prefix
+	@Test
+	public void lockStateIterator() {
+		for (int i = 0; i < 7; ++i) {
+			assertTrue(testObj.issueLockToken("job:" + i, lockTimeoutRange()) > 0l);
+		}
+		long token = testObj.issueLockToken("job:7", lockTimeoutRange());
+		assertTrue(testObj.returnLockToken("job:7", token));
+		assertTrue(testObj.issueLockToken("other", lockTimeoutRange()) > 0l);
+		
+		// Released, and non matching locks are skipped
+		List<String> lockIDs = new ArrayList<String>();
+		Iterator<LockState> iterator = testObj.lockStateIterator("job:", 3);
+		while (iterator.hasNext()) {
+			lockIDs.add(iterator.next().getLockID());
+		}
+		assertEquals(Arrays.asList("job:0", "job:1", "job:2", "job:3", "job:4", "job:5", "job:6"),
+			lockIDs);
+	}
+	
+	// Sweeping of released locks, without affecting held locks
+	@Test
+	public void sweepReleasedLocks() {
+		// Released locks, and a held lock
+		for (int i = 0; i < 20; ++i) {
+			long token = testObj.issueLockToken("sweep-" + i, lockTimeoutRange());
+			assertTrue(testObj.returnLockToken("sweep-" + i, token));
+		}
+		long held = testObj.issueLockToken("held", lockTimeoutRange());
+		assertTrue(held > 0l);
+		
+		// Sweep in small batches, leaving only the held lock
+		for (int i = 0; i < 10; ++i) {
+			testObj.sweepReleasedLocks(5);
+		}
+		assertEquals(Arrays.asList("held"), testObj.lockStore.listLockIDs("", null, 100));
+		assertFalse(testObj.getLockStates(Arrays.asList("sweep-0")).get("sweep-0").isLocked());
+		
+		// Held lock is unaffected, and released locks can be reissued
+		assertTrue(testObj.isLocked("held"));
+		assertTrue(testObj.returnLockToken("held", held));
+		assertTrue(testObj.issueLockToken("sweep-0", lockTimeoutRange()) > 0l);
+	}
+	
+	// Shared leases, and the exclusive lock
+	@Test
+	public void sharedLease() {
+		// Multiple shared leases
+		long leaseA = testObj.acquireSharedLease("hello", lockTimeoutRange());
+		long leaseB = testObj.acquireSharedLease("hello", lockTimeoutRange());
+		assertTrue(leaseA > 0l);
+		assertTrue(leaseB > 0l);
+		assertEquals(2, testObj.getSharedLeaseCount("hello"));
+		leaseA = testObj.renewSharedLease("hello", leaseA, lockTimeoutRange());
+		assertTrue(leaseA > 0l);
+		
+		// Exclusive lock fails, while shared leases are held
+		assertEquals(-1, testObj.issueExclusiveLockToken("hello", lockTimeoutRange(), 0));
+		assertFalse(testObj.isLocked("hello"));
+		
+		// Return the shared leases
+		assertTrue(testObj.returnSharedLease("hello", leaseA));
+		assertTrue(testObj.returnSharedLease("hello", leaseB));
+		assertFalse(testObj.returnSharedLease("hello", leaseB));
+		assertEquals(0, testObj.getSharedLeaseCount("hello"));
+		
+		// Exclusive lock, blocks shared leases
+		long token = testObj.issueExclusiveLockToken("hello", lockTimeoutRange(), 0);
+		assertTrue(token > 0l);
+		assertEquals(-1, testObj.acquireSharedLease("hello", lockTimeoutRange()));
+		assertTrue(testObj.returnLockToken("hello", token));
+		assertTrue(testObj.acquireSharedLease("hello", lockTimeoutRange()) > 0l);
+	}
+	
+	// Shared leases which are not returned, expire on their own (while others are renewed)
+	@Test
+	public void sharedLease_lostReader() throws Exception {
+		testObj.maxLeaseTimeout(lockTimeoutRange());
+		testObj.leaseBucketCount(10);
+		
+		// Reader which is lost, and a reader which keeps renewing
+		assertTrue(testObj.acquireSharedLease("hello", 100) > 0l);
+		long lease = testObj.acquireSharedLease("hello", 100);
+		assertTrue(lease > 0l);
+		assertEquals(2, testObj.getSharedLeaseCount("hello"));
+		for (int i = 0; i < 6; ++i) {
+			Thread.sleep(50);
+			lease = testObj.renewSharedLease("hello", lease, 100);
+			assertTrue(lease > 0l);
+		}
+		assertEquals(1, testObj.getSharedLeaseCount("hello"));
+		
+		// Lease timeout is bounded by maxLeaseTimeout
+		try {
+			testObj.acquireSharedLease("hello", lockTimeoutRange() + 1);
+			fail("Expected an exception");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+	
+	// Exclusive lock, waiting for shared leases to drain
+	@Test
+	public void sharedLease_exclusiveWait() throws Exception {
+		long lease = testObj.acquireSharedLease("hello", 5000);
+		assertTrue(lease > 0l);
+		
+		// Return the shared lease in a seperate thread
+		Thread reader = new Thread(() -> {
+			try {
+				Thread.sleep(200);
+			} catch (InterruptedException e) {
+				// Ignored
+			}
+			testObj.returnSharedLease("hello", lease);
+		});
+		reader.start();
+		
+		long startTime = System.currentTimeMillis();
+		assertTrue(testObj.issueExclusiveLockToken("hello", lockTimeoutRange(), 5000) > 0l);
+		assertTrue(System.currentTimeMillis() - startTime >= 150);
+		reader.join(2000);
+	}
 }
@@ -0,0 +1,120 @@
+package picoded.dstack.module.lock;
+
+import java.util.*;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import picoded.dstack.module.*;
+import picoded.dstack.*;
+
+public class RateLimiter_test extends BaseTestStack {
+	
+	// Test setup
+	//-----------------------------------------------------
+	
+	/**
+	 * Internal test object being tested
+	 */
+	public RateLimiter testObj = null;
+	public String testName = null;
+	
+	/**
+	 * [to override if needed]
+	 * Does the internal stack setup
+	 */
+	@Before
+	public void systemSetup() {
+		super.systemSetup();
+		testName = ramdomTableName();
+		testObj = new RateLimiter(stack, testName);
+		testObj.systemSetup();
+	}
+	
+	// Lets get testing!
+	//-----------------------------------------------------
+	
+	// Unconfigured and unlimited rates
+	@Test
+	public void unconfiguredRate() {
+		assertFalse(testObj.tryAcquire("hello"));
+		testObj.setRate("hello", -1, 1000);
+		for (int i = 0; i < 100; ++i) {
+			assertTrue(testObj.tryAcquire("hello"));
+		}
+	}
+	
+	// Bursts up to the limit, and refills over the interval
+	@Test
+	public void gcra_burstAndRefill() throws Exception {
+		testObj.setRate("hello", 5, 200);
+		for (int i = 0; i < 5; ++i) {
+			assertTrue(testObj.tryAcquire("hello"));
+		}
+		assertFalse(testObj.tryAcquire("hello"));
+		
+		Thread.sleep(100);
+		assertTrue(testObj.tryAcquire("hello"));
+	}
+	
+	// Bulk acquisition
+	@Test
+	public void gcra_bulk() {
+		testObj.setRate("hello", 5, 1000);
+		assertTrue(testObj.tryAcquire("hello", 3));
+		assertFalse(testObj.tryAcquire("hello", 3));
+		assertTrue(testObj.tryAcquire("hello", 2));
+		assertFalse(testObj.tryAcquire("world", 6));
+	}
+	
+	// Over limit rateIDs are rejected locally, without the backend state
+	@Test
+	public void localPreCheck() {
+		testObj.setRate("hello", 2, 10000);
+		assertTrue(testObj.tryAcquire("hello", 2));
+		assertFalse(testObj.tryAcquire("hello"));
+		
+		// Clear the backend state
+		stack.keyLongMap(testName + "_rate").remove("t_hello");
+		assertFalse(testObj.tryAcquire("hello"));
+		
+		testObj.localPreCheck(false);
+		assertTrue(testObj.tryAcquire("hello"));
+	}
+	
+	// Local state is bounded, with pruning done at most once per interval
+	@Test
+	public void localStateLimit() {
+		long[] live = new long[] { Long.MAX_VALUE };
+		for (int i = 0; i < RateLimiter.LOCAL_STATE_LIMIT; ++i) {
+			testObj.localStateMap.put("id" + i, live);
+		}
+		
+		// Nothing to prune, new rateIDs are not added
+		testObj.updateLocalState("new1", live);
+		long pruneTime = testObj.localStatePruneTime;
+		assertTrue(pruneTime > 0);
+		assertFalse(testObj.localStateMap.containsKey("new1"));
+		
+		// Existing rateIDs are updated, without another prune
+		long[] updated = new long[] { Long.MAX_VALUE - 1 };
+		testObj.updateLocalState("id0", updated);
+		testObj.updateLocalState("new2", live);
+		assertSame(updated, testObj.localStateMap.get("id0"));
+		assertEquals(pruneTime, testObj.localStatePruneTime);
+		assertEquals(RateLimiter.LOCAL_STATE_LIMIT, testObj.localStateMap.size());
+	}
+	
+	// Sliding window limits, with bulk acquisition
+	@Test
+	public void slidingWindow() {
+		testObj.algorithm(RateLimiter.Algorithm.SLIDING_WINDOW);
+		testObj.setRate("hello", 5, 10000);
+		assertTrue(testObj.tryAcquire("hello", 3));
+		assertFalse(testObj.tryAcquire("hello", 3));
+		assertTrue(testObj.tryAcquire("hello"));
+		assertTrue(testObj.tryAcquire("hello"));
+		assertFalse(testObj.tryAcquire("hello"));
+	}
+	
+}
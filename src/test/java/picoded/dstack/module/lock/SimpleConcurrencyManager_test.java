@@ -0,0 +1,263 @@
+package picoded.dstack.module.lock;
+
+import java.util.*;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import picoded.dstack.module.*;
+import picoded.dstack.*;
+
+public class SimpleConcurrencyManager_test extends BaseTestStack {
+	
+	// Test setup
+	//-----------------------------------------------------
+	
+	/**
+	 * Internal test object being tested
+	 */
+	public SimpleConcurrencyManager testObj = null;
+	public String testName = null;
+	
+	/**
+	 * [to override if needed]
+	 * Does the internal stack setup
+	 */
+	@Before
+	public void systemSetup() {
+		super.systemSetup();
+		testName = ramdomTableName();
+		testObj = new SimpleConcurrencyManager(stack, testName);
+		testObj.systemSetup();
+	}
+	
+	/**
+	 * Stops the background executor (if any)
+	 */
+	@After
+	public void systemDestroy() {
+		testObj.shutdown();
+		super.systemDestroy();
+	}
+	
+	// Lets get testing!
+	//-----------------------------------------------------
+	
+	// Leasing within the soft and hard limits
+	@Test
+	public void leaseConcurrency() {
+		testObj.setLimits("hello", 1, 2, -1);
+		assertEquals(1, testObj.leaseConcurrency_returnCount("hello"));
+		assertEquals(2, testObj.leaseConcurrency_returnCount("hello"));
+		assertEquals(-1, testObj.leaseConcurrency_returnCount("hello"));
+		
+		testObj.releaseConcurrency("hello");
+		assertEquals(1, testObj.getConcurrencyCount("hello"));
+	}
+	
+	// Permits are leased as a block, and served from the local pool
+	@Test
+	public void prefetch_blockLease() {
+		testObj.setLimits("hello", 40, 80, -1);
+		testObj.prefetchLimit(8);
+		
+		// Block lease, capped by the prefetch limit
+		assertTrue(testObj.leaseConcurrency("hello"));
+		assertEquals(8, testObj.getConcurrencyCount("hello"));
+		assertEquals(7, testObj.getPooledPermits("hello"));
+		
+		// Served locally
+		for (int i = 0; i < 7; ++i) {
+			assertTrue(testObj.leaseConcurrency("hello"));
+		}
+		assertEquals(8, testObj.getConcurrencyCount("hello"));
+		assertEquals(0, testObj.getPooledPermits("hello"));
+		
+		// Released locally, and returned on shutdown
+		testObj.releaseConcurrency("hello");
+		testObj.releaseConcurrency("hello");
+		assertEquals(8, testObj.getConcurrencyCount("hello"));
+		assertEquals(2, testObj.getPooledPermits("hello"));
+		testObj.shutdown();
+		assertEquals(6, testObj.getConcurrencyCount("hello"));
+		assertEquals(0, testObj.getPooledPermits("hello"));
+	}
+	
+	// Block size shrinks near the soft limit, and stops past it
+	@Test
+	public void prefetch_adaptiveBlock() {
+		testObj.setLimits("hello", 10, 12, -1);
+		testObj.prefetchLimit(8);
+		
+		// A quarter of the headroom
+		assertTrue(testObj.leaseConcurrency("hello"));
+		assertEquals(2, testObj.getConcurrencyCount("hello"));
+		
+		// Past the soft limit, one at a time up to the hard limit
+		testObj.shutdown();
+		testObj.setConcurrencyCount("hello", 10, -1);
+		assertEquals(11, testObj.leaseConcurrency_returnCount("hello"));
+		assertEquals(0, testObj.getPooledPermits("hello"));
+		assertEquals(12, testObj.leaseConcurrency_returnCount("hello"));
+		assertEquals(-1, testObj.leaseConcurrency_returnCount("hello"));
+	}
+	
+	// Unused permits are returned when idle
+	@Test
+	public void prefetch_idleReturn() throws Exception {
+		testObj.setLimits("hello", -1, -1, -1);
+		testObj.prefetchIdleTimeout(50);
+		testObj.prefetchLimit(8);
+		
+		assertTrue(testObj.leaseConcurrency("hello"));
+		assertEquals(8, testObj.getConcurrencyCount("hello"));
+		
+		Thread.sleep(300);
+		assertEquals(1, testObj.getConcurrencyCount("hello"));
+		assertEquals(0, testObj.getPooledPermits("hello"));
+	}
+	
+	// Releases past the soft limit go back to the backend, and the pool is capped by the block size
+	@Test
+	public void prefetch_releaseCap() {
+		testObj.setLimits("hello", 10, 20, -1);
+		testObj.prefetchLimit(8);
+		
+		// Past the soft limit, nothing is pooled on release
+		testObj.setConcurrencyCount("hello", 12, -1);
+		assertEquals(13, testObj.leaseConcurrency_returnCount("hello"));
+		testObj.releaseConcurrency("hello");
+		assertEquals(0, testObj.getPooledPermits("hello"));
+		assertEquals(12, testObj.getConcurrencyCount("hello"));
+		
+		// Below the soft limit, the pool is capped by the adaptive block size (2 at a count of 2)
+		testObj.setConcurrencyCount("hello", 1, -1);
+		assertEquals(2, testObj.leaseConcurrency_returnCount("hello"));
+		assertEquals(1, testObj.getPooledPermits("hello"));
+		testObj.releaseConcurrency("hello");
+		testObj.releaseConcurrency("hello");
+		assertEquals(2, testObj.getPooledPermits("hello"));
+		testObj.releaseConcurrency("hello");
+		assertEquals(2, testObj.getPooledPermits("hello"));
+	}
+	
+	// Idle timeout changes take effect, after the executor is started
+	@Test
+	public void prefetch_idleTimeoutChange() throws Exception {
+		testObj.setLimits("hello", -1, -1, -1);
+		testObj.prefetchIdleTimeout(60000);
+		testObj.prefetchLimit(8);
+		testObj.prefetchIdleTimeout(50);
+		
+		assertTrue(testObj.leaseConcurrency("hello"));
+		assertEquals(8, testObj.getConcurrencyCount("hello"));
+		
+		Thread.sleep(300);
+		assertEquals(1, testObj.getConcurrencyCount("hello"));
+		assertEquals(0, testObj.getPooledPermits("hello"));
+	}
+	
+	// Limits are cached locally, till invalidated
+	@Test
+	public void limitCache() {
+		SimpleConcurrencyManager otherObj = new SimpleConcurrencyManager(stack, testName);
+		testObj.limitCacheTTL(10000);
+		
+		// Local updates are cached immediately
+		testObj.setLimits("hello", 1, 2, -1);
+		assertEquals(2, testObj.getHardLimit("hello"));
+		
+		// Remote updates are seen after invalidation
+		otherObj.setLimits("hello", 3, 6, -1);
+		assertEquals(1, testObj.getSoftLimit("hello"));
+		assertEquals(2, testObj.getHardLimit("hello"));
+		testObj.invalidateLimitCache("hello");
+		assertEquals(3, testObj.getSoftLimit("hello"));
+		assertEquals(6, testObj.getHardLimit("hello"));
+	}
+	
+	// Cached limits do not outlive their lifespan
+	@Test
+	public void limitCache_lifespan() throws Exception {
+		testObj.limitCacheTTL(10000);
+		testObj.setLimits("hello", 1, 2, 50);
+		assertEquals(2, testObj.getHardLimit("hello"));
+		
+		Thread.sleep(100);
+		assertEquals(0, testObj.getHardLimit("hello"));
+	}
+	
+	// Sharded counts are summed, and never go past the hard limit
+	@Test
+	public void sharded_hardLimit() {
+		testObj.shardCount(4);
+		testObj.setLimits("hello", 5, 10, -1);
+		
+		// Each shard takes its slice, falling back to the other shards
+		for (int i = 0; i < 10; ++i) {
+			assertTrue(testObj.leaseConcurrency("hello"));
+		}
+		assertEquals(10, testObj.getConcurrencyCount("hello"));
+		assertEquals(-1, testObj.leaseConcurrency_returnCount("hello"));
+		
+		// Releases from any shard
+		testObj.releaseConcurrency("hello");
+		testObj.releaseConcurrency("hello");
+		assertEquals(8, testObj.getConcurrencyCount("hello"));
+		assertTrue(testObj.leaseConcurrency("hello"));
+		assertEquals(9, testObj.getConcurrencyCount("hello"));
+	}
+	
+	// Sharded counts are spread evenly on set
+	@Test
+	public void sharded_setConcurrencyCount() {
+		testObj.shardCount(3);
+		testObj.setConcurrencyCount("hello", 7, -1);
+		assertEquals(7, testObj.getConcurrencyCount("hello"));
+		
+		for (int i = 0; i < 10; ++i) {
+			testObj.releaseConcurrency("hello");
+		}
+		assertEquals(0, testObj.getConcurrencyCount("hello"));
+	}
+	
+	// Releases are not lost, when only a single shard holds the count
+	@Test
+	public void sharded_release() {
+		testObj.shardCount(4);
+		testObj.setConcurrencyCount("hello", 1, -1);
+		for (int i = 0; i < 20; ++i) {
+			testObj.leaseUncheckedConcurrency("hello");
+			testObj.releaseConcurrency("hello");
+		}
+		assertEquals(1, testObj.getConcurrencyCount("hello"));
+		
+		testObj.releaseConcurrency("hello");
+		assertEquals(0, testObj.getConcurrencyCount("hello"));
+		testObj.releaseConcurrency("hello");
+		assertEquals(0, testObj.getConcurrencyCount("hello"));
+	}
+	
+	// Prefetching and sharding cannot be used together
+	@Test
+	public void sharded_prefetchRejected() {
+		testObj.shardCount(4);
+		try {
+			testObj.prefetchLimit(8);
+			fail("Expected IllegalArgumentException");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		
+		testObj.shardCount(1);
+		testObj.prefetchLimit(8);
+		try {
+			testObj.shardCount(4);
+			fail("Expected IllegalArgumentException");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		testObj.shutdown();
+	}
+	
+}
@@ -0,0 +1,44 @@
+package picoded.dstack.module.lock;
+
+import java.util.*;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class SpaceSavingSketch_test {
+	
+	// Exact counts, within the capacity
+	@Test
+	public void exactCounts() {
+		SpaceSavingSketch sketch = new SpaceSavingSketch(10);
+		for (int i = 0; i < 5; ++i) {
+			for (int n = 0; n <= i; ++n) {
+				sketch.offer("key" + i);
+			}
+		}
+		
+		LinkedHashMap<String, Long> top = sketch.topK(3);
+		assertEquals(Arrays.asList("key4", "key3", "key2"), new ArrayList<>(top.keySet()));
+		assertEquals(5l, (long) top.get("key4"));
+		assertEquals(0l, sketch.getError("key4"));
+		assertEquals(15l, sketch.total());
+	}
+	
+	// Frequent keys are kept, with a long tail of rare keys
+	@Test
+	public void frequentKeysKept() {
+		SpaceSavingSketch sketch = new SpaceSavingSketch(10);
+		for (int i = 0; i < 1000; ++i) {
+			sketch.offer("hot");
+			sketch.offer("rare" + i);
+			if (i % 2 == 0) {
+				sketch.offer("warm");
+			}
+		}
+		
+		LinkedHashMap<String, Long> top = sketch.topK(2);
+		assertEquals(Arrays.asList("hot", "warm"), new ArrayList<>(top.keySet()));
+		assertTrue(top.get("hot") >= 1000l);
+		assertTrue(top.get("hot") - sketch.getError("hot") <= 1000l);
+	}
+}
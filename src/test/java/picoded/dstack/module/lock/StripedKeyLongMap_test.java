@@ -0,0 +1,110 @@
+package picoded.dstack.module.lock;
+
+import java.util.*;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import picoded.dstack.module.*;
+import picoded.dstack.*;
+
+public class StripedKeyLongMap_test extends BaseTestStack {
+	
+	// Test setup
+	//-----------------------------------------------------
+	
+	public StripedKeyLongMap testObj = null;
+	
+	@Before
+	public void systemSetup() {
+		super.systemSetup();
+		testObj = new StripedKeyLongMap(4, 5);
+		testObj.systemSetup();
+	}
+	
+	@After
+	public void systemDestroy() {
+		testObj.systemDestroy();
+		super.systemDestroy();
+	}
+	
+	// Basic tests
+	//-----------------------------------------------------
+	
+	@Test
+	public void compareAndSet() {
+		// Missing values are treated as 0l
+		assertFalse(testObj.weakCompareAndSet("hello", 1l, 2l));
+		assertTrue(testObj.weakCompareAndSet("hello", 0l, 1l));
+		assertFalse(testObj.weakCompareAndSet("hello", 0l, 2l));
+		assertTrue(testObj.weakCompareAndSet("hello", 1l, 2l));
+		assertEquals(2l, testObj.getLong("hello"));
+		
+		// Counters
+		assertEquals(1l, (long) testObj.incrementAndGet("count"));
+		assertEquals(11l, (long) testObj.addAndGet("count", 10l));
+		assertEquals(10l, (long) testObj.decrementAndGet("count"));
+		
+		// Removal
+		testObj.remove("hello");
+		assertEquals(0l, testObj.getLong("hello"));
+		assertEquals(1, testObj.keySet().size());
+	}
+	
+	@Test
+	public void expiryRemoval() throws Exception {
+		assertTrue(testObj.weakCompareAndSet("hello", 0l, 1l));
+		testObj.setLifeSpan("hello", 20);
+		testObj.putWithLifespan("world", 2l, 100000);
+		assertEquals(1l, testObj.getLong("hello"));
+		
+		// Expired values are removed by the timing wheel (advanced by the lookup itself)
+		Thread.sleep(50);
+		assertEquals(0l, testObj.getLong("hello"));
+		testObj.maintenance();
+		assertEquals(1, testObj.keySet().size());
+		
+		int size = 0;
+		for (StripedKeyLongMap.Stripe stripe : testObj.stripes) {
+			size += stripe.size;
+		}
+		assertEquals(1, size);
+		
+		// Expired values can be set again
+		assertTrue(testObj.weakCompareAndSet("hello", 0l, 3l));
+		assertEquals(3l, testObj.getLong("hello"));
+	}
+	
+	@Test
+	public void resizeAndConcurrentUpdates() throws Exception {
+		// Enough keys, to resize the stripe tables
+		for (int i = 0; i < 1000; ++i) {
+			assertTrue(testObj.weakCompareAndSet("key" + i, 0l, i + 1l));
+		}
+		for (int i = 0; i < 1000; ++i) {
+			assertEquals(i + 1, testObj.getLong("key" + i));
+		}
+		
+		// Concurrent counter updates, while keys are being inserted and removed
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < 4; ++t) {
+			final int offset = t;
+			threads.add(new Thread(() -> {
+				for (int i = 0; i < 1000; ++i) {
+					testObj.incrementAndGet("count");
+					testObj.putValue("t" + offset + "_" + i, 1l);
+					testObj.remove("t" + offset + "_" + (i - 1));
+				}
+			}));
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(4000l, testObj.getLong("count"));
+		assertEquals(1005, testObj.keySet().size());
+	}
+	
+}